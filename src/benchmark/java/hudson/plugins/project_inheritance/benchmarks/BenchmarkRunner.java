@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import jenkins.benchmark.jmh.BenchmarkFinder;
+
+/**
+ * Runs all benchmarks annotated with {@link jenkins.benchmark.jmh.JmhBenchmark}
+ * and writes their results as JSON, so that they can be compared across
+ * releases.
+ * <p>
+ * This is only compiled and run by the "benchmark" Maven profile:
+ * <pre>
+ * mvn -P benchmark test [-Dbenchmark.result=/path/to/report.json]
+ * </pre>
+ */
+public class BenchmarkRunner {
+	public static final String RESULT_PROPERTY = "benchmark.result";
+	
+	@Test
+	public void runJmhBenchmarks() throws Exception {
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.mode(Mode.AverageTime)
+				.timeUnit(TimeUnit.MICROSECONDS)
+				.warmupIterations(3)
+				.measurementIterations(5)
+				.threads(1)
+				.forks(1)
+				.shouldFailOnError(true)
+				.shouldDoGC(true)
+				.resultFormat(ResultFormatType.JSON)
+				.result(System.getProperty(RESULT_PROPERTY, "target/jmh-report.json"));
+		
+		//Adds all classes annotated with @JmhBenchmark
+		new BenchmarkFinder(this.getClass()).findBenchmarks(options);
+		new Runner(options.build()).run();
+	}
+}
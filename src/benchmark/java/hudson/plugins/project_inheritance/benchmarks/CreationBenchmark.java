@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine;
+import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine.CreationClass;
+import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine.CreationMating;
+import hudson.plugins.project_inheritance.projects.references.SimpleProjectReference;
+import hudson.plugins.project_inheritance.utils.XmlProject;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+
+/**
+ * Benchmarks {@link ProjectCreationEngine#triggerCreateProjects()} for a
+ * set of "left" projects, each of which is compatible with every "right"
+ * project.
+ * <p>
+ * The transient projects are created during setup, so the benchmark
+ * measures the periodic case in which all of them already exist and only
+ * have to be checked.
+ */
+@JmhBenchmark
+public class CreationBenchmark {
+	
+	@State(Scope.Benchmark)
+	public static class Matings extends JmhBenchmarkState {
+		@Param({"4", "16"})
+		public int size;
+		
+		public ProjectCreationEngine pce;
+		
+		@Override
+		public void setup() throws Exception {
+			this.pce = ProjectCreationEngine.instance;
+			this.pce.getCreationClasses().add(new CreationClass("Left", ""));
+			this.pce.getCreationClasses().add(new CreationClass("Right", ""));
+			this.pce.getMatings().add(new CreationMating("Left", "Right", ""));
+			
+			List<InheritanceProject> rights = new ArrayList<InheritanceProject>();
+			for (int i = 0; i < size; i++) {
+				XmlProject right = new XmlProject("right_" + i);
+				right.project.setCreationClass("Right");
+				rights.add(right.project);
+			}
+			for (int i = 0; i < size; i++) {
+				XmlProject left = new XmlProject("left_" + i);
+				left.project.setCreationClass("Left");
+				for (InheritanceProject right : rights) {
+					left.project.getRawCompatibleProjects().add(
+							new SimpleProjectReference(right.getFullName())
+					);
+				}
+			}
+			
+			this.pce.setEnableCreation(true);
+			this.pce.triggerCreateProjects();
+		}
+	}
+	
+	
+	@Benchmark
+	public void triggerCreateProjects(Matings state, Blackhole bh) {
+		bh.consume(state.pce.triggerCreateProjects());
+	}
+}
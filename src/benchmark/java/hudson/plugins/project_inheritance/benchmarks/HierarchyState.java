@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Param;
+
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.utils.XmlHierarchy;
+import hudson.plugins.project_inheritance.utils.XmlHierarchy.Shape;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+
+/**
+ * Sets up a Jenkins instance with a synthetic hierarchy of
+ * {@link InheritanceProject}s, built with the same {@link XmlHierarchy}
+ * fixture that the integration tests use.
+ */
+public class HierarchyState extends JmhBenchmarkState {
+	
+	@Param({"CHAIN", "FAN_OUT", "DIAMOND", "LEAVES"})
+	public Shape shape;
+	
+	@Param({"16", "256"})
+	public int size;
+	
+	/**
+	 * The project the benchmarks are run against.
+	 */
+	public InheritanceProject target;
+	
+	/**
+	 * All projects of the hierarchy, in order of creation.
+	 */
+	public final List<InheritanceProject> projects =
+			new ArrayList<InheritanceProject>();
+	
+	
+	@Override
+	public void setup() throws Exception {
+		XmlHierarchy hierarchy = XmlHierarchy.create(shape, size);
+		this.target = hierarchy.target;
+		this.projects.addAll(hierarchy.projects);
+	}
+}
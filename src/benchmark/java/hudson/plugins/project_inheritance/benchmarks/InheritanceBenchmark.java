@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import hudson.model.ParametersDefinitionProperty;
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.InheritanceProject.IMode;
+import hudson.plugins.project_inheritance.projects.inheritance.DerivedFieldCache;
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+/**
+ * Benchmarks the read paths of the inheritance on the hierarchies set up
+ * by {@link HierarchyState}.
+ * <p>
+ * The derivations are measured both with a warm {@link DerivedFieldCache}
+ * and with the cache being dropped before every call, which is what every
+ * call costs right after a configuration change.
+ */
+@JmhBenchmark
+public class InheritanceBenchmark {
+	
+	@State(Scope.Benchmark)
+	public static class Hierarchy extends HierarchyState {
+		@Param({"true", "false"})
+		public boolean warm;
+		
+		public InheritanceProject prepare() {
+			if (!warm) {
+				DerivedFieldCache.invalidateAll();
+			}
+			return this.target;
+		}
+	}
+	
+	
+	// === GRAPH ===
+	
+	@Benchmark
+	@SuppressWarnings("deprecation")
+	public void connectionGraph(Hierarchy state, Blackhole bh) {
+		bh.consume(InheritanceProject.getConnectionGraph());
+	}
+	
+	@Benchmark
+	public void relationships(Hierarchy state, Blackhole bh) {
+		bh.consume(state.target.getRelationships());
+	}
+	
+	@Benchmark
+	public void hasCyclicDependency(Hierarchy state, Blackhole bh) {
+		bh.consume(state.target.hasCyclicDependency());
+	}
+	
+	
+	// === DERIVATION ===
+	
+	@Benchmark
+	public void deriveBuilders(Hierarchy state, Blackhole bh) {
+		bh.consume(state.prepare().getBuildersList(IMode.INHERIT_FORCED));
+	}
+	
+	@Benchmark
+	public void deriveParameters(Hierarchy state, Blackhole bh) {
+		bh.consume(state.prepare().getProperty(
+				ParametersDefinitionProperty.class, IMode.INHERIT_FORCED
+		));
+	}
+	
+	@Benchmark
+	public void deriveLabel(Hierarchy state, Blackhole bh) {
+		bh.consume(state.prepare().getAssignedLabel(IMode.INHERIT_FORCED));
+	}
+	
+	@Benchmark
+	public void parameterSanity(Hierarchy state, Blackhole bh) {
+		bh.consume(state.prepare().getParameterSanity());
+	}
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import hudson.plugins.project_inheritance.util.VersionedObjectStore;
+import hudson.plugins.project_inheritance.util.VersionedObjectStore.Version;
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+/**
+ * Benchmarks writing and reading a {@link VersionedObjectStore} with a
+ * realistic number of versions, in which only a few fields change from one
+ * version to the next.
+ * <p>
+ * This does not need a Jenkins instance.
+ */
+@JmhBenchmark
+public class VersionStoreBenchmark {
+	
+	@State(Scope.Benchmark)
+	public static class Store {
+		@Param({"16", "512"})
+		public int versions;
+		
+		public File dir;
+		public File file;
+		public VersionedObjectStore store;
+		
+		private int saveCount = 0;
+		
+		@Setup
+		public void setup() throws IOException {
+			this.dir = Files.createTempDirectory("vos-benchmark").toFile();
+			this.file = new File(this.dir, "versions.seg");
+			
+			this.store = new VersionedObjectStore();
+			for (int i = 0; i < versions; i++) {
+				Version v = this.store.createNextVersion();
+				//A few fields change with every version, the rest never does
+				store.setObjectFor(v, "description", "Version " + i);
+				store.setObjectFor(v, "buildersList", this.makeList(i / 8));
+				store.setObjectFor(v, "properties", this.makeList(4));
+				store.setObjectFor(v, "assignedLabel", "label_" + (i / 32));
+				v.setStability(i % 4 == 0);
+			}
+			this.store.save(this.file);
+		}
+		
+		private List<String> makeList(int seed) {
+			List<String> lst = new ArrayList<String>();
+			for (int i = 0; i < 16; i++) {
+				lst.add("entry_" + seed + "_" + i);
+			}
+			return lst;
+		}
+		
+		public File nextSaveFile() {
+			return new File(this.dir, "save_" + (saveCount++ % 4) + ".seg");
+		}
+		
+		@TearDown
+		public void tearDown() throws IOException {
+			FileUtils.deleteDirectory(this.dir);
+		}
+	}
+	
+	
+	@Benchmark
+	public void saveFull(Store state) throws IOException {
+		//A different file forces a full rewrite instead of an append
+		File out = state.nextSaveFile();
+		out.delete();
+		state.store.save(out);
+	}
+	
+	@Benchmark
+	public boolean areIdentical(Store state) {
+		//Both versions are saved, so only their stored digests are compared
+		Version latest = state.store.getLatestVersion();
+		return state.store.areIdentical(state.store.getVersion(latest.id - 1), latest);
+	}
+	
+	@Benchmark
+	public void load(Store state, Blackhole bh) throws IOException {
+		bh.consume(VersionedObjectStore.load(state.file));
+	}
+	
+	@Benchmark
+	public void loadAndReadLatest(Store state, Blackhole bh) throws IOException {
+		VersionedObjectStore vos = VersionedObjectStore.load(state.file);
+		bh.consume(vos.getValueMapFor(vos.getLatestVersion().id));
+	}
+	
+	@Benchmark
+	public void loadAndReadAll(Store state, Blackhole bh) throws IOException {
+		VersionedObjectStore vos = VersionedObjectStore.load(state.file);
+		bh.consume(vos.getAllValueMaps());
+	}
+}
@@ -45,6 +45,7 @@ import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.StringParameterValue;
 import hudson.plugins.project_inheritance.projects.actions.VersioningAction;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceContext;
 import hudson.plugins.project_inheritance.projects.parameters.InheritanceParametersDefinitionProperty;
 import hudson.plugins.project_inheritance.projects.versioning.VersionHandler;
 import hudson.plugins.project_inheritance.util.BuildDiscardPreventer;
@@ -195,7 +196,7 @@ public class InheritanceBuild extends Build<InheritanceProject, InheritanceBuild
 	public void run() {
 		//Making sure that we set the desired versions correctly
 		this.setVersions();
-		try {
+		try (InheritanceContext ctx = InheritanceContext.inherit("build")) {
 			this.onRun();
 		} finally {
 			this.unsetVersions();
@@ -24,14 +24,18 @@ package hudson.plugins.project_inheritance.projects;
 import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
 import static javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
 
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
 import java.util.AbstractMap;
@@ -62,6 +66,7 @@ import java.util.zip.GZIPOutputStream;
 
 import javax.annotation.CheckForNull;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
@@ -112,15 +117,19 @@ import hudson.model.ParameterDefinition;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersAction;
 import hudson.model.ParametersDefinitionProperty;
+import hudson.model.PeriodicWork;
 import hudson.model.Project;
 import hudson.model.Queue;
+import hudson.model.ResourceList;
 import hudson.model.StringParameterValue;
+import hudson.model.TaskListener;
 import hudson.model.TopLevelItem;
 import hudson.model.TransientProjectActionFactory;
 import hudson.model.Cause.RemoteCause;
 import hudson.model.Cause.UserIdCause;
 import hudson.model.Descriptor.FormException;
 import hudson.model.listeners.ItemListener;
+import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskFuture;
 import hudson.model.queue.ScheduleResult;
 import hudson.model.queue.SubTask;
@@ -128,9 +137,15 @@ import hudson.model.queue.SubTaskContributor;
 import hudson.plugins.project_inheritance.projects.InheritanceProject.Relationship.Type;
 import hudson.plugins.project_inheritance.projects.actions.VersioningAction;
 import hudson.plugins.project_inheritance.projects.causes.BuildCauseOverride;
+import hudson.plugins.project_inheritance.projects.creation.CreationClassIndex;
 import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine;
 import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine.CreationClass;
+import hudson.plugins.project_inheritance.projects.inheritance.BuildabilityCache;
+import hudson.plugins.project_inheritance.projects.inheritance.CyclicDependencyCheck;
+import hudson.plugins.project_inheritance.projects.inheritance.DerivedFieldCache;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceContext;
 import hudson.plugins.project_inheritance.projects.inheritance.InheritanceGovernor;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceGraphIndex;
 import hudson.plugins.project_inheritance.projects.inheritance.ParameterSelector;
 import hudson.plugins.project_inheritance.projects.inheritance.ParameterSelector.ScopeEntry;
 import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterDefinition;
@@ -151,6 +166,7 @@ import hudson.plugins.project_inheritance.projects.versioning.VersionHandler;
 import hudson.plugins.project_inheritance.projects.view.BuildFlowScriptAction;
 import hudson.plugins.project_inheritance.projects.view.BuildViewExtension;
 import hudson.plugins.project_inheritance.util.Helpers;
+import hudson.plugins.project_inheritance.util.InheritanceMetrics;
 import hudson.plugins.project_inheritance.util.MockItemGroup;
 import hudson.plugins.project_inheritance.util.ThreadAssocStore;
 import hudson.plugins.project_inheritance.util.TimedBuffer;
@@ -163,6 +179,7 @@ import hudson.plugins.project_inheritance.util.svg.SVGNode;
 import hudson.plugins.project_inheritance.util.svg.renderers.SVGTreeRenderer;
 import hudson.plugins.project_inheritance.widgets.ExtendedBuildHistoryWidget;
 import hudson.scm.NullSCM;
+import hudson.scm.PollingResult;
 import hudson.scm.SCM;
 import hudson.security.ACL;
 import hudson.security.Permission;
@@ -185,6 +202,7 @@ import jenkins.model.BuildDiscarder;
 import jenkins.model.BuildDiscarderProperty;
 import jenkins.model.Jenkins;
 import jenkins.scm.SCMCheckoutStrategy;
+import jenkins.util.SystemProperties;
 import jenkins.util.TimeDuration;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONException;
@@ -384,14 +402,41 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	protected static TimedBuffer<InheritanceProject, String> onSelfChangeBuffer = null;
 	
 	/**
-	 * Same as {@link #onSelfChangeBuffer}, but this buffer is cleared when
-	 * <i>any</i> project is changed or loaded anew.
+	 * Same as {@link #onSelfChangeBuffer}, but for values that are derived
+	 * from other projects too. A change to a project evicts all values whose
+	 * recorded provenance includes it (see
+	 * {@link TimedBuffer#set(Object, Object, Object, java.util.Collection)}).
+	 * Values stored under the null project are only cleared when any project
+	 * is loaded anew.
+	 * <p>
+	 * Currently, only the maintenance label records a provenance, namely the
+	 * full inheritance scope of its project. The project relations themselves
+	 * are kept in the {@link InheritanceGraphIndex} and not buffered here.
 	 * 
 	 * @see #createBuffers()
 	 * @see #clearBuffers(InheritanceProject)
 	 */
 	protected static TimedBuffer<InheritanceProject, String> onChangeBuffer = null;
 	
+	/**
+	 * The maximum number of values kept in each of the buffers above.
+	 */
+	private static final int BUFFER_MAX_SIZE = SystemProperties.getInteger(
+			InheritanceProject.class.getName() + ".bufferMaxSize", 100000
+	);
+	
+	/* The keys of the values in the buffers above. Using the same interned
+	 * instances everywhere means lookups compare keys by identity and use
+	 * the cached hash code of the string.
+	 */
+	private static final String KEY_PROJECTS_MAP = "getProjectsMap";
+	private static final String KEY_MAINTENANCE_LABEL = "maintenanceAssignedLabel";
+	private static final String KEY_VERSION_IDS = "getVersionIDs()";
+	private static final String KEY_VERSIONS = "getVersions()";
+	private static final String KEY_STABLE_VERSIONS = "getStableVersions()";
+	private static final String KEY_RELATIONSHIPS = "getRelationships";
+	private static final String KEY_RELATED_PROJECTS = "getRelatedProjects";
+	
 	public static Permission VERSION_CONFIG = new Permission(
 			PERMISSIONS, "ConfigureVersions",
 			Messages._InheritanceProject_VersionsConfigPermissionDescription(),
@@ -425,6 +470,12 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 */
 	protected transient VersionedObjectStore versionStore = null;
 	
+	/**
+	 * Changes whenever the configuration of this project might have changed.
+	 * Used to validate the values memoized by the {@link DerivedFieldCache}.
+	 */
+	private transient volatile long derivationStamp = DerivedFieldCache.nextStamp();
+	
 	
 	// === FIELDS SET BY JELLY FORM TAGS ===
 	
@@ -551,7 +602,7 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 */
 	@Deprecated
 	public static Map<String, InheritanceProject> getProjectsMap() {
-		Object obj = onChangeBuffer.get(null, "getProjectsMap");
+		Object obj = onChangeBuffer.get(null, KEY_PROJECTS_MAP);
 		if (obj != null && obj instanceof Map) {
 			return (Map) obj;
 		}
@@ -563,7 +614,7 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			pMap.put(p.getFullName(), p);
 		}
 		
-		onChangeBuffer.set(null, "getProjectsMap", pMap);
+		onChangeBuffer.set(null, KEY_PROJECTS_MAP, pMap);
 		return pMap;
 	}
 	
@@ -582,18 +633,78 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		);
 	}
 	
+	/**
+	 * Periodically removes outdated bookkeeping from the static buffers and
+	 * enforces their maximum size, so that neither needs to happen while
+	 * serving requests.
+	 */
+	@Extension
+	public static class BufferMaintenance extends PeriodicWork {
+		@Override
+		public long getRecurrencePeriod() {
+			return MIN;
+		}
+		
+		@Override
+		protected void doRun() {
+			createBuffers();
+			onInheritChangeBuffer.cull();
+			onSelfChangeBuffer.cull();
+			onChangeBuffer.cull();
+		}
+	}
+	
 	public static void createBuffers() {
 		if (onChangeBuffer == null) {
-			onChangeBuffer = new TimedBuffer<InheritanceProject, String>();
+			onChangeBuffer = new TimedBuffer<InheritanceProject, String>(-1, BUFFER_MAX_SIZE);
 		}
 		if (onSelfChangeBuffer == null) {
-			onSelfChangeBuffer = new TimedBuffer<InheritanceProject, String>();
+			onSelfChangeBuffer = new TimedBuffer<InheritanceProject, String>(-1, BUFFER_MAX_SIZE);
 		}
 		if (onInheritChangeBuffer == null) {
-			onInheritChangeBuffer = new TimedBuffer<InheritanceProject, String>();
+			onInheritChangeBuffer = new TimedBuffer<InheritanceProject, String>(-1, BUFFER_MAX_SIZE);
 		}
 	}
 	
+	/**
+	 * @return the buffers shared by all projects, by name; for statistics.
+	 */
+	public static Map<String, TimedBuffer<InheritanceProject, String>> getBuffers() {
+		createBuffers();
+		Map<String, TimedBuffer<InheritanceProject, String>> out =
+				new LinkedHashMap<String, TimedBuffer<InheritanceProject, String>>();
+		out.put("onChange", onChangeBuffer);
+		out.put("onSelfChange", onSelfChangeBuffer);
+		out.put("onInheritChange", onInheritChangeBuffer);
+		return out;
+	}
+	
+	/**
+	 * @return a stamp that changes whenever this project's configuration
+	 * might have changed.
+	 * @see DerivedFieldCache
+	 */
+	public long getDerivationStamp() {
+		return this.derivationStamp;
+	}
+
+	protected void touchDerivationStamp() {
+		this.derivationStamp = DerivedFieldCache.nextStamp();
+	}
+
+	/**
+	 * @return the hit rate of the inheritance, self and cross-project change
+	 * buffers, in that order. Each between 0 and 1.
+	 */
+	public static Map<String, Double> getBufferHitRates() {
+		createBuffers();
+		Map<String, Double> out = new LinkedHashMap<String, Double>();
+		out.put("onInheritChange", onInheritChangeBuffer.getHitRate());
+		out.put("onSelfChange", onSelfChangeBuffer.getHitRate());
+		out.put("onChange", onChangeBuffer.getHitRate());
+		return out;
+	}
+
 	public static void clearBuffers(InheritanceProject root) {
 		//Ensuring that the buffers are present
 		createBuffers();
@@ -603,26 +714,39 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			onChangeBuffer.clearAll();
 			onSelfChangeBuffer.clearAll();
 			onInheritChangeBuffer.clearAll();
+			DerivedFieldCache.invalidateAll();
+			BuildabilityCache.invalidateAll();
 			return;
 		}
 		
-		//First clearing the cross-project change buffer
-		onChangeBuffer.clearAll();
+		//Invalidates all derived values that include the root in their scope
+		root.touchDerivationStamp();
+		
+		//First evicting the cross-project values derived from the root
+		onChangeBuffer.invalidate(root);
 		//Then clearing the self-change buffer
 		onSelfChangeBuffer.clear(root);
 		
-		//Then we need to clear the inheritable changes for the root and its children
-		//Do note that the root MUST be cleared first, as otherwise we may
-		//fetch an "unclean" relationship set
+		/* Then we need to clear the inheritable changes for the root and its
+		 * relatives. As the change might have added or removed relations, both
+		 * the relatives before and after updating the graph index are cleared.
+		 */
+		InheritanceGraphIndex graph = InheritanceGraphIndex.get();
+		Map<String, Relationship> relMap = graph.getRelationships(root.getFullName());
+		graph.update(root);
+		relMap.putAll(graph.getRelationships(root.getFullName()));
+		
 		onInheritChangeBuffer.clear(root);
-		Map<InheritanceProject, Relationship> relMap = root.getRelationships();
-		for (Map.Entry<InheritanceProject, Relationship> e : relMap.entrySet()) {
+		for (Map.Entry<String, Relationship> e : relMap.entrySet()) {
 			//We ignore siblings
 			if (e.getValue().type == Relationship.Type.MATE) {
 				continue;
 			}
 			//Otherwise, we clear that project's inheritance buffer
-			onInheritChangeBuffer.clear(e.getKey());
+			InheritanceProject ip = getProjectByName(e.getKey());
+			if (ip != null) {
+				onInheritChangeBuffer.clear(ip);
+			}
 		}
 	}
 	
@@ -674,7 +798,9 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		 * reassigned. This broke versioning as that causes new fields to be
 		 * returned on each call; so that no in-place change can ever work.
 		 */
-		super.submit(req, rsp);
+		try (InheritanceContext ctx = InheritanceContext.raw("submit")) {
+			super.submit(req, rsp);
+		}
 		
 		JSONObject json = req.getSubmittedForm();
 		
@@ -858,6 +984,22 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	}
 	
 	
+	@Override
+	protected void performDelete() throws IOException, InterruptedException {
+		/* Invalidate everything derived from this project, while its children
+		 * are still known to the graph index. This also bumps the derivation
+		 * stamp, which the values memoized for the children are checked
+		 * against.
+		 */
+		clearBuffers(this);
+		
+		super.performDelete();
+		
+		//Evict all values derived from this project and the map of names
+		onChangeBuffer.invalidate(this);
+		onChangeBuffer.clear(null);
+	}
+	
 	@Override
 	public void renameTo(String newName) throws IOException {
 		if (this.name.equals(newName)) {
@@ -881,6 +1023,8 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		
 		//This means, that we need to force a refresh various buffers
 		clearBuffers(this);
+		//The map of project names is not tied to any particular project
+		onChangeBuffer.clear(null);
 		
 		//And then fixing all named references
 		for (InheritanceProject p : getProjectsMap().values()) {
@@ -942,11 +1086,18 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			//Get the old references
 			LinkedList<AbstractProjectReference> referencesInVersionStore =
 					(LinkedList)verStore.getObject(v, keyInVersionStore);
+			if (referencesInVersionStore == null) { continue; }
 			
 			//Loop through the parent references and change to new parent reference
+			boolean changed = false;
 			for (AbstractProjectReference ref : referencesInVersionStore) {
 				if (!ref.getName().equals(oldName)) { continue; }
 				ref.switchProject(newName);
+				changed = true;
+			}
+			//The values might only be loaded lazily; so store them explicitly
+			if (changed) {
+				verStore.setObjectFor(v, keyInVersionStore, referencesInVersionStore);
 				modified = true;
 			}
 		}
@@ -1040,6 +1191,7 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		for (CreationClass cc : ProjectCreationEngine.instance.getCreationClasses()) {
 			if (cc.name.equals(creationClass)) {
 				this.creationClass = creationClass;
+				CreationClassIndex.get().update(this);
 				break;
 			}
 		}
@@ -1086,6 +1238,9 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 */
 	@Override
 	public synchronized void save() throws IOException {
+		//Raw fields might have been altered directly
+		this.touchDerivationStamp();
+		
 		//Checking if we're marked as transient; which causes no saving to occur
 		if (this.isTransient) { return; }
 		
@@ -1101,9 +1256,13 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 */
 	@Override
 	public void onLoad(ItemGroup<? extends Item> parent, String name) throws IOException {
-		//Creating & clearing buffers, if necessary
+		//Creating & clearing buffers, if necessary; during startup, the
+		//buffers are cleared once all jobs are loaded
 		createBuffers();
-		clearBuffers(null);
+		boolean deferClear = StartupPipeline.deferClearBuffers();
+		if (!deferClear) {
+			clearBuffers(null);
+		}
 		
 		/* We need to create a dummy version store first, as we can't get the
 		 * project root directory before super() is executed (as no name is
@@ -1118,9 +1277,17 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		
 		//Loading the correct version store
 		this.versionStore = this.loadVersionedObjectStore();
+		this.touchDerivationStamp();
 		
 		//And clearing the buffers again, as a new job with new props is available
-		clearBuffers(null);
+		if (!deferClear) {
+			clearBuffers(null);
+		}
+		StartupPipeline.countLoadedProject();
+		
+		//In case of a reload, the edges and class of this job might have changed
+		InheritanceGraphIndex.get().update(this);
+		CreationClassIndex.get().update(this);
 	}
 	
 	public void onCopiedFrom(Item src) {
@@ -1191,7 +1358,17 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		if (this.isTransient) {
 			return null;
 		}
-		//TODO: This somewhat assumes, that the file will be compressed
+		return new File(this.getRootDir(), "versions.seg");
+	}
+	
+	/**
+	 * @return the file the versions were stored in before the segment format
+	 * was introduced. Only read once, to migrate its content.
+	 */
+	protected File getLegacyVersionFile() {
+		if (this.isTransient) {
+			return null;
+		}
 		return new File(this.getRootDir(), "versions.xml.gz");
 	}
 	
@@ -1376,12 +1553,16 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	
 	/**
 	 * This method displays the configuration as a complete XML dump.
+	 * <p>
+	 * The XML is streamed to the client. Unchanged projects are answered
+	 * with 304, see {@link #checkNotModified(StaplerRequest, StaplerResponse, Collection)}.
 	 * 
 	 * @param req the user-request
 	 * @param rsp the response sent as a reply
-	 * @return raw XML string
+	 * @throws IOException in case the response could not be written
 	 */
-	public String doGetConfigAsXML(StaplerRequest req, StaplerResponse rsp) {
+	public void doGetConfigAsXML(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
 		//Check if the user only wants the local data
 		String depth = req.getParameter("depth");
 		int iDepth = 0;
@@ -1391,13 +1572,10 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			} catch (NumberFormatException ex) { }
 		}
 		if (iDepth <= 0) {
-			Object obj = onSelfChangeBuffer.get(this, "doGetConfigAsXML");
-			if (obj != null && obj instanceof String) {
-				return (String) obj;
+			if (this.checkNotModified(req, rsp, Collections.singletonList(this))) {
+				return;
 			}
-			String str = Jenkins.XSTREAM2.toXML(this);
-			onSelfChangeBuffer.set(this, "doGetConfigAsXML", str);
-			return str;
+			this.writeXmlResponse(req, rsp, this);
 		} else {
 			Map<String, InheritanceProject> projs = new LinkedHashMap();
 			for (AbstractProjectReference apr : this.getAllParentReferences(SELECTOR.BUILDER)) {
@@ -1407,7 +1585,10 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			}
 			//Adding ourselves last
 			projs.put(this.getFullName(), this);
-			return Jenkins.XSTREAM2.toXML(projs);
+			if (this.checkNotModified(req, rsp, projs.values())) {
+				return;
+			}
+			this.writeXmlResponse(req, rsp, projs);
 		}
 	}
 	
@@ -1416,18 +1597,34 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 * ones) based on their default values into an XML file.
 	 * <p>
 	 * If you only want the default values of the last definition of each
-	 * parameter, use {@link #doGetParamDefaultsAsXML()}
+	 * parameter, use {@link #doGetParamDefaultsAsXML(StaplerRequest, StaplerResponse)}
+	 * 
+	 * @param req the user-request
+	 * @param rsp the response sent as a reply
+	 * @throws IOException in case the response could not be written
+	 */
+	public void doGetParamExpansionsAsXML(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		if (this.checkNotModified(req, rsp, this.getExportScope(SELECTOR.PARAMETER))) {
+			return;
+		}
+		this.writeXmlResponse(req, rsp, this.getParamExpansions());
+	}
+	
+	/**
+	 * Same as {@link #doGetParamExpansionsAsXML(StaplerRequest, StaplerResponse)},
+	 * but builds the whole XML as a String.
 	 * 
 	 * @return raw XML string
+	 * @deprecated Only kept for callers of the former String-returning API;
+	 * it is not served over HTTP.
 	 */
+	@Deprecated
 	public String doGetParamExpansionsAsXML() {
-		/*
-		Object obj = onInheritChangeBuffer.get(this, "doGetParamExpansionsAsXML");
-		if (obj != null && obj instanceof String) {
-			return (String) obj;
-		}
-		*/
-		
+		return Jenkins.XSTREAM2.toXML(this.getParamExpansions());
+	}
+	
+	private List<ParameterValue> getParamExpansions() {
 		//Fetching a list of unique parameters
 		List<ParameterDefinition> defLst = this.getParameters(IMode.INHERIT_FORCED);
 		
@@ -1448,10 +1645,7 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 				valLst.add(pv);
 			}
 		}
-		
-		String str = Jenkins.XSTREAM2.toXML(valLst);
-		//onInheritChangeBuffer.set(this, "doGetParamExpansionsAsXML", str);
-		return str;
+		return valLst;
 	}
 	
 	/**
@@ -1461,16 +1655,34 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 * Do note that this does not do any expansion,
 	 * it merely outputs the last default value defined for the given
 	 * parameter. If you want the full expansion, call
-	 * {@link #doGetParamExpansionsAsXML()}
+	 * {@link #doGetParamExpansionsAsXML(StaplerRequest, StaplerResponse)}
+	 * 
+	 * @param req the user-request
+	 * @param rsp the response sent as a reply
+	 * @throws IOException in case the response could not be written
+	 */
+	public void doGetParamDefaultsAsXML(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		if (this.checkNotModified(req, rsp, this.getExportScope(SELECTOR.PARAMETER))) {
+			return;
+		}
+		this.writeXmlResponse(req, rsp, this.getParamDefaults());
+	}
+	
+	/**
+	 * Same as {@link #doGetParamDefaultsAsXML(StaplerRequest, StaplerResponse)},
+	 * but builds the whole XML as a String.
 	 * 
 	 * @return raw XML string
+	 * @deprecated Only kept for callers of the former String-returning API;
+	 * it is not served over HTTP.
 	 */
+	@Deprecated
 	public String doGetParamDefaultsAsXML() {
-		Object obj = onInheritChangeBuffer.get(this, "doGetParamDefaultsAsXML");
-		if (obj != null && obj instanceof String) {
-			return (String) obj;
-		}
-		
+		return Jenkins.XSTREAM2.toXML(this.getParamDefaults());
+	}
+	
+	private List<ParameterValue> getParamDefaults() {
 		//Fetching a list of unique parameters
 		List<ParameterDefinition> defLst =
 				this.getParameters(IMode.INHERIT_FORCED);
@@ -1485,16 +1697,45 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 				valLst.add(pv);
 			}
 		}
-		
-		String str = Jenkins.XSTREAM2.toXML(valLst);
-		onInheritChangeBuffer.set(this, "doGetParamDefaultsAsXML", str);
-		return str;
+		return valLst;
 	}
 	
 	/**
 	 * This method dumps the version store as serialized XML.
+	 * The response may be empty, if there is no version store.
+	 * 
+	 * @param req the user-request
+	 * @param rsp the response sent as a reply
+	 * @throws IOException in case the response could not be written
+	 */
+	public void doGetVersionsAsXML(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		if (this.checkNotModified(req, rsp, Collections.singletonList(this))) {
+			return;
+		}
+		rsp.setContentType("application/xml;charset=UTF-8");
+		if (this.versionStore == null) {
+			return;
+		}
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				rsp.getCompressedOutputStream(req), StandardCharsets.UTF_8
+		));
+		try {
+			this.versionStore.writeXML(out);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Same as {@link #doGetVersionsAsXML(StaplerRequest, StaplerResponse)},
+	 * but builds the whole XML as a String.
+	 * 
 	 * @return the versions as an XML file. May be empty, but never null.
+	 * @deprecated Only kept for callers of the former String-returning API;
+	 * it is not served over HTTP.
 	 */
+	@Deprecated
 	public String doGetVersionsAsXML() {
 		if (this.versionStore == null) {
 			return "";
@@ -1505,25 +1746,154 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	/**
 	 * This method dumps the version store as serialized,
 	 * GZIP compressed, Base64 encoded XML.
+	 * <p>
+	 * Since the body is already compressed, it is sent as plain text without
+	 * an additional content encoding.
+	 * 
+	 * @param req the user-request
+	 * @param rsp the response sent as a reply
+	 * @throws IOException in case the response could not be written
+	 */
+	public void doGetVersionsAsCompressedXML(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		if (this.checkNotModified(req, rsp, Collections.singletonList(this))) {
+			return;
+		}
+		rsp.setContentType("text/plain;charset=US-ASCII");
+		if (this.versionStore == null) {
+			return;
+		}
+		this.writeCompressedVersions(rsp.getOutputStream());
+	}
+	
+	/**
+	 * Same as {@link #doGetVersionsAsCompressedXML(StaplerRequest, StaplerResponse)},
+	 * but builds the whole encoded stream as a String.
+	 * 
 	 * @return the a Base64 encoded GZIP stream
+	 * @deprecated Only kept for callers of the former String-returning API;
+	 * it is not served over HTTP.
 	 */
+	@Deprecated
 	public String doGetVersionsAsCompressedXML() {
 		if (this.versionStore == null) {
 			return "";
 		}
-		String xml = this.versionStore.toXML();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
 		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
-			BASE64EncoderStream b64s = new BASE64EncoderStream(baos);
-			GZIPOutputStream gos = new GZIPOutputStream(b64s);
-			gos.write(xml.getBytes());
-			gos.finish();
-			gos.close();
-			return baos.toString();
+			this.writeCompressedVersions(baos);
 		} catch (IOException ex) {
 			return "";
 		}
-		
+		return new String(baos.toByteArray(), StandardCharsets.US_ASCII);
+	}
+	
+	private void writeCompressedVersions(OutputStream os) throws IOException {
+		//Closing the writer finishes the GZIP and Base64 streams in order
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				new GZIPOutputStream(new BASE64EncoderStream(os)),
+				StandardCharsets.UTF_8
+		));
+		try {
+			this.versionStore.writeXML(out);
+		} finally {
+			out.close();
+		}
+	}
+	
+	
+	// === CONDITIONAL XML EXPORT ===
+	
+	/**
+	 * Returns the projects whose configuration contributes to the inherited
+	 * values exported for the given selector, including this project.
+	 */
+	private List<InheritanceProject> getExportScope(SELECTOR sortKey) {
+		List<InheritanceProject> scope = new ArrayList<InheritanceProject>();
+		for (AbstractProjectReference apr : this.getAllParentReferences(sortKey)) {
+			InheritanceProject ip = apr.getProject();
+			if (ip == null || ip == this) { continue; }
+			scope.add(ip);
+		}
+		scope.add(this);
+		return scope;
+	}
+	
+	/**
+	 * Sets the ETag and Last-Modified headers for an export derived from the
+	 * given projects and checks them against the conditional headers of the
+	 * request.
+	 * <p>
+	 * The ETag covers the selected and the latest version of each project
+	 * as well as its {@link #getDerivationStamp()}, so that changes to the
+	 * stability of versions or unversioned fields are detected too. Since
+	 * that stamp does not survive a restart, the first request after one is
+	 * always answered in full. Last-Modified is the time of the most recent
+	 * version. It is only sent for information and never leads to a 304,
+	 * because selecting or stabilizing another version does not change it.
+	 * 
+	 * @param req the user-request
+	 * @param rsp the response; set to 304, if nothing changed
+	 * @param scope the projects the export is derived from
+	 * @return true, if the client's copy is still current and nothing more
+	 *         must be sent.
+	 */
+	protected boolean checkNotModified(StaplerRequest req, StaplerResponse rsp,
+			Collection<InheritanceProject> scope) {
+		StringBuilder b = new StringBuilder();
+		long lastModified = 0;
+		for (InheritanceProject ip : scope) {
+			Long selected = VersionHandler.getVersion(ip);
+			Version latest = (ip.versionStore != null)
+					? ip.versionStore.getLatestVersion()
+					: null;
+			b.append(ip.getFullName()).append(':');
+			b.append(selected).append(':');
+			b.append((latest != null) ? latest.id : null).append(':');
+			b.append(ip.getDerivationStamp()).append(';');
+			if (latest != null) {
+				lastModified = Math.max(lastModified, latest.timestamp);
+			}
+		}
+		String etag = "W/\"" + Util.getDigestOf(b.toString()) + "\"";
+		
+		rsp.setHeader("ETag", etag);
+		//Browsers and proxies must revalidate, since versions may be selected
+		rsp.setHeader("Cache-Control", "private, no-cache");
+		if (lastModified > 0) {
+			rsp.setDateHeader("Last-Modified", lastModified);
+		}
+		
+		//If-Modified-Since is ignored; see above
+		String ifNoneMatch = req.getHeader("If-None-Match");
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.equals("*") || tag.equals(etag) || ("W/" + tag).equals(etag)) {
+				rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Streams the given object as UTF-8 XML to the client, compressing it, if
+	 * the client accepts that.
+	 */
+	private void writeXmlResponse(StaplerRequest req, StaplerResponse rsp, Object obj)
+			throws IOException {
+		rsp.setContentType("application/xml;charset=UTF-8");
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				rsp.getCompressedOutputStream(req), StandardCharsets.UTF_8
+		));
+		try {
+			Jenkins.XSTREAM2.toXML(obj, out);
+		} finally {
+			out.close();
+		}
 	}
 	
 	@Override
@@ -1797,7 +2167,7 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		
 		//Initialize versioning for active request from request / defaults
 		VersionHandler.initVersions(this);
-		try {
+		try (InheritanceContext ctx = InheritanceContext.inherit("doBuild")) {
 			this.doBuildInternal(req, rsp, delay);
 		} finally {
 			// Clean out ALL versioning data
@@ -2014,7 +2384,9 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			throws IOException, ServletException {
 		//TODO: The below function did not have the TimeDuration param previously
 		TimeDuration td = new TimeDuration(0);
-		super.doBuildWithParameters(req, rsp, td);
+		try (InheritanceContext ctx = InheritanceContext.inherit("doBuildWithParameters")) {
+			super.doBuildWithParameters(req, rsp, td);
+		}
 	}
 	
 	/**
@@ -2030,6 +2402,13 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	@Override
 	public QueueTaskFuture<InheritanceBuild> scheduleBuild2(
 			int quietPeriod, Cause c, Collection<? extends Action> actions) {
+		try (InheritanceContext ctx = InheritanceContext.inherit("scheduleBuild2")) {
+			return this.scheduleBuild2Internal(quietPeriod, c, actions);
+		}
+	}
+	
+	private QueueTaskFuture<InheritanceBuild> scheduleBuild2Internal(
+			int quietPeriod, Cause c, Collection<? extends Action> actions) {
 		//Purge whatever's stored in this thread from a previous run
 		VersionHandler.clearVersions();
 		
@@ -2311,14 +2690,26 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	protected VersionedObjectStore loadVersionedObjectStore() {
 		//TODO: This should read stuff from disk / DB
 		File vFile = this.getVersionFile();
+		boolean migrate = false;
+		if (vFile != null && !vFile.isFile()) {
+			//Falling back to the file written by older versions of the plugin
+			File legacy = this.getLegacyVersionFile();
+			if (legacy != null && legacy.isFile()) {
+				vFile = legacy;
+				migrate = true;
+			}
+		}
 		if (vFile == null || !vFile.isFile()) {
 			//Creating an empty VOS, in case none is stored anywhere
 			return new VersionedObjectStore();
 		}
-		//Otherwise, we attempt to load it from disk
-		VersionedObjectStore vos = null;
+		//Otherwise, we attempt to load it from disk; unless it was already
+		//decoded in parallel during startup
+		VersionedObjectStore vos = StartupPipeline.takePreloaded(vFile);
 		try {
-			vos = VersionedObjectStore.load(vFile);
+			if (vos == null) {
+				vos = VersionedObjectStore.load(vFile);
+			}
 		} catch (IOException ex) {
 			log.warning(
 					"No versions loaded for " + this.getFullName() + ". " +
@@ -2339,11 +2730,31 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			return new VersionedObjectStore();
 		}
 		
-		//Update that store -- regardless of the current object
-		boolean wasModified = updateVersionedObjectStore(vos);
+		//Stores written in the segment format are already up to date; and
+		//only have their values loaded on demand
+		boolean wasModified = false;
+		if (migrate) {
+			//Update that store -- regardless of the current object
+			wasModified = updateVersionedObjectStore(vos);
+			//All values are in memory already; so fix them up right away
+			for (HashMap<String, Object> m : vos.getAllValueMaps()) {
+				this.adoptVersionedProperties(m);
+			}
+		}
 		if (wasModified) {
+			vos.markModified();
+		}
+		if (wasModified || migrate) {
 			try {
-				vos.save(vFile);
+				vos.save(this.getVersionFile());
+				if (migrate && this.getVersionFile().isFile()) {
+					//Keep the old file around, but make sure it is not read again
+					File legacy = this.getLegacyVersionFile();
+					File done = new File(legacy.getPath() + ".migrated");
+					if (!legacy.renameTo(done)) {
+						log.warning("Could not rename migrated version file: " + legacy);
+					}
+				}
 			} catch (IOException ex) {
 				log.severe(String.format(
 						"Failed to save version to: %s; Reason = %s",
@@ -2352,30 +2763,45 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			}
 		}
 		
-		//Since we'll add/remove lots of properties, we put Jenkins in
-		//bulk-change mode
+		//The values of all other versions are fixed up once they are loaded
+		final InheritanceProject owner = this;
+		vos.setLoadListener(new VersionedObjectStore.LoadListener() {
+			@Override
+			public void onLoaded(Version v, Map<String, Object> values) {
+				owner.adoptVersionedProperties(values);
+			}
+		});
+		return vos;
+	}
+	
+	/**
+	 * The properties stored in a version need to have their owner set, which
+	 * happens by adding &amp; removing them.
+	 * <p>
+	 * This runs on the thread that loads the values of a version, before
+	 * they are visible to any other thread.
+	 * 
+	 * @param values the values of a single version
+	 */
+	private void adoptVersionedProperties(Map<String, Object> values) {
+		Object obj = values.get("properties");
+		if (!(obj instanceof List)) { return; }
+		List<JobProperty<Job<?,?>>> lst = (List<JobProperty<Job<?,?>>>) obj;
+		if (lst.isEmpty()) { return; }
+		
+		//Since we'll add/remove properties, we put Jenkins in bulk-change
+		//mode; the change is never committed, as nothing needs to be saved
 		try (BulkChange bc = new BulkChange(this)) {
-			//Then, we need to patch up certain fields in the store
-			for (HashMap<String, Object> m : vos.getAllValueMaps()) {
-				//The properties need to have their owner set, which happens by
-				//adding & removing them
-				Object obj = m.get("properties");
-				if (obj != null && obj instanceof List) {
-					List<JobProperty<Job<?,?>>> lst = (List<JobProperty<Job<?,?>>>) obj;
-					for (JobProperty<Job<?,?>> prop : lst) {
-						//Adding the property to us
-						this.addProperty(prop);
-						//And immediately removing the property
-						this.removeProperty(prop);
-					}
-				}
+			for (JobProperty<Job<?,?>> prop : lst) {
+				if (prop == null) { continue; }
+				//Adding the property to us
+				this.addProperty(prop);
+				//And immediately removing the property
+				this.removeProperty(prop);
 			}
-			bc.commit();
 		} catch (IOException e) {
 			//Nothing to do -- the BC will automatically abort
 		}
-			
-		return vos;
 	}
 	
 	private static boolean updateVersionedObjectStore(VersionedObjectStore vos) {
@@ -2600,7 +3026,7 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	}
 	
 	public Deque<Long> getVersionIDs() {
-		Object obj = onSelfChangeBuffer.get(this, "getVersionIDs()");
+		Object obj = onSelfChangeBuffer.get(this, KEY_VERSION_IDS);
 		if (obj != null && obj instanceof Deque) {
 			return (Deque) obj;
 		}
@@ -2610,12 +3036,12 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			lst.add(v.id);
 		}
 		
-		onSelfChangeBuffer.set(this, "getVersionIDs()", lst);
+		onSelfChangeBuffer.set(this, KEY_VERSION_IDS, lst);
 		return lst;
 	}
 	
 	public Deque<Version> getVersions() {
-		Object obj = onSelfChangeBuffer.get(this, "getVersions()");
+		Object obj = onSelfChangeBuffer.get(this, KEY_VERSIONS);
 		if (obj != null && obj instanceof Deque) {
 			return (Deque) obj;
 		}
@@ -2628,12 +3054,12 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			this.versionStore.getAllVersions()
 		);
 		
-		onSelfChangeBuffer.set(this, "getVersions()", lst);
+		onSelfChangeBuffer.set(this, KEY_VERSIONS, lst);
 		return lst;
 	}
 	
 	public Deque<Version> getStableVersions() {
-		Object obj = onSelfChangeBuffer.get(this, "getStableVersions()");
+		Object obj = onSelfChangeBuffer.get(this, KEY_STABLE_VERSIONS);
 		if (obj != null && obj instanceof Deque) {
 			return (Deque) obj;
 		}
@@ -2647,7 +3073,7 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 				lst.add(version);
 			}
 		}
-		onSelfChangeBuffer.set(this, "getStableVersions()", lst);
+		onSelfChangeBuffer.set(this, KEY_STABLE_VERSIONS, lst);
 		return lst;
 	}
 	
@@ -2879,26 +3305,25 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	
 	// === INHERITANCE-HELPER METHODS ===
 	
+	/**
+	 * Returns the projects that directly inherit from this job.
+	 * <p>
+	 * The children are looked up in the {@link InheritanceGraphIndex}, so this
+	 * does not need to scan all projects. They are matched on the full name
+	 * of this job, as that is what their parent references resolve.
+	 * 
+	 * @return a list of projects. May be empty, but never null.
+	 */
 	public List<InheritanceProject> getChildrenProjects() {
-		Object obj = onChangeBuffer.get(this, "getChildrenProjects");
-		if (obj != null && obj instanceof LinkedList) {
-			return (LinkedList) obj;
-		}
-		
 		LinkedList<InheritanceProject> lst =
 				new LinkedList<InheritanceProject>();
 		
-		Map<String, InheritanceProject> map = getProjectsMap();
-		for (InheritanceProject p : map.values()) {
-			//Checking if that project inherits from us
-			for (AbstractProjectReference ref : p.getParentReferences()) {
-				if (this.name.equals(ref.getName())) {
-					lst.add(p);
-				}
+		for (String child : InheritanceGraphIndex.get().getChildNames(this.getFullName())) {
+			InheritanceProject p = getProjectByName(child);
+			if (p != null) {
+				lst.add(p);
 			}
 		}
-		
-		onChangeBuffer.set(this, "getChildrenProjects", lst);
 		return lst;
 	}
 	
@@ -3497,6 +3922,12 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 				return ip.getRawTrigger(fClazz);
 			}
 			
+			@Override
+			protected boolean isDerivationCacheable() {
+				//The result depends on the requested class
+				return false;
+			}
+			
 			/*
 			@Override
 			protected T reduceFromFullInheritance(Deque<T> list) {
@@ -3742,12 +4173,52 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		for (SubTaskContributor euc : SubTaskContributor.all()) {
 			r.addAll(euc.forProject(this));
 		}
-		for (JobProperty<?> p : this.getAllProperties()) {
-			r.addAll(p.getSubTasks());
+		try (InheritanceContext ctx = InheritanceContext.inherit("queue")) {
+			for (JobProperty<?> p : this.getAllProperties()) {
+				r.addAll(p.getSubTasks());
+			}
 		}
 		return r;
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Called by the {@link Queue} during maintenance; which always needs to
+	 * see the fully inherited configuration.
+	 */
+	@Override
+	public CauseOfBlockage getCauseOfBlockage() {
+		try (InheritanceContext ctx = InheritanceContext.inherit("queue")) {
+			return super.getCauseOfBlockage();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Called by the {@link Queue} during maintenance; which always needs to
+	 * see the fully inherited configuration.
+	 */
+	@Override
+	public ResourceList getResourceList() {
+		try (InheritanceContext ctx = InheritanceContext.inherit("queue")) {
+			return super.getResourceList();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Polling needs to check the inherited SCM.
+	 */
+	@Override
+	public PollingResult poll(TaskListener listener) {
+		try (InheritanceContext ctx = InheritanceContext.inherit("poll")) {
+			return super.poll(listener);
+		}
+	}
+	
 	public List<ParameterDefinition> getParameters() {
 		return this.getParameters(IMode.AUTO);
 	}
@@ -4135,8 +4606,15 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 */
 	@Override
 	public Label getAssignedLabel() {
+		//Anything derived on the way must not fall back to the stack walk
+		try (InheritanceContext ctx = InheritanceContext.inherit("queue")) {
+			return this.getMaintenanceAssignedLabel();
+		}
+	}
+	
+	private Label getMaintenanceAssignedLabel() {
 		//Check if there's a cached value
-		Object cached = onChangeBuffer.get(this, "maintenanceAssignedLabel");
+		Object cached = onChangeBuffer.get(this, KEY_MAINTENANCE_LABEL);
 		if (cached != null && cached instanceof Label) {
 			Label lbl = (Label) cached;
 			/* Use the Jenkins cache to get an up-to-date version of that label
@@ -4156,9 +4634,12 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			lbl = super.getAssignedLabel();
 		}
 		
-		//Caching the result
+		//Caching the result; it needs to be evicted when any parent changes
 		if (lbl != null) {
-			onChangeBuffer.set(this, "maintenanceAssignedLabel", lbl);
+			onChangeBuffer.set(
+					this, KEY_MAINTENANCE_LABEL, lbl,
+					InheritanceGovernor.getFullScopeOrdered(this, SELECTOR.MISC, null)
+			);
 		}
 		//The returned label is guaranteed to be fresh
 		return lbl;
@@ -4357,8 +4838,28 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	}
 	
 	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Called very often by the {@link Queue} during maintenance. The answer
+	 * always depends on the fully inherited configuration, regardless of the
+	 * caller.
+	 */
 	@Override
 	public boolean isBuildable() {
+		long start = InheritanceMetrics.startTimer();
+		boolean buildable;
+		try (InheritanceContext ctx = InheritanceContext.inherit("queue")) {
+			buildable = this.checkBuildable();
+		}
+		InheritanceMetrics.recordTime("project.isBuildable", start);
+		if (!buildable) {
+			InheritanceMetrics.increment("project.isBuildable.false");
+		}
+		return buildable;
+	}
+	
+	private boolean checkBuildable() {
 		if (!super.isBuildable()) {
 			log.fine(String.format("%s not buildable; super.isBuildable() is false", this.getFullName()));
 			return false;
@@ -4369,25 +4870,11 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			return false;
 		}
 		
-		//Check for missing dependencies (recursively in all referenced projects)
-		if (!(this.getMissingDependencies().isEmpty())) {
-			return false;
-		}
-		
-		//Check for inheritance cycle
-		if (this.hasCyclicDependency()) {
-			return false;
-		}
-		
-		//Then, we check if there's a parameter inheritance issue with the
-		//user selected version
-		AbstractMap.SimpleEntry<Boolean, String> paramCheck =
-				this.getParameterSanity();
-		if (paramCheck.getKey() == false) {
+		//Then, check the inherited configuration
+		String reason = this.getInheritanceBuildabilityIssue();
+		if (reason != null) {
 			log.fine(String.format(
-					"%s not buildable; Parameter inconsistency: %s",
-					this.getFullName(),
-					paramCheck.getValue()
+					"%s not buildable; %s", this.getFullName(), reason
 			));
 			return false;
 		}
@@ -4396,6 +4883,52 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		return true;
 	}
 	
+	/**
+	 * Checks whether the inherited configuration of this project can be
+	 * built with the currently selected versions. This checks for missing
+	 * dependencies, cyclic inheritance and the parameter sanity.
+	 * <p>
+	 * The result is cached by the {@link BuildabilityCache} until this project,
+	 * one of its parents or one of the jobs referenced by them changes.
+	 * 
+	 * @return null if the project can be built, otherwise a human-readable
+	 * reason why not.
+	 */
+	public String getInheritanceBuildabilityIssue() {
+		Map<String, Long> selected = VersionHandler.getVersions();
+		BuildabilityCache.Verdict verdict = BuildabilityCache.lookup(this, selected);
+		if (verdict != null) {
+			return verdict.reason;
+		}
+		long changeCount = BuildabilityCache.getChangeCount();
+		
+		//Check for missing dependencies (recursively in all referenced projects)
+		Set<InheritanceProject> scope = new HashSet<>();
+		String reason = null;
+		Collection<Dependency> missing = this.getMissingDependencies(scope);
+		if (!missing.isEmpty()) {
+			List<String> names = new LinkedList<>();
+			for (Dependency dep : missing) {
+				names.add(dep.ref);
+			}
+			reason = "Missing dependencies: " + Joiner.on(", ").join(names);
+		} else if (this.hasCyclicDependency()) {
+			//Check for inheritance cycle
+			reason = "Cyclic or diamond inheritance";
+		} else {
+			//Then, we check if there's a parameter inheritance issue with the
+			//user selected version
+			AbstractMap.SimpleEntry<Boolean, String> paramCheck =
+					this.getParameterSanity();
+			if (paramCheck.getKey() == false) {
+				reason = "Parameter inconsistency: " + paramCheck.getValue();
+			}
+		}
+		
+		BuildabilityCache.store(this, selected, scope, changeCount, reason);
+		return reason;
+	}
+	
 	
 	
 	// === GUI ACCESS METHODS ===
@@ -4434,43 +4967,57 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	
 	// === RELATIONSHIP ACCESS METHODS ===
 	
+	/**
+	 * Returns the graph of all parent, child and compatibility relations.
+	 * <p>
+	 * The graph is maintained incrementally and is not rebuilt when a single
+	 * project changes.
+	 * 
+	 * @return the index of all relations. Never null.
+	 */
+	public static InheritanceGraphIndex getGraphIndex() {
+		return InheritanceGraphIndex.get();
+	}
+	
 	private static class ProjectGraphNode {
 		public HashSet<String> parents = new HashSet<String>();
 		public HashSet<String> mates = new HashSet<String>();
 		public HashSet<String> children = new HashSet<String>();
 	}
 	
+	/**
+	 * Returns a snapshot of the graph of all parent, child and compatibility
+	 * relations, in the form this method had before the
+	 * {@link InheritanceGraphIndex} existed. Referenced, but missing, parents
+	 * are part of it, too.
+	 * 
+	 * @return a freshly built map from project names to their relations.
+	 * @deprecated Builds a copy of the whole graph on every call; use
+	 * {@link #getGraphIndex()} instead.
+	 */
+	@Deprecated
 	public static Map<String, ProjectGraphNode> getConnectionGraph() {
-		Object obj = onChangeBuffer.get(null, "getConnectionGraph");
-		if (obj != null && obj instanceof Map) {
-			return (Map) obj;
-		}
-		
+		InheritanceGraphIndex index = getGraphIndex();
 		Map<String, ProjectGraphNode> map =
 				new HashMap<String, ProjectGraphNode>();
 		
-		for (InheritanceProject ip : getProjectsMap().values()) {
-			String currName = ip.getFullName();
-			ProjectGraphNode currNode = (map.containsKey(currName))
-					? map.get(currName)
-					: new ProjectGraphNode();
-			
-			for (AbstractProjectReference apr : ip.getParentReferences()) {
-				String parName = apr.getName();
+		for (String currName : index.getProjectNames()) {
+			ProjectGraphNode currNode = map.get(currName);
+			if (currNode == null) {
+				currNode = new ProjectGraphNode();
+				map.put(currName, currNode);
+			}
+			for (String parName : index.getParentNames(currName)) {
 				currNode.parents.add(parName);
-				ProjectGraphNode parNode = (map.containsKey(parName))
-						? map.get(parName)
-						: new ProjectGraphNode();
+				ProjectGraphNode parNode = map.get(parName);
+				if (parNode == null) {
+					parNode = new ProjectGraphNode();
+					map.put(parName, parNode);
+				}
 				parNode.children.add(currName);
-				map.put(parName, parNode);
 			}
-			for (AbstractProjectReference apr : ip.getCompatibleProjects()) {
-				currNode.mates.add(apr.getName());
-			}
-			map.put(currName, currNode);
+			currNode.mates.addAll(index.getMateNames(currName));
 		}
-		
-		onChangeBuffer.set(null, "getConnectionGraph", map);
 		return map;
 	}
 
@@ -4539,108 +5086,29 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	}
 	
 	public Map<InheritanceProject, Relationship> getRelationships() {
-		Object obj = onInheritChangeBuffer.get(this, "getRelationships");
+		Object obj = onInheritChangeBuffer.get(this, KEY_RELATIONSHIPS);
 		if (obj != null && obj instanceof Map) {
 			return (Map) obj;
 		}
 		
-		//Creating the returned map and pre-filling it with empty lists
 		Map<InheritanceProject, Relationship> map =
 				new HashMap<InheritanceProject, Relationship>();
 		
-		//Preparing the set of projects that were already explored
-		HashSet<String> seenProjects = new HashSet<String>();
-		
-		//Fetching the map of all projects and their connections
-		Map<String, ProjectGraphNode> connGraph = getConnectionGraph();
-		
-		//Fetching the node for the current (this) project
-		ProjectGraphNode node = connGraph.get(this.getFullName());
-		if (node == null) { return map; }
-		
-		//Mates can be filled quite easily
-		for (String mate : node.mates) {
-			InheritanceProject p = InheritanceProject.getProjectByName(mate);
-			ProjectGraphNode mateNode = connGraph.get(mate);
-			boolean isLeaf = (mateNode == null) ? true : mateNode.children.isEmpty();
+		//The graph index already resolves mates, parents and children by name
+		Map<String, Relationship> rels =
+				getGraphIndex().getRelationships(this.getFullName());
+		for (Map.Entry<String, Relationship> e : rels.entrySet()) {
+			InheritanceProject p = InheritanceProject.getProjectByName(e.getKey());
 			if (p == null) { continue; }
-			//Checking if we've seen this mate already
-			if (!seenProjects.contains(p.getFullName())) {
-				map.put(p, new Relationship(Relationship.Type.MATE, 0, isLeaf));
-				seenProjects.add(p.getFullName());
-			}
-		}
-		
-		//Exploring parents
-		int distance = 1;
-		seenProjects.clear();
-		LinkedList<InheritanceProject> cOpen =
-				new LinkedList<InheritanceProject>();
-		LinkedList<InheritanceProject> nOpen =
-				new LinkedList<InheritanceProject>();
-		cOpen.add(this);
-		while (!cOpen.isEmpty()) {
-			InheritanceProject ip = cOpen.pop();
-			if (ip == null || seenProjects.contains(ip.getFullName())) {
-				continue;
-			}
-			seenProjects.add(ip.getFullName());
-			
-			node = connGraph.get(ip.getFullName());
-			if (ip == null || node == null) { continue; }
-			//Adding all parents
-			for (String parent : node.parents) {
-				InheritanceProject par = InheritanceProject.getProjectByName(parent);
-				if (par == null || seenProjects.contains(parent)) {
-					continue;
-				}
-				map.put(par, new Relationship(Relationship.Type.PARENT, distance, false));
-				nOpen.push(par);
-			}
-			if (cOpen.isEmpty() && !nOpen.isEmpty()) {
-				cOpen = nOpen;
-				nOpen = new LinkedList<InheritanceProject>();
-				distance++;
-			}
+			map.put(p, e.getValue());
 		}
 		
-		//Exploring children
-		distance = 1; seenProjects.clear();
-		cOpen.clear(); nOpen.clear();
-		cOpen.add(this);
-		while (!cOpen.isEmpty()) {
-			InheritanceProject ip = cOpen.pop();
-			if (ip == null || seenProjects.contains(ip.getFullName())) {
-				continue;
-			}
-			seenProjects.add(ip.getFullName());
-			
-			node = connGraph.get(ip.getFullName());
-			if (ip == null || node == null) { continue; }
-			//Adding all parents
-			for (String child : node.children) {
-				InheritanceProject cProj = InheritanceProject.getProjectByName(child);
-				if (cProj == null || seenProjects.contains(child)) {
-					continue;
-				}
-				ProjectGraphNode childNode = connGraph.get(child);
-				boolean isLeaf = (childNode == null) ? true : childNode.children.isEmpty();
-				map.put(cProj, new Relationship(Relationship.Type.CHILD, distance, isLeaf));
-				nOpen.push(cProj);
-			}
-			if (cOpen.isEmpty() && !nOpen.isEmpty()) {
-				cOpen = nOpen;
-				nOpen = new LinkedList<InheritanceProject>();
-				distance++;
-			}
-		}
-		
-		onInheritChangeBuffer.set(this, "getRelationships", map);
+		onInheritChangeBuffer.set(this, KEY_RELATIONSHIPS, map);
 		return map;
 	}
 	
 	public List<Vector<String>> getRelatedProjects() {
-		Object obj = onInheritChangeBuffer.get(this, "getRelatedProjects");
+		Object obj = onInheritChangeBuffer.get(this, KEY_RELATED_PROJECTS);
 		if (obj != null && obj instanceof LinkedList) {
 			return (LinkedList) obj;
 		}
@@ -4668,7 +5136,7 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			lst.add(vec);
 		}
 		
-		onInheritChangeBuffer.set(this, "getRelatedProjects", lst);
+		onInheritChangeBuffer.set(this, KEY_RELATED_PROJECTS, lst);
 		return lst;
 	}
 	
@@ -4864,6 +5332,17 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 * @see ProjectCreationEngine
 	 */
 	public final Collection<Dependency> getMissingDependencies() {
+		return this.getMissingDependencies(null);
+	}
+	
+	/**
+	 * Same as {@link #getMissingDependencies()}, but additionally collects
+	 * all inheritance projects that were examined.
+	 * 
+	 * @param examined the set to add the examined projects to; may be null.
+	 * @return a list of missing {@link Dependency} instances. May be empty, but never null.
+	 */
+	private Collection<Dependency> getMissingDependencies(Set<InheritanceProject> examined) {
 		//Preparing the set of project names that were seen at least once
 		HashSet<AbstractProject<?, ?>> seen = new HashSet<>();
 		
@@ -4899,6 +5378,7 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			
 			//Examine parent references
 			if (ip != null) {
+				if (examined != null) { examined.add(ip); }
 				for (AbstractProjectReference ref : ip.getParentReferences()) {
 					AbstractProject<?, ?> next = ref.getProject();
 					if (next == null) {
@@ -4951,30 +5431,17 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 * Wrapper for {@link #hasCyclicDependency(String...)} with no new project
 	 * references added on top of the existing ones.
 	 * <p>
-	 * Note, that the result is cached and only refreshed when this job or its
-	 * parents change. This is done, because cycle checks are expensive and
-	 * this method is called often.
-	 * <p>
-	 * This means, that the result of this method is <b><i>not</i></b> version
-	 * aware. If you need an uncached and version-aware result, call
-	 * {@link #hasCyclicDependency(boolean, String...)} directly.
+	 * Note, that the result is cached, because cycle checks are expensive and
+	 * this method is called often. It respects the versions selected for this
+	 * project and its parents; see {@link CyclicDependencyCheck}.
 	 * 
 	 * @return true, if a cycle or diamond was detected.
 	 */
 	public final boolean hasCyclicDependency() {
-		//TODO: Make this method version-aware
-		
-		//Checking if a result is buffered
-		Object obj = onInheritChangeBuffer.get(this, "hasCyclicDependency");
-		if (obj != null && obj instanceof Boolean) {
-			return (Boolean) obj;
-		}
-		
-		//Re-compute the result
-		Boolean bufRes = this.hasCyclicDependency(true);
-		
-		onInheritChangeBuffer.set(this, "hasCyclicDependency", bufRes);
-		return bufRes;
+		//Projects in a mock group are not part of the index or caches
+		return CyclicDependencyCheck.hasCyclicDependency(
+				this, !(this.getParent() instanceof MockItemGroup)
+		);
 	}
 	
 	/**
@@ -5076,6 +5543,24 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 * representation of the error -- if any.
 	 */
 	public final AbstractMap.SimpleEntry<Boolean, String> getParameterSanity() {
+		return getParameterSanity(
+				this.getFullParameterScope(), this.isAbstract, this.getFullName()
+		);
+	}
+	
+	/**
+	 * Checks whether the given parameter scope is sane; see
+	 * {@link #getParameterSanity()}. This allows checking the scope of a
+	 * project that does not exist yet.
+	 * 
+	 * @param fullScope the parameter scope, sorted by order of derivation
+	 * @param isAbstract whether the project is abstract
+	 * @param name the name of the project; for logging only
+	 * @return a tuple of whether the assignment is sane and a human-readable
+	 * representation of the error -- if any.
+	 */
+	public static AbstractMap.SimpleEntry<Boolean, String> getParameterSanity(
+			List<ScopeEntry> fullScope, boolean isAbstract, String name) {
 		//Creating a small local class to store sanity information
 		final class SanityRestrictions {
 			public Class<?> hasToBeOfThisClass;
@@ -5091,9 +5576,6 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		HashMap<String, SanityRestrictions> resMap =
 				new HashMap<String, SanityRestrictions>();
 		
-		//Fetch all parameters in the scope
-		List<ScopeEntry> fullScope = this.getFullParameterScope();
-		
 		//Iterating through the parameters, and verifying their restrictions on-the-fly
 		for (ScopeEntry scope : fullScope) {
 			ParameterDefinition pd = scope.param;
@@ -5171,7 +5653,7 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 						log.warning(
 								"Detected invalid inheritance mode: " +
 								s.previousMode.toString() + " on " +
-								this.getFullName() + "->" + pd.getName()
+								name + "->" + pd.getName()
 						);
 						break;
 				}
@@ -5206,7 +5688,7 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		
 		//Then, if the build is not abstract, we must check whether all values
 		//that carry defaults actually had defaults defined at some point
-		if (this.isAbstract == false) {
+		if (isAbstract == false) {
 			List<String> mandatoryParams = new ArrayList<>();
 			for (Map.Entry<String, SanityRestrictions> e : resMap.entrySet()) {
 				SanityRestrictions s = e.getValue();
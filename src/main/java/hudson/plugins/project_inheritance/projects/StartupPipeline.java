@@ -0,0 +1,481 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.thoughtworks.xstream.XStreamException;
+import com.thoughtworks.xstream.io.xml.XmlFriendlyNameCoder;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.plugins.project_inheritance.util.VersionedObjectStore;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Speeds up the loading of {@link InheritanceProject}s when Jenkins starts.
+ * <p>
+ * Before Jenkins starts to load the job configurations, the version files
+ * of all inheritance projects below the jobs directory are handed to a
+ * bounded pool of worker threads, which decode them in parallel. Whether a
+ * directory holds an inheritance project is decided by the root element of
+ * its config.xml; other jobs and folders are skipped. {@link InheritanceProject#onLoad} then
+ * only picks up the already decoded store via {@link #takePreloaded(File)}.
+ * <p>
+ * While the jobs are loading, clearing the buffers of the projects is
+ * deferred. They are cleared once by {@link #finish()}, after all jobs are
+ * present. The startup creation of transient projects is run only once, even
+ * though several startup hooks ask for it.
+ * <p>
+ * The time spent in each phase is logged once startup is complete and is
+ * available from {@link #getReport()}.
+ * <p>
+ * The pipeline can be disabled with the system property
+ * {@value #ENABLED_PROPERTY}. The number of worker threads can be set with
+ * {@value #THREADS_PROPERTY}.
+ */
+public final class StartupPipeline {
+	private static final Logger log = Logger.getLogger(
+			StartupPipeline.class.toString()
+	);
+	
+	public static final String ENABLED_PROPERTY =
+			StartupPipeline.class.getName() + ".enabled";
+	
+	public static final String THREADS_PROPERTY =
+			StartupPipeline.class.getName() + ".threads";
+	
+	private static final String[] VERSION_FILES = {
+		"versions.seg", "versions.xml.gz"
+	};
+	
+	/**
+	 * The number of characters of a config.xml that are searched for the
+	 * root element.
+	 */
+	private static final int ROOT_SEARCH_LIMIT = 4096;
+	
+	
+	// === STATE ===
+	
+	/**
+	 * Whether the pipeline was started during this run of Jenkins.
+	 */
+	private static volatile boolean started = false;
+	
+	/**
+	 * Whether jobs are still being loaded.
+	 */
+	private static volatile boolean active = false;
+	
+	private static ExecutorService pool = null;
+	
+	private static final ConcurrentHashMap<File, Future<VersionedObjectStore>> preloads =
+			new ConcurrentHashMap<File, Future<VersionedObjectStore>>();
+	
+	private static boolean creationDone = false;
+	private static boolean reported = false;
+	
+	
+	// === TIMING ===
+	
+	private static long startTime;
+	private static long finishTime;
+	private static final AtomicLong preloadEnd = new AtomicLong(0);
+	private static final AtomicLong preloadWork = new AtomicLong(0);
+	private static final AtomicInteger preloadsSubmitted = new AtomicInteger(0);
+	private static final AtomicInteger preloadsPending = new AtomicInteger(0);
+	private static final AtomicInteger preloadsFailed = new AtomicInteger(0);
+	private static final AtomicInteger preloadsUsed = new AtomicInteger(0);
+	private static final AtomicInteger projectsLoaded = new AtomicInteger(0);
+	private static final AtomicInteger clearsDeferred = new AtomicInteger(0);
+	private static final AtomicLong waitNanos = new AtomicLong(0);
+	private static long clearMillis = -1;
+	private static long creationMillis = -1;
+	private static volatile String report = null;
+	
+	
+	private StartupPipeline() {
+		//Only static access
+	}
+	
+	
+	// === PHASE 1: PRELOADING ===
+	
+	/**
+	 * Starts decoding all version files, before Jenkins loads the jobs.
+	 */
+	@Initializer(after=InitMilestone.PLUGINS_STARTED,
+			before=InitMilestone.EXTENSIONS_AUGMENTED, fatal=false)
+	public static synchronized void start() {
+		if (started || !SystemProperties.getBoolean(ENABLED_PROPERTY, true)) {
+			return;
+		}
+		start(new File(Jenkins.get().getRootDir(), "jobs"));
+	}
+	
+	/**
+	 * Starts decoding the version files of the jobs in the given directory.
+	 * 
+	 * @param jobsDir the jobs directory of Jenkins
+	 */
+	static synchronized void start(File jobsDir) {
+		started = true;
+		active = true;
+		startTime = System.currentTimeMillis();
+		
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (threads > 1) { threads -= 1; }
+		threads = SystemProperties.getInteger(THREADS_PROPERTY, threads);
+		pool = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			private final AtomicInteger cnt = new AtomicInteger(0);
+			
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "InheritanceStartup-" + cnt.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		scan(jobsDir, new HashMap<String, Boolean>());
+		if (preloadsSubmitted.get() == 0) {
+			preloadEnd.set(System.currentTimeMillis());
+		}
+	}
+	
+	/**
+	 * Submits the version files of all inheritance projects in the given
+	 * directory; including the ones in folders.
+	 * 
+	 * @param jobsDir the directory to scan
+	 * @param roots the verdicts for the root elements seen so far
+	 */
+	private static void scan(File jobsDir, Map<String, Boolean> roots) {
+		File[] jobs = jobsDir.listFiles();
+		if (jobs == null) { return; }
+		for (File job : jobs) {
+			if (!job.isDirectory()) { continue; }
+			if (isInheritanceProject(job, roots)) {
+				for (String name : VERSION_FILES) {
+					File vFile = new File(job, name);
+					if (vFile.isFile()) {
+						submit(vFile);
+						break;
+					}
+				}
+			}
+			//Jobs in folders reside in a "jobs" subdirectory
+			File sub = new File(job, "jobs");
+			if (sub.isDirectory()) {
+				scan(sub, roots);
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether the config.xml in the given directory describes an
+	 * {@link InheritanceProject}, by resolving its root element the same
+	 * way XStream does when the job is loaded.
+	 * 
+	 * @param job the directory of the job
+	 * @param roots the verdicts for the root elements seen so far
+	 * @return true, if the job is an inheritance project
+	 */
+	private static boolean isInheritanceProject(File job, Map<String, Boolean> roots) {
+		String root = readRootElement(new File(job, "config.xml"));
+		if (root == null) { return false; }
+		Boolean verdict = roots.get(root);
+		if (verdict == null) {
+			try {
+				Class<?> clazz = Jenkins.XSTREAM2.getMapper().realClass(
+						new XmlFriendlyNameCoder().decodeNode(root)
+				);
+				verdict = InheritanceProject.class.isAssignableFrom(clazz);
+			} catch (XStreamException ex) {
+				//Unknown class; Jenkins will report that when loading it
+				verdict = false;
+			}
+			roots.put(root, verdict);
+		}
+		return verdict;
+	}
+	
+	/**
+	 * @param config the config.xml of a job
+	 * @return the name of its root element, as written in the file; or null
+	 * if it could not be read
+	 */
+	static String readRootElement(File config) {
+		if (!config.isFile()) { return null; }
+		char[] buf = new char[ROOT_SEARCH_LIMIT];
+		int len = 0;
+		try (Reader r = new InputStreamReader(
+				new FileInputStream(config), StandardCharsets.UTF_8)) {
+			int n;
+			while (len < buf.length && (n = r.read(buf, len, buf.length - len)) > 0) {
+				len += n;
+			}
+		} catch (IOException ex) {
+			return null;
+		}
+		String head = new String(buf, 0, len);
+		int pos = 0;
+		while (true) {
+			pos = head.indexOf('<', pos);
+			if (pos < 0 || pos + 1 >= head.length()) { return null; }
+			char c = head.charAt(pos + 1);
+			if (c == '?' || c == '!') {
+				//Skip the declaration, comments and the doctype
+				String end = head.startsWith("<!--", pos) ? "-->" : ">";
+				pos = head.indexOf(end, pos);
+				if (pos < 0) { return null; }
+				continue;
+			}
+			int start = pos + 1;
+			int stop = start;
+			while (stop < head.length()) {
+				c = head.charAt(stop);
+				if (Character.isWhitespace(c) || c == '>' || c == '/') { break; }
+				stop++;
+			}
+			return (stop > start && stop < head.length())
+					? head.substring(start, stop) : null;
+		}
+	}
+	
+	private static void submit(final File vFile) {
+		preloadsSubmitted.incrementAndGet();
+		preloadsPending.incrementAndGet();
+		Future<VersionedObjectStore> f = pool.submit(new Callable<VersionedObjectStore>() {
+			public VersionedObjectStore call() throws Exception {
+				long t0 = System.nanoTime();
+				try {
+					return VersionedObjectStore.load(vFile);
+				} catch (Exception ex) {
+					//The project will load the file itself and report the error
+					preloadsFailed.incrementAndGet();
+					throw ex;
+				} finally {
+					preloadWork.addAndGet(System.nanoTime() - t0);
+					if (preloadsPending.decrementAndGet() == 0) {
+						preloadEnd.set(System.currentTimeMillis());
+					}
+				}
+			}
+		});
+		preloads.put(vFile.getAbsoluteFile(), f);
+	}
+	
+	/**
+	 * Returns the store decoded for the given file, waiting for it if
+	 * necessary. A store can only be taken once.
+	 * 
+	 * @param vFile the version file of a project
+	 * @return the decoded store, or null if it was not preloaded or failed
+	 * to load. In that case, the caller has to load it by itself.
+	 */
+	public static VersionedObjectStore takePreloaded(File vFile) {
+		if (!active || vFile == null) { return null; }
+		Future<VersionedObjectStore> f = preloads.remove(vFile.getAbsoluteFile());
+		if (f == null) { return null; }
+		long t0 = System.nanoTime();
+		try {
+			VersionedObjectStore vos = f.get();
+			preloadsUsed.incrementAndGet();
+			return vos;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException ex) {
+			return null;
+		} finally {
+			waitNanos.addAndGet(System.nanoTime() - t0);
+		}
+	}
+	
+	
+	// === PHASE 2: JOB LOADING ===
+	
+	/**
+	 * Called by a project after it was loaded. While jobs are still being
+	 * loaded, this defers clearing the buffers to {@link #finish()}.
+	 * 
+	 * @return true, if the caller must not clear the buffers itself.
+	 */
+	public static boolean deferClearBuffers() {
+		if (!active) { return false; }
+		clearsDeferred.incrementAndGet();
+		return true;
+	}
+	
+	static void countLoadedProject() {
+		if (active) {
+			projectsLoaded.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Ends the loading phase, once all jobs are present. Clears the buffers
+	 * a single time and drops all stores that were not used.
+	 * <p>
+	 * This is safe to call several times and if the pipeline never ran.
+	 */
+	public static synchronized void finish() {
+		if (!active) { return; }
+		active = false;
+		finishTime = System.currentTimeMillis();
+		
+		long t0 = System.currentTimeMillis();
+		InheritanceProject.clearBuffers(null);
+		clearMillis = System.currentTimeMillis() - t0;
+		
+		//Stores that were not taken belong to jobs that were not loaded
+		for (Future<VersionedObjectStore> f : preloads.values()) {
+			f.cancel(true);
+		}
+		preloads.clear();
+		if (pool != null) {
+			pool.shutdownNow();
+			pool = null;
+		}
+	}
+	
+	/**
+	 * Ends the pipeline, if needed, and forgets that it ran; so that it
+	 * can be started again. Only meant for tests.
+	 */
+	static synchronized void reset() {
+		finish();
+		started = false;
+		creationDone = false;
+		reported = false;
+		report = null;
+		preloadEnd.set(0);
+		preloadWork.set(0);
+		preloadsSubmitted.set(0);
+		preloadsPending.set(0);
+		preloadsFailed.set(0);
+		preloadsUsed.set(0);
+		projectsLoaded.set(0);
+		clearsDeferred.set(0);
+		waitNanos.set(0);
+		clearMillis = -1;
+		creationMillis = -1;
+	}
+	
+	/**
+	 * @return the number of version files submitted for preloading
+	 */
+	static int getPreloadsSubmitted() {
+		return preloadsSubmitted.get();
+	}
+	
+	
+	// === PHASE 3: TRANSIENT CREATION ===
+	
+	/**
+	 * Runs the startup creation of transient projects. If the pipeline ran,
+	 * it is only executed for the first caller; concurrent callers wait for
+	 * it to complete.
+	 * 
+	 * @param creation the creation to run
+	 */
+	public static synchronized void runTransientCreation(Runnable creation) {
+		if (started && creationDone) { return; }
+		long t0 = System.currentTimeMillis();
+		creation.run();
+		if (started) {
+			creationMillis = System.currentTimeMillis() - t0;
+			creationDone = true;
+		}
+	}
+	
+	
+	// === REPORTING ===
+	
+	/**
+	 * Logs the timing report; only once per startup.
+	 */
+	public static synchronized void logReport() {
+		if (!started || reported || active) { return; }
+		reported = true;
+		report = buildReport();
+		log.info(report);
+	}
+	
+	/**
+	 * @return the timing report of the last startup, or null if it is not
+	 * yet available.
+	 */
+	public static String getReport() {
+		return report;
+	}
+	
+	private static String buildReport() {
+		DecimalFormat form = new DecimalFormat();
+		form.setMaximumFractionDigits(3);
+		
+		long pEnd = preloadEnd.get();
+		StringBuilder b = new StringBuilder();
+		b.append("Inheritance startup report:");
+		b.append(String.format(
+				"%n  preload:   %s s wall, %s s decoding; %d files, %d used, %d failed",
+				(pEnd > 0) ? form.format((pEnd - startTime) / 1000d) : "n/a",
+				form.format(preloadWork.get() / 1e9),
+				preloadsSubmitted.get(), preloadsUsed.get(), preloadsFailed.get()
+		));
+		b.append(String.format(
+				"%n  job load:  %s s; %d projects, %s s waiting for preloads",
+				form.format((finishTime - startTime) / 1000d),
+				projectsLoaded.get(), form.format(waitNanos.get() / 1e9)
+		));
+		b.append(String.format(
+				"%n  buffers:   %s s for one clear; %d clears deferred",
+				form.format(clearMillis / 1000d), clearsDeferred.get()
+		));
+		b.append(String.format(
+				"%n  transient: %s",
+				(creationMillis >= 0)
+						? form.format(creationMillis / 1000d) + " s"
+						: "not run"
+		));
+		return b.toString();
+	}
+}
@@ -27,6 +27,7 @@ import java.util.logging.Logger;
 
 import hudson.plugins.project_inheritance.projects.InheritanceProject;
 import hudson.plugins.project_inheritance.projects.actions.service.InheritanceListService;
+import hudson.plugins.project_inheritance.util.InheritanceMetrics;
 
 
 /**
@@ -74,8 +75,10 @@ public final class CachingInheritanceListService
 
 		long startTime = System.currentTimeMillis();
 
+		long start = InheritanceMetrics.startTimer();
 		List<InheritanceProject> result = myJob.getParentProjects();
 		Collections.sort(result, JOB_COMPARATOR);
+		InheritanceMetrics.recordTime("inheritanceList.parents", start);
 
 		long delay = System.currentTimeMillis() - startTime;
 		log.fine(String.format(
@@ -99,8 +102,10 @@ public final class CachingInheritanceListService
 
 		long startTime = System.currentTimeMillis();
 
+		long start = InheritanceMetrics.startTimer();
 		List<InheritanceProject> result = myJob.getChildrenProjects();
 		Collections.sort(result, JOB_COMPARATOR);
+		InheritanceMetrics.recordTime("inheritanceList.children", start);
 
 		long delay = System.currentTimeMillis() - startTime;
 		log.fine(String.format(
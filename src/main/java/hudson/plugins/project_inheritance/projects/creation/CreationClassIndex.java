@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.creation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.util.MockItemGroup;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+
+/**
+ * Maintains the creation class of every {@link InheritanceProject} and,
+ * in reverse, the projects belonging to each class.
+ * <p>
+ * This allows the {@link ProjectCreationEngine} to tell how many projects
+ * a class has and how many jobs a class mating would generate, without
+ * scanning all projects. The latter is the product of the sizes of the two
+ * classes, as every project of the first class is mated with every project
+ * of the second one.
+ * <p>
+ * The index is built lazily on first access and kept up-to-date by the
+ * {@link CreationItemListener}, the {@link ProjectCreationEngine.RenameWatcher}
+ * and whenever the class of a project is set or the project is (re-)loaded.
+ */
+public class CreationClassIndex {
+	private static final CreationClassIndex instance = new CreationClassIndex();
+	
+	/**
+	 * The creation class of each project that has one.
+	 */
+	private final HashMap<String, String> classOf = new HashMap<String, String>();
+	
+	/**
+	 * The names of the projects in each creation class.
+	 */
+	private final HashMap<String, LinkedHashSet<String>> members =
+			new HashMap<String, LinkedHashSet<String>>();
+	
+	private boolean initialized = false;
+	
+	
+	private CreationClassIndex() {
+		//Singleton; use get()
+	}
+	
+	public static CreationClassIndex get() {
+		return instance;
+	}
+	
+	
+	// === MAINTENANCE METHODS ===
+	
+	/**
+	 * Drops the current index and rebuilds it from all projects. This is the
+	 * only method that iterates over all projects.
+	 */
+	public synchronized void rebuild() {
+		classOf.clear();
+		members.clear();
+		try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
+			for (InheritanceProject ip : InheritanceProject.getProjectsMap().values()) {
+				this.put(ip.getFullName(), ip.getCreationClass());
+			}
+		}
+		initialized = true;
+	}
+	
+	/**
+	 * Marks the index as outdated; it is rebuilt on next access.
+	 */
+	public synchronized void invalidate() {
+		initialized = false;
+	}
+	
+	/**
+	 * Re-reads the creation class of the given project.
+	 * 
+	 * @param ip the project that was created, loaded or changed
+	 */
+	public synchronized void update(InheritanceProject ip) {
+		if (ip == null || !initialized) { return; }
+		//Projects in a mock group are only temporary copies
+		if (ip.getParent() instanceof MockItemGroup) { return; }
+		this.put(ip.getFullName(), ip.getCreationClass());
+	}
+	
+	public synchronized void remove(String name) {
+		if (name == null || !initialized) { return; }
+		this.put(name, null);
+	}
+	
+	public synchronized void rename(String oldName, String newName) {
+		if (oldName == null || newName == null || !initialized) { return; }
+		String cls = classOf.get(oldName);
+		this.put(oldName, null);
+		this.put(newName, cls);
+	}
+	
+	private void put(String name, String cls) {
+		if (cls != null && cls.isEmpty()) { cls = null; }
+		String old = (cls == null) ? classOf.remove(name) : classOf.put(name, cls);
+		if (old != null && !old.equals(cls)) {
+			LinkedHashSet<String> set = members.get(old);
+			if (set != null) {
+				set.remove(name);
+				if (set.isEmpty()) { members.remove(old); }
+			}
+		}
+		if (cls != null) {
+			LinkedHashSet<String> set = members.get(cls);
+			if (set == null) {
+				set = new LinkedHashSet<String>();
+				members.put(cls, set);
+			}
+			set.add(name);
+		}
+	}
+	
+	private void ensureInitialized() {
+		if (!initialized) {
+			this.rebuild();
+		}
+	}
+	
+	
+	// === QUERY METHODS ===
+	
+	/**
+	 * @param cls the name of a creation class
+	 * @return the number of projects in that class.
+	 */
+	public synchronized int getNumberOfProjects(String cls) {
+		this.ensureInitialized();
+		LinkedHashSet<String> set = members.get(cls);
+		return (set == null) ? 0 : set.size();
+	}
+	
+	/**
+	 * @param cls the name of a creation class
+	 * @return the names of the projects in that class. Never null.
+	 */
+	public synchronized List<String> getProjectNames(String cls) {
+		this.ensureInitialized();
+		LinkedHashSet<String> set = members.get(cls);
+		if (set == null) { return Collections.emptyList(); }
+		return new ArrayList<String>(set);
+	}
+	
+	/**
+	 * @param firstClass the name of the first class of a mating
+	 * @param secondClass the name of the second class of a mating
+	 * @return the number of jobs the mating of the two classes generates.
+	 */
+	public synchronized int getNumberOfMates(String firstClass, String secondClass) {
+		this.ensureInitialized();
+		LinkedHashSet<String> firsts = members.get(firstClass);
+		LinkedHashSet<String> seconds = members.get(secondClass);
+		if (firsts == null || seconds == null) {
+			//No mates possible
+			return 0;
+		}
+		return firsts.size() * seconds.size();
+	}
+}
@@ -49,6 +49,7 @@ public class CreationItemListener extends ItemListener {
 	
 	public void onCreated(Item item) {
 		if (!(item instanceof InheritanceProject)) { return; }
+		CreationClassIndex.get().update((InheritanceProject)item);
 		pce().notifyProjectNew((InheritanceProject)item);
 	}
 	
@@ -59,11 +60,13 @@ public class CreationItemListener extends ItemListener {
 	
 	public void onUpdated(Item item) {
 		if (!(item instanceof InheritanceProject)) { return; }
+		CreationClassIndex.get().update((InheritanceProject)item);
 		pce().notifyProjectChange((InheritanceProject)item);
 	}
 	
 	public void onDeleted(Item item) {
 		if (!(item instanceof InheritanceProject)) { return; }
+		CreationClassIndex.get().remove(item.getFullName());
 		pce().notifyProjectDelete((InheritanceProject)item);
 	}
 	
@@ -71,6 +74,9 @@ public class CreationItemListener extends ItemListener {
 	// === JENKINS STARTUP HANDLING ===
 	
 	public void onLoaded() {
+		//All jobs are loaded; so the class index is rebuilt on next access
+		CreationClassIndex.get().invalidate();
+		
 		//This happens shortly before Jenkins has completely loaded; run a
 		//last PCE, to absolutely ensure that all jobs are present
 		pce().notifyJenkinsStartupComplete();
@@ -0,0 +1,383 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.creation;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import hudson.model.ParameterDefinition;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.TopLevelItem;
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.creation.CreationStatistics.Phase;
+import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine.CreationMating;
+import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine.Mating;
+import hudson.plugins.project_inheritance.projects.inheritance.ParameterSelector;
+import hudson.plugins.project_inheritance.projects.inheritance.ParameterSelector.ParameterTable;
+import hudson.plugins.project_inheritance.projects.references.ParameterizedProjectReference;
+import hudson.plugins.project_inheritance.util.InheritanceMetrics;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Determines which transient projects a set of matings would produce,
+ * without creating any of them.
+ * <p>
+ * For each mating, the name of the job, its merged parameters as well as
+ * the verdicts of the parameter sanity and cycle checks are computed in
+ * memory, from the parents alone. The result is a diff against the jobs
+ * that already exist: which jobs need to be created, which are kept and
+ * which transient jobs are no longer produced by any mating.
+ * <p>
+ * The {@link ProjectCreationEngine} uses this to only create the jobs that
+ * are missing and valid. The new jobs are still validated after their
+ * creation; the plan is only a prediction.
+ */
+public class CreationPlan {
+	
+	public enum Action {
+		/** The job does not exist yet and is valid */
+		CREATE,
+		/** The job exists already */
+		KEEP,
+		/** The transient job exists, but no mating produces it anymore */
+		OBSOLETE,
+		/** The job would be invalid, or its name is taken by another job */
+		REJECT;
+	}
+	
+	public static class Entry {
+		public final String name;
+		public final String variance;
+		private final InheritanceProject[] parents;
+		
+		private Action action = Action.CREATE;
+		private String reason = null;
+		private boolean cyclic = false;
+		private Boolean sane = null;
+		private List<ParameterDefinition> parameters = null;
+		
+		private Entry(String name, String variance, InheritanceProject[] parents) {
+			this.name = name;
+			this.variance = variance;
+			this.parents = parents;
+		}
+		
+		private void reject(String reason) {
+			this.action = Action.REJECT;
+			this.reason = reason;
+		}
+		
+		public Action getAction() {
+			return action;
+		}
+		
+		/**
+		 * @return the human-readable reason for the action; or null if there
+		 * is nothing to report.
+		 */
+		public String getReason() {
+			return reason;
+		}
+		
+		InheritanceProject[] getParents() {
+			return parents;
+		}
+		
+		public List<String> getParentNames() {
+			List<String> out = new ArrayList<String>(parents.length);
+			for (InheritanceProject ip : parents) {
+				out.add(ip.getFullName());
+			}
+			return out;
+		}
+		
+		public boolean isCyclic() {
+			return cyclic;
+		}
+		
+		/**
+		 * @return whether the parameters are sane; or null if that was not
+		 * checked.
+		 */
+		public Boolean isSane() {
+			return sane;
+		}
+		
+		/**
+		 * @return the merged parameters of the job; or null if they were not
+		 * computed.
+		 */
+		public List<ParameterDefinition> getParameters() {
+			return parameters;
+		}
+		
+		JSONObject toJSON() {
+			JSONObject o = new JSONObject();
+			o.put("name", name);
+			o.put("action", action.name().toLowerCase());
+			if (parents.length > 0) {
+				o.put("parents", JSONArray.fromObject(this.getParentNames()));
+			}
+			if (variance != null) {
+				o.put("variance", variance);
+			}
+			if (reason != null) {
+				o.put("reason", reason);
+			}
+			if (sane != null) {
+				o.put("sane", sane);
+				o.put("cyclic", cyclic);
+			}
+			if (parameters != null) {
+				JSONArray params = new JSONArray();
+				for (ParameterDefinition pd : parameters) {
+					params.add(pd.getName());
+				}
+				o.put("parameters", params);
+			}
+			return o;
+		}
+	}
+	
+	
+	private final List<Entry> entries;
+	private final boolean complete;
+	
+	
+	private CreationPlan(List<Entry> entries, boolean complete) {
+		this.entries = Collections.unmodifiableList(entries);
+		this.complete = complete;
+	}
+	
+	
+	// === PLANNING ===
+	
+	/**
+	 * Computes the plan for the given matings. The checks of the individual
+	 * matings run in parallel.
+	 * 
+	 * @param pce the engine carrying the allowed class matings
+	 * @param pairs the matings to plan for
+	 * @param complete whether these are all matings; only then can obsolete
+	 *        jobs be determined
+	 * @param checkExisting whether the verdicts should also be computed for
+	 *        jobs that exist already
+	 * @param stats the statistics to add the time spent to; may be null
+	 * @return the plan
+	 */
+	static CreationPlan compute(ProjectCreationEngine pce, List<Mating> pairs,
+			boolean complete, boolean checkExisting, final CreationStatistics stats) {
+		long start = InheritanceMetrics.startTimer();
+		Jenkins j = Jenkins.get();
+		
+		HashSet<String> allowedPairs = new HashSet<String>();
+		for (CreationMating mate : pce.getMatings()) {
+			allowedPairs.add(mate.firstClass + "|" + mate.secondClass);
+		}
+		
+		//Creating the entries; the first mating producing a name wins
+		LinkedHashMap<String, Entry> byName = new LinkedHashMap<String, Entry>();
+		final ConcurrentLinkedQueue<Map.Entry<Entry, Mating>> toCheck =
+				new ConcurrentLinkedQueue<Map.Entry<Entry, Mating>>();
+		for (Mating m : pairs) {
+			InheritanceProject secondP = m.ref.getProject();
+			if (secondP == null) { continue; }
+			
+			String variance =
+					(m.ref instanceof ParameterizedProjectReference)
+					? ((ParameterizedProjectReference)m.ref).getVariance()
+					: null;
+			if (variance != null) {
+				variance = variance.trim();
+			}
+			
+			InheritanceProject[] parents = { m.first, secondP };
+			List<String> parNames = new LinkedList<String>();
+			List<String> classes = new LinkedList<String>();
+			for (InheritanceProject ip : parents) {
+				String cName = ip.getCreationClass();
+				if (cName == null || cName.isEmpty()) { continue; }
+				parNames.add(ip.getFullName());
+				classes.add(cName);
+			}
+			
+			String name = ProjectCreationEngine.generateNameFor(variance, parNames);
+			if (byName.containsKey(name)) { continue; }
+			Entry e = new Entry(name, variance, parents);
+			byName.put(name, e);
+			
+			//Check if the mating that is supposed to be created is allowed
+			if (classes.size() < 2) {
+				e.reject("At least one parent is not a member of a class");
+				continue;
+			}
+			if (!allowedPairs.contains(classes.get(0) + "|" + classes.get(1))) {
+				e.reject(String.format(
+						"Parents have incompatible classes: %s<->%s",
+						classes.get(0), classes.get(1)
+				));
+				continue;
+			}
+			
+			//Check if the job to be generated already exists
+			TopLevelItem item = j.getItem(name);
+			if (item != null) {
+				if (item instanceof InheritanceProject
+						&& ((InheritanceProject) item).getIsTransient()) {
+					e.action = Action.KEEP;
+					e.reason = "Job already exists";
+					if (!checkExisting) { continue; }
+				} else {
+					e.reject("Job already exists");
+					continue;
+				}
+			}
+			toCheck.add(new AbstractMap.SimpleEntry<Entry, Mating>(e, m));
+		}
+		
+		//Then, checking the remaining ones in parallel
+		ProjectCreationEngine.runInParallel(toCheck.size(), new Runnable() {
+			public void run() {
+				SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+				try {
+					Map.Entry<Entry, Mating> next;
+					while ((next = toCheck.poll()) != null) {
+						long phaseStart = System.nanoTime();
+						check(next.getKey(), next.getValue());
+						if (stats != null) {
+							stats.record(Phase.PLAN, phaseStart);
+						}
+					}
+				} finally {
+					SecurityContextHolder.setContext(old);
+				}
+			}
+		});
+		
+		List<Entry> out = new ArrayList<Entry>(byName.values());
+		
+		//Transient jobs that no mating produces anymore are obsolete
+		if (complete) {
+			for (InheritanceProject ip : InheritanceProject.getProjectsMap().values()) {
+				if (!ip.getIsTransient() || byName.containsKey(ip.getFullName())) {
+					continue;
+				}
+				Entry e = new Entry(ip.getFullName(), null, new InheritanceProject[0]);
+				e.action = Action.OBSOLETE;
+				out.add(e);
+			}
+		}
+		
+		InheritanceMetrics.recordTime("creation.planning", start);
+		return new CreationPlan(out, complete);
+	}
+	
+	/**
+	 * Computes the parameters and verdicts for a single entry.
+	 */
+	private static void check(Entry e, Mating m) {
+		/* The new job has no children; so it is cyclic (or a diamond) if
+		 * and only if its first parent would be, once the other parents
+		 * were added to it.
+		 */
+		String[] others = new String[e.parents.length - 1];
+		for (int i = 1; i < e.parents.length; i++) {
+			others[i - 1] = e.parents[i].getFullName();
+		}
+		e.cyclic = e.parents[0].hasCyclicDependency(others);
+		
+		//The variance parameters are defined on the mating itself
+		ParametersDefinitionProperty variance = null;
+		if (m.ref instanceof ParameterizedProjectReference) {
+			variance = new ParametersDefinitionProperty(
+					((ParameterizedProjectReference) m.ref).getParameters()
+			);
+		}
+		ParameterSelector ps = ParameterSelector.instance;
+		ParameterTable table = ps.getPlannedParameterTable(
+				e.name, Arrays.asList(e.parents), variance
+		);
+		e.parameters = ps.getMergedDefinitions(table);
+		AbstractMap.SimpleEntry<Boolean, String> sanity =
+				InheritanceProject.getParameterSanity(table.getEntries(), false, e.name);
+		e.sane = sanity.getKey();
+		
+		//Existing jobs are kept in any case
+		if (e.action != Action.CREATE) { return; }
+		if (e.cyclic) {
+			e.reject("Failed, resulting project has cyclic dependency.");
+		} else if (!e.sane) {
+			e.reject("Failed, resulting project has parameter error: " + sanity.getValue());
+		}
+	}
+	
+	
+	// === ACCESSORS ===
+	
+	public List<Entry> getEntries() {
+		return entries;
+	}
+	
+	public List<Entry> getEntries(Action action) {
+		List<Entry> out = new ArrayList<Entry>();
+		for (Entry e : entries) {
+			if (e.action == action) {
+				out.add(e);
+			}
+		}
+		return out;
+	}
+	
+	/**
+	 * @return whether the plan covers all matings; only then are obsolete
+	 * jobs listed.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+	
+	public JSONObject toJSON() {
+		JSONObject out = new JSONObject();
+		out.put("complete", complete);
+		for (Action a : Action.values()) {
+			JSONArray arr = new JSONArray();
+			for (Entry e : this.getEntries(a)) {
+				arr.add(e.toJSON());
+			}
+			out.put(a.name().toLowerCase(), arr);
+		}
+		return out;
+	}
+}
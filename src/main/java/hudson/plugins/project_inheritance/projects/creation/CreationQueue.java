@@ -0,0 +1,240 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.creation;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.plugins.project_inheritance.util.InheritanceMetrics;
+import jenkins.util.SystemProperties;
+
+/**
+ * Collects the names of changed projects and hands them to a single
+ * creation run, instead of starting one run per change notification.
+ * <p>
+ * A run starts once no new change arrived for {@value #DELAY_PROPERTY}
+ * milliseconds (default: 1000), but at the latest {@value #MAX_DELAY_PROPERTY}
+ * milliseconds (default: 10000) after the first change it covers. Changes
+ * arriving while a run is in progress are collected for the next one. As
+ * such, a bulk update of many jobs results in only a few runs, each covering
+ * the union of the projects changed in the meantime.
+ * <p>
+ * The number of pending projects is bounded by {@value #MAX_PENDING_PROPERTY}
+ * (default: 1000). Once exceeded, the names are dropped and the next run
+ * covers all projects instead.
+ */
+public class CreationQueue {
+	private static final Logger log = Logger.getLogger(
+			CreationQueue.class.toString()
+	);
+	
+	public static final String DELAY_PROPERTY =
+			CreationQueue.class.getName() + ".delay";
+	public static final String MAX_DELAY_PROPERTY =
+			CreationQueue.class.getName() + ".maxDelay";
+	public static final String MAX_PENDING_PROPERTY =
+			CreationQueue.class.getName() + ".maxPending";
+	
+	private static final long delay =
+			SystemProperties.getLong(DELAY_PROPERTY, 1000L);
+	private static final long maxDelay =
+			SystemProperties.getLong(MAX_DELAY_PROPERTY, 10000L);
+	private static final int maxPending =
+			SystemProperties.getInteger(MAX_PENDING_PROPERTY, 1000);
+	
+	/**
+	 * Handles the batches of changed projects.
+	 */
+	public interface Handler {
+		/**
+		 * @param names the full names of the changed projects; empty if
+		 *        all projects are to be covered
+		 * @param all whether all projects are to be covered
+		 */
+		public void run(List<String> names, boolean all);
+	}
+	
+	
+	private final Handler handler;
+	
+	private final ScheduledExecutorService executor =
+			Executors.newSingleThreadScheduledExecutor(new NamingThreadFactory(
+					new DaemonThreadFactory(), "ProjectCreationEngine.creation"
+			));
+	
+	private final LinkedHashSet<String> pending = new LinkedHashSet<String>();
+	private boolean pendingAll = false;
+	
+	/**
+	 * The value of {@link System#nanoTime()} when the first pending change
+	 * arrived.
+	 */
+	private long firstPending = 0;
+	
+	/**
+	 * The run scheduled for the pending changes; null if none is scheduled
+	 * or the scheduled one has already started.
+	 */
+	private ScheduledFuture<?> scheduled = null;
+	
+	private volatile long lastLatency = -1;
+	private volatile long lastDuration = -1;
+	private volatile int lastSize = 0;
+	private volatile boolean running = false;
+	
+	
+	public CreationQueue(Handler handler) {
+		this.handler = handler;
+	}
+	
+	
+	// === SUBMISSION ===
+	
+	/**
+	 * Adds a changed project to the next run.
+	 * 
+	 * @param name the full name of the project
+	 */
+	public synchronized void submit(String name) {
+		if (name == null) { return; }
+		InheritanceMetrics.increment("creation.queue.submitted");
+		if (!pendingAll) {
+			if (!pending.add(name)) {
+				InheritanceMetrics.increment("creation.queue.coalesced");
+			} else if (pending.size() > maxPending) {
+				//Too many to track; covering all projects is cheaper
+				pending.clear();
+				pendingAll = true;
+			}
+		} else {
+			InheritanceMetrics.increment("creation.queue.coalesced");
+		}
+		this.schedule();
+	}
+	
+	/**
+	 * Makes the next run cover all projects.
+	 */
+	public synchronized void submitAll() {
+		pending.clear();
+		pendingAll = true;
+		this.schedule();
+	}
+	
+	private void schedule() {
+		long now = System.nanoTime();
+		if (scheduled == null) {
+			firstPending = now;
+		} else {
+			//Postpone the run; it has not started yet
+			scheduled.cancel(false);
+		}
+		//But not beyond the maximum delay since the first change
+		long waited = TimeUnit.NANOSECONDS.toMillis(now - firstPending);
+		long wait = Math.max(0, Math.min(delay, maxDelay - waited));
+		scheduled = executor.schedule(new Runnable() {
+			public void run() {
+				runPending();
+			}
+		}, wait, TimeUnit.MILLISECONDS);
+	}
+	
+	
+	// === EXECUTION ===
+	
+	private void runPending() {
+		List<String> names;
+		boolean all;
+		long first;
+		synchronized (this) {
+			if (pending.isEmpty() && !pendingAll) { return; }
+			names = new ArrayList<String>(pending);
+			all = pendingAll;
+			first = firstPending;
+			pending.clear();
+			pendingAll = false;
+			scheduled = null;
+			running = true;
+		}
+		
+		long start = System.nanoTime();
+		try {
+			handler.run(names, all);
+		} catch (RuntimeException ex) {
+			log.log(Level.SEVERE, "Transient project creation failed", ex);
+		} finally {
+			long end = System.nanoTime();
+			running = false;
+			lastSize = names.size();
+			lastDuration = TimeUnit.NANOSECONDS.toMillis(end - start);
+			lastLatency = TimeUnit.NANOSECONDS.toMillis(end - first);
+			InheritanceMetrics.recordValue("creation.queue.batchSize", names.size());
+		}
+	}
+	
+	
+	// === STATISTICS ===
+	
+	/**
+	 * @return the number of projects waiting for the next run; or -1 if the
+	 * next run covers all projects.
+	 */
+	public synchronized int getQueueDepth() {
+		return (pendingAll) ? -1 : pending.size();
+	}
+	
+	public boolean isRunning() {
+		return running;
+	}
+	
+	/**
+	 * @return the time in milliseconds from the first change covered by the
+	 * last run until that run finished; or -1 if none ran yet.
+	 */
+	public long getLastLatency() {
+		return lastLatency;
+	}
+	
+	/**
+	 * @return the duration of the last run in milliseconds; or -1 if none
+	 * ran yet.
+	 */
+	public long getLastDuration() {
+		return lastDuration;
+	}
+	
+	/**
+	 * @return the number of projects covered by the last run; 0 if it
+	 * covered all projects.
+	 */
+	public int getLastSize() {
+		return lastSize;
+	}
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.creation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Summarizes a single run of the transient project creation: how many
+ * matings were handled in which wall time, and how much time the worker
+ * threads spent in each phase of the creation.
+ * <p>
+ * The phase times are summed up over all threads. As such, their total
+ * exceeds the wall time if the phases ran in parallel. The exception is
+ * {@link Phase#REGISTER}, which is serialized.
+ */
+public class CreationStatistics {
+	
+	public enum Phase {
+		/** Checking the matings in memory; see {@link CreationPlan} */
+		PLAN,
+		/** Waiting for the registration lock */
+		WAIT,
+		/** Registering the new job with Jenkins; serialized */
+		REGISTER,
+		/** Loading the new job and updating the indices; serialized */
+		LOAD,
+		/** Checking the new job */
+		VALIDATE;
+	}
+	
+	private final int matings;
+	private final long startTime;
+	private final long startNanos;
+	private volatile long wallNanos = -1;
+	
+	private final AtomicLongArray phaseNanos =
+			new AtomicLongArray(Phase.values().length);
+	
+	private final AtomicInteger rejected = new AtomicInteger(0);
+	private final AtomicInteger created = new AtomicInteger(0);
+	private final AtomicInteger failed = new AtomicInteger(0);
+	
+	
+	public CreationStatistics(int matings) {
+		this.matings = matings;
+		this.startTime = System.currentTimeMillis();
+		this.startNanos = System.nanoTime();
+	}
+	
+	
+	// === RECORDING ===
+	
+	/**
+	 * Adds the time elapsed since the given start to a phase.
+	 * 
+	 * @param phase the phase
+	 * @param start the value of {@link System#nanoTime()} when the phase started
+	 * @return the current value of {@link System#nanoTime()}; to be used as
+	 *         the start of the next phase
+	 */
+	long record(Phase phase, long start) {
+		long now = System.nanoTime();
+		phaseNanos.addAndGet(phase.ordinal(), now - start);
+		return now;
+	}
+	
+	void countRejected() {
+		rejected.incrementAndGet();
+	}
+	
+	void countCreated() {
+		created.incrementAndGet();
+	}
+	
+	void countFailed() {
+		failed.incrementAndGet();
+	}
+	
+	void finish() {
+		wallNanos = System.nanoTime() - startNanos;
+	}
+	
+	
+	// === ACCESSORS ===
+	
+	public int getMatings() {
+		return matings;
+	}
+	
+	/**
+	 * @return the number of matings that were rejected before creating a
+	 * job; because they were invalid, cyclic or the job already existed.
+	 */
+	public int getRejected() {
+		return rejected.get();
+	}
+	
+	/**
+	 * @return the number of jobs created; including those that failed their
+	 * validation afterwards.
+	 */
+	public int getCreated() {
+		return created.get();
+	}
+	
+	/**
+	 * @return the number of jobs that could not be created, or failed their
+	 * validation.
+	 */
+	public int getFailed() {
+		return failed.get();
+	}
+	
+	public long getStartTime() {
+		return startTime;
+	}
+	
+	/**
+	 * @return the wall time of the run in milliseconds; or the time elapsed
+	 * so far, if it is still running.
+	 */
+	public long getWallMillis() {
+		long nanos = (wallNanos < 0) ? System.nanoTime() - startNanos : wallNanos;
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+	
+	/**
+	 * @param phase the phase
+	 * @return the time spent in that phase by all threads together, in
+	 * milliseconds.
+	 */
+	public long getPhaseMillis(Phase phase) {
+		return TimeUnit.NANOSECONDS.toMillis(phaseNanos.get(phase.ordinal()));
+	}
+	
+	/**
+	 * @return the number of matings handled per second of wall time.
+	 */
+	public double getThroughput() {
+		long millis = getWallMillis();
+		if (millis <= 0) { return matings; }
+		return matings * 1000.0 / millis;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		b.append(String.format(
+				"%d matings in %d ms (%.1f/s); %d created, %d rejected, %d failed;",
+				matings, getWallMillis(), getThroughput(),
+				getCreated(), getRejected(), getFailed()
+		));
+		for (Phase p : Phase.values()) {
+			b.append(' ').append(p.name().toLowerCase()).append('=');
+			b.append(getPhaseMillis(p)).append("ms");
+		}
+		return b.toString();
+	}
+}
@@ -25,20 +25,23 @@ import static javax.servlet.http.HttpServletResponse.SC_FORBIDDEN;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
-import java.text.DecimalFormat;
 import java.util.AbstractMap;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -76,9 +79,15 @@ import hudson.model.TopLevelItem;
 import hudson.model.Descriptor.FormException;
 import hudson.model.listeners.ItemListener;
 import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.StartupPipeline;
+import hudson.plugins.project_inheritance.projects.creation.CreationStatistics.Phase;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceGraphIndex;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceSnapshot;
 import hudson.plugins.project_inheritance.projects.references.AbstractProjectReference;
-import hudson.plugins.project_inheritance.projects.references.ParameterizedProjectReference;
 import hudson.plugins.project_inheritance.projects.references.ProjectReference;
+import hudson.plugins.project_inheritance.projects.view.ResolvedConfigExport;
+import hudson.plugins.project_inheritance.util.InheritanceMetrics;
+import hudson.plugins.project_inheritance.util.exceptions.HttpStatusException;
 import hudson.security.ACL;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
@@ -148,13 +157,7 @@ public class ProjectCreationEngine extends ManagementLink implements Saveable, D
 		}
 		
 		public int getNumberOfProjects() {
-			Map<String, LinkedList<InheritanceProject>> map = 
-					ProjectCreationEngine.instance.getProjectsByClass();
-			try {
-				return map.get(this.name).size();
-			} catch (NullPointerException ex) {
-				return 0;
-			}
+			return CreationClassIndex.get().getNumberOfProjects(this.name);
 		}
 		
 		// == DESCRIPTOR CLASS ===
@@ -244,7 +247,7 @@ public class ProjectCreationEngine extends ManagementLink implements Saveable, D
 					@QueryParameter("firstClass") String firstClass,
 					@QueryParameter("secondClass") String secondClass) {
 				int numOfMates =
-						ProjectCreationEngine.instance.getNumOfMates(
+						CreationClassIndex.get().getNumberOfMates(
 								firstClass, secondClass
 						);
 				
@@ -284,6 +287,12 @@ public class ProjectCreationEngine extends ManagementLink implements Saveable, D
 			}
 		}
 		
+		@Override
+		public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+			if (!(item instanceof InheritanceProject)) { return; }
+			CreationClassIndex.get().rename(oldFullName, newFullName);
+		}
+		
 		@Override
 		public void onRenamed(Item item, String oldName, String newName) {
 			//Apply the rename to the templates, too
@@ -353,8 +362,17 @@ public class ProjectCreationEngine extends ManagementLink implements Saveable, D
 	protected transient Map<String, String> lastCreationState =
 			new ConcurrentHashMap<String, String>();
 	
-	protected final transient Executor creationExecutor =
-			Executors.newFixedThreadPool(1);
+	protected transient volatile CreationStatistics lastCreationStatistics = null;
+	
+	/**
+	 * Coalesces the creation runs triggered by changed projects.
+	 */
+	protected final transient CreationQueue creationQueue =
+			new CreationQueue(new CreationQueue.Handler() {
+				public void run(List<String> names, boolean all) {
+					runDeltaCreation(names, all);
+				}
+			});
 	
 	/**
 	 * The list of jobs to be used as templates for the {@link ProjectWizard}.
@@ -602,15 +620,25 @@ public class ProjectCreationEngine extends ManagementLink implements Saveable, D
 	
 	// === ACTION HANDLERS ===
 	
-	private static class ProjectDerivationRunner implements Runnable {
+	private static class ProjectDerivationRunner {
 		private final InheritanceProject[] parents;
 		private final String variance;
 		private final Map<String, String> reportMap;
 		private final Authentication auth;
+		private final CreationStatistics stats;
+		private final String name;
+		
+		/**
+		 * The job created; if any.
+		 */
+		private InheritanceProject created = null;
 		
 		/**
 		 * This lock is necessary to avoid deadlocks due to Java synchronization
 		 * on certain operations on projects -- like deleting them.
+		 * <p>
+		 * It is only held while the job is registered with Jenkins and its
+		 * parents are set.
 		 */
 		private static final ReentrantLock lock = new ReentrantLock();
 		
@@ -619,107 +647,150 @@ public class ProjectCreationEngine extends ManagementLink implements Saveable, D
 		 * Creates a runner that creates a single output project that inherits
 		 * its parameters from the given projects.
 		 * 
-		 * @param parents the list of parents in their natural order
-		 * @param variance the unique variance to be used for the compound
+		 * @param entry the planned job; its mating must have been checked
 		 * @param reportMap the map used to report creation success/fail
 		 * @param auth the authentication to use for creation
+		 * @param stats the statistics of the run to add to
 		 */
 		public ProjectDerivationRunner(
-				InheritanceProject[] parents,
-				String variance,
+				CreationPlan.Entry entry,
 				Map<String, String> reportMap,
-				Authentication auth) {
+				Authentication auth,
+				CreationStatistics stats) {
+			this.parents = entry.getParents();
 			if (parents == null || parents.length <= 0) {
 				throw new IllegalArgumentException(
 					"You must offer at least one parent to create a new derived project."
 				);
 			}
-			this.parents = parents;
-			this.variance = (variance != null) ? variance.trim() : null;
+			this.name = entry.name;
+			this.variance = entry.variance;
 			this.reportMap = reportMap;
 			this.auth = auth;
+			this.stats = stats;
 		}
 		
-		@SuppressWarnings("unchecked")
-		public void run() {
-			ProjectCreationEngine pce = ProjectCreationEngine.instance;
-			LinkedList<String> parNames = new LinkedList<String>();
-			List<String> classes = new LinkedList<String>();
-			
-			//Fetch the name & class of each parent
-			for (InheritanceProject ip : this.parents) {
-				if (ip == null) { continue; }
-				String pName = ip.getFullName();
-				String cName = ip.getCreationClass();
-				if (pName == null || cName == null || cName.isEmpty()) { continue; }
-				parNames.add(pName);
-				classes.add(cName);
-			}
-			
-			//Generate the full name of the child to be created
-			String pName = generateNameFor(variance, parNames);
-			
-			
-			//Check if the mating that is supposed to be created is allowed
-			if (classes.size() < 2 || classes.contains(null)) {
-				this.reportMap.put(pName, "At least one parent is not a member of a class");
-				return;
+		/**
+		 * Registers the new job.
+		 * 
+		 * @return the new job, or null if none was created
+		 */
+		public InheritanceProject create() {
+			//Claim the name, until the job was validated
+			if (reportMap.putIfAbsent(this.name, "Created") != null) {
+				//Another mating already handled a job of that name
+				log.fine("Skipping duplicate creation of " + this.name);
+				stats.countRejected();
+				return null;
 			}
-			
-			String leftClass = classes.get(0);
-			String rightClass = classes.get(1);
-			boolean isValidMate = false;
-			for (CreationMating mate : pce.getMatings()) {
-				if (!mate.firstClass.equals(leftClass)) {
-					continue;
+			long start = InheritanceMetrics.startTimer();
+			SecurityContext oldAuthContext = this.impersonate();
+			try {
+				this.created = this.register(this.name, System.nanoTime());
+				if (this.created == null) {
+					stats.countFailed();
+				} else {
+					stats.countCreated();
 				}
-				if (!mate.secondClass.equals(rightClass)) {
-					continue;
+				return this.created;
+			} finally {
+				this.restore(oldAuthContext);
+				InheritanceMetrics.recordTime("creation.derivation", start);
+			}
+		}
+		
+		/**
+		 * Loads the additional properties of the job registered by
+		 * {@link #create()}, which also updates the indices and clears the
+		 * buffers of all projects. Thus, this must not run concurrently with
+		 * other derivations.
+		 * 
+		 * @return true, if the job was loaded
+		 */
+		public boolean load() {
+			if (this.created == null) { return false; }
+			SecurityContext oldAuthContext = this.impersonate();
+			long phaseStart = System.nanoTime();
+			try {
+				this.created.onLoad(this.created.getParent(), this.created.getFullName());
+				return true;
+			} catch (IOException ex) {
+				log.warning("Could not load project " + this.name + " due to I/O-Error");
+				reportMap.put(this.name, "Failed, I/O Error");
+				stats.countFailed();
+				this.created = null;
+				return false;
+			} finally {
+				stats.record(Phase.LOAD, phaseStart);
+				this.restore(oldAuthContext);
+			}
+		}
+		
+		/**
+		 * Validates the job loaded by {@link #load()} and reports the
+		 * outcome. This runs after all jobs were loaded, so that the
+		 * inheritance graph does not change anymore. It only reads the
+		 * state of the jobs, so it may run concurrently with other checks.
+		 */
+		public void check() {
+			if (this.created == null) { return; }
+			SecurityContext oldAuthContext = this.impersonate();
+			long phaseStart = System.nanoTime();
+			long metricStart = InheritanceMetrics.startTimer();
+			try {
+				String result = this.validate(this.created);
+				reportMap.put(this.name, result);
+				if (!"Success".equals(result)) {
+					stats.countFailed();
 				}
-				isValidMate = true;
-				break;
+			} finally {
+				stats.record(Phase.VALIDATE, phaseStart);
+				InheritanceMetrics.recordTime("creation.validation", metricStart);
+				this.restore(oldAuthContext);
 			}
-			if (!isValidMate) {
-				this.reportMap.put(pName, String.format(
-						"Parents have incompatible classes: %s<->%s",
-						leftClass, rightClass
-				));
-				return;
+		}
+		
+		/**
+		 * Applies the ACLs from the auth object given to us.
+		 * 
+		 * @return the previous context, to be passed to {@link #restore(SecurityContext)}
+		 */
+		private SecurityContext impersonate() {
+			return (auth != null) ? ACL.impersonate(this.auth) : null;
+		}
+		
+		private void restore(SecurityContext oldAuthContext) {
+			if (oldAuthContext != null) {
+				SecurityContextHolder.setContext(oldAuthContext);
 			}
+		}
+		
+		/**
+		 * Registers the new job with Jenkins and sets its parents. Both are
+		 * serialized, so that no other thread sees the job without its
+		 * parents.
+		 * 
+		 * @param pName the name of the job
+		 * @param waitStart the value of {@link System#nanoTime()} before
+		 *        waiting for the lock
+		 * @return the new job, or null if it could not be created. In the
+		 * latter case, the reason was already reported.
+		 */
+		private InheritanceProject register(String pName, long waitStart) {
+			InheritanceProject ip = null;
+			long metricStart = InheritanceMetrics.startTimer();
 			
-			//Fetch the map of already existing projects
-			Map<String, TopLevelItem> itemMap =
-					Jenkins.get().getItemMap();
-			
-			SecurityContext oldAuthContext = null;
-			
-			//Everything following this must be serialised via the global lock
-			//as it sets and accesses certain global fields
-			
+			//Creating the job must be serialised via the global lock as it
+			//sets and accesses certain global fields
 			lock.lock();
+			long phaseStart = stats.record(Phase.WAIT, waitStart);
 			try {
-				//Apply the ACLs from the auth object given to us
-				if (auth != null) {
-					oldAuthContext = ACL.impersonate(this.auth);
-				}
-				//Check if the job to be generated already exists
-				if (itemMap.containsKey(pName)) {
-					reportMap.put(pName, "Job already exists");
-					return;
-				}
-				
-				//Check if we've tried to create such a project already
-				if (reportMap.containsKey(pName)) { return; }
-				
 				//Make sure that the IP Descriptor knows that we want to create
 				//the job as transient
 				InheritanceProject.DESCRIPTOR.addProjectToBeCreatedTransient(pName);
 				
-				TopLevelItem item = null;
-				InheritanceProject ip = null;
-			
 				//Use that constructor to create a suitable transient job
-				item = Jenkins.get().createProject(
+				TopLevelItem item = Jenkins.get().createProject(
 						InheritanceProject.DESCRIPTOR, pName 
 				);
 				if (item == null || !(item instanceof InheritanceProject)) {
@@ -728,11 +799,10 @@ public class ProjectCreationEngine extends ManagementLink implements Saveable, D
 					reportMap.put(
 							pName, "Failed, wrong project type generated"
 					);
-					return;
+					return null;
 				}
 				ip = (InheritanceProject) item;
 				
-				
 				//Add the references generated above
 				int i = 0;
 				for (InheritanceProject par : this.parents) {
@@ -746,56 +816,60 @@ public class ProjectCreationEngine extends ManagementLink implements Saveable, D
 				if (variance != null && !variance.isEmpty()) {
 					ip.setVarianceLabel(variance);
 				}
-				
-				//Check whether the newly created job is sane and buildable
-				boolean isSane = false;
-				String insanityMessage = null;
-				
-				AbstractMap.SimpleEntry<Boolean, String> sanity =
-						ip.getParameterSanity();
-				
-				if (sanity.getKey() == false) {
-					insanityMessage =
-							"Failed, resulting project has parameter error: " +
-							sanity.getValue();
-				} else if (ip.hasCyclicDependency()) {
-					insanityMessage = "Failed, resulting project has cyclic dependency.";
-				} else if (ip.isBuildable() == false) {
-					insanityMessage = "Failed, resulting project is not buildable.";
-				} else {
-					isSane = true;
-				}
-				
-				//Load the additional properties
-				if (ip != null) {
-					ip.onLoad(ip.getParent(), ip.getFullName());
-				}
-				
-				if (!isSane) {
-					reportMap.put(pName, insanityMessage);
-				} else {
-					reportMap.put(pName, "Success");
-				}
+				return ip;
 			} catch (IllegalArgumentException ex) {
 				//The name already exist
 				reportMap.put(pName, "Job already exists");
+				return null;
 			} catch (IOException ex) {
 				//This is semi-bad; as the job wasn't created due to a misc. error
 				log.warning("Could not generate project " + pName + " due to I/O-Error");
 				reportMap.put(pName, "Failed, I/O Error");
+				return null;
 			} catch (InterruptedException ex) {
 				//This is bad, as the item might not have been deleted!
 				log.severe("Created broken project " + pName + " but could not remove it.");
 				reportMap.put(pName, "FATAL! Wrong project created; but could not delete");
-				
+				return null;
 			} finally {
 				InheritanceProject.DESCRIPTOR.dropProjectToBeCreatedTransient(
 						pName
 				);
-				if (oldAuthContext != null) {
-					SecurityContextHolder.setContext(oldAuthContext);
-				}
 				lock.unlock();
+				stats.record(Phase.REGISTER, phaseStart);
+				InheritanceMetrics.recordTime("creation.register", metricStart);
+			}
+		}
+		
+		/**
+		 * Checks whether the newly created job is sane and buildable.
+		 * 
+		 * @param ip the created job
+		 * @return the human-readable result of the creation
+		 */
+		private String validate(InheritanceProject ip) {
+			boolean isSane = false;
+			String insanityMessage = null;
+			
+			AbstractMap.SimpleEntry<Boolean, String> sanity =
+					ip.getParameterSanity();
+			
+			if (sanity.getKey() == false) {
+				insanityMessage =
+						"Failed, resulting project has parameter error: " +
+						sanity.getValue();
+			} else if (ip.hasCyclicDependency()) {
+				insanityMessage = "Failed, resulting project has cyclic dependency.";
+			} else if (ip.isBuildable() == false) {
+				insanityMessage = "Failed, resulting project is not buildable.";
+			} else {
+				isSane = true;
+			}
+			
+			if (!isSane) {
+				return insanityMessage;
+			} else {
+				return "Success";
 			}
 		}
 	}
@@ -818,47 +892,279 @@ public class ProjectCreationEngine extends ManagementLink implements Saveable, D
 			return reportMap;
 		}
 		
-		long startTime = System.currentTimeMillis();
-		
-		//Create a fixed thread-pool to create/load projects for us
-		//It uses max(1, n-1) threads; where n is the number of CPU cores
-		int numExecs = Runtime.getRuntime().availableProcessors();
-		if (numExecs > 1) { numExecs -= 1; }
-		ExecutorService exec = Executors.newFixedThreadPool(numExecs);
-		
-		LinkedList<Future<Boolean>> futures = new LinkedList<Future<Boolean>>();
+		List<Mating> pairs = getAllMatings();
 		
+		long start = InheritanceMetrics.startTimer();
+		this.lastCreationStatistics = this.createProjects(pairs, true, reportMap);
+		InheritanceMetrics.recordTime("creation.trigger", start);
+		log.info("Full transient project creation handled " + pairs.size() + " matings");
+		return reportMap;
+	}
+	
+	/**
+	 * Computes which transient projects a full creation run would create,
+	 * keep or leave obsolete, without creating any of them.
+	 * 
+	 * @return the plan, including the verdicts for the jobs that exist already
+	 */
+	public CreationPlan getCreationPlan() {
+		return CreationPlan.compute(this, getAllMatings(), true, true, null);
+	}
+	
+	/**
+	 * @return the matings defined by the compatibles of all projects.
+	 */
+	private static List<Mating> getAllMatings() {
 		//Fetch the map of all project names and their actual objects
 		Map<String, InheritanceProject> pMap =
 				InheritanceProject.getProjectsMap();
 		
 		//Iterate through that mapping to get compatible classes
+		List<Mating> pairs = new LinkedList<Mating>();
 		for (InheritanceProject firstP : pMap.values()) {
 			//Get & iterate over the compatible matings defined on that project
-			List<AbstractProjectReference> refs = firstP.getCompatibleProjects();
-			for (AbstractProjectReference ref : refs) {
-				InheritanceProject secondP = ref.getProject();
-				if (secondP == null) { continue; }
-				
-				String variance =
-						(ref instanceof ParameterizedProjectReference)
-						? ((ParameterizedProjectReference)ref).getVariance()
-						: null;
-				
-				//Creating the mates generated by that pairing
-				InheritanceProject[] parents = {
-					firstP, secondP
-				};
-				
-				//Now, starting the asynchronous task of creating this new job
-				//DO NOTE: It will check if the creation is valid at all, and
-				//         refuse to create something if it's not valid.
-				ProjectDerivationRunner pdr = new ProjectDerivationRunner(
-						parents, variance, reportMap, ACL.SYSTEM
-				);
-				futures.add(exec.submit(pdr, true));
+			for (AbstractProjectReference ref : firstP.getCompatibleProjects()) {
+				pairs.add(new Mating(firstP, ref));
 			}
 		}
+		return pairs;
+	}
+	
+	/**
+	 * Triggers creation of only those automatically generated projects that
+	 * are affected by a change of the given project; if enabled.
+	 * <p>
+	 * Note: This does not check if the user has enough permissions to create
+	 * jobs. It is up to the caller to ensure that.
+	 * 
+	 * @param project the project that was created or changed
+	 * @return a map containing the results of the generation with entries:
+	 *         (project-name, human-readable-result)
+	 * @see #triggerCreateProjectsFor(Collection)
+	 */
+	public Map<String, String> triggerCreateProjectsFor(InheritanceProject project) {
+		if (project == null) {
+			return new ConcurrentHashMap<String, String>();
+		}
+		return this.triggerCreateProjectsFor(Collections.singletonList(project));
+	}
+	
+	/**
+	 * Triggers creation of only those automatically generated projects that
+	 * are affected by a change of any of the given projects; if enabled.
+	 * <p>
+	 * These are the matings the projects and all of their descendants define
+	 * themselves, as well as the ones defined by other projects that list any
+	 * of them as compatible. The descendants are included, since whether a
+	 * mating is valid (e.g. free of cycles and with sane parameters) depends
+	 * on all ancestors of both mates. All of them are looked up in the
+	 * {@link InheritanceGraphIndex}. Matings affected by several of the
+	 * projects are only handled once.
+	 * <p>
+	 * Note: This does not check if the user has enough permissions to create
+	 * jobs. It is up to the caller to ensure that.
+	 * 
+	 * @param projects the projects that were created or changed
+	 * @return a map containing the results of the generation with entries:
+	 *         (project-name, human-readable-result)
+	 */
+	public synchronized Map<String, String> triggerCreateProjectsFor(
+			Collection<InheritanceProject> projects) {
+		ConcurrentHashMap<String, String> reportMap =
+				new ConcurrentHashMap<String, String>();
+		
+		if (!enableCreation || projects == null || projects.isEmpty()) {
+			return reportMap;
+		}
+		
+		InheritanceGraphIndex index = InheritanceGraphIndex.get();
+		Jenkins j = Jenkins.get();
+		List<Mating> pairs = new LinkedList<Mating>();
+		Set<AbstractProjectReference> seen = Collections.newSetFromMap(
+				new IdentityHashMap<AbstractProjectReference, Boolean>()
+		);
+		//Make sure that the index knows the current edges
+		for (InheritanceProject project : projects) {
+			index.update(project);
+		}
+		Collection<InheritanceProject> affected =
+				this.getWithDescendants(projects, index, j);
+		
+		for (InheritanceProject project : affected) {
+			String name = project.getFullName();
+			
+			//The matings defined by the project itself
+			for (AbstractProjectReference ref : project.getCompatibleProjects()) {
+				if (seen.add(ref)) {
+					pairs.add(new Mating(project, ref));
+				}
+			}
+			//And the ones defined by others for this project
+			for (String other : index.getMateOfNames(name)) {
+				InheritanceProject firstP = j.getItemByFullName(other, InheritanceProject.class);
+				if (firstP == null || firstP == project) { continue; }
+				for (AbstractProjectReference ref : firstP.getCompatibleProjects()) {
+					if (name.equals(ref.getName()) && seen.add(ref)) {
+						pairs.add(new Mating(firstP, ref));
+					}
+				}
+			}
+		}
+		
+		long start = InheritanceMetrics.startTimer();
+		this.lastCreationStatistics = this.createProjects(pairs, false, reportMap);
+		InheritanceMetrics.recordTime("creation.triggerDelta", start);
+		log.fine(String.format(
+				"Transient project creation for %d projects (%d with descendants) handled %d matings",
+				projects.size(), affected.size(), pairs.size()
+		));
+		return reportMap;
+	}
+	
+	/**
+	 * @return the given projects, followed by all of their existing
+	 * descendants; each only once.
+	 */
+	private Collection<InheritanceProject> getWithDescendants(
+			Collection<InheritanceProject> projects,
+			InheritanceGraphIndex index, Jenkins j) {
+		LinkedHashMap<String, InheritanceProject> out =
+				new LinkedHashMap<String, InheritanceProject>();
+		LinkedList<String> open = new LinkedList<String>();
+		for (InheritanceProject project : projects) {
+			if (out.put(project.getFullName(), project) == null) {
+				open.add(project.getFullName());
+			}
+		}
+		while (!open.isEmpty()) {
+			for (String child : index.getChildNames(open.removeFirst())) {
+				if (out.containsKey(child)) { continue; }
+				InheritanceProject ip = j.getItemByFullName(child, InheritanceProject.class);
+				if (ip == null) { continue; }
+				out.put(child, ip);
+				open.add(child);
+			}
+		}
+		return out.values();
+	}
+	
+	/**
+	 * A compatibility reference of one project to another, from which a
+	 * transient project is created.
+	 */
+	static class Mating {
+		final InheritanceProject first;
+		final AbstractProjectReference ref;
+		
+		Mating(InheritanceProject first, AbstractProjectReference ref) {
+			this.first = first;
+			this.ref = ref;
+		}
+	}
+	
+	/**
+	 * Creates the transient projects for the given matings in parallel.
+	 * <p>
+	 * This runs in four stages. First, a {@link CreationPlan} is computed
+	 * for the matings, which rejects invalid ones without creating anything.
+	 * Then the jobs planned to be created are registered in parallel; only
+	 * the registration with Jenkins and setting the parents is serialized.
+	 * Then the new jobs are loaded one after the other, as loading a job
+	 * updates the indices and clears the buffers of all projects. Finally,
+	 * once the inheritance graph does not change anymore, the new jobs are
+	 * validated in parallel. Each worker of that stage keeps an
+	 * {@link InheritanceSnapshot} open, so that the parents shared by many
+	 * new jobs are only resolved once per worker.
+	 * 
+	 * @param pairs the matings to create the projects for
+	 * @param complete whether these are all matings
+	 * @param reportMap the map used to report creation success/fail
+	 * @return the statistics of the run
+	 */
+	private CreationStatistics createProjects(List<Mating> pairs, boolean complete,
+			Map<String, String> reportMap) {
+		CreationStatistics stats = new CreationStatistics(pairs.size());
+		CreationPlan plan = CreationPlan.compute(this, pairs, complete, false, stats);
+		
+		final ConcurrentLinkedQueue<ProjectDerivationRunner> toCreate =
+				new ConcurrentLinkedQueue<ProjectDerivationRunner>();
+		for (CreationPlan.Entry e : plan.getEntries()) {
+			switch (e.getAction()) {
+				case CREATE:
+					toCreate.add(new ProjectDerivationRunner(
+							e, reportMap, ACL.SYSTEM, stats
+					));
+					break;
+				case KEEP:
+				case REJECT:
+					reportMap.put(e.name, e.getReason());
+					stats.countRejected();
+					break;
+				case OBSOLETE:
+					//Left alone; they are only listed by the plan
+					break;
+			}
+		}
+		
+		//First, creating the jobs
+		final ConcurrentLinkedQueue<ProjectDerivationRunner> toCheck =
+				new ConcurrentLinkedQueue<ProjectDerivationRunner>();
+		runInParallel(toCreate.size(), new Runnable() {
+			public void run() {
+				ProjectDerivationRunner pdr;
+				while ((pdr = toCreate.poll()) != null) {
+					if (pdr.create() != null) {
+						toCheck.add(pdr);
+					}
+				}
+			}
+		});
+		
+		//Then, loading them; which must not happen concurrently
+		Iterator<ProjectDerivationRunner> iter = toCheck.iterator();
+		while (iter.hasNext()) {
+			if (!iter.next().load()) {
+				iter.remove();
+			}
+		}
+		
+		//Finally, validating them against the now fixed graph
+		runInParallel(toCheck.size(), new Runnable() {
+			public void run() {
+				try (InheritanceSnapshot snap = InheritanceSnapshot.open()) {
+					ProjectDerivationRunner pdr;
+					while ((pdr = toCheck.poll()) != null) {
+						pdr.check();
+					}
+				}
+			}
+		});
+		
+		stats.finish();
+		log.info("Transient project creation was finished: " + stats);
+		return stats;
+	}
+	
+	/**
+	 * Runs the given worker on a fixed thread-pool and waits until all
+	 * threads have finished. It uses max(1, n-1) threads; where n is the
+	 * number of CPU cores.
+	 * 
+	 * @param tasks the number of tasks the workers will handle; no more
+	 *        threads than that are started
+	 * @param worker the worker to run on each thread
+	 */
+	static void runInParallel(int tasks, Runnable worker) {
+		if (tasks <= 0) { return; }
+		int numExecs = Runtime.getRuntime().availableProcessors();
+		if (numExecs > 1) { numExecs -= 1; }
+		numExecs = Math.max(1, Math.min(numExecs, tasks));
+		ExecutorService exec = Executors.newFixedThreadPool(numExecs);
+		
+		LinkedList<Future<Boolean>> futures = new LinkedList<Future<Boolean>>();
+		for (int i = 0; i < numExecs; i++) {
+			futures.add(exec.submit(worker, true));
+		}
 		
 		// Then, we wait until all threads have finished
 		exec.shutdown();
@@ -890,17 +1196,6 @@ public class ProjectCreationEngine extends ManagementLink implements Saveable, D
 				f = null;
 			}
 		}
-		
-		long endTime = System.currentTimeMillis();
-		double diffSecs = ((double) (endTime - startTime)) / 1000;
-		
-		DecimalFormat form = new DecimalFormat();
-		form.setMaximumFractionDigits(3);
-		
-		log.info(
-			"Transient project creation was finished in " + form.format(diffSecs) + " seconds"
-		);
-		return reportMap;
 	}
 	
 	/**
@@ -947,45 +1242,111 @@ public class ProjectCreationEngine extends ManagementLink implements Saveable, D
 	}
 	
 	
+	/**
+	 * Writes the {@link CreationPlan} of a full creation run as JSON. This is
+	 * a dry-run; no job is created.
+	 */
+	public void doCreationPlan(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		//The plan lists jobs regardless of their permissions
+		if (!Jenkins.get().hasPermission(Jenkins.ADMINISTER)) {
+			rsp.sendError(SC_FORBIDDEN, "User lacks the Jenkins.ADMINISTER permission");
+			return;
+		}
+		JSONObject out = this.getCreationPlan().toJSON();
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().write(out.toString(2));
+	}
+	
+	
+	/**
+	 * Streams the fully inherited configuration of many projects at once.
+	 * See {@link ResolvedConfigExport} for the accepted parameters.
+	 * <p>
+	 * Unlike fetching the configuration of each project separately, the
+	 * contribution of the ancestors they share is only derived once.
+	 */
+	public void doGetResolvedConfigsAsXML(StaplerRequest req, StaplerResponse rsp)
+			throws IOException, ServletException {
+		ResolvedConfigExport export;
+		try {
+			export = ResolvedConfigExport.fromRequest(req);
+		} catch (HttpStatusException ex) {
+			rsp.sendError(ex.status, ex.getMessage());
+			return;
+		}
+		export.generateResponse(req, rsp, this);
+	}
+	
+	
 	// === NOTIFIER METHODS ===
 	
 	public void notifyJenkinsStartupComplete() {
+		//All static jobs are present; so the deferred buffer clear can happen
+		StartupPipeline.finish();
+		
 		if (enableCreation && triggerOnStartup) {
 			//Do note that this is not run in a separate thread, to ensure that
 			//Jenkins does not do anything until the first batch of projects
 			//are created.
-			lastCreationState = this.triggerCreateProjects();
+			//Several startup hooks end up here; only the first one creates
+			StartupPipeline.runTransientCreation(new Runnable() {
+				public void run() {
+					lastCreationState = triggerCreateProjects();
+				}
+			});
 		}
+		StartupPipeline.logReport();
 	}
 	
 	public void notifyProjectChange(InheritanceProject project) {
-		//TODO: Instead of a full recreation, do a limited run here
-		if (enableCreation && triggerOnChange) {
-			//This is run in a separate thread to prevent the GUI from freezing
-			creationExecutor.execute(
-				new Runnable() {
-					public void run() {
-						lastCreationState = triggerCreateProjects();
-					}
-				}
-			);
-		}
+		this.triggerDeltaCreation(project);
 	}
 	
 	public void notifyProjectNew(InheritanceProject project) {
-		//TODO: Instead of a full recreation, do a limited run here
+		this.triggerDeltaCreation(project);
+	}
+	
+	/**
+	 * Queues the creation of the transient projects affected by the given
+	 * project. Changes arriving in quick succession are handled by a single
+	 * run; see {@link CreationQueue}.
+	 */
+	private void triggerDeltaCreation(InheritanceProject project) {
 		if (enableCreation && triggerOnChange) {
 			//This is run in a separate thread to prevent the GUI from freezing
-			creationExecutor.execute(
-				new Runnable() {
-					public void run() {
-						lastCreationState = triggerCreateProjects();
-					}
-				}
-			);
+			creationQueue.submit(project.getFullName());
 		}
 	}
 	
+	/**
+	 * Creates the transient projects affected by the given projects, and
+	 * merges the results into the last creation state.
+	 */
+	private void runDeltaCreation(List<String> names, boolean all) {
+		Map<String, String> delta;
+		if (all) {
+			delta = triggerCreateProjects();
+		} else {
+			List<InheritanceProject> projects = new LinkedList<InheritanceProject>();
+			for (String name : names) {
+				InheritanceProject ip = Jenkins.get().getItemByFullName(
+						name, InheritanceProject.class
+				);
+				//Projects deleted in the meantime are skipped
+				if (ip != null) { projects.add(ip); }
+			}
+			if (projects.isEmpty()) { return; }
+			delta = triggerCreateProjectsFor(projects);
+		}
+		Map<String, String> state = new ConcurrentHashMap<String, String>();
+		if (lastCreationState != null && !all) {
+			state.putAll(lastCreationState);
+		}
+		state.putAll(delta);
+		lastCreationState = state;
+	}
+	
 	public void notifyProjectDelete(InheritanceProject project) {
 		//TODO: When a product definition gets deleted, all jobs that
 		//reference it should be informed about this loss.
@@ -1167,6 +1528,22 @@ public class ProjectCreationEngine extends ManagementLink implements Saveable, D
 		return lastCreationState;
 	}
 	
+	/**
+	 * @return the statistics of the last creation run; or null if none ran
+	 * since Jenkins was started.
+	 */
+	public CreationStatistics getLastCreationStatistics() {
+		return lastCreationStatistics;
+	}
+	
+	/**
+	 * @return the queue that coalesces the creation runs triggered by
+	 * changed projects.
+	 */
+	public CreationQueue getCreationQueue() {
+		return creationQueue;
+	}
+	
 	
 	// === PROPERTY SETTERS - USE WITH CARE ===
 	
@@ -1175,53 +1552,6 @@ public class ProjectCreationEngine extends ManagementLink implements Saveable, D
 	}
 	
 
-	// === PROJECT CREATION ===
-	
-	private Map<String, LinkedList<InheritanceProject>> getProjectsByClass() {
-		//Preparing the return value
-		HashMap<String, LinkedList<InheritanceProject>> classMap = 
-				new HashMap<String, LinkedList<InheritanceProject>>();
-		
-		//Fetching a list of all InheritanceProjects
-		Map<String, InheritanceProject> projectMap =
-				InheritanceProject.getProjectsMap();
-		
-		//And categorizing the projects by map
-		for (InheritanceProject ip : projectMap.values()) {
-			String dc = ip.getCreationClass();
-			if (dc == null || dc.isEmpty()) {
-				continue;
-			}
-			if (classMap.containsKey(dc)) {
-				classMap.get(dc).push(ip);
-			} else {
-				LinkedList<InheritanceProject> lst =
-						new LinkedList<InheritanceProject>();
-				lst.push(ip);
-				classMap.put(dc, lst);
-			}
-		}
-		return classMap;
-	}
-	
-	private int getNumOfMates(String firstClass, String secondClass) {
-		//Fetching a map matching classes to projects
-		Map<String, LinkedList<InheritanceProject>> map = this.getProjectsByClass();
-		
-		//Checking if the given classes are defined
-		if (map.containsKey(firstClass) && map.containsKey(secondClass)) {
-			LinkedList<InheritanceProject> firsts = map.get(firstClass);
-			LinkedList<InheritanceProject> seconds = map.get(secondClass);
-			
-			return firsts.size() * seconds.size();
-		} else {
-			//No mates possible
-			return 0;
-		}
-	}
-
-
-
 	// === STATIC HELPER FUNCTIONS ===
 	
 	public static final String generateNameFor(String variance, List<String> projects) {
@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.inheritance;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+
+/**
+ * Caches the verdict of the inheritance-specific checks done by
+ * {@link InheritanceProject#isBuildable()}: missing dependencies, cyclic
+ * inheritance and the sanity of the inherited parameters.
+ * <p>
+ * A verdict is stored per project together with the state of all projects
+ * it was derived from (all parents and referenced jobs, see
+ * {@link ScopeStamp}). As such, it stays valid until one of them changes, or
+ * a different version of one of them is selected. Since missing references
+ * are resolved by name and referenced jobs need not be inheritance projects,
+ * all verdicts are also dropped whenever a job is created, deleted or
+ * renamed, or a job of another type is changed.
+ */
+public final class BuildabilityCache {
+	/**
+	 * The number of version variants kept per project.
+	 */
+	static final int MAX_VARIANTS = 4;
+
+	private static final ConcurrentHashMap<String, Entry[]> cache =
+			new ConcurrentHashMap<String, Entry[]>();
+
+	/**
+	 * Changes whenever the set of jobs or a job that is not an
+	 * {@link InheritanceProject} changes.
+	 */
+	private static final AtomicLong generation = new AtomicLong(0);
+
+	private static final AtomicLong hits = new AtomicLong(0);
+	private static final AtomicLong misses = new AtomicLong(0);
+
+
+	private static final class Entry {
+		private final ScopeStamp stamp;
+		private final long generation;
+		private final String reason;
+
+		private Entry(ScopeStamp stamp, long generation, String reason) {
+			this.stamp = stamp;
+			this.generation = generation;
+			this.reason = reason;
+		}
+	}
+
+	/**
+	 * The cached result of a lookup.
+	 */
+	public static final class Verdict {
+		/**
+		 * Human-readable reason why the project can't be built, or null
+		 * if it can.
+		 */
+		public final String reason;
+
+		private Verdict(String reason) {
+			this.reason = reason;
+		}
+
+		public boolean isBuildable() {
+			return reason == null;
+		}
+	}
+
+
+	private BuildabilityCache() {
+		//Only static access
+	}
+
+
+	// === LOOKUP AND STORAGE ===
+
+	/**
+	 * @param ip the project to look up
+	 * @param selected the versions selected explicitly
+	 * @return the cached verdict, or null if none is valid.
+	 */
+	public static Verdict lookup(InheritanceProject ip, Map<String, Long> selected) {
+		Entry[] variants = cache.get(ip.getFullName());
+		if (variants != null) {
+			long gen = generation.get();
+			for (Entry e : variants) {
+				if (e == null || e.generation != gen) { continue; }
+				if (e.stamp.isValidFor(selected)) {
+					hits.incrementAndGet();
+					return new Verdict(e.reason);
+				}
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * @return a counter to be passed to
+	 * {@link #store(InheritanceProject, Map, Collection, long, String)}. Must
+	 * be read before the verdict is computed.
+	 */
+	public static long getChangeCount() {
+		return DerivedFieldCache.getModCount() + generation.get();
+	}
+
+	/**
+	 * Stores a verdict, unless any project was changed since it was computed.
+	 *
+	 * @param ip the project the verdict is for
+	 * @param selected the versions selected explicitly during the computation
+	 * @param scope all projects that were examined for the verdict
+	 * @param startChangeCount the value of {@link #getChangeCount()} before
+	 *        the computation started
+	 * @param reason the reason why the project is not buildable; null if it is
+	 */
+	public static void store(InheritanceProject ip, Map<String, Long> selected,
+			Collection<InheritanceProject> scope, long startChangeCount, String reason) {
+		long gen = generation.get();
+		ScopeStamp stamp = ScopeStamp.of(scope, selected);
+		if (getChangeCount() != startChangeCount) {
+			//Something changed while checking; the verdict might be outdated
+			return;
+		}
+		Entry entry = new Entry(stamp, gen, reason);
+
+		String name = ip.getFullName();
+		synchronized (cache) {
+			Entry[] old = cache.get(name);
+			Entry[] out = new Entry[MAX_VARIANTS];
+			out[0] = entry;
+			if (old != null) {
+				//Keep the most recently stored variants that are still current
+				int j = 1;
+				for (Entry e : old) {
+					if (j >= MAX_VARIANTS) { break; }
+					if (e == null || e.generation != gen || e.stamp.isStale()) {
+						continue;
+					}
+					out[j++] = e;
+				}
+			}
+			cache.put(name, out);
+		}
+	}
+
+	public static void invalidateAll() {
+		generation.incrementAndGet();
+		cache.clear();
+	}
+
+
+	// === STATISTICS ===
+
+	public static long getHits() {
+		return hits.get();
+	}
+
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	public static int size() {
+		return cache.size();
+	}
+
+
+	// === INVALIDATION ===
+
+	@Extension
+	public static class Invalidator extends ItemListener {
+		@Override
+		public void onCreated(Item item) {
+			invalidateAll();
+		}
+
+		@Override
+		public void onUpdated(Item item) {
+			//Inheritance projects are tracked via their change stamp
+			if (item instanceof InheritanceProject) { return; }
+			invalidateAll();
+		}
+
+		@Override
+		public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+			invalidateAll();
+		}
+
+		@Override
+		public void onDeleted(Item item) {
+			invalidateAll();
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.inheritance;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.references.AbstractProjectReference;
+import hudson.plugins.project_inheritance.projects.versioning.VersionHandler;
+
+/**
+ * Checks for cyclic, diamond or repeated dependencies among the parents of
+ * a project, using the versions of each ancestor that are currently
+ * selected via the {@link VersionHandler}.
+ * <p>
+ * Without any explicitly selected version, the answer is looked up from the
+ * {@link InheritanceGraphIndex}, which always reflects the default versions.
+ * Otherwise, the parent references of the selected version of each ancestor
+ * are walked and the result is memoized in the {@link DerivedFieldCache}
+ * for that version vector. This way, builds pinned to historic versions get
+ * both a correct and a cheap answer.
+ */
+public final class CyclicDependencyCheck {
+	private static final String CACHE_KEY = "hasCyclicDependency";
+	
+	
+	private CyclicDependencyCheck() {
+		//Only static access
+	}
+	
+	/**
+	 * @param root the project to check
+	 * @param useIndex whether the project is part of the {@link InheritanceGraphIndex}
+	 * @return true, if a cycle or diamond was detected.
+	 */
+	public static boolean hasCyclicDependency(InheritanceProject root, boolean useIndex) {
+		Map<String, Long> selected = VersionHandler.getVersions();
+		if (useIndex && selected.isEmpty()) {
+			return InheritanceGraphIndex.get().hasCyclicDependency(root.getFullName());
+		}
+		
+		boolean cacheable = useIndex && DerivedFieldCache.isEnabled();
+		String rootName = root.getFullName();
+		if (cacheable) {
+			DerivedFieldCache.Entry e = DerivedFieldCache.lookup(rootName, CACHE_KEY, selected);
+			if (e != null) {
+				return (Boolean) e.value;
+			}
+		}
+		long modCount = DerivedFieldCache.getModCount();
+		
+		List<InheritanceProject> scope = new ArrayList<InheritanceProject>();
+		boolean result = walk(root, scope);
+		if (cacheable) {
+			DerivedFieldCache.store(rootName, CACHE_KEY, scope, selected, modCount, result);
+		}
+		return result;
+	}
+	
+	/**
+	 * Walks the versioned parent references of all ancestors, until one is
+	 * reached twice.
+	 * 
+	 * @param root the project to start from
+	 * @param scope filled with all projects whose references were read
+	 * @return true, if an ancestor was reached twice.
+	 */
+	private static boolean walk(InheritanceProject root, List<InheritanceProject> scope) {
+		Deque<InheritanceProject> open = new LinkedList<InheritanceProject>();
+		HashSet<String> closed = new HashSet<String>();
+		
+		//We've always seen "ourselves"
+		closed.add(root.getFullName());
+		scope.add(root);
+		for (AbstractProjectReference par : root.getParentReferences()) {
+			InheritanceProject p = par.getProject();
+			if (p != null) { open.add(p); }
+		}
+		
+		while (!open.isEmpty()) {
+			InheritanceProject p = open.pop();
+			if (!closed.add(p.getFullName())) {
+				return true;
+			}
+			scope.add(p);
+			for (AbstractProjectReference ref : p.getParentReferences()) {
+				InheritanceProject refP = ref.getProject();
+				if (refP != null) {
+					open.push(refP);
+				}
+			}
+		}
+		return false;
+	}
+}
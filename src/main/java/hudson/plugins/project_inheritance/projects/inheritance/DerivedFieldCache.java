@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.inheritance;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import jenkins.util.SystemProperties;
+
+/**
+ * Memoizes the fully inherited values computed by
+ * {@link InheritanceGovernor#retrieveFullyDerivedField(InheritanceProject, InheritanceProject.IMode)}.
+ * <p>
+ * An entry is stored per root project and governor (field, selector and
+ * the concrete governor class) and remembers the ordered scope it was
+ * derived from, together with the version and the change stamp of every
+ * project in that scope. An entry is only returned, if all of those still
+ * match. As such, it becomes invalid as soon as any project in the scope
+ * changes (see {@link InheritanceProject#clearBuffers(InheritanceProject)})
+ * or a different version of it is selected &mdash; either explicitly, or by
+ * a new stable version becoming the default.
+ * <p>
+ * Since builds may select arbitrary versions, a few variants are kept for
+ * each key.
+ * <p>
+ * The cache can be disabled with the system property
+ * {@value #ENABLED_PROPERTY}.
+ */
+public final class DerivedFieldCache {
+	public static final String ENABLED_PROPERTY =
+			DerivedFieldCache.class.getName() + ".enabled";
+
+	private static final boolean enabled =
+			SystemProperties.getBoolean(ENABLED_PROPERTY, true);
+
+	/**
+	 * The number of version variants kept per root project and field.
+	 */
+	static final int MAX_VARIANTS = 4;
+
+	/**
+	 * Source for the change stamps of projects. Never hands out the same
+	 * value twice, so that a recreated project can never be mistaken for
+	 * the one it replaced.
+	 */
+	private static final AtomicLong stampSequence = new AtomicLong(0);
+
+	/**
+	 * Counts every change; a derivation that overlapped with one is not stored.
+	 */
+	private static final AtomicLong modCount = new AtomicLong(0);
+
+	private static final AtomicLong hits = new AtomicLong(0);
+	private static final AtomicLong misses = new AtomicLong(0);
+
+	/**
+	 * Maps the full name of a root project to its entries, which are in
+	 * turn keyed by {@link InheritanceGovernor#getCacheKey()}.
+	 */
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<String, Entry[]>> cache =
+			new ConcurrentHashMap<String, ConcurrentHashMap<String, Entry[]>>();
+
+
+	static final class Entry {
+		private final ScopeStamp stamp;
+		final Object value;
+
+		private Entry(ScopeStamp stamp, Object value) {
+			this.stamp = stamp;
+			this.value = value;
+		}
+	}
+
+
+	private DerivedFieldCache() {
+		//Only static access
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+
+	// === CHANGE TRACKING ===
+
+	/**
+	 * @return a new, globally unique change stamp for a project.
+	 */
+	public static long nextStamp() {
+		modCount.incrementAndGet();
+		return stampSequence.incrementAndGet();
+	}
+
+	static long getModCount() {
+		return modCount.get();
+	}
+
+	/**
+	 * Drops all entries derived for the given root project. Entries of other
+	 * projects that include it in their scope are invalidated through its
+	 * change stamp instead.
+	 *
+	 * @param rootName the full name of the root project
+	 */
+	public static void invalidate(String rootName) {
+		if (rootName == null) { return; }
+		modCount.incrementAndGet();
+		cache.remove(rootName);
+	}
+
+	public static void invalidateAll() {
+		modCount.incrementAndGet();
+		cache.clear();
+	}
+
+
+	// === LOOKUP AND STORAGE ===
+
+	static Entry lookup(String rootName, String key, Map<String, Long> selected) {
+		Map<String, Entry[]> byKey = cache.get(rootName);
+		Entry[] variants = (byKey == null) ? null : byKey.get(key);
+		if (variants != null) {
+			for (Entry e : variants) {
+				if (e != null && e.stamp.isValidFor(selected)) {
+					hits.incrementAndGet();
+					return e;
+				}
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Stores a derived value, unless any project was changed since
+	 * the derivation started.
+	 *
+	 * @param rootName the full name of the root project
+	 * @param key the key of the governor
+	 * @param scope the ordered scope the value was derived from
+	 * @param selected the versions selected explicitly during derivation
+	 * @param startModCount the value of {@link #getModCount()} before the
+	 *        scope was determined
+	 * @param value the derived value; may be null
+	 */
+	static void store(String rootName, String key, List<InheritanceProject> scope,
+			Map<String, Long> selected, long startModCount, Object value) {
+		ScopeStamp stamp = ScopeStamp.of(scope, selected);
+		if (modCount.get() != startModCount) {
+			//Something changed while deriving; the value might be outdated
+			return;
+		}
+		Entry entry = new Entry(stamp, value);
+
+		ConcurrentHashMap<String, Entry[]> byKey = cache.get(rootName);
+		if (byKey == null) {
+			ConcurrentHashMap<String, Entry[]> fresh = new ConcurrentHashMap<String, Entry[]>();
+			byKey = cache.putIfAbsent(rootName, fresh);
+			if (byKey == null) { byKey = fresh; }
+		}
+		synchronized (byKey) {
+			Entry[] old = byKey.get(key);
+			Entry[] out = new Entry[MAX_VARIANTS];
+			out[0] = entry;
+			if (old != null) {
+				//Keep the most recently stored variants that are not stale
+				int j = 1;
+				for (Entry e : old) {
+					if (j >= MAX_VARIANTS) { break; }
+					if (e == null || e.stamp.isStale()) { continue; }
+					out[j++] = e;
+				}
+			}
+			byKey.put(key, out);
+		}
+	}
+
+
+	// === STATISTICS ===
+
+	public static long getHits() {
+		return hits.get();
+	}
+
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of root projects that have entries.
+	 */
+	public static int size() {
+		return cache.size();
+	}
+}
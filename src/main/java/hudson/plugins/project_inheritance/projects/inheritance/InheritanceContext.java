@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.inheritance;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import hudson.plugins.project_inheritance.projects.InheritanceProject.IMode;
+import jenkins.util.SystemProperties;
+
+/**
+ * A scoped, thread-bound marker that tells the {@link InheritanceGovernor}
+ * how fields requested with {@link IMode#AUTO} are to be resolved.
+ * <p>
+ * Entry points that know that they need the fully inherited configuration
+ * (the queue, builds, scheduling and SCM polling) open an
+ * {@link Mode#INHERIT} context. Jenkins writing the raw configuration of a
+ * job opens a {@link Mode#RAW} context. Contexts nest; the innermost one
+ * wins and closing it restores the outer one:
+ * <pre>
+ * try (InheritanceContext ctx = InheritanceContext.inherit("poll")) {
+ *     return super.poll(listener);
+ * }
+ * </pre>
+ * Code running without any context falls back to the URL of the current
+ * request and, for background threads, to inspecting the call stack. The
+ * latter is slow and can be disabled with the system property
+ * {@value #FALLBACK_PROPERTY}. {@link #getFallbackCount()} shows how often
+ * the stack walk is still needed.
+ */
+public final class InheritanceContext implements AutoCloseable {
+
+	public enum Mode {
+		/** Full inheritance and versioning */
+		INHERIT,
+		/** The raw, local fields without inheritance and versioning */
+		RAW;
+	}
+
+	public static final String FALLBACK_PROPERTY =
+			InheritanceContext.class.getName() + ".stackWalkFallback";
+
+	private static final boolean fallbackEnabled =
+			SystemProperties.getBoolean(FALLBACK_PROPERTY, true);
+
+	private static final ThreadLocal<InheritanceContext> current =
+			new ThreadLocal<InheritanceContext>();
+
+	private static final AtomicLong fallbackCount = new AtomicLong(0);
+	private static final AtomicLong fallbackHits = new AtomicLong(0);
+
+
+	public final Mode mode;
+	public final String origin;
+	private final InheritanceContext previous;
+
+
+	private InheritanceContext(Mode mode, String origin, InheritanceContext previous) {
+		this.mode = mode;
+		this.origin = origin;
+		this.previous = previous;
+	}
+
+	/**
+	 * Opens a new context for the current thread. The returned object must be
+	 * closed by the same thread, ideally via try-with-resources.
+	 *
+	 * @param mode the resolution mode
+	 * @param origin a short description of the entry point; for debugging only
+	 * @return the new context
+	 */
+	public static InheritanceContext enter(Mode mode, String origin) {
+		InheritanceContext ctx = new InheritanceContext(mode, origin, current.get());
+		current.set(ctx);
+		return ctx;
+	}
+
+	public static InheritanceContext inherit(String origin) {
+		return enter(Mode.INHERIT, origin);
+	}
+
+	public static InheritanceContext raw(String origin) {
+		return enter(Mode.RAW, origin);
+	}
+
+	/**
+	 * @return the innermost context of the current thread, or null if none
+	 * is open.
+	 */
+	public static InheritanceContext getCurrent() {
+		return current.get();
+	}
+
+	@Override
+	public void close() {
+		if (previous == null) {
+			current.remove();
+		} else {
+			current.set(previous);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("InheritanceContext[%s, %s]", mode, origin);
+	}
+
+
+	// === STACK WALK FALLBACK ===
+
+	public static boolean isFallbackEnabled() {
+		return fallbackEnabled;
+	}
+
+	static void countFallback(boolean hit) {
+		fallbackCount.incrementAndGet();
+		if (hit) {
+			fallbackHits.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return how often the call stack had to be inspected, because no
+	 * context was open.
+	 */
+	public static long getFallbackCount() {
+		return fallbackCount.get();
+	}
+
+	/**
+	 * @return how often the inspection of the call stack decided that
+	 * inheritance was needed. If this is non-zero, an entry point is missing
+	 * an explicit context.
+	 */
+	public static long getFallbackHits() {
+		return fallbackHits.get();
+	}
+}
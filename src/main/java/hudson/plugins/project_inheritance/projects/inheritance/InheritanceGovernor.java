@@ -28,13 +28,13 @@ import hudson.model.Queue;
 import hudson.model.Saveable;
 import hudson.model.Descriptor;
 import hudson.model.ParametersAction;
-import hudson.model.Project;
 import hudson.plugins.project_inheritance.projects.InheritanceProject;
 import hudson.plugins.project_inheritance.projects.InheritanceProject.IMode;
 import hudson.plugins.project_inheritance.projects.references.AbstractProjectReference;
 import hudson.plugins.project_inheritance.projects.references.ProjectReference.PrioComparator;
 import hudson.plugins.project_inheritance.projects.references.ProjectReference.PrioComparator.SELECTOR;
 import hudson.plugins.project_inheritance.projects.versioning.VersionHandler;
+import hudson.plugins.project_inheritance.util.InheritanceMetrics;
 import hudson.plugins.project_inheritance.util.Reflection;
 import hudson.scm.SCM;
 import hudson.tasks.BuildStep;
@@ -70,6 +70,28 @@ import org.kohsuke.stapler.StaplerRequest;
 public abstract class InheritanceGovernor<T> {
 	public static final Pattern runUriRegExp = Pattern.compile(".*/job/[^/]+/[0-9]+/.*");
 	
+	/**
+	 * The path of the commit notification endpoint of the GIT plugin,
+	 * relative to the context path of Jenkins.
+	 */
+	private static final String GIT_NOTIFY_PATH = "/git/notifyCommit";
+	
+	/**
+	 * The class of the GIT plugin that serves {@link #GIT_NOTIFY_PATH}. It is
+	 * checked by name, as that plugin need not be installed.
+	 */
+	private static final String GIT_STATUS_CLASS = "hudson.plugins.git.GitStatus";
+	
+	/**
+	 * The pages that only render jobs and views. Requests for these never
+	 * schedule builds, so they can skip the stack walk. Any other request
+	 * (e.g. the CLI or the web hooks of SCM plugins) might schedule builds
+	 * through {@link ParameterizedJobMixIn} without opening a context.
+	 */
+	private static final Pattern pageUriRegExp = Pattern.compile(
+			"(.*/(job|view)/[^/]+)?/?(configure|changes|api/(json|xml|python))?/?"
+	);
+	
 	public final String fieldName;
 	public final SELECTOR orderMode;
 	public final InheritanceProject caller;
@@ -153,6 +175,20 @@ public abstract class InheritanceGovernor<T> {
 	 * where this plugin is <b>SURE</b> that the actual field is needed.
 	 */
 	public final T retrieveFullyDerivedField(InheritanceProject root, IMode mode) {
+		if (!InheritanceMetrics.isEnabled()) {
+			return this.deriveField(root, mode);
+		}
+		long start = InheritanceMetrics.startTimer();
+		try {
+			return this.deriveField(root, mode);
+		} finally {
+			InheritanceMetrics.recordTime(
+					"derivation." + fieldName + "." + mode, start
+			);
+		}
+	}
+	
+	private T deriveField(InheritanceProject root, IMode mode) {
 		/* Figuring out which of the three cases we need:
 		 * 1.) Full inheritance with versioning (will return a copied list)
 		 * 2.) Local-only data with versioning (will also return a copied list)
@@ -188,23 +224,119 @@ public abstract class InheritanceGovernor<T> {
 			);
 		}
 		
+		//Fetched once, instead of once per project in the scope
+		Map<String, Long> selected = VersionHandler.getVersions();
+		InheritanceSnapshot snapshot = InheritanceSnapshot.getCurrent();
+		String rootName = root.getFullName();
+		//Values are only shared, if they depend on nothing but the version
+		boolean shared = snapshot != null && this.isDerivationCacheable();
+		
+		//Check if the same derivation was already done in this snapshot
+		if (shared) {
+			Object obj = snapshot.getDerivedField(this, root, selected);
+			if (obj != null) {
+				if (InheritanceSnapshot.isNull(obj)) { return null; }
+				@SuppressWarnings("unchecked")
+				T value = (T) obj;
+				return this.copyCachedValue(value);
+			}
+		}
+		
+		//Check if the same derivation was already done for the same versions
+		boolean cacheable = DerivedFieldCache.isEnabled() && this.isDerivationCacheable();
+		String key = null;
+		if (cacheable) {
+			key = this.getCacheKey();
+			DerivedFieldCache.Entry e = DerivedFieldCache.lookup(rootName, key, selected);
+			if (e != null) {
+				@SuppressWarnings("unchecked")
+				T value = (T) e.value;
+				if (shared) {
+					snapshot.putDerivedField(this, root, selected, value);
+				}
+				return this.copyCachedValue(value);
+			}
+		}
+		long modCount = DerivedFieldCache.getModCount();
+		
 		//Retrieving the full scope of all parents and ourselves in order
-		List<InheritanceProject> scope =
-				getFullScopeOrdered(root, new HashSet<String>());
+		List<InheritanceProject> scope = (snapshot != null)
+				? snapshot.getScope(root, orderMode, selected)
+				: getFullScopeOrdered(root, new HashSet<String>());
 		LinkedList<T> allFields = new LinkedList<T>();
 		
 		for (InheritanceProject ip : scope) {
 			//Fetch the version desired for this project
-			Long version = VersionHandler.getVersion(ip);
+			Long version = VersionHandler.getVersion(ip, selected);
 			//Fetch the field for that tuple
-			T field = this.getVersionedField(ip, version);
+			T field = (shared)
+					? snapshot.getVersionedField(this, ip, version)
+					: this.getVersionedField(ip, version);
 			if (field != null) {
 				allFields.add(field);
 			}
 		}
 		
 		//Now, at the end, reduce the list to a single element
-		return reduceFromFullInheritance(allFields);
+		T value = reduceFromFullInheritance(allFields);
+		if (shared) {
+			snapshot.putDerivedField(this, root, selected, value);
+		}
+		if (cacheable) {
+			DerivedFieldCache.store(rootName, key, scope, selected, modCount, value);
+		}
+		if (!cacheable && !shared) {
+			return value;
+		}
+		//The stored instance must never leak to a caller who might alter it
+		return this.copyCachedValue(value);
+	}
+	
+	
+	
+	// === DERIVATION CACHE ===
+	
+	/**
+	 * Whether the result of a full derivation may be memoized by the
+	 * {@link DerivedFieldCache}. This requires that the result only depends on
+	 * the versioned fields of the projects in the scope, and on nothing else
+	 * captured by the governor.
+	 * 
+	 * @return true by default.
+	 */
+	protected boolean isDerivationCacheable() {
+		return true;
+	}
+	
+	/**
+	 * @return the key under which results of this governor are memoized for
+	 * a root project. Anonymous governors are distinguished by their class,
+	 * as they may reduce the same field differently.
+	 */
+	protected String getCacheKey() {
+		return fieldName + "|" + orderMode + "|" + this.getClass().getName();
+	}
+	
+	/**
+	 * Returns a copy of a memoized value that is safe to hand out to a caller.
+	 * <p>
+	 * The default implementation copies lists and other collections, since
+	 * all reductions of this class create new ones. Any other value is
+	 * returned as-is, as the non-merging reduction returns the versioned
+	 * instance itself anyway.
+	 * 
+	 * @param value the memoized value, may be null
+	 * @return a value equal to the given one
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	protected T copyCachedValue(T value) {
+		if (value instanceof DescribableList) {
+			return (T) new DescribableList(NOOP, (DescribableList) value);
+		}
+		if (value instanceof Collection) {
+			return (T) new LinkedList((Collection) value);
+		}
+		return value;
 	}
 	
 	private final List<InheritanceProject> getFullScopeOrdered(
@@ -487,6 +619,12 @@ public abstract class InheritanceGovernor<T> {
 			return true;
 		}
 		
+		//Entry points that know what they need declare it explicitly
+		InheritanceContext ctx = InheritanceContext.getCurrent();
+		if (ctx != null) {
+			return ctx.mode == InheritanceContext.Mode.INHERIT;
+		}
+		
 		//Checking the Stapler Request, because it is fast
 		StaplerRequest req = Stapler.getCurrentRequest();
 		if (req != null) {
@@ -499,37 +637,55 @@ public abstract class InheritanceGovernor<T> {
 			if (runUriRegExp.matcher(uri).matches()) {
 				return true;
 			}
+			/* A special case is the GitStatus class from the GIT plugin.
+			 * Calls originating from it need to use full inheritance, since
+			 * they must resolve all jobs triggering from it.
+			 */
+			if (GIT_NOTIFY_PATH.equals(getPathInContext(req))) {
+				return true;
+			}
+			/* Read-only page renders never need to walk the stack. All other
+			 * requests might run code that schedules builds.
+			 */
+			String method = req.getMethod();
+			if (("GET".equals(method) || "HEAD".equals(method))
+					&& pageUriRegExp.matcher(uri).matches()) {
+				return false;
+			}
 		}
 		
-		//Check via expensive stack reflection
-		if (Reflection.calledFromClass(
+		/* Background threads and requests that did not open a context (e.g.
+		 * timers or web hooks scheduling through ParameterizedJobMixIn) can
+		 * only be detected via expensive stack reflection.
+		 */
+		if (!InheritanceContext.isFallbackEnabled()) {
+			return false;
+		}
+		boolean hit = Reflection.calledFromClass(
 				Build.class, BuildCommand.class,
 				Queue.class, BuildTrigger.class,
 				Trigger.class, BuildStep.class,
 				ParameterizedJobMixIn.class,
 				ParametersAction.class
-			) ||
-			Reflection.calledFromMethod(
-					InheritanceProject.class,
-					"doBuild", "scheduleBuild2", "doBuildWithParameters"
-			)
-		) {
-			return true;
+		) || Reflection.calledFromClassNames(GIT_STATUS_CLASS);
+		InheritanceContext.countFallback(hit);
+		return hit;
+	}
+	
+	/**
+	 * @param req the current request
+	 * @return the path of the request below the context path of Jenkins,
+	 * without trailing slashes.
+	 */
+	private static String getPathInContext(StaplerRequest req) {
+		String path = req.getRequestURI();
+		String ctx = req.getContextPath();
+		if (ctx != null && !ctx.isEmpty() && path.startsWith(ctx)) {
+			path = path.substring(ctx.length());
 		}
-		
-		/* A special case is the GitStatus class from the GIT plugin. Calls
-		 * originating from that class need to use full inheritance, since they
-		 * must resolve all jobs triggering from it.
-		 */
-		try {
-			Class<?> clazz = Class.forName("hudson.plugins.git.GitStatus");
-			if (clazz != null && Reflection.calledFromClass(clazz)) {
-				return true;
-			}
-		} catch (ClassNotFoundException ex) {}
-		
-		//In all other cases, we don't require (or want) inheritance
-		return false;
+		int end = path.length();
+		while (end > 1 && path.charAt(end - 1) == '/') { end--; }
+		return path.substring(0, end);
 	}
 	
 	/**
@@ -538,7 +694,9 @@ public abstract class InheritanceGovernor<T> {
 	 * <p>
 	 * There is only one circumstance in which versioning should NOT be needed,
 	 * and that is when Jenkins expects to access the original, raw fields
-	 * of this class to directly manipulate them during reconfiguration.
+	 * of this class to directly manipulate them during reconfiguration. This
+	 * is signalled by an {@link InheritanceContext} in
+	 * {@link InheritanceContext.Mode#RAW} mode.
 	 * <p>
 	 * Do note that both {@link #inheritanceLookupRequired(InheritanceProject)}
 	 * and this function need to return false for the raw lists to be returned
@@ -547,7 +705,9 @@ public abstract class InheritanceGovernor<T> {
 	 * @return true if versioning for the various fields is needed.
 	 */
 	protected static boolean versioningRequired() {
-		if (Reflection.calledFromMethod(Project.class, "submit")) {
+		//Set by InheritanceProject.submit() around Project.submit()
+		InheritanceContext ctx = InheritanceContext.getCurrent();
+		if (ctx != null && ctx.mode == InheritanceContext.Mode.RAW) {
 			return false;
 		}
 		
@@ -0,0 +1,396 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.inheritance;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Computes, for all nodes of the {@link InheritanceGraphIndex} at once,
+ * whether their inheritance is cyclic or contains a diamond, and which of
+ * their ancestors are missing.
+ * <p>
+ * The parent edges are split into strongly connected components with
+ * Tarjan's algorithm. Since those are emitted parents-first, every node can
+ * then be resolved from the already final results of its parents:
+ * <ul>
+ * <li>its ancestors are the union of its parents and their ancestors,</li>
+ * <li>it has a diamond, if the ancestor sets of two parents intersect,</li>
+ * <li>it inherits any problem found in one of its parents, and</li>
+ * <li>it knows the shortest path to every missing ancestor, by remembering
+ * the parent through which that path leads.</li>
+ * </ul>
+ * The results only change for nodes whose parents changed and for their
+ * descendants. As such, edits only mark nodes as dirty and the next query
+ * recomputes just the descendant closure of those.
+ * <p>
+ * This class is not thread-safe; the index guards it with its lock.
+ */
+final class InheritanceGraphAnalysis {
+	/** Member of a cycle (including a project inheriting from itself) */
+	static final int IN_CYCLE = 1;
+	/** Some ancestor is a member of a cycle */
+	static final int REACHES_CYCLE = 2;
+	/** Some ancestor can be reached through two different paths */
+	static final int DIAMOND = 4;
+	/** The same parent is referenced more than once */
+	static final int DUPLICATE = 8;
+	
+	private static final int[] EMPTY = new int[0];
+	private static final BitSet NO_BITS = new BitSet(0);
+	
+	
+	private final BitSet dirty = new BitSet();
+	private boolean allDirty = true;
+	
+	private int[] flags = new int[64];
+	private BitSet[] ancestors = new BitSet[64];
+	
+	/**
+	 * For every node, the IDs of the missing ancestors, the length of the
+	 * shortest path to the project referencing them and the first step of
+	 * that path. The latter is -1 if the node references them itself.
+	 */
+	private int[][] missingIds = new int[64][];
+	private int[][] missingDist = new int[64][];
+	private int[][] missingVia = new int[64][];
+	
+	
+	// === INVALIDATION ===
+	
+	void markDirty(int id) {
+		dirty.set(id);
+	}
+	
+	void markAllDirty() {
+		allDirty = true;
+		dirty.clear();
+	}
+	
+	boolean needsRefresh() {
+		return allDirty || !dirty.isEmpty();
+	}
+	
+	
+	// === QUERIES ===
+	
+	/**
+	 * @param id the ID of a node
+	 * @return the problem flags of that node; 0 if there are none.
+	 */
+	int getFlags(int id) {
+		return (id < flags.length) ? flags[id] : 0;
+	}
+	
+	/**
+	 * @param id the ID of a node
+	 * @return all ancestors of the node. Must not be altered.
+	 */
+	BitSet getAncestors(int id) {
+		BitSet b = (id < ancestors.length) ? ancestors[id] : null;
+		return (b == null) ? NO_BITS : b;
+	}
+	
+	int[] getMissingIds(int id) {
+		return nonNull((id < missingIds.length) ? missingIds[id] : null);
+	}
+	
+	/**
+	 * @param id the ID of a node
+	 * @param missing the ID of one of its missing ancestors
+	 * @return the next node on the shortest path to the project referencing
+	 * the missing one; or -1 if the given node references it itself.
+	 */
+	int getMissingVia(int id, int missing) {
+		int[] ids = getMissingIds(id);
+		for (int i = 0; i < ids.length; i++) {
+			if (ids[i] == missing) {
+				return missingVia[id][i];
+			}
+		}
+		return -1;
+	}
+	
+	
+	// === COMPUTATION ===
+	
+	/**
+	 * Recomputes the results of all dirty nodes and their descendants.
+	 * 
+	 * @param parents the parent edges of the index
+	 * @param children the child edges of the index
+	 * @param duplicates the parents referenced more than once per node
+	 * @param present the nodes that exist as projects
+	 * @param size the number of IDs handed out by the index
+	 */
+	void refresh(int[][] parents, int[][] children, int[][] duplicates,
+			BitSet present, int size) {
+		this.ensureCapacity(size);
+		
+		//Determine the affected nodes; i.e. the dirty ones and all descendants
+		BitSet affected;
+		if (allDirty) {
+			affected = new BitSet(size);
+			affected.set(0, size);
+		} else {
+			affected = (BitSet) dirty.clone();
+			int[] queue = new int[size];
+			int tail = 0;
+			for (int i = affected.nextSetBit(0); i >= 0 && i < size; i = affected.nextSetBit(i+1)) {
+				queue[tail++] = i;
+			}
+			int head = 0;
+			while (head < tail) {
+				for (int c : nonNull(children[queue[head++]])) {
+					if (affected.get(c)) { continue; }
+					affected.set(c);
+					queue[tail++] = c;
+				}
+			}
+		}
+		allDirty = false;
+		dirty.clear();
+		
+		for (int i = affected.nextSetBit(0); i >= 0 && i < size; i = affected.nextSetBit(i+1)) {
+			flags[i] = 0;
+			ancestors[i] = null;
+			missingIds[i] = missingDist[i] = missingVia[i] = null;
+		}
+		
+		//Tarjan's algorithm; iterative, to survive very deep hierarchies
+		int[] index = new int[size];
+		int[] low = new int[size];
+		Arrays.fill(index, -1);
+		BitSet onStack = new BitSet(size);
+		int[] stack = new int[size];
+		int sp = 0;
+		int[] callNode = new int[size];
+		int[] callEdge = new int[size];
+		int counter = 0;
+		
+		for (int root = affected.nextSetBit(0); root >= 0 && root < size; root = affected.nextSetBit(root+1)) {
+			if (index[root] >= 0 || !present.get(root)) { continue; }
+			int depth = 0;
+			callNode[0] = root;
+			callEdge[0] = 0;
+			index[root] = low[root] = counter++;
+			stack[sp++] = root;
+			onStack.set(root);
+			
+			while (depth >= 0) {
+				int v = callNode[depth];
+				int[] adj = nonNull(parents[v]);
+				if (callEdge[depth] < adj.length) {
+					int w = adj[callEdge[depth]++];
+					if (!present.get(w) || !affected.get(w)) {
+						//Missing, or already final from an earlier refresh
+						continue;
+					}
+					if (index[w] < 0) {
+						index[w] = low[w] = counter++;
+						stack[sp++] = w;
+						onStack.set(w);
+						depth++;
+						callNode[depth] = w;
+						callEdge[depth] = 0;
+					} else if (onStack.get(w)) {
+						low[v] = Math.min(low[v], index[w]);
+					}
+					continue;
+				}
+				
+				//All parents visited; check if v is the root of a component
+				if (low[v] == index[v]) {
+					int start = sp;
+					do {
+						start--;
+						onStack.clear(stack[start]);
+					} while (stack[start] != v);
+					this.resolve(Arrays.copyOfRange(stack, start, sp),
+							parents, duplicates, present);
+					sp = start;
+				}
+				depth--;
+				if (depth >= 0) {
+					int u = callNode[depth];
+					low[u] = Math.min(low[u], low[v]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Computes the results for the members of a single strongly connected
+	 * component. All parents outside of it are already final.
+	 */
+	private void resolve(int[] members, int[][] parents, int[][] duplicates, BitSet present) {
+		boolean isCycle = members.length > 1 || contains(parents[members[0]], members[0]);
+		
+		if (!isCycle) {
+			int v = members[0];
+			int f = 0;
+			BitSet anc = new BitSet();
+			for (int p : nonNull(parents[v])) {
+				if (!present.get(p)) { continue; }
+				int pf = flags[p];
+				if ((pf & (IN_CYCLE | REACHES_CYCLE)) != 0) {
+					f |= REACHES_CYCLE;
+				}
+				if ((pf & (DIAMOND | DUPLICATE)) != 0) {
+					f |= DIAMOND;
+				}
+				BitSet pAnc = this.getAncestors(p);
+				if (anc.get(p) || anc.intersects(pAnc)) {
+					f |= DIAMOND;
+				}
+				anc.or(pAnc);
+				anc.set(p);
+			}
+			f |= this.getDuplicateFlag(v, duplicates, present);
+			flags[v] = f;
+			ancestors[v] = anc;
+			this.resolveMissing(v, parents, present);
+			return;
+		}
+		
+		//All members of a cycle share their ancestors, which include themselves
+		BitSet anc = new BitSet();
+		for (int v : members) {
+			for (int p : nonNull(parents[v])) {
+				if (!present.get(p)) { continue; }
+				anc.or(this.getAncestors(p));
+				anc.set(p);
+			}
+		}
+		for (int v : members) {
+			flags[v] = IN_CYCLE | this.getDuplicateFlag(v, duplicates, present);
+			ancestors[v] = anc;
+		}
+		
+		//Shortest paths to missing ancestors may lead around the cycle, so
+		//relax until nothing changes; at most once per member
+		for (int v : members) {
+			this.resolveMissing(v, parents, present);
+		}
+		for (int round = 1; round < members.length; round++) {
+			boolean changed = false;
+			for (int v : members) {
+				changed |= this.resolveMissing(v, parents, present);
+			}
+			if (!changed) { break; }
+		}
+	}
+	
+	private int getDuplicateFlag(int v, int[][] duplicates, BitSet present) {
+		for (int d : nonNull(duplicates[v])) {
+			if (present.get(d)) {
+				return DUPLICATE;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Merges the missing ancestors of all parents into those of v.
+	 * 
+	 * @return true, if any path was added or shortened.
+	 */
+	private boolean resolveMissing(int v, int[][] parents, BitSet present) {
+		int[] ids = nonNull(missingIds[v]);
+		int[] dist = nonNull(missingDist[v]);
+		int[] via = nonNull(missingVia[v]);
+		int n = ids.length;
+		boolean changed = false;
+		
+		for (int p : nonNull(parents[v])) {
+			int[] pIds;
+			int[] pDist;
+			int step;
+			if (!present.get(p)) {
+				pIds = new int[] { p };
+				pDist = new int[] { -1 };
+				step = -1;
+			} else {
+				pIds = nonNull(missingIds[p]);
+				pDist = nonNull(missingDist[p]);
+				step = p;
+			}
+			for (int i = 0; i < pIds.length; i++) {
+				int d = pDist[i] + 1;
+				int j = indexOf(ids, n, pIds[i]);
+				if (j < 0) {
+					if (n >= ids.length) {
+						int len = Math.max(4, n * 2);
+						ids = Arrays.copyOf(ids, len);
+						dist = Arrays.copyOf(dist, len);
+						via = Arrays.copyOf(via, len);
+					}
+					ids[n] = pIds[i];
+					dist[n] = d;
+					via[n] = step;
+					n++;
+					changed = true;
+				} else if (d < dist[j]) {
+					dist[j] = d;
+					via[j] = step;
+					changed = true;
+				}
+			}
+		}
+		
+		if (n == 0) {
+			missingIds[v] = missingDist[v] = missingVia[v] = null;
+		} else {
+			missingIds[v] = Arrays.copyOf(ids, n);
+			missingDist[v] = Arrays.copyOf(dist, n);
+			missingVia[v] = Arrays.copyOf(via, n);
+		}
+		return changed;
+	}
+	
+	
+	// === HELPERS ===
+	
+	private void ensureCapacity(int size) {
+		if (size <= flags.length) { return; }
+		int len = Math.max(size, flags.length * 2);
+		flags = Arrays.copyOf(flags, len);
+		ancestors = Arrays.copyOf(ancestors, len);
+		missingIds = Arrays.copyOf(missingIds, len);
+		missingDist = Arrays.copyOf(missingDist, len);
+		missingVia = Arrays.copyOf(missingVia, len);
+	}
+	
+	private static int[] nonNull(int[] arr) {
+		return (arr == null) ? EMPTY : arr;
+	}
+	
+	private static boolean contains(int[] arr, int v) {
+		return indexOf(nonNull(arr), (arr == null) ? 0 : arr.length, v) >= 0;
+	}
+	
+	private static int indexOf(int[] arr, int len, int v) {
+		for (int i = 0; i < len; i++) {
+			if (arr[i] == v) { return i; }
+		}
+		return -1;
+	}
+}
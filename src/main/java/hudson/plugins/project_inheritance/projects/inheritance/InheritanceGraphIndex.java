@@ -0,0 +1,757 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.inheritance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.InheritanceProject.Dependency;
+import hudson.plugins.project_inheritance.projects.InheritanceProject.Relationship;
+import hudson.plugins.project_inheritance.projects.references.AbstractProjectReference;
+import hudson.plugins.project_inheritance.util.MockItemGroup;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import jenkins.model.Jenkins;
+
+/**
+ * This class maintains an index of the parent, child and compatibility
+ * relations between all {@link InheritanceProject}s.
+ * <p>
+ * In contrast to the old connection graph, which was rebuilt from all items
+ * whenever any single project changed, this index is updated incrementally.
+ * Only the outgoing edges of the project that was created, changed, renamed
+ * or deleted are re-read; all other nodes are left as they are.
+ * <p>
+ * Every full project name is mapped to a dense integer ID and the adjacency
+ * of a node is stored as compact int arrays. Names that are referenced, but
+ * do not (yet) exist as a project, are kept as placeholder nodes, so that
+ * the edges are immediately correct once such a project gets created.
+ * <p>
+ * The index is built lazily on first access and kept up-to-date by the
+ * {@link IndexMaintainer} and by {@link InheritanceProject#clearBuffers(InheritanceProject)}.
+ * <p>
+ * Cycles, diamonds and missing ancestors are determined for all projects at
+ * once by the {@link InheritanceGraphAnalysis}, which only recomputes the
+ * projects affected by an edit. This makes checks like
+ * {@link #hasCyclicDependency(String)} simple lookups.
+ */
+public class InheritanceGraphIndex {
+	private static final Logger log = Logger.getLogger(
+			InheritanceGraphIndex.class.toString()
+	);
+
+	private static final int[] EMPTY = new int[0];
+
+	private static final InheritanceGraphIndex instance = new InheritanceGraphIndex();
+
+
+	private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+	private String[] names = new String[64];
+	private int[][] parents = new int[64][];
+	private int[][] children = new int[64][];
+	private int[][] mates = new int[64][];
+	private int[][] mateOf = new int[64][];
+
+	/** The parents that a project references more than once */
+	private int[][] duplicates = new int[64][];
+
+	private final InheritanceGraphAnalysis analysis = new InheritanceGraphAnalysis();
+
+	/** Set of IDs that belong to projects that actually exist */
+	private final BitSet present = new BitSet();
+
+	/** Stack of IDs that were freed and can be reused */
+	private int[] freeIds = new int[16];
+	private int numFree = 0;
+
+	/** The first ID that has never been handed out */
+	private int nextId = 0;
+
+	private volatile boolean initialized = false;
+
+	/**
+	 * Incremented on every change to the edges of the index. Can be used by
+	 * callers to detect whether data derived from the graph is still valid.
+	 */
+	private final AtomicLong generation = new AtomicLong(0);
+
+
+	private InheritanceGraphIndex() {
+		//Singleton; use get()
+	}
+
+	public static InheritanceGraphIndex get() {
+		return instance;
+	}
+
+
+	// === MAINTENANCE METHODS ===
+
+	/**
+	 * Drops the current index and rebuilds it from all projects known to
+	 * Jenkins. This is the only method that iterates over all items.
+	 */
+	public void rebuild() {
+		Jenkins j = Jenkins.getInstanceOrNull();
+		if (j == null) { return; }
+
+		int cnt = 0;
+		rwLock.writeLock().lock();
+		try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
+			ids.clear();
+			present.clear();
+			Arrays.fill(names, null);
+			Arrays.fill(parents, null);
+			Arrays.fill(children, null);
+			Arrays.fill(mates, null);
+			Arrays.fill(mateOf, null);
+			Arrays.fill(duplicates, null);
+			numFree = 0;
+			nextId = 0;
+			analysis.markAllDirty();
+
+			for (InheritanceProject ip : j.getAllItems(InheritanceProject.class)) {
+				if (ip == null) { continue; }
+				int id = getOrCreateId(ip.getFullName());
+				present.set(id);
+				setEdges(id, readEdges(ip));
+				cnt++;
+			}
+			initialized = true;
+			generation.incrementAndGet();
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+		log.fine("Rebuilt inheritance graph index with " + cnt + " projects");
+	}
+
+	/**
+	 * Marks the index as stale, causing a full rebuild on next access.
+	 */
+	public void invalidate() {
+		initialized = false;
+		generation.incrementAndGet();
+	}
+
+	public boolean isInitialized() {
+		return initialized;
+	}
+
+	/**
+	 * Re-reads the outgoing edges (parents and compatibles) of the given
+	 * project and updates the index accordingly.
+	 * <p>
+	 * Does nothing if the index has not been built yet, as the project will
+	 * then be picked up by the initial build.
+	 *
+	 * @param ip the project that was created or changed
+	 */
+	public void update(InheritanceProject ip) {
+		if (ip == null || !initialized) { return; }
+		String name = ip.getFullName();
+		if (StringUtils.isEmpty(name) || !isRegistered(ip)) { return; }
+
+		String[][] edges = readEdges(ip);
+
+		rwLock.writeLock().lock();
+		try {
+			//A rebuild might have been started in the meantime
+			if (!initialized) { return; }
+			int id = getOrCreateId(name);
+			present.set(id);
+			clearEdges(id);
+			setEdges(id, edges);
+			analysis.markDirty(id);
+			generation.incrementAndGet();
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Projects that live in a {@link MockItemGroup} or have not been added
+	 * to Jenkins yet must not show up in the graph.
+	 */
+	private static boolean isRegistered(InheritanceProject ip) {
+		if (ip.getParent() instanceof MockItemGroup) { return false; }
+		try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
+			return InheritanceProject.getProjectByName(ip.getFullName()) == ip;
+		}
+	}
+
+	/**
+	 * Removes the outgoing edges of the given project and marks it as no
+	 * longer existing. Edges pointing to it from other projects are kept,
+	 * as those projects still reference the name.
+	 *
+	 * @param name the full name of the deleted project
+	 */
+	public void remove(String name) {
+		if (name == null || !initialized) { return; }
+		rwLock.writeLock().lock();
+		try {
+			Integer id = ids.get(name);
+			if (id == null) { return; }
+			present.clear(id);
+			clearEdges(id);
+			analysis.markDirty(id);
+			releaseIfUnused(id);
+			generation.incrementAndGet();
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Moves the node of a project to a new name. The IDs, and thus all edges,
+	 * stay the same.
+	 *
+	 * @param oldName the previous full name
+	 * @param newName the new full name
+	 */
+	public void rename(String oldName, String newName) {
+		if (oldName == null || newName == null || !initialized) { return; }
+		if (oldName.equals(newName)) { return; }
+
+		List<String> stale = Collections.emptyList();
+		rwLock.writeLock().lock();
+		try {
+			Integer id = ids.remove(oldName);
+			if (id == null) { return; }
+
+			Integer other = ids.get(newName);
+			if (other != null) {
+				//A placeholder with the new name existed; its referrers need
+				//to be re-read against the moved node
+				stale = new LinkedList<String>();
+				collectNames(children[other], stale);
+				collectNames(mateOf[other], stale);
+				for (int c : copyOf(children[other])) {
+					removeEdge(parents, children, c, other);
+				}
+				for (int m : copyOf(mateOf[other])) {
+					removeEdge(mates, mateOf, m, other);
+				}
+				releaseIfUnused(other);
+			}
+			ids.put(newName, id);
+			names[id] = newName;
+			generation.incrementAndGet();
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+		for (String s : stale) {
+			this.update(InheritanceProject.getProjectByName(s));
+		}
+	}
+
+
+	// === QUERY METHODS ===
+
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * @return the number of existing projects in the index.
+	 */
+	public int size() {
+		ensureInitialized();
+		rwLock.readLock().lock();
+		try {
+			return present.cardinality();
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the full names of all existing projects, sorted alphabetically.
+	 */
+	public List<String> getProjectNames() {
+		ensureInitialized();
+		rwLock.readLock().lock();
+		try {
+			List<String> out = new ArrayList<String>(present.cardinality());
+			for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i+1)) {
+				out.add(names[i]);
+			}
+			Collections.sort(out);
+			return out;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	public List<String> getParentNames(String name) {
+		return getNeighbours(name, parents);
+	}
+
+	public List<String> getChildNames(String name) {
+		return getNeighbours(name, children);
+	}
+
+	public List<String> getMateNames(String name) {
+		return getNeighbours(name, mates);
+	}
+
+	/**
+	 * @param name the full name of a project
+	 * @return the names of all projects that list the given one as compatible.
+	 */
+	public List<String> getMateOfNames(String name) {
+		return getNeighbours(name, mateOf);
+	}
+
+	private List<String> getNeighbours(String name, int[][] adj) {
+		ensureInitialized();
+		rwLock.readLock().lock();
+		try {
+			Integer id = ids.get(name);
+			if (id == null || adj[id] == null) {
+				return Collections.emptyList();
+			}
+			List<String> out = new ArrayList<String>(adj[id].length);
+			collectNames(adj[id], out);
+			return out;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Computes the relationships of the given project to all other projects.
+	 * Parents and children are explored breadth-first, so the distance is
+	 * the shortest path length. Mates are only taken from the project itself.
+	 * <p>
+	 * Only existing projects are returned.
+	 *
+	 * @param name the full name of the project
+	 * @return a map of full project names to their relationship. Never null.
+	 */
+	public Map<String, Relationship> getRelationships(String name) {
+		ensureInitialized();
+		Map<String, Relationship> map = new HashMap<String, Relationship>();
+		rwLock.readLock().lock();
+		try {
+			Integer id = ids.get(name);
+			if (id == null) { return map; }
+
+			for (int m : nonNull(mates[id])) {
+				if (!present.get(m)) { continue; }
+				map.put(names[m], new Relationship(
+						Relationship.Type.MATE, 0, nonNull(children[m]).length == 0
+				));
+			}
+			explore(id, parents, Relationship.Type.PARENT, map);
+			explore(id, children, Relationship.Type.CHILD, map);
+		} finally {
+			rwLock.readLock().unlock();
+		}
+		return map;
+	}
+
+	private void explore(int root, int[][] adj, Relationship.Type type, Map<String, Relationship> map) {
+		BitSet seen = new BitSet(nextId);
+		seen.set(root);
+		int[] queue = new int[Math.max(nextId, 1)];
+		int head = 0, tail = 0;
+		queue[tail++] = root;
+
+		int distance = 0;
+		while (head < tail) {
+			distance++;
+			int levelEnd = tail;
+			while (head < levelEnd) {
+				int cur = queue[head++];
+				for (int n : nonNull(adj[cur])) {
+					if (seen.get(n)) { continue; }
+					seen.set(n);
+					if (!present.get(n)) { continue; }
+					queue[tail++] = n;
+					boolean isLeaf = (type == Relationship.Type.PARENT)
+							? false
+							: nonNull(children[n]).length == 0;
+					map.put(names[n], new Relationship(type, distance, isLeaf));
+				}
+			}
+		}
+	}
+
+
+	// === ANALYSIS ===
+
+	/**
+	 * Checks whether the parents of the given project, in the configuration
+	 * last seen by this index, lead to a cyclic, diamond or repeated
+	 * dependency. This is the same check as
+	 * {@link InheritanceProject#hasCyclicDependency(boolean, String...)},
+	 * but answered from the precomputed analysis.
+	 *
+	 * @param name the full name of the project
+	 * @return true, if there is such a dependency.
+	 */
+	public boolean hasCyclicDependency(String name) {
+		lockAnalyzed();
+		try {
+			Integer id = ids.get(name);
+			if (id == null || !present.get(id)) { return false; }
+			return analysis.getFlags(id) != 0;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks whether the given project would have a cyclic, diamond or
+	 * repeated dependency with the given parents.
+	 *
+	 * @param name the full name of the project
+	 * @param addExisting whether the current parents are kept
+	 * @param newParents the full names of the parents to add
+	 * @return true, if there would be such a dependency.
+	 */
+	public boolean wouldHaveCyclicDependency(String name, boolean addExisting, String... newParents) {
+		lockAnalyzed();
+		try {
+			Integer self = ids.get(name);
+			int[] existing = (addExisting && self != null) ? nonNull(parents[self]) : EMPTY;
+			if (addExisting && self != null) {
+				for (int d : nonNull(duplicates[self])) {
+					if (present.get(d)) { return true; }
+				}
+			}
+
+			BitSet seen = new BitSet();
+			int numNew = (newParents == null) ? 0 : newParents.length;
+			for (int i = 0; i < numNew + existing.length; i++) {
+				int p;
+				if (i < numNew) {
+					Integer pid = ids.get(newParents[i]);
+					if (pid == null) { continue; }
+					p = pid;
+				} else {
+					p = existing[i - numNew];
+				}
+				if (!present.get(p)) { continue; }
+				if (self != null && p == self) { return true; }
+				if (analysis.getFlags(p) != 0) { return true; }
+				BitSet anc = analysis.getAncestors(p);
+				if (self != null && anc.get(self)) { return true; }
+				if (seen.get(p) || seen.intersects(anc)) { return true; }
+				seen.or(anc);
+				seen.set(p);
+			}
+			return false;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the ancestors of the given project that are referenced, but do
+	 * not exist. For each, the trace is the shortest chain of projects leading
+	 * to the one that references it.
+	 *
+	 * @param name the full name of the project
+	 * @return the missing ancestors, sorted by their trace. Never null.
+	 */
+	public SortedSet<Dependency> getMissingAncestors(String name) {
+		TreeSet<Dependency> out = new TreeSet<Dependency>();
+		lockAnalyzed();
+		try {
+			Integer id = ids.get(name);
+			if (id == null) { return out; }
+			for (int m : analysis.getMissingIds(id)) {
+				List<String> trace = new LinkedList<String>();
+				int cur = id;
+				for (int step = 0; step < nextId; step++) {
+					int via = analysis.getMissingVia(cur, m);
+					if (via < 0) { break; }
+					trace.add(names[via]);
+					cur = via;
+				}
+				out.add(new Dependency(names[m], trace));
+			}
+			return out;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Acquires the read lock, after bringing the analysis up-to-date. The
+	 * caller must release the read lock.
+	 */
+	private void lockAnalyzed() {
+		ensureInitialized();
+		rwLock.readLock().lock();
+		if (!analysis.needsRefresh()) { return; }
+
+		rwLock.readLock().unlock();
+		rwLock.writeLock().lock();
+		try {
+			if (analysis.needsRefresh()) {
+				analysis.refresh(parents, children, duplicates, present, nextId);
+			}
+			//Downgrade to the read lock before releasing the write lock
+			rwLock.readLock().lock();
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+
+	// === INTERNAL HELPERS ===
+
+	private void ensureInitialized() {
+		if (initialized) { return; }
+		rwLock.writeLock().lock();
+		try {
+			//Another thread might have built the index while we were waiting
+			if (!initialized) {
+				rebuild();
+			}
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param ip the project to read from
+	 * @return a two element array; the parent names and the compatible names
+	 */
+	private static String[][] readEdges(InheritanceProject ip) {
+		return new String[][] {
+			toNames(ip.getParentReferences()),
+			toNames(ip.getCompatibleProjects())
+		};
+	}
+
+	private static String[] toNames(List<AbstractProjectReference> refs) {
+		if (refs == null || refs.isEmpty()) { return new String[0]; }
+		List<String> out = new ArrayList<String>(refs.size());
+		for (AbstractProjectReference ref : refs) {
+			if (ref == null || StringUtils.isEmpty(ref.getName())) { continue; }
+			out.add(ref.getName());
+		}
+		return out.toArray(new String[out.size()]);
+	}
+
+	private void setEdges(int id, String[][] edges) {
+		for (String par : edges[0]) {
+			int pid = getOrCreateId(par);
+			if (contains(parents[id], pid)) {
+				//The edge is only stored once, but the repetition is an error
+				if (!contains(duplicates[id], pid)) {
+					duplicates[id] = append(duplicates[id], pid);
+				}
+				continue;
+			}
+			addEdge(parents, children, id, pid);
+		}
+		for (String mate : edges[1]) {
+			addEdge(mates, mateOf, id, getOrCreateId(mate));
+		}
+	}
+
+	private void clearEdges(int id) {
+		duplicates[id] = null;
+		for (int p : copyOf(parents[id])) {
+			removeEdge(parents, children, id, p);
+			releaseIfUnused(p);
+		}
+		for (int m : copyOf(mates[id])) {
+			removeEdge(mates, mateOf, id, m);
+			releaseIfUnused(m);
+		}
+	}
+
+	private void addEdge(int[][] out, int[][] in, int from, int to) {
+		if (contains(out[from], to)) { return; }
+		out[from] = append(out[from], to);
+		in[to] = append(in[to], from);
+	}
+
+	private void removeEdge(int[][] out, int[][] in, int from, int to) {
+		out[from] = without(out[from], to);
+		in[to] = without(in[to], from);
+	}
+
+	private int getOrCreateId(String name) {
+		Integer id = ids.get(name);
+		if (id != null) { return id; }
+
+		int nid;
+		if (numFree > 0) {
+			nid = freeIds[--numFree];
+		} else {
+			nid = nextId++;
+			if (nid >= names.length) {
+				int len = names.length * 2;
+				names = Arrays.copyOf(names, len);
+				parents = Arrays.copyOf(parents, len);
+				children = Arrays.copyOf(children, len);
+				mates = Arrays.copyOf(mates, len);
+				mateOf = Arrays.copyOf(mateOf, len);
+				duplicates = Arrays.copyOf(duplicates, len);
+			}
+		}
+		names[nid] = name;
+		ids.put(name, nid);
+		analysis.markDirty(nid);
+		return nid;
+	}
+
+	/**
+	 * Frees the ID of a node that neither exists nor is referenced anymore.
+	 */
+	private void releaseIfUnused(int id) {
+		if (present.get(id)) { return; }
+		if (nonNull(children[id]).length > 0 || nonNull(mateOf[id]).length > 0) {
+			return;
+		}
+		if (nonNull(parents[id]).length > 0 || nonNull(mates[id]).length > 0) {
+			return;
+		}
+		if (names[id] != null && Integer.valueOf(id).equals(ids.get(names[id]))) {
+			ids.remove(names[id]);
+		}
+		names[id] = null;
+		parents[id] = children[id] = mates[id] = mateOf[id] = duplicates[id] = null;
+		if (numFree >= freeIds.length) {
+			freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+		}
+		freeIds[numFree++] = id;
+	}
+
+	private void collectNames(int[] adj, List<String> out) {
+		for (int n : nonNull(adj)) {
+			if (present.get(n)) {
+				out.add(names[n]);
+			}
+		}
+	}
+
+	private static int[] nonNull(int[] arr) {
+		return (arr == null) ? EMPTY : arr;
+	}
+
+	private static int[] copyOf(int[] arr) {
+		return (arr == null) ? EMPTY : arr.clone();
+	}
+
+	private static boolean contains(int[] arr, int v) {
+		if (arr == null) { return false; }
+		for (int i : arr) {
+			if (i == v) { return true; }
+		}
+		return false;
+	}
+
+	private static int[] append(int[] arr, int v) {
+		if (arr == null) { return new int[] { v }; }
+		int[] out = Arrays.copyOf(arr, arr.length + 1);
+		out[arr.length] = v;
+		return out;
+	}
+
+	private static int[] without(int[] arr, int v) {
+		if (arr == null) { return null; }
+		for (int i = 0; i < arr.length; i++) {
+			if (arr[i] != v) { continue; }
+			if (arr.length == 1) { return null; }
+			int[] out = new int[arr.length - 1];
+			System.arraycopy(arr, 0, out, 0, i);
+			System.arraycopy(arr, i+1, out, i, arr.length - i - 1);
+			return out;
+		}
+		return arr;
+	}
+
+
+
+	// === LISTENER ===
+
+	/**
+	 * Keeps the {@link InheritanceGraphIndex} in sync with the items managed
+	 * by Jenkins. Runs before all other listeners of this plugin, so that
+	 * those already see the updated graph.
+	 */
+	@Extension(ordinal = 1000)
+	public static class IndexMaintainer extends ItemListener {
+		@Override
+		public void onCreated(Item item) {
+			if (!(item instanceof InheritanceProject)) { return; }
+			get().update((InheritanceProject) item);
+		}
+
+		@Override
+		public void onUpdated(Item item) {
+			if (!(item instanceof InheritanceProject)) { return; }
+			get().update((InheritanceProject) item);
+		}
+
+		@Override
+		public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+			if (!(item instanceof InheritanceProject)) { return; }
+			get().rename(oldFullName, newFullName);
+			/* Renames are rare; besides the values derived under the old
+			 * name, those of any child that referenced the new name as a
+			 * missing parent are stale now.
+			 */
+			DerivedFieldCache.invalidateAll();
+		}
+
+		@Override
+		public void onDeleted(Item item) {
+			if (!(item instanceof InheritanceProject)) { return; }
+			get().remove(item.getFullName());
+			//Deletions are rare; values of any child may include this project
+			DerivedFieldCache.invalidateAll();
+		}
+
+		@Override
+		public void onLoaded() {
+			get().rebuild();
+		}
+	}
+}
@@ -23,6 +23,7 @@ package hudson.plugins.project_inheritance.projects.inheritance;
 
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -184,6 +185,30 @@ public abstract class InheritanceSelector<T> implements Serializable, ExtensionP
 	 */
 	public abstract T merge(T prior, T latter, InheritanceProject caller);
 	
+	/**
+	 * This function is called when {@link #getModeFor(Class)} returned the
+	 * {@link MODE#MERGE} mode, to merge all objects that share the same ID.
+	 * <p>
+	 * The default implementation folds the objects from first to last by
+	 * repeatedly calling {@link #merge(Object, Object, InheritanceProject)}.
+	 * Override it, if the objects can be merged more efficiently in one go;
+	 * the result must be the same as that of the fold.
+	 * 
+	 * @param objects the objects to merge, in inheritance-order. Contains at
+	 *        least one element.
+	 * @param caller the job for which the merge is done
+	 * 
+	 * @return a merged instance. May be new, or one of the input elements
+	 */
+	public T mergeAll(List<T> objects, InheritanceProject caller) {
+		Iterator<T> iter = objects.iterator();
+		T merge = iter.next();
+		while (iter.hasNext()) {
+			merge = this.merge(merge, iter.next(), caller);
+		}
+		return merge;
+	}
+	
 	/**
 	 * This function will be called with the final object that was selected 
 	 * to be returned to Jenkins during application of this selector.
@@ -287,10 +312,9 @@ public abstract class InheritanceSelector<T> implements Serializable, ExtensionP
 						//Wait until we have reached the last entry
 						if (entry != conn.peekLast()) { continue; }
 						// Merge all entries and put them into the list
-						T merge = conn.pollFirst();
-						while (conn.isEmpty() == false) {
-							merge = this.merge(merge, conn.pollFirst(), caller);
-						}
+						T merge = this.mergeAll(conn, caller);
+						//Mark this elements connections as processed
+						conn.clear();
 						out.add(this.handleSingleton(merge, caller));
 						break;
 						
@@ -0,0 +1,335 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.inheritance;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.references.ProjectReference.PrioComparator.SELECTOR;
+import jenkins.util.SystemProperties;
+
+/**
+ * A scoped, thread-bound memo that lets many derivations share the work
+ * done for the projects they have in common.
+ * <p>
+ * While a snapshot is open, the {@link InheritanceGovernor} reads the
+ * versioned field of each project only once per version and determines the
+ * ordered scope of each root only once per set of selected versions. This
+ * pays off when the fully derived configuration of many related projects is
+ * computed in one go, as their common ancestors are then only resolved once.
+ * <pre>
+ * try (InheritanceSnapshot snap = InheritanceSnapshot.open()) {
+ *     for (InheritanceProject ip : projects) {
+ *         ip.getBuildersList(IMode.INHERIT_FORCED);
+ *     }
+ * }
+ * </pre>
+ * Changes done to projects while a snapshot is open are not seen by it. As
+ * such, it must only be kept open for the duration of a single read-only
+ * request.
+ * <p>
+ * Additionally, every read-only (GET or HEAD) HTTP request gets its own
+ * snapshot attached to the {@link StaplerRequest}, without any code having
+ * to open it. Rendering a job page reads the builders, publishers,
+ * parameters, actions and so on many times over; all of those reads then
+ * share one derivation per root project and set of selected versions. Such
+ * a request snapshot is dropped as soon as any project changes during the
+ * request. It can be disabled with the system property
+ * {@value #PER_REQUEST_PROPERTY}.
+ */
+public final class InheritanceSnapshot implements AutoCloseable {
+	public static final String PER_REQUEST_PROPERTY =
+			InheritanceSnapshot.class.getName() + ".perRequest";
+
+	private static final boolean perRequest =
+			SystemProperties.getBoolean(PER_REQUEST_PROPERTY, true);
+
+	/**
+	 * The name of the request attribute holding the request snapshot.
+	 */
+	private static final String REQUEST_ATTRIBUTE =
+			InheritanceSnapshot.class.getName();
+
+	private static final ThreadLocal<InheritanceSnapshot> current =
+			new ThreadLocal<InheritanceSnapshot>();
+
+	private static final AtomicLong requestSnapshots = new AtomicLong(0);
+	private static final AtomicLong requestHits = new AtomicLong(0);
+
+	/**
+	 * Stands in for null values, which are valid field values.
+	 */
+	private static final Object NULL = new Object();
+
+
+	private final InheritanceSnapshot previous;
+
+	/**
+	 * The thread that created this snapshot; the only one allowed to use it.
+	 */
+	private final Thread owner;
+
+	/**
+	 * The value of {@link DerivedFieldCache#getModCount()} when this snapshot
+	 * was created.
+	 */
+	private final long modCount;
+
+	/**
+	 * Whether this snapshot is attached to a request instead of the thread.
+	 */
+	private final boolean request;
+
+	/**
+	 * The versioned fields, keyed by governor, project and version.
+	 */
+	private final Map<String, Object> fields = new HashMap<String, Object>();
+
+	/**
+	 * The ordered scopes, keyed first by the selected versions and then by
+	 * root project and selector.
+	 */
+	private final Map<Map<String, Long>, Map<String, List<InheritanceProject>>> scopes =
+			new HashMap<Map<String, Long>, Map<String, List<InheritanceProject>>>();
+
+	/**
+	 * The fully derived values, keyed first by the selected versions and then
+	 * by governor and root project.
+	 */
+	private final Map<Map<String, Long>, Map<String, Object>> derived =
+			new HashMap<Map<String, Long>, Map<String, Object>>();
+
+	private long hits = 0;
+	private long misses = 0;
+
+
+	private InheritanceSnapshot(InheritanceSnapshot previous, boolean request) {
+		this.previous = previous;
+		this.owner = Thread.currentThread();
+		this.modCount = DerivedFieldCache.getModCount();
+		this.request = request;
+	}
+
+	/**
+	 * Opens a new snapshot for the current thread. The returned object must
+	 * be closed by the same thread, ideally via try-with-resources.
+	 *
+	 * @return the new snapshot
+	 */
+	public static InheritanceSnapshot open() {
+		InheritanceSnapshot snap = new InheritanceSnapshot(current.get(), false);
+		current.set(snap);
+		return snap;
+	}
+
+	/**
+	 * @return the innermost snapshot of the current thread; or if none is
+	 * open, the one of the current read-only request. Null, if neither exists.
+	 */
+	public static InheritanceSnapshot getCurrent() {
+		InheritanceSnapshot snap = current.get();
+		if (snap != null) {
+			return snap;
+		}
+		return getForRequest();
+	}
+
+	/**
+	 * @return the snapshot attached to the current request; created on first
+	 * use. Null, if there is no request, it might alter data or request
+	 * snapshots are disabled.
+	 */
+	private static InheritanceSnapshot getForRequest() {
+		if (!perRequest) { return null; }
+		StaplerRequest req = Stapler.getCurrentRequest();
+		if (req == null) { return null; }
+		String method = req.getMethod();
+		if (!"GET".equals(method) && !"HEAD".equals(method)) {
+			//Anything else may change the projects it reads
+			return null;
+		}
+
+		Object obj = req.getAttribute(REQUEST_ATTRIBUTE);
+		if (obj instanceof InheritanceSnapshot) {
+			InheritanceSnapshot snap = (InheritanceSnapshot) obj;
+			if (snap.owner == Thread.currentThread()
+					&& snap.modCount == DerivedFieldCache.getModCount()) {
+				requestHits.incrementAndGet();
+				return snap;
+			}
+			//Used by another thread, or a project changed in the meantime
+		}
+		InheritanceSnapshot snap = new InheritanceSnapshot(null, true);
+		req.setAttribute(REQUEST_ATTRIBUTE, snap);
+		requestSnapshots.incrementAndGet();
+		return snap;
+	}
+
+	@Override
+	public void close() {
+		if (request) {
+			//Request snapshots are never on the thread; they end with the request
+			return;
+		}
+		if (previous == null) {
+			current.remove();
+		} else {
+			current.set(previous);
+		}
+	}
+
+
+	// === MEMOIZED LOOKUPS ===
+
+	/**
+	 * @param root the project to get the scope for
+	 * @param order the order of the scope
+	 * @param selected the versions selected explicitly
+	 * @return the same as {@link InheritanceGovernor#getFullScopeOrdered(InheritanceProject, SELECTOR, java.util.Set)}.
+	 *         Must not be modified.
+	 */
+	List<InheritanceProject> getScope(InheritanceProject root, SELECTOR order,
+			Map<String, Long> selected) {
+		Map<String, List<InheritanceProject>> byRoot = scopes.get(selected);
+		if (byRoot == null) {
+			byRoot = new HashMap<String, List<InheritanceProject>>();
+			//The selected map might be altered later on, so the key is a copy
+			scopes.put(new HashMap<String, Long>(selected), byRoot);
+		}
+		String key = root.getFullName() + "|" + order;
+		List<InheritanceProject> scope = byRoot.get(key);
+		if (scope == null) {
+			misses++;
+			scope = Collections.unmodifiableList(
+					InheritanceGovernor.getFullScopeOrdered(root, order, null)
+			);
+			byRoot.put(key, scope);
+		} else {
+			hits++;
+		}
+		return scope;
+	}
+
+	/**
+	 * @param gov the governor for the field
+	 * @param ip the project to read the field from
+	 * @param version the version of that project
+	 * @return the same as {@link InheritanceGovernor#getVersionedField(InheritanceProject, Long)}
+	 */
+	<T> T getVersionedField(InheritanceGovernor<T> gov, InheritanceProject ip, Long version) {
+		String key = gov.getCacheKey() + "|" + ip.getFullName() + "|" + version;
+		Object obj = fields.get(key);
+		if (obj == null) {
+			misses++;
+			T value = gov.getVersionedField(ip, version);
+			fields.put(key, (value == null) ? NULL : value);
+			return value;
+		}
+		hits++;
+		if (obj == NULL) {
+			return null;
+		}
+		@SuppressWarnings("unchecked")
+		T value = (T) obj;
+		return value;
+	}
+
+
+	/**
+	 * @param gov the governor for the field
+	 * @param root the project the field was derived for
+	 * @param selected the versions selected explicitly
+	 * @return the value stored via {@link #putDerivedField(InheritanceGovernor, InheritanceProject, Map, Object)},
+	 *         where a stored null is returned as a marker recognized by
+	 *         {@link #isNull(Object)}. Returns null, if nothing was stored yet.
+	 */
+	Object getDerivedField(InheritanceGovernor<?> gov, InheritanceProject root,
+			Map<String, Long> selected) {
+		Map<String, Object> byKey = derived.get(selected);
+		Object obj = (byKey == null) ? null
+				: byKey.get(gov.getCacheKey() + "|" + root.getFullName());
+		if (obj == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return obj;
+	}
+
+	/**
+	 * Stores a fully derived value. The caller must make sure that the stored
+	 * instance is not handed out, as callers may alter it.
+	 *
+	 * @param gov the governor for the field
+	 * @param root the project the field was derived for
+	 * @param selected the versions selected explicitly
+	 * @param value the derived value; may be null
+	 */
+	void putDerivedField(InheritanceGovernor<?> gov, InheritanceProject root,
+			Map<String, Long> selected, Object value) {
+		Map<String, Object> byKey = derived.get(selected);
+		if (byKey == null) {
+			byKey = new HashMap<String, Object>();
+			//The selected map might be altered later on, so the key is a copy
+			derived.put(new HashMap<String, Long>(selected), byKey);
+		}
+		byKey.put(
+				gov.getCacheKey() + "|" + root.getFullName(),
+				(value == null) ? NULL : value
+		);
+	}
+
+	static boolean isNull(Object obj) {
+		return obj == NULL;
+	}
+
+
+	// === STATISTICS ===
+
+	/**
+	 * @return the number of snapshots created for requests.
+	 */
+	public static long getRequestSnapshots() {
+		return requestSnapshots.get();
+	}
+
+	/**
+	 * @return how often an existing request snapshot was reused.
+	 */
+	public static long getRequestHits() {
+		return requestHits.get();
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+}
@@ -21,11 +21,14 @@
 package hudson.plugins.project_inheritance.projects.inheritance;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 
-import org.apache.commons.lang.StringUtils;
 
 import hudson.Extension;
 import hudson.model.JobProperty;
@@ -34,15 +37,26 @@ import hudson.model.ParametersDefinitionProperty;
 import hudson.plugins.project_inheritance.projects.InheritanceProject;
 import hudson.plugins.project_inheritance.projects.InheritanceProject.IMode;
 import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterDefinition;
+import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterDefinition.IModes;
+import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterDefinition.WhitespaceMode;
+import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterReferenceDefinition;
 import hudson.plugins.project_inheritance.projects.parameters.InheritanceParametersDefinitionProperty;
 import hudson.plugins.project_inheritance.projects.references.AbstractProjectReference;
 import hudson.plugins.project_inheritance.projects.references.ProjectReference.PrioComparator.SELECTOR;
+import hudson.plugins.project_inheritance.projects.versioning.VersionHandler;
 
 public class ParameterSelector
 		extends InheritanceSelector<JobProperty<?>> {
 	private static final long serialVersionUID = 6765147898181407182L;
 	
 	public static final String VERSION_PARAM_NAME = "JENKINS_JOB_VERSIONS";
+	
+	/**
+	 * The key under which {@link ParameterTable}s are kept in the
+	 * {@link DerivedFieldCache}.
+	 */
+	private static final String TABLE_CACHE_KEY =
+			ParameterSelector.class.getName() + "|parameterScope";
 
 	@Extension
 	public static final ParameterSelector instance = new ParameterSelector();
@@ -69,6 +83,60 @@ public class ParameterSelector
 	}
 	
 	
+	/**
+	 * The immutable parameter scope of a project for a specific set of
+	 * versions. It lists all parameter definitions in their order of
+	 * derivation and groups them by name.
+	 * <p>
+	 * Instances are cached per project and selected versions until any
+	 * project in the scope changes; see
+	 * {@link ParameterSelector#getParameterTable(InheritanceProject)}.
+	 */
+	public static final class ParameterTable {
+		private final List<ScopeEntry> entries;
+		private final Map<String, List<ScopeEntry>> byName;
+		
+		private ParameterTable(List<ScopeEntry> entries) {
+			this.entries = Collections.unmodifiableList(
+					new ArrayList<ScopeEntry>(entries)
+			);
+			HashMap<String, List<ScopeEntry>> map = new HashMap<String, List<ScopeEntry>>();
+			for (ScopeEntry se : this.entries) {
+				List<ScopeEntry> lst = map.get(se.param.getName());
+				if (lst == null) {
+					lst = new ArrayList<ScopeEntry>(2);
+					map.put(se.param.getName(), lst);
+				}
+				lst.add(se);
+			}
+			for (Map.Entry<String, List<ScopeEntry>> e : map.entrySet()) {
+				e.setValue(Collections.unmodifiableList(e.getValue()));
+			}
+			this.byName = map;
+		}
+		
+		/**
+		 * @return all entries, sorted by order of derivation. Immutable.
+		 */
+		public List<ScopeEntry> getEntries() {
+			return entries;
+		}
+		
+		/**
+		 * @param name the name of a parameter
+		 * @return the entries for the given parameter, sorted by order of
+		 * derivation. Immutable and never null.
+		 */
+		public List<ScopeEntry> getEntriesFor(String name) {
+			List<ScopeEntry> lst = byName.get(name);
+			if (lst == null) {
+				return Collections.emptyList();
+			}
+			return lst;
+		}
+	}
+	
+	
 	@Override
 	public boolean isApplicableFor(
 			Class<?> clazz) {
@@ -110,6 +178,185 @@ public class ParameterSelector
 		);
 	}
 	
+	/**
+	 * Merges all PDPs in a single pass, instead of folding them pairwise via
+	 * {@link #createMerged(ParametersDefinitionProperty, ParametersDefinitionProperty)}.
+	 * <p>
+	 * Each parameter gets an {@link Accumulator} that applies the same rules
+	 * as {@link InheritableStringParameterDefinition#getMergeWithOther(ParameterDefinition)},
+	 * but only creates the merged definition once at the end. The result is
+	 * identical to that of the fold.
+	 */
+	@Override
+	public JobProperty<?> mergeAll(List<JobProperty<?>> objects, InheritanceProject caller) {
+		for (JobProperty<?> jp : objects) {
+			if (!(jp instanceof ParametersDefinitionProperty)) {
+				return super.mergeAll(objects, caller);
+			}
+		}
+		if (objects.size() == 1) {
+			return objects.get(0);
+		}
+		
+		//Sorted by name, for the same reason as in createMerged()
+		TreeMap<String, Accumulator> unifyMap = new TreeMap<String, Accumulator>();
+		ParametersDefinitionProperty last = null;
+		for (JobProperty<?> jp : objects) {
+			last = (ParametersDefinitionProperty) jp;
+			for (ParameterDefinition pd : last.getParameterDefinitions()) {
+				Accumulator acc = unifyMap.get(pd.getName());
+				if (acc == null) {
+					unifyMap.put(pd.getName(), new Accumulator(pd));
+				} else {
+					acc.add(pd);
+				}
+			}
+		}
+		
+		List<ParameterDefinition> unifyList =
+				new ArrayList<ParameterDefinition>(unifyMap.size());
+		for (Accumulator acc : unifyMap.values()) {
+			unifyList.add(acc.materialize());
+		}
+		return new InheritanceParametersDefinitionProperty(
+				last.getOwner(), unifyList
+		);
+	}
+	
+	/**
+	 * Collects the merged state of a single parameter across the inheritance.
+	 * <p>
+	 * As long as the result is one of the given definitions (because nothing
+	 * was merged yet, or a definition simply overwrote its predecessors), it
+	 * is kept as-is. Otherwise, only the fields of the merged definition are
+	 * tracked; and the value is extended in place.
+	 */
+	private static final class Accumulator {
+		/**
+		 * The current result, if it is one of the given definitions.
+		 * Null, if the fields below describe a merged definition.
+		 */
+		private ParameterDefinition current;
+		
+		private String name;
+		private StringBuilder value;
+		private boolean valueIsNull;
+		private String description;
+		private IModes mode;
+		private WhitespaceMode whitespace;
+		private boolean mustHaveDefaultValue;
+		private boolean mustBeAssigned;
+		private boolean isHidden;
+		
+		Accumulator(ParameterDefinition first) {
+			this.current = first;
+		}
+		
+		void add(ParameterDefinition pd) {
+			if (!(pd instanceof InheritableStringParameterDefinition)) {
+				//Straight overwrite in case of non-inheritance-aware PDs
+				this.current = pd;
+				return;
+			}
+			if (this.current != null &&
+					!(this.current instanceof InheritableStringParameterDefinition)) {
+				//Non-inheritable values are always overwritten
+				this.current = pd;
+				return;
+			}
+			InheritableStringParameterDefinition ispd =
+					(InheritableStringParameterDefinition) pd;
+			if (!isKnownType(ispd)) {
+				//Subclasses might merge differently
+				this.current = ispd.getMergeWithOther(this.materialize());
+				return;
+			}
+			if (this.current != null) {
+				this.seed((InheritableStringParameterDefinition) this.current);
+			}
+			
+			//The past definition defines the way the value is generated
+			switch (this.mode) {
+				case OVERWRITABLE:
+					this.setValue(ispd.getDefaultValue());
+					break;
+				
+				case FIXED:
+					//Use the past value (note: The job will error out later anyway)
+					break;
+				
+				case EXTENSIBLE:
+					if (this.valueIsNull) {
+						//Let the definition itself deal with the missing value
+						this.current = ispd.getMergeWithOther(this.materialize());
+						return;
+					}
+					if (this.whitespace == WhitespaceMode.ADD_IF_EXTENSION) {
+						this.value.append(' ');
+					}
+					this.value.append(ispd.getDefaultValue());
+					break;
+			}
+			
+			//References keep the flags of the definition they refer to
+			this.name = ispd.getName();
+			if (ispd instanceof InheritableStringParameterReferenceDefinition) {
+				return;
+			}
+			this.mustHaveDefaultValue |= ispd.getMustHaveDefaultValue();
+			this.mustBeAssigned |= ispd.getMustBeAssigned();
+			this.isHidden |= ispd.getIsHidden();
+			this.mode = ispd.getInheritanceModeAsVar();
+			this.whitespace = ispd.getWhitespaceModeAsVar();
+			if (StringUtils.isNotBlank(ispd.getDescription())) {
+				this.description = ispd.getDescription();
+			}
+		}
+		
+		private static boolean isKnownType(InheritableStringParameterDefinition ispd) {
+			Class<?> clazz = ispd.getClass();
+			return clazz == InheritableStringParameterDefinition.class ||
+					clazz == InheritableStringParameterReferenceDefinition.class;
+		}
+		
+		private void seed(InheritableStringParameterDefinition past) {
+			this.current = null;
+			this.name = past.getName();
+			this.value = new StringBuilder();
+			this.setValue(past.getDefaultValue());
+			this.description = past.getDescription();
+			this.mode = past.getInheritanceModeAsVar();
+			this.whitespace = past.getWhitespaceModeAsVar();
+			this.mustHaveDefaultValue = past.getMustHaveDefaultValue();
+			this.mustBeAssigned = past.getMustBeAssigned();
+			this.isHidden = past.getIsHidden();
+		}
+		
+		private void setValue(String val) {
+			this.value.setLength(0);
+			this.valueIsNull = (val == null);
+			if (val != null) {
+				this.value.append(val);
+			}
+		}
+		
+		ParameterDefinition materialize() {
+			if (this.current != null) {
+				return this.current;
+			}
+			return new InheritableStringParameterDefinition(
+					this.name,
+					(this.valueIsNull) ? null : this.value.toString(),
+					this.description,
+					this.mode,
+					this.mustHaveDefaultValue,
+					this.mustBeAssigned,
+					this.whitespace,
+					this.isHidden
+			);
+		}
+	}
+	
 	/**
 	 * This method is used to merge two PDPs in the order of their inheritance.
 	 * <p>
@@ -253,16 +500,50 @@ public class ParameterSelector
 	 * 
 	 * @param root the project for which to retrieve the parameter scope
 	 * 
-	 * @return a list of {@link ScopeEntry} instances, sorted by order of
-	 * derivation by inheritance. Never null, but may be empty.
+	 * @return an immutable list of {@link ScopeEntry} instances, sorted by
+	 * order of derivation by inheritance. Never null, but may be empty.
 	 */
 	public List<ScopeEntry> getAllScopedParameterDefinitions(InheritanceProject root) {
+		return this.getParameterTable(root).getEntries();
+	}
+	
+	/**
+	 * Returns the parameter scope of the given project for the currently
+	 * selected versions.
+	 * <p>
+	 * The table is cached in the {@link DerivedFieldCache} and becomes
+	 * invalid as soon as the project or any of its parents change, or a
+	 * different version of any of them is selected.
+	 * 
+	 * @param root the project for which to retrieve the parameter scope
+	 * @return the parameter scope. Never null.
+	 */
+	public ParameterTable getParameterTable(InheritanceProject root) {
+		boolean cacheable = DerivedFieldCache.isEnabled();
+		String rootName = root.getFullName();
+		Map<String, Long> selected = null;
+		if (cacheable) {
+			selected = VersionHandler.getVersions();
+			DerivedFieldCache.Entry e = DerivedFieldCache.lookup(
+					rootName, TABLE_CACHE_KEY, selected
+			);
+			if (e != null && e.value instanceof ParameterTable) {
+				return (ParameterTable) e.value;
+			}
+		}
+		long modCount = DerivedFieldCache.getModCount();
+		
 		List<ScopeEntry> lst = new LinkedList<ScopeEntry>();
+		List<InheritanceProject> scope = new LinkedList<InheritanceProject>();
+		scope.add(root);
 		
 		//Now, we get the sorted list of *all* parents, not just the direct ones
 		for (AbstractProjectReference ref : root.getAllParentReferences(SELECTOR.PARAMETER, true)) {
 			InheritanceProject par = ref.getProject();
 			if (par == null) { continue; }
+			if (par != root) {
+				scope.add(par);
+			}
 			
 			//Grab the LOCALLY defined parameters for the project
 			ParametersDefinitionProperty parPDP = par.getProperty(
@@ -284,20 +565,105 @@ public class ParameterSelector
 			}
 		}
 		
-		//TODO: This should be cached, if possible
-		return lst;
+		ParameterTable table = new ParameterTable(lst);
+		if (cacheable) {
+			DerivedFieldCache.store(
+					rootName, TABLE_CACHE_KEY, scope, selected, modCount, table
+			);
+		}
+		return table;
 	}
 	
 	
-	public List<ScopeEntry> getScopedParameterDefinition(InheritanceProject root, String name) {
-		List<ScopeEntry> all = getAllScopedParameterDefinitions(root);
-		List<ScopeEntry> out = new LinkedList<ScopeEntry>();
-		for (ScopeEntry se : all) {
-			String sName = se.param.getName();
-			if (StringUtils.equals(sName, name)) {
-				out.add(se);
+	/**
+	 * Returns the parameter scope a project would have, if it were created
+	 * with the given parents. This mirrors {@link #getParameterTable(InheritanceProject)}
+	 * for a project that has no parameters of its own, without the project
+	 * having to exist.
+	 * <p>
+	 * The result is not cached, as it is only used for planning.
+	 * 
+	 * @param rootName the full name of the project
+	 * @param parents the direct parents of the project, in the order in
+	 *        which they would be referenced
+	 * @param variance the variance parameters of the project; may be null
+	 * @return the parameter scope. Never null.
+	 */
+	public ParameterTable getPlannedParameterTable(String rootName,
+			List<InheritanceProject> parents, ParametersDefinitionProperty variance) {
+		//The scope of the project; the project itself can't be part of it yet
+		HashSet<String> seen = new HashSet<String>();
+		seen.add(rootName);
+		List<InheritanceProject> scope = new LinkedList<InheritanceProject>();
+		for (InheritanceProject par : parents) {
+			scope.addAll(InheritanceGovernor.getFullScopeOrdered(
+					par, SELECTOR.PARAMETER, seen
+			));
+		}
+		
+		//The parents referenced in that scope, followed by the direct ones
+		List<InheritanceProject> referenced = new LinkedList<InheritanceProject>();
+		for (InheritanceProject ip : scope) {
+			for (AbstractProjectReference ref : ip.getParentReferences(SELECTOR.PARAMETER)) {
+				InheritanceProject par = ref.getProject();
+				if (par != null) {
+					referenced.add(par);
+				}
+			}
+		}
+		referenced.addAll(parents);
+		
+		List<ScopeEntry> lst = new LinkedList<ScopeEntry>();
+		for (InheritanceProject par : referenced) {
+			ParametersDefinitionProperty parPDP = par.getProperty(
+					ParametersDefinitionProperty.class,
+					IMode.LOCAL_ONLY
+			);
+			if (parPDP == null) { continue; }
+			for (ParameterDefinition pd : parPDP.getParameterDefinitions()) {
+				lst.add(new ScopeEntry(par.getFullName(), pd));
+			}
+		}
+		if (variance != null) {
+			for (ParameterDefinition pd : variance.getParameterDefinitions()) {
+				lst.add(new ScopeEntry(rootName, pd));
+			}
+		}
+		return new ParameterTable(lst);
+	}
+	
+	/**
+	 * Merges the definitions of a parameter scope into the final definition
+	 * of each parameter, the same way as {@link #mergeAll(List, InheritanceProject)}.
+	 * 
+	 * @param table the parameter scope
+	 * @return the merged definitions, sorted by name. Never null.
+	 */
+	public List<ParameterDefinition> getMergedDefinitions(ParameterTable table) {
+		TreeMap<String, Accumulator> unifyMap = new TreeMap<String, Accumulator>();
+		for (ScopeEntry se : table.getEntries()) {
+			Accumulator acc = unifyMap.get(se.param.getName());
+			if (acc == null) {
+				unifyMap.put(se.param.getName(), new Accumulator(se.param));
+			} else {
+				acc.add(se.param);
 			}
 		}
+		List<ParameterDefinition> out =
+				new ArrayList<ParameterDefinition>(unifyMap.size());
+		for (Accumulator acc : unifyMap.values()) {
+			out.add(acc.materialize());
+		}
 		return out;
 	}
+	
+	/**
+	 * @param root the project for which to retrieve the parameter scope
+	 * @param name the name of the parameter
+	 * @return an immutable list of the {@link ScopeEntry} instances for the
+	 * given parameter, sorted by order of derivation. Never null.
+	 */
+	public List<ScopeEntry> getScopedParameterDefinition(InheritanceProject root, String name) {
+		return this.getParameterTable(root).getEntriesFor(name);
+	}
 }
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.inheritance;
+
+import java.util.Collection;
+import java.util.Map;
+
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+
+/**
+ * Records the state of a set of projects that a computed value was
+ * derived from: the selected version and the change stamp
+ * ({@link InheritanceProject#getDerivationStamp()}) of each of them.
+ * <p>
+ * The value stays valid, as long as neither changes for any project.
+ */
+final class ScopeStamp {
+	private final InheritanceProject[] scope;
+	private final Long[] versions;
+	private final long[] stamps;
+
+
+	private ScopeStamp(InheritanceProject[] scope, Long[] versions, long[] stamps) {
+		this.scope = scope;
+		this.versions = versions;
+		this.stamps = stamps;
+	}
+
+	/**
+	 * @param scope the projects the value is derived from
+	 * @param selected the versions selected explicitly; see
+	 *        {@link hudson.plugins.project_inheritance.projects.versioning.VersionHandler#getVersions()}
+	 * @return the current state of the given projects
+	 */
+	static ScopeStamp of(Collection<InheritanceProject> scope, Map<String, Long> selected) {
+		int size = scope.size();
+		InheritanceProject[] members = new InheritanceProject[size];
+		Long[] versions = new Long[size];
+		long[] stamps = new long[size];
+		int i = 0;
+		for (InheritanceProject ip : scope) {
+			members[i] = ip;
+			stamps[i] = ip.getDerivationStamp();
+			versions[i] = getVersion(ip, selected);
+			i++;
+		}
+		return new ScopeStamp(members, versions, stamps);
+	}
+
+	/**
+	 * @param selected the versions selected explicitly
+	 * @return true, if no project has changed and the same versions are selected.
+	 */
+	boolean isValidFor(Map<String, Long> selected) {
+		for (int i = 0; i < scope.length; i++) {
+			InheritanceProject ip = scope[i];
+			if (ip.getDerivationStamp() != stamps[i]) {
+				return false;
+			}
+			Long v = getVersion(ip, selected);
+			if ((v == null) ? versions[i] != null : !v.equals(versions[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true, if any project has changed. Such a value can never become
+	 * valid again.
+	 */
+	boolean isStale() {
+		for (int i = 0; i < scope.length; i++) {
+			if (scope[i].getDerivationStamp() != stamps[i]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Long getVersion(InheritanceProject ip, Map<String, Long> selected) {
+		Long v = selected.get(ip.getFullName());
+		return (v != null) ? v : ip.getStableVersion();
+	}
+}
@@ -50,6 +50,7 @@ import hudson.model.Project;
 import hudson.plugins.project_inheritance.projects.InheritanceProject;
 import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterReferenceDefinition;
 import hudson.plugins.project_inheritance.projects.references.filters.IProjectReferenceFilter;
+import hudson.plugins.project_inheritance.util.MockItemGroup;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
@@ -335,7 +336,11 @@ public abstract class AbstractProjectReference implements Describable<AbstractPr
 			
 			//Check for whether the local job would be circular with the given
 			//set of parents -- ignoring locally defined refs
-			boolean hasCycle = localJob.hasCyclicDependency(false, pNames);
+			boolean hasCycle = (localJob.getParent() instanceof MockItemGroup)
+					? localJob.hasCyclicDependency(false, pNames)
+					: InheritanceProject.getGraphIndex().wouldHaveCyclicDependency(
+							localJob.getFullName(), false, pNames
+					);
 			
 			//Check if adding the target to the parent would cause a cycle
 			if (hasCycle) {
@@ -146,8 +146,20 @@ public class VersionHandler {
 	}
 	
 	public static Long getVersion(InheritanceProject root) {
-		Map<String, Long> map = getVersions();
-		Long v = map.get(root.getFullName());
+		return getVersion(root, getVersions());
+	}
+	
+	/**
+	 * Same as {@link #getVersion(InheritanceProject)}, but takes the map
+	 * returned by {@link #getVersions()}, so that callers looking up many
+	 * projects only need to fetch it once.
+	 * 
+	 * @param root the project to get the version for
+	 * @param versions the explicitly selected versions
+	 * @return the selected version, or the stable one if none is selected
+	 */
+	public static Long getVersion(InheritanceProject root, Map<String, Long> versions) {
+		Long v = versions.get(root.getFullName());
 		if (v == null) {
 			return root.getStableVersion();
 		} else {
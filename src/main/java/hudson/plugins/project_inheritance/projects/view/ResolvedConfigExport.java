@@ -0,0 +1,329 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.view;
+
+import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import com.thoughtworks.xstream.io.xml.PrettyPrintWriter;
+
+import hudson.model.Item;
+import hudson.model.Label;
+import hudson.model.ParameterDefinition;
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.InheritanceProject.IMode;
+import hudson.plugins.project_inheritance.projects.InheritanceProject.InheritedVersionInfo;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceSnapshot;
+import hudson.plugins.project_inheritance.projects.versioning.VersionHandler;
+import hudson.plugins.project_inheritance.util.InheritanceMetrics;
+import hudson.plugins.project_inheritance.util.exceptions.HttpStatusException;
+import hudson.scm.SCM;
+import hudson.tasks.Builder;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+/**
+ * Streams the fully inherited parameters, label, SCM and builders of many
+ * projects as a single XML document.
+ * <p>
+ * The projects are selected either via the URL parameter "jobs", holding
+ * a comma-separated list of full names or globs, together with the usual
+ * "versions" parameter (see {@link VersionHandler}); or via a POSTed JSON
+ * document of the form:
+ * <pre>
+ * {
+ *   "versions": { "base": 3 },
+ *   "jobs": [ "folder/*", { "name": "app", "versions": { "lib": 7 } } ]
+ * }
+ * </pre>
+ * In globs, '*' matches any part of a name between slashes, '**' matches
+ * across slashes and '?' matches a single character. Explicitly named
+ * projects that do not exist or can't be read are reported with an error
+ * attribute; globs only match projects that the user may read.
+ * <p>
+ * All projects are resolved in an {@link InheritanceSnapshot}, so that the
+ * contribution of each common ancestor is only read once per request.
+ */
+public class ResolvedConfigExport implements HttpResponse {
+	public static final String JOBS_KEY = "jobs";
+	
+	private static final Pattern separatorP = Pattern.compile("[,\\s]+");
+	
+	
+	private static class Target {
+		private final String name;
+		private final InheritanceProject project;
+		private final Map<String, Long> versions;
+		
+		private Target(String name, InheritanceProject project, Map<String, Long> versions) {
+			this.name = name;
+			this.project = project;
+			this.versions = versions;
+		}
+	}
+	
+	private final List<Target> targets;
+	
+	
+	private ResolvedConfigExport(List<Target> targets) {
+		this.targets = targets;
+	}
+	
+	/**
+	 * Decodes the projects and versions to export from the given request.
+	 * 
+	 * @param req the request to decode
+	 * @return the export, ready to be sent
+	 * @throws HttpStatusException in case the request is malformed
+	 * @throws IOException in case the request body could not be read
+	 */
+	public static ResolvedConfigExport fromRequest(StaplerRequest req)
+			throws HttpStatusException, IOException {
+		Map<String, Long> global;
+		//Maps each name or glob to the versions selected only for it
+		Map<String, Map<String, Long>> specs =
+				new LinkedHashMap<String, Map<String, Long>>();
+		
+		String type = req.getContentType();
+		if ("POST".equals(req.getMethod()) && type != null && type.contains("json")) {
+			if (!StringUtils.isEmpty(req.getParameter(VersionHandler.VERSIONING_KEY))) {
+				//Those would take precedence over the ones from the document
+				throw new HttpStatusException(SC_BAD_REQUEST,
+						"Versions must be passed inside the JSON document"
+				);
+			}
+			JSONObject json;
+			try {
+				json = JSONObject.fromObject(IOUtils.toString(req.getReader()));
+			} catch (JSONException ex) {
+				throw new HttpStatusException(SC_BAD_REQUEST, "Malformed JSON document", ex);
+			}
+			global = decodeVersions(json.optJSONObject("versions"));
+			JSONArray jobs = json.optJSONArray(JOBS_KEY);
+			if (jobs != null) {
+				for (Object obj : jobs) {
+					if (obj instanceof JSONObject) {
+						JSONObject job = (JSONObject) obj;
+						String name = job.optString("name", null);
+						if (StringUtils.isBlank(name)) { continue; }
+						specs.put(name.trim(), decodeVersions(job.optJSONObject("versions")));
+					} else if (obj instanceof String && !StringUtils.isBlank((String) obj)) {
+						specs.put(((String) obj).trim(), Collections.<String, Long>emptyMap());
+					}
+				}
+			}
+		} else {
+			global = VersionHandler.getFromUrlParameter();
+			String[] params = req.getParameterValues(JOBS_KEY);
+			if (params != null) {
+				for (String param : params) {
+					for (String name : separatorP.split(param)) {
+						if (name.isEmpty()) { continue; }
+						specs.put(name, Collections.<String, Long>emptyMap());
+					}
+				}
+			}
+		}
+		if (specs.isEmpty()) {
+			throw new HttpStatusException(SC_BAD_REQUEST, "No jobs were given");
+		}
+		
+		//Resolving the names and globs; each project is only exported once
+		Map<String, Target> targets = new LinkedHashMap<String, Target>();
+		List<InheritanceProject> all = null;
+		for (Map.Entry<String, Map<String, Long>> spec : specs.entrySet()) {
+			String name = spec.getKey();
+			Map<String, Long> versions = new HashMap<String, Long>(global);
+			versions.putAll(spec.getValue());
+			
+			if (name.indexOf('*') < 0 && name.indexOf('?') < 0) {
+				if (targets.containsKey(name)) { continue; }
+				InheritanceProject ip = InheritanceProject.getProjectByName(name);
+				if (ip != null && !ip.hasPermission(Item.EXTENDED_READ)) {
+					//Not revealing whether the project exists
+					ip = null;
+				}
+				targets.put(name, new Target(name, ip, versions));
+				continue;
+			}
+			
+			if (all == null) {
+				all = Jenkins.get().getAllItems(InheritanceProject.class);
+			}
+			Pattern glob = compileGlob(name);
+			Map<String, InheritanceProject> matches = new TreeMap<String, InheritanceProject>();
+			for (InheritanceProject ip : all) {
+				String fullName = ip.getFullName();
+				if (targets.containsKey(fullName)) { continue; }
+				if (!glob.matcher(fullName).matches()) { continue; }
+				if (!ip.hasPermission(Item.EXTENDED_READ)) { continue; }
+				matches.put(fullName, ip);
+			}
+			for (InheritanceProject ip : matches.values()) {
+				targets.put(ip.getFullName(), new Target(ip.getFullName(), ip, versions));
+			}
+		}
+		
+		return new ResolvedConfigExport(new ArrayList<Target>(targets.values()));
+	}
+	
+	private static Map<String, Long> decodeVersions(JSONObject obj)
+			throws HttpStatusException {
+		if (obj == null || obj.isNullObject() || obj.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<String, Long> out = new HashMap<String, Long>();
+		for (Object key : obj.keySet()) {
+			try {
+				out.put(key.toString(), obj.getLong(key.toString()));
+			} catch (JSONException ex) {
+				throw new HttpStatusException(SC_BAD_REQUEST,
+						"Invalid version for " + key, ex
+				);
+			}
+		}
+		return out;
+	}
+	
+	/**
+	 * @param glob a glob over full project names
+	 * @return a pattern matching the same names as the glob
+	 */
+	static Pattern compileGlob(String glob) {
+		StringBuilder b = new StringBuilder();
+		int i = 0;
+		while (i < glob.length()) {
+			char c = glob.charAt(i);
+			if (c == '*') {
+				if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+					b.append(".*");
+					i += 2;
+					continue;
+				}
+				b.append("[^/]*");
+			} else if (c == '?') {
+				b.append("[^/]");
+			} else {
+				b.append(Pattern.quote(String.valueOf(c)));
+			}
+			i++;
+		}
+		return Pattern.compile(b.toString());
+	}
+	
+	
+	// === RESPONSE GENERATION ===
+	
+	public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node)
+			throws IOException, ServletException {
+		rsp.setContentType("application/xml;charset=UTF-8");
+		PrettyPrintWriter xml = new PrettyPrintWriter(new BufferedWriter(
+				new OutputStreamWriter(rsp.getCompressedOutputStream(req), StandardCharsets.UTF_8)
+		));
+		long start = InheritanceMetrics.startTimer();
+		try (InheritanceSnapshot snap = InheritanceSnapshot.open()) {
+			xml.startNode("projects");
+			for (Target target : targets) {
+				this.writeProject(xml, target);
+				//Sending each project as soon as it is done
+				xml.flush();
+			}
+			xml.endNode();
+		} finally {
+			VersionHandler.clearVersions();
+			xml.close();
+			InheritanceMetrics.recordTime("export.resolvedConfigs", start);
+			InheritanceMetrics.recordValue("export.resolvedConfigs.projects", targets.size());
+		}
+	}
+	
+	private void writeProject(PrettyPrintWriter xml, Target target) {
+		xml.startNode("project");
+		xml.addAttribute("name", target.name);
+		InheritanceProject ip = target.project;
+		if (ip == null) {
+			xml.addAttribute("error", "not found");
+			xml.endNode();
+			return;
+		}
+		
+		VersionHandler.initVersions(target.versions);
+		
+		xml.startNode("versions");
+		for (InheritedVersionInfo ivi : ip.getAllInheritedVersionsList()) {
+			xml.startNode("version");
+			xml.addAttribute("project", ivi.project.getFullName());
+			xml.setValue(String.valueOf(ivi.version));
+			xml.endNode();
+		}
+		xml.endNode();
+		
+		xml.startNode("parameters");
+		for (ParameterDefinition pd : ip.getParameters(IMode.INHERIT_FORCED)) {
+			Jenkins.XSTREAM2.marshal(pd, xml);
+		}
+		xml.endNode();
+		
+		xml.startNode("label");
+		Label lbl = ip.getAssignedLabel(IMode.INHERIT_FORCED);
+		if (lbl != null) {
+			xml.setValue(lbl.getExpression());
+		}
+		xml.endNode();
+		
+		xml.startNode("scm");
+		SCM scm = ip.getScm(IMode.INHERIT_FORCED);
+		if (scm != null) {
+			Jenkins.XSTREAM2.marshal(scm, xml);
+		}
+		xml.endNode();
+		
+		xml.startNode("builders");
+		for (Builder b : ip.getBuildersList(IMode.INHERIT_FORCED)) {
+			Jenkins.XSTREAM2.marshal(b, xml);
+		}
+		xml.endNode();
+		
+		xml.endNode();
+	}
+}
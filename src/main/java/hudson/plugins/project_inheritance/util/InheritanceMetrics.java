@@ -0,0 +1,328 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONObject;
+
+/**
+ * Collects counters and latency histograms for the expensive operations of
+ * this plugin, like field derivations, version store IO and the creation of
+ * transient projects.
+ * <p>
+ * Collection is disabled by default and can be enabled with the system
+ * property {@value #ENABLED_PROPERTY}. While disabled, every method returns
+ * immediately and callers should use {@link #isEnabled()} to avoid building
+ * metric names:
+ * <pre>
+ * long start = InheritanceMetrics.startTimer();
+ * try {
+ *     ...
+ * } finally {
+ *     InheritanceMetrics.recordTime("some.operation", start);
+ * }
+ * </pre>
+ * Metrics are identified by a dotted name; the first segment names the
+ * area they belong to.
+ * 
+ * @see InheritanceMetricsLink
+ */
+public final class InheritanceMetrics {
+	public static final String ENABLED_PROPERTY =
+			InheritanceMetrics.class.getName() + ".enabled";
+	
+	private static final boolean enabled =
+			SystemProperties.getBoolean(ENABLED_PROPERTY, false);
+	
+	private static final ConcurrentHashMap<String, LongAdder> counters =
+			new ConcurrentHashMap<String, LongAdder>();
+	
+	private static final ConcurrentHashMap<String, Histogram> histograms =
+			new ConcurrentHashMap<String, Histogram>();
+	
+	
+	private InheritanceMetrics() {
+		//Only static access
+	}
+	
+	public static boolean isEnabled() {
+		return enabled;
+	}
+	
+	
+	// === RECORDING ===
+	
+	/**
+	 * @return the start time to pass to {@link #recordTime(String, long)};
+	 * or 0 if metrics are disabled.
+	 */
+	public static long startTimer() {
+		return (enabled) ? System.nanoTime() : 0;
+	}
+	
+	/**
+	 * Records the time elapsed since the given start time in the histogram
+	 * with the given name.
+	 * 
+	 * @param name the name of the histogram
+	 * @param start the value returned by {@link #startTimer()}
+	 */
+	public static void recordTime(String name, long start) {
+		if (!enabled || start == 0) { return; }
+		getHistogram(name, true).record(System.nanoTime() - start);
+	}
+	
+	/**
+	 * Records an arbitrary, non-negative value; for example a number of bytes.
+	 * 
+	 * @param name the name of the histogram
+	 * @param value the value to record
+	 */
+	public static void recordValue(String name, long value) {
+		if (!enabled) { return; }
+		getHistogram(name, false).record(value);
+	}
+	
+	public static void increment(String name) {
+		add(name, 1);
+	}
+	
+	public static void add(String name, long delta) {
+		if (!enabled) { return; }
+		LongAdder c = counters.get(name);
+		if (c == null) {
+			LongAdder fresh = new LongAdder();
+			c = counters.putIfAbsent(name, fresh);
+			if (c == null) { c = fresh; }
+		}
+		c.add(delta);
+	}
+	
+	private static Histogram getHistogram(String name, boolean isTime) {
+		Histogram h = histograms.get(name);
+		if (h == null) {
+			Histogram fresh = new Histogram(isTime);
+			h = histograms.putIfAbsent(name, fresh);
+			if (h == null) { h = fresh; }
+		}
+		return h;
+	}
+	
+	/**
+	 * Drops all counters and histograms.
+	 */
+	public static void reset() {
+		counters.clear();
+		histograms.clear();
+	}
+	
+	
+	// === SNAPSHOTS ===
+	
+	/**
+	 * @return the current value of all counters, sorted by name.
+	 */
+	public static Map<String, Long> getCounters() {
+		TreeMap<String, Long> out = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+			out.put(e.getKey(), e.getValue().sum());
+		}
+		return out;
+	}
+	
+	/**
+	 * @return a snapshot of all histograms, sorted by name.
+	 */
+	public static Map<String, HistogramSnapshot> getHistograms() {
+		TreeMap<String, HistogramSnapshot> out = new TreeMap<String, HistogramSnapshot>();
+		for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+			out.put(e.getKey(), e.getValue().snapshot());
+		}
+		return out;
+	}
+	
+	/**
+	 * @return all counters and histograms as a JSON object.
+	 */
+	public static JSONObject toJSON() {
+		JSONObject out = new JSONObject();
+		out.put("enabled", enabled);
+		
+		JSONObject cnt = new JSONObject();
+		for (Map.Entry<String, Long> e : getCounters().entrySet()) {
+			cnt.put(e.getKey(), e.getValue());
+		}
+		out.put("counters", cnt);
+		
+		JSONObject hist = new JSONObject();
+		for (Map.Entry<String, HistogramSnapshot> e : getHistograms().entrySet()) {
+			hist.put(e.getKey(), e.getValue().toJSON());
+		}
+		out.put("histograms", hist);
+		return out;
+	}
+	
+	
+	// === HISTOGRAMS ===
+	
+	/**
+	 * A lock-free histogram with one bucket per power of two. This is coarse,
+	 * but needs neither locking nor allocation when recording a value.
+	 */
+	static final class Histogram {
+		private final boolean isTime;
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong(0);
+		
+		Histogram(boolean isTime) {
+			this.isTime = isTime;
+		}
+		
+		void record(long value) {
+			if (value < 0) { value = 0; }
+			buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(value | 1));
+			count.increment();
+			sum.add(value);
+			long m = max.get();
+			while (value > m && !max.compareAndSet(m, value)) {
+				m = max.get();
+			}
+		}
+		
+		HistogramSnapshot snapshot() {
+			long[] b = new long[buckets.length()];
+			long total = 0;
+			for (int i = 0; i < b.length; i++) {
+				b[i] = buckets.get(i);
+				total += b[i];
+			}
+			return new HistogramSnapshot(
+					isTime, total, sum.sum(), max.get(),
+					percentile(b, total, 0.5),
+					percentile(b, total, 0.9),
+					percentile(b, total, 0.99)
+			);
+		}
+		
+		/**
+		 * @return the upper bound of the bucket containing the given percentile.
+		 */
+		private static long percentile(long[] b, long total, double p) {
+			if (total == 0) { return 0; }
+			long rank = (long) Math.ceil(total * p);
+			long seen = 0;
+			for (int i = 0; i < b.length; i++) {
+				seen += b[i];
+				if (seen >= rank) {
+					return (i >= 62) ? Long.MAX_VALUE : (2L << i) - 1;
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+	}
+	
+	/**
+	 * An immutable view of a histogram. Percentiles are upper bounds, as
+	 * values are only kept per power of two.
+	 */
+	public static final class HistogramSnapshot {
+		/** Whether the values are durations in nanoseconds */
+		public final boolean isTime;
+		public final long count;
+		public final long sum;
+		public final long max;
+		public final long p50;
+		public final long p90;
+		public final long p99;
+		
+		HistogramSnapshot(boolean isTime, long count, long sum,
+				long max, long p50, long p90, long p99) {
+			this.isTime = isTime;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+		}
+		
+		public long getCount() {
+			return count;
+		}
+		
+		public long getMean() {
+			return (count == 0) ? 0 : sum / count;
+		}
+		
+		public long getMax() {
+			return max;
+		}
+		
+		public long getP50() {
+			return p50;
+		}
+		
+		public long getP90() {
+			return p90;
+		}
+		
+		public long getP99() {
+			return p99;
+		}
+		
+		/**
+		 * @param value one of the values of this snapshot
+		 * @return the value in a human-readable form.
+		 */
+		public String format(long value) {
+			if (value == Long.MAX_VALUE) {
+				return "overflow";
+			}
+			if (!isTime) {
+				return String.format("%,d", value);
+			}
+			return String.format("%,d \u00b5s", TimeUnit.NANOSECONDS.toMicros(value));
+		}
+		
+		public JSONObject toJSON() {
+			JSONObject out = new JSONObject();
+			out.put("unit", (isTime) ? "ns" : "value");
+			out.put("count", count);
+			out.put("sum", sum);
+			out.put("mean", getMean());
+			out.put("max", max);
+			out.put("p50", p50);
+			out.put("p90", p90);
+			out.put("p99", p99);
+			return out;
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.util;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.StaplerProxy;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.creation.CreationQueue;
+import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine;
+import hudson.plugins.project_inheritance.projects.inheritance.BuildabilityCache;
+import hudson.plugins.project_inheritance.projects.inheritance.DerivedFieldCache;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceContext;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceSnapshot;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+/**
+ * Shows the {@link InheritanceMetrics} together with the statistics that the
+ * caches of this plugin always collect.
+ * <p>
+ * The same data is available as JSON from the "json" sub-URL, for example
+ * to be scraped by a monitoring system.
+ */
+@Extension
+public class InheritanceMetricsLink extends ManagementLink implements StaplerProxy {
+	
+	@Override
+	public String getDisplayName() {
+		return Messages.InheritanceMetricsLink_DisplayName();
+	}
+	
+	@Override
+	public String getDescription() {
+		return Messages.InheritanceMetricsLink_Description();
+	}
+	
+	@Override
+	public String getIconFileName() {
+		return "/plugin/project-inheritance/images/48x48/gear.png";
+	}
+	
+	@Override
+	public String getUrlName() {
+		return "inheritance_metrics";
+	}
+	
+	@Override
+	public Object getTarget() {
+		Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+		return this;
+	}
+	
+	
+	// === DATA ===
+	
+	public boolean isEnabled() {
+		return InheritanceMetrics.isEnabled();
+	}
+	
+	public Map<String, Long> getCounters() {
+		return InheritanceMetrics.getCounters();
+	}
+	
+	public Map<String, InheritanceMetrics.HistogramSnapshot> getHistograms() {
+		return InheritanceMetrics.getHistograms();
+	}
+	
+	public Map<String, TimedBuffer<InheritanceProject, String>> getBuffers() {
+		return InheritanceProject.getBuffers();
+	}
+	
+	/**
+	 * @return the statistics that are collected even while metrics are
+	 * disabled, as name-value pairs.
+	 */
+	public JSONObject getCacheStatistics() {
+		JSONObject out = new JSONObject();
+		
+		JSONObject buffers = new JSONObject();
+		for (Map.Entry<String, TimedBuffer<InheritanceProject, String>> e : this.getBuffers().entrySet()) {
+			TimedBuffer<InheritanceProject, String> buf = e.getValue();
+			JSONObject b = new JSONObject();
+			b.put("size", buf.size());
+			b.put("hits", buf.getHits());
+			b.put("misses", buf.getMisses());
+			b.put("evictions", buf.getEvictions());
+			buffers.put(e.getKey(), b);
+		}
+		out.put("buffers", buffers);
+		
+		JSONObject dfc = new JSONObject();
+		dfc.put("size", DerivedFieldCache.size());
+		dfc.put("hits", DerivedFieldCache.getHits());
+		dfc.put("misses", DerivedFieldCache.getMisses());
+		out.put("derivedFieldCache", dfc);
+		
+		JSONObject bc = new JSONObject();
+		bc.put("size", BuildabilityCache.size());
+		bc.put("hits", BuildabilityCache.getHits());
+		bc.put("misses", BuildabilityCache.getMisses());
+		out.put("buildabilityCache", bc);
+		
+		JSONObject vp = new JSONObject();
+		vp.put("size", VersionValuePool.size());
+		vp.put("hits", VersionValuePool.getHits());
+		vp.put("misses", VersionValuePool.getMisses());
+		out.put("versionValuePool", vp);
+		
+		JSONObject fb = new JSONObject();
+		fb.put("count", InheritanceContext.getFallbackCount());
+		fb.put("hits", InheritanceContext.getFallbackHits());
+		out.put("stackWalkFallback", fb);
+		
+		JSONObject rs = new JSONObject();
+		rs.put("created", InheritanceSnapshot.getRequestSnapshots());
+		rs.put("reused", InheritanceSnapshot.getRequestHits());
+		out.put("requestSnapshots", rs);
+		
+		CreationQueue queue = ProjectCreationEngine.instance.getCreationQueue();
+		JSONObject cq = new JSONObject();
+		cq.put("depth", queue.getQueueDepth());
+		cq.put("running", queue.isRunning());
+		cq.put("lastLatencyMs", queue.getLastLatency());
+		cq.put("lastDurationMs", queue.getLastDuration());
+		cq.put("lastSize", queue.getLastSize());
+		out.put("creationQueue", cq);
+		
+		return out;
+	}
+	
+	
+	// === ENDPOINTS ===
+	
+	/**
+	 * Writes all metrics and cache statistics as JSON.
+	 * 
+	 * @param req the current request
+	 * @param rsp the response to write to
+	 * @throws IOException in case the response can't be written
+	 * @throws ServletException never
+	 */
+	public void doJson(StaplerRequest req, StaplerResponse rsp)
+			throws IOException, ServletException {
+		JSONObject out = InheritanceMetrics.toJSON();
+		out.put("caches", this.getCacheStatistics());
+		
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().write(out.toString(2));
+	}
+	
+	@RequirePOST
+	public HttpResponse doReset() {
+		InheritanceMetrics.reset();
+		return HttpResponses.redirectToDot();
+	}
+}
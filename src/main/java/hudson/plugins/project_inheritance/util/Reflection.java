@@ -255,32 +255,38 @@ public class Reflection {
 		if (classes == null || classes.length == 0) {
 			return false;
 		}
-		if (maxDepth <= 0) {
-			maxDepth = Integer.MAX_VALUE;
-		}
-		//Fetch the call stack
-		StackTraceElement[] stackTrace =
-				new Throwable().getStackTrace(); 
-		if (stackTrace == null || stackTrace.length == 0) {
-			return false;
-		}
-		
-		//Fetching all class names currently present in the stack trace.
-		Set<Class<?>> stackCls = getClasses(maxDepth, 1, stackTrace);
-		if (stackCls == null || stackCls.isEmpty()) {
-			return false;
-		}
-		
-		//Then, checking for each input class, whether a stack-class matches 
-		for (Class<?> inClass : classes) {
-			for (Class<?> outClass : stackCls) {
-				if (assigner.isAssignableFrom(inClass, outClass)) {
-					return true;
+		//The stack walk is timed in this frame, to not shift the stack depth
+		long start = InheritanceMetrics.startTimer();
+		try {
+			if (maxDepth <= 0) {
+				maxDepth = Integer.MAX_VALUE;
+			}
+			//Fetch the call stack
+			StackTraceElement[] stackTrace =
+					new Throwable().getStackTrace(); 
+			if (stackTrace == null || stackTrace.length == 0) {
+				return false;
+			}
+			
+			//Fetching all class names currently present in the stack trace.
+			Set<Class<?>> stackCls = getClasses(maxDepth, 1, stackTrace);
+			if (stackCls == null || stackCls.isEmpty()) {
+				return false;
+			}
+			
+			//Then, checking for each input class, whether a stack-class matches 
+			for (Class<?> inClass : classes) {
+				for (Class<?> outClass : stackCls) {
+					if (assigner.isAssignableFrom(inClass, outClass)) {
+						return true;
+					}
 				}
 			}
+			//No such class on the stack (or no class can be resolved)
+			return false;
+		} finally {
+			InheritanceMetrics.recordTime("reflection.calledFromClass", start);
 		}
-		//No such class on the stack (or no class can be resolved)
-		return false;
 	}
 	
 	/**
@@ -21,21 +21,55 @@
 package hudson.plugins.project_inheritance.util;
 
 import java.util.AbstractMap;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
+/**
+ * A two-level cache of values per object and key, with an optional timeout
+ * and an optional maximum size.
+ * <p>
+ * The buffer is built on nested {@link ConcurrentHashMap}s, so that neither
+ * lookups nor updates take a global lock, and a lookup via
+ * {@link #get(Object, Object)} does not allocate anything. Aged values are
+ * ignored on lookup, but only removed (together with the oldest values if
+ * the buffer is too big) by {@link #cull()}, which is meant to be called
+ * periodically from a background thread.
+ * <p>
+ * Each value may additionally record its provenance, i.e. the objects it was
+ * derived from. {@link #invalidate(Object)} then evicts exactly those values
+ * that were derived from a changed object, instead of having to clear
+ * everything. Values stored without provenance are only evicted for the
+ * object they are stored under.
+ * <p>
+ * The keys should be constants (e.g. interned strings), as they are compared
+ * and hashed on every lookup.
+ *
+ * @param <O> the type of the objects to buffer values for; may be null
+ * @param <K> the type of the keys of the values
+ */
 public class TimedBuffer<O, K> {
 	
 	private class TimeCapsule {
 		public final Object obj;
 		public final long cTime;
+		public final Set<O> provenance;
 		
-		public TimeCapsule(Object obj) {
+		public TimeCapsule(Object obj, Set<O> provenance) {
 			this.obj = obj;
 			this.cTime = System.currentTimeMillis();
+			this.provenance = provenance;
 		}
 		
 		public boolean agedPast(long timeout) {
@@ -43,10 +77,34 @@ public class TimedBuffer<O, K> {
 		}
 	}
 	
-	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	/**
+	 * Stands in for the null object, as {@link ConcurrentHashMap} does not
+	 * allow null keys.
+	 */
+	private static final Object NULL_OBJECT = new Object();
+	
 	private final long timeout;
-	private final HashMap<O, HashMap<K,TimeCapsule>> map =
-			new HashMap<O, HashMap<K,TimeCapsule>>();
+	private final int maxSize;
+	
+	private final ConcurrentHashMap<Object, ConcurrentHashMap<K, TimeCapsule>> map =
+			new ConcurrentHashMap<Object, ConcurrentHashMap<K, TimeCapsule>>();
+	
+	/**
+	 * Maps an object to the (object, key) pairs whose values were derived
+	 * from it. May contain outdated pairs; these are verified against the
+	 * provenance of the current value before evicting anything.
+	 */
+	private final ConcurrentHashMap<Object, Set<Entry<O, K>>> dependents =
+			new ConcurrentHashMap<Object, Set<Entry<O, K>>>();
+	
+	/**
+	 * The approximate number of values in the buffer.
+	 */
+	private final AtomicInteger size = new AtomicInteger(0);
+	
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
 	
 	/**
 	 * Creates a timed buffer that does not make use of a timeout
@@ -62,66 +120,151 @@ public class TimedBuffer<O, K> {
 	 * @param timeoutMillis timeout in milliseconds.
 	 */
 	public TimedBuffer(long timeoutMillis) {
+		this(timeoutMillis, -1);
+	}
+	
+	/**
+	 * Creates a timed buffer with the given timeout in milliseconds and the
+	 * given maximum number of values. If either value is zero or negative, the
+	 * respective limit is not used.
+	 * 
+	 * @param timeoutMillis timeout in milliseconds.
+	 * @param maxSize the number of values to keep at most. Enforced by
+	 * {@link #cull()}; the buffer may grow larger in between.
+	 */
+	public TimedBuffer(long timeoutMillis, int maxSize) {
 		this.timeout = timeoutMillis;
+		this.maxSize = maxSize;
+	}
+	
+	private static Object mask(Object obj) {
+		return (obj == null) ? NULL_OBJECT : obj;
+	}
+	
+	private TimeCapsule getCapsule(O obj, K key) {
+		ConcurrentHashMap<K, TimeCapsule> tMap = map.get(mask(obj));
+		TimeCapsule tc = (tMap == null) ? null : tMap.get(key);
+		//Checking if the entry has aged beyond its time
+		if (tc == null || (timeout > 0 && tc.agedPast(timeout))) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return tc;
 	}
 	
 	public Object get(O obj, K key) {
-		Entry<Object, Long> entry = this.getWithTimestamp(obj, key);
-		return (entry != null) ? entry.getKey() : null;
+		TimeCapsule tc = this.getCapsule(obj, key);
+		return (tc != null) ? tc.obj : null;
 	}
 	
 	public Entry<Object, Long> getWithTimestamp(O obj, K key) {
-		lock.readLock().lock();
-		try {
-			//Checking if we have this object hashed
-			HashMap<K,TimeCapsule> tMap = map.get(obj);
-			if (tMap == null) {
-				return null;
-			}
-			//Checking if that object has the given key
-			TimeCapsule tc = tMap.get(key);
-			if (tc == null) {
-				return null;
+		TimeCapsule tc = this.getCapsule(obj, key);
+		if (tc == null) { return null; }
+		return new AbstractMap.SimpleEntry<Object, Long>(tc.obj, tc.cTime);
+	}
+	
+	/**
+	 * Stores a value that was derived only from the given object itself.
+	 * 
+	 * @param obj the object to store the value for
+	 * @param key the key of the value
+	 * @param value the value
+	 */
+	public void set(O obj, K key, Object value) {
+		this.set(obj, key, value, null);
+	}
+	
+	/**
+	 * Stores a value together with the objects it was derived from. The value
+	 * is evicted by {@link #invalidate(Object)} for any of these, as well
+	 * as for the given object itself.
+	 * 
+	 * @param obj the object to store the value for
+	 * @param key the key of the value
+	 * @param value the value
+	 * @param provenance the objects the value was derived from; may be null
+	 */
+	public void set(O obj, K key, Object value, Collection<O> provenance) {
+		Set<O> prov;
+		if (provenance == null || provenance.isEmpty()) {
+			prov = Collections.emptySet();
+		} else {
+			prov = new HashSet<O>(provenance);
+			prov.remove(obj);
+			prov.remove(null);
+		}
+		
+		Object mObj = mask(obj);
+		ConcurrentHashMap<K, TimeCapsule> tMap = map.get(mObj);
+		if (tMap == null) {
+			//Creating a new mapping for that object
+			ConcurrentHashMap<K, TimeCapsule> fresh = new ConcurrentHashMap<K, TimeCapsule>();
+			tMap = map.putIfAbsent(mObj, fresh);
+			if (tMap == null) { tMap = fresh; }
+		}
+		
+		/* The reverse references are registered before the value is
+		 * published, so that an invalidate() running in between either sees
+		 * the reference, or has already detached the set it was added to.
+		 */
+		Entry<O, K> ref = new AbstractMap.SimpleImmutableEntry<O, K>(obj, key);
+		List<Set<Entry<O, K>>> registered = new ArrayList<Set<Entry<O, K>>>(prov.size());
+		for (O src : prov) {
+			registered.add(this.register(src, ref));
+		}
+		
+		//Adding the key/value pair as a timed capsule
+		TimeCapsule tc = new TimeCapsule(value, prov);
+		TimeCapsule old = tMap.put(key, tc);
+		if (old == null) {
+			size.incrementAndGet();
+		}
+		
+		/* Checking that no source was invalidated while the value was not yet
+		 * visible. The reference is re-added, as cull() might have dropped it
+		 * before the value was published.
+		 */
+		Iterator<Set<Entry<O, K>>> rIter = registered.iterator();
+		for (O src : prov) {
+			Set<Entry<O, K>> refs = rIter.next();
+			refs.add(ref);
+			if (dependents.get(src) != refs) {
+				if (tMap.remove(key, tc)) {
+					size.decrementAndGet();
+				}
+				break;
 			}
-			//Checking if the entry has aged beyond its time
-			if (timeout > 0 && tc.agedPast(timeout)) {
-				return null;
+		}
+		
+		//Dropping the references of the replaced value to other sources
+		if (old != null) {
+			for (O src : old.provenance) {
+				if (prov.contains(src)) { continue; }
+				Set<Entry<O, K>> refs = dependents.get(src);
+				if (refs != null) { refs.remove(ref); }
 			}
-			return new AbstractMap.SimpleEntry<Object, Long>(tc.obj, tc.cTime);
-		} finally {
-			lock.readLock().unlock();
 		}
 	}
 	
-	public void set(O obj, K key, Object value) {
-		lock.writeLock().lock();
-		try {
-			HashMap<K,TimeCapsule> tMap = map.get(obj);
-			if (tMap == null) {
-				//Creating a new mapping for that object
-				tMap = new HashMap<K,TimeCapsule>();
-				tMap.put(key, new TimeCapsule(value));
-				map.put(obj, tMap);
-				return;
-			}
-			//Adding the key/value pair as a timed capsule
-			tMap.put(key, new TimeCapsule(value));
-		} finally {
-			lock.writeLock().unlock();
+	private Set<Entry<O, K>> register(O src, Entry<O, K> ref) {
+		Set<Entry<O, K>> refs = dependents.get(src);
+		if (refs == null) {
+			Set<Entry<O, K>> fresh = ConcurrentHashMap.newKeySet();
+			refs = dependents.putIfAbsent(src, fresh);
+			if (refs == null) { refs = fresh; }
 		}
+		refs.add(ref);
+		return refs;
 	}
 
 	public void remove(O obj, K key) {
-		lock.writeLock().lock();
-		try {
-			//Checking if we have this object hashed
-			HashMap<K,TimeCapsule> tMap = map.get(obj);
-			if (tMap == null) {
-				return;
-			}
-			tMap.remove(key);
-		} finally {
-			lock.writeLock().unlock();
+		ConcurrentHashMap<K, TimeCapsule> tMap = map.get(mask(obj));
+		if (tMap == null) {
+			return;
+		}
+		if (tMap.remove(key) != null) {
+			size.decrementAndGet();
 		}
 	}
 	
@@ -132,19 +275,50 @@ public class TimedBuffer<O, K> {
 	 * @param obj the key to clear
 	 */
 	public void clear(O obj) {
-		lock.writeLock().lock();
-		this.map.remove(obj);
-		lock.writeLock().unlock();
+		ConcurrentHashMap<K, TimeCapsule> tMap = map.remove(mask(obj));
+		if (tMap != null) {
+			size.addAndGet(-tMap.size());
+		}
 	}
 	
+	/**
+	 * This method removes all values stored for the given object, as well as
+	 * all values stored for other objects that were derived from it.
+	 * <p>
+	 * A value that is being stored concurrently is either evicted by this
+	 * call, or evicts itself at the end of
+	 * {@link #set(Object, Object, Object, Collection)}. A value that was
+	 * computed before, but is only stored after this call returned, is
+	 * not detected.
+	 * 
+	 * @param source the object that has changed
+	 * @see #set(Object, Object, Object, Collection)
+	 */
+	public void invalidate(O source) {
+		this.clear(source);
+		if (source == null) { return; }
+		Set<Entry<O, K>> refs = dependents.remove(source);
+		if (refs == null) { return; }
+		for (Entry<O, K> ref : refs) {
+			ConcurrentHashMap<K, TimeCapsule> tMap = map.get(mask(ref.getKey()));
+			if (tMap == null) { continue; }
+			TimeCapsule tc = tMap.get(ref.getValue());
+			//The value might have been replaced by one with another origin
+			if (tc != null && tc.provenance.contains(source)) {
+				if (tMap.remove(ref.getValue(), tc)) {
+					size.decrementAndGet();
+				}
+			}
+		}
+	}
 	
 	/**
 	 * This method clears everything in this buffer.
 	 */
 	public void clearAll() {
-		lock.writeLock().lock();
 		this.map.clear();
-		lock.writeLock().unlock();
+		this.dependents.clear();
+		this.size.set(0);
 	}
 	
 	/**
@@ -154,37 +328,120 @@ public class TimedBuffer<O, K> {
 	 * @param key the value to clear
 	 */
 	public void clearAll(K key) {
-		lock.writeLock().lock();
-		for (HashMap<K,TimeCapsule> tMap : map.values()) {
-			if (tMap != null) {
-				tMap.remove(key);
+		for (ConcurrentHashMap<K, TimeCapsule> tMap : map.values()) {
+			if (tMap.remove(key) != null) {
+				size.decrementAndGet();
 			}
 		}
-		lock.writeLock().unlock();
 	}
 
 
 	/**
-	 * This method will remove all entries that aged beyond the assigned timeout.
+	 * This method will remove all entries that aged beyond the assigned
+	 * timeout, and afterwards the oldest entries until the buffer is not
+	 * larger than its maximum size. Also drops empty and outdated bookkeeping.
+	 * <p>
 	 * As this method has a linear complexity, don't call it <i>too</i> often.
-	 * 
-	 * This method is a O(1) no-op if no timeout is defined for this method.
+	 * It does not block concurrent readers or writers.
 	 */
 	public void cull() {
-		//Only do something if we actually have a timeout
-		if (timeout <= 0) { return; }
-		lock.writeLock().lock();
-		for (HashMap<K,TimeCapsule> tMap : map.values()) {
-			if (tMap == null) { continue; }
-			Iterator<TimeCapsule> iter = tMap.values().iterator();
+		List<Entry<Entry<Object, K>, TimeCapsule>> all =
+				new ArrayList<Entry<Entry<Object, K>, TimeCapsule>>();
+		int count = 0;
+		Iterator<Map.Entry<Object, ConcurrentHashMap<K, TimeCapsule>>> oIter =
+				map.entrySet().iterator();
+		while (oIter.hasNext()) {
+			Map.Entry<Object, ConcurrentHashMap<K, TimeCapsule>> oEntry = oIter.next();
+			ConcurrentHashMap<K, TimeCapsule> tMap = oEntry.getValue();
+			Iterator<Map.Entry<K, TimeCapsule>> iter = tMap.entrySet().iterator();
 			while (iter.hasNext()) {
-				TimeCapsule tc = iter.next();
-				if (tc == null) { continue; }
-				if (tc.agedPast(timeout)) {
+				Map.Entry<K, TimeCapsule> e = iter.next();
+				TimeCapsule tc = e.getValue();
+				if (timeout > 0 && tc.agedPast(timeout)) {
 					iter.remove();
+					evictions.incrementAndGet();
+					continue;
+				}
+				count++;
+				if (maxSize > 0) {
+					all.add(new AbstractMap.SimpleImmutableEntry<Entry<Object, K>, TimeCapsule>(
+							new AbstractMap.SimpleImmutableEntry<Object, K>(oEntry.getKey(), e.getKey()),
+							tc
+					));
+				}
+			}
+			if (tMap.isEmpty()) {
+				//Only removes the map, if no value was added in the meantime
+				map.remove(oEntry.getKey(), tMap);
+			}
+		}
+		
+		//Then, evict the oldest values until the size limit is met
+		if (maxSize > 0 && count > maxSize) {
+			Collections.sort(all, new Comparator<Entry<Entry<Object, K>, TimeCapsule>>() {
+				public int compare(Entry<Entry<Object, K>, TimeCapsule> a,
+						Entry<Entry<Object, K>, TimeCapsule> b) {
+					return Long.compare(a.getValue().cTime, b.getValue().cTime);
+				}
+			});
+			for (Entry<Entry<Object, K>, TimeCapsule> e : all.subList(0, count - maxSize)) {
+				ConcurrentHashMap<K, TimeCapsule> tMap = map.get(e.getKey().getKey());
+				if (tMap != null && tMap.remove(e.getKey().getValue(), e.getValue())) {
+					evictions.incrementAndGet();
+					count--;
+				}
+			}
+		}
+		size.set(count);
+		
+		/* Drop the reverse references to values that are gone. The (possibly
+		 * empty) sets themselves are kept, as removing them could race with
+		 * a concurrent set() adding to them.
+		 */
+		for (Set<Entry<O, K>> refs : dependents.values()) {
+			Iterator<Entry<O, K>> rIter = refs.iterator();
+			while (rIter.hasNext()) {
+				Entry<O, K> ref = rIter.next();
+				ConcurrentHashMap<K, TimeCapsule> tMap = map.get(mask(ref.getKey()));
+				if (tMap == null || !tMap.containsKey(ref.getValue())) {
+					rIter.remove();
 				}
 			}
 		}
-		lock.writeLock().unlock();
+	}
+	
+	
+	// === STATISTICS ===
+	
+	/**
+	 * @return the approximate number of values in this buffer.
+	 */
+	public int size() {
+		return Math.max(0, size.get());
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * @return how many values were removed by {@link #cull()}.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+	
+	/**
+	 * @return the ratio of lookups that found a value, between 0 and 1.
+	 * Returns 0 if there were no lookups yet.
+	 */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return (total == 0) ? 0.0 : ((double) h) / total;
 	}
 }
@@ -0,0 +1,637 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import hudson.plugins.project_inheritance.util.VersionValueCodec.Encoded;
+
+/**
+ * Reads and writes the append-only segment format used to persist a
+ * {@link VersionedObjectStore}.
+ * <p>
+ * The file starts with {@link #MAGIC}, followed by a sequence of records.
+ * Each record is framed as
+ * <pre>
+ * int length | byte type | payload | int crc32(type + payload)
+ * </pre>
+ * The following types of records are written:
+ * <ul>
+ *   <li>{@link #TYPE_BLOB}: a single encoded value, addressed by the
+ *       SHA-256 digest of its encoded form and stored together with the id
+ *       of its {@link VersionValueCodec}. Each distinct value is only
+ *       stored once per file, no matter how many versions use it.</li>
+ *   <li>{@link #TYPE_REF_VERSION}: a checkpoint; i.e. a version with its
+ *       metadata and the digests of all of its values, which refer to blobs
+ *       written earlier.</li>
+ *   <li>{@link #TYPE_REF_DELTA}: the same, but only with the digests of the
+ *       values that differ from the preceding version record, together with
+ *       the keys that were removed.</li>
+ *   <li>{@link #TYPE_META}: changed metadata (stability, description) of an
+ *       existing version.</li>
+ * </ul>
+ * Older files may also contain version records with inline values, which
+ * are still read, but no longer written:
+ * <ul>
+ *   <li>{@link #TYPE_VERSION}: a new version with its metadata and either
+ *       all of its values (a checkpoint), or only the values that differ from
+ *       its predecessor together with the keys that were removed. Values
+ *       are XStream XML in UTF-8.</li>
+ *   <li>{@link #TYPE_CODED_VERSION}: the same, but each value is stored with
+ *       the id of its codec and its digest.</li>
+ * </ul>
+ * Null values and null digests are stored with a length of -1.
+ * <p>
+ * A version may be written again later on, if its values were altered.
+ * The latest record of a version is the valid one; the older records stay in
+ * place, since the records following them may depend on them.
+ * <p>
+ * A truncated or corrupt record at the end of the file (e.g. after a crash)
+ * ends the file; everything before it stays readable.
+ * <p>
+ * A small index file next to the segment file maps each version to the
+ * offset of its record and marks checkpoints, so that a single version can
+ * be restored without reading the whole file.
+ */
+final class VersionSegmentFile {
+	static final byte[] MAGIC = {'V', 'O', 'S', 'S', 'E', 'G', '\n', 1};
+	private static final byte[] INDEX_MAGIC = {'V', 'O', 'S', 'I', 'D', 'X', '\n', 1};
+	
+	static final byte TYPE_VERSION = 1;
+	static final byte TYPE_META = 2;
+	static final byte TYPE_CODED_VERSION = 3;
+	static final byte TYPE_BLOB = 4;
+	static final byte TYPE_REF_VERSION = 5;
+	static final byte TYPE_REF_DELTA = 6;
+	
+	static final String INDEX_SUFFIX = ".idx";
+	
+	/**
+	 * Upper bound for a single record; anything larger is treated as corrupt.
+	 */
+	private static final int MAX_RECORD_LENGTH = 1 << 30;
+	
+	
+	/**
+	 * A decoded record of either type.
+	 */
+	static final class Record {
+		byte type;
+		long offset;
+		/**
+		 * The length of the whole record, including its framing.
+		 */
+		int length;
+		
+		long id;
+		long timestamp;
+		boolean stable;
+		boolean checkpoint;
+		String username;
+		String description;
+		
+		/**
+		 * The inline values of the version; all of them for a checkpoint,
+		 * otherwise only the changed ones. Null values have null data.
+		 */
+		final LinkedHashMap<String, Encoded> values = new LinkedHashMap<String, Encoded>();
+		final List<String> removed = new LinkedList<String>();
+		
+		/**
+		 * The digests of the values referenced by the version; null for
+		 * null values.
+		 */
+		final LinkedHashMap<String, byte[]> refs = new LinkedHashMap<String, byte[]>();
+		
+		/**
+		 * The digest of a blob record.
+		 */
+		byte[] digest;
+		/**
+		 * The value of a blob record.
+		 */
+		Encoded blob;
+	}
+	
+	/**
+	 * Position of a version record in the segment file.
+	 */
+	static final class IndexEntry {
+		final long id;
+		final long offset;
+		final boolean checkpoint;
+		
+		IndexEntry(long id, long offset, boolean checkpoint) {
+			this.id = id;
+			this.offset = offset;
+			this.checkpoint = checkpoint;
+		}
+	}
+	
+	
+	private VersionSegmentFile() {
+		//Only static access
+	}
+	
+	static File getIndexFile(File segment) {
+		return new File(segment.getPath() + INDEX_SUFFIX);
+	}
+	
+	/**
+	 * @param file the file to check
+	 * @return true, if the file starts with {@link #MAGIC}.
+	 */
+	static boolean isSegmentFile(File file) {
+		if (file == null || !file.isFile() || file.length() < MAGIC.length) {
+			return false;
+		}
+		try (InputStream is = new FileInputStream(file)) {
+			byte[] head = new byte[MAGIC.length];
+			int read = 0;
+			while (read < head.length) {
+				int r = is.read(head, read, head.length - read);
+				if (r < 0) { return false; }
+				read += r;
+			}
+			return Arrays.equals(head, MAGIC);
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+	
+	
+	// === ENCODING ===
+	
+	/**
+	 * @param id the id of the version that first uses the value
+	 * @param value the value; must not have null data
+	 * @return the framed blob record
+	 * @throws IOException never
+	 */
+	static byte[] encodeBlob(long id, Encoded value) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeByte(TYPE_BLOB);
+		dos.writeLong(id);
+		writeBytes(dos, value.getDigest());
+		dos.writeByte(value.codec.getId());
+		writeBytes(dos, value.data);
+		dos.flush();
+		return frame(baos.toByteArray());
+	}
+	
+	/**
+	 * @param v the version
+	 * @param checkpoint whether the record holds all values of the version
+	 * @param refs the digests of all values of the version for a checkpoint,
+	 *        otherwise only of the changed ones; null for null values
+	 * @param removed the keys removed since the preceding version; ignored
+	 *        for a checkpoint
+	 * @return the framed version record
+	 * @throws IOException never
+	 */
+	static byte[] encodeRefVersion(VersionedObjectStore.Version v,
+			boolean checkpoint, Map<String, byte[]> refs,
+			Collection<String> removed) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeByte((checkpoint) ? TYPE_REF_VERSION : TYPE_REF_DELTA);
+		dos.writeLong(v.id);
+		dos.writeLong(v.timestamp);
+		dos.writeBoolean(v.getStability());
+		writeString(dos, v.getUsername());
+		writeString(dos, v.getDescription());
+		dos.writeInt(refs.size());
+		for (Map.Entry<String, byte[]> e : refs.entrySet()) {
+			writeString(dos, e.getKey());
+			writeBytes(dos, e.getValue());
+		}
+		if (!checkpoint) {
+			dos.writeInt(removed.size());
+			for (String key : removed) {
+				writeString(dos, key);
+			}
+		}
+		dos.flush();
+		return frame(baos.toByteArray());
+	}
+	
+	static byte[] encodeMeta(VersionedObjectStore.Version v) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeByte(TYPE_META);
+		dos.writeLong(v.id);
+		dos.writeBoolean(v.getStability());
+		writeString(dos, v.getDescription());
+		dos.flush();
+		return frame(baos.toByteArray());
+	}
+	
+	private static byte[] frame(byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(body.length + 8);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(body.length);
+			dos.write(body);
+			dos.writeInt((int) crc.getValue());
+			dos.flush();
+		} catch (IOException ex) {
+			//Can't happen with a byte array
+			throw new IllegalStateException(ex);
+		}
+		return baos.toByteArray();
+	}
+	
+	private static void writeString(DataOutputStream dos, String s) throws IOException {
+		writeBytes(dos, (s == null) ? null : s.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private static void writeBytes(DataOutputStream dos, byte[] b) throws IOException {
+		if (b == null) {
+			dos.writeInt(-1);
+		} else {
+			dos.writeInt(b.length);
+			dos.write(b);
+		}
+	}
+	
+	
+	// === DECODING ===
+	
+	private static Record decode(byte[] body, long offset, boolean withValues)
+			throws IOException {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(body));
+		Record r = new Record();
+		r.offset = offset;
+		r.length = body.length + 8;
+		r.type = dis.readByte();
+		r.id = dis.readLong();
+		switch (r.type) {
+			case TYPE_VERSION:
+			case TYPE_CODED_VERSION:
+				r.timestamp = dis.readLong();
+				r.stable = dis.readBoolean();
+				r.checkpoint = dis.readBoolean();
+				r.username = readString(dis);
+				r.description = readString(dis);
+				if (!withValues) { break; }
+				int nValues = dis.readInt();
+				for (int i = 0; i < nValues; i++) {
+					String key = readString(dis);
+					if (r.type == TYPE_VERSION) {
+						r.values.put(key, new Encoded(VersionValueCodec.XML, readBytes(dis), null));
+						continue;
+					}
+					VersionValueCodec codec = VersionValueCodec.forId(dis.readByte());
+					byte[] data = readBytes(dis);
+					r.values.put(key, new Encoded(codec, data, readBytes(dis)));
+				}
+				int nRemoved = dis.readInt();
+				for (int i = 0; i < nRemoved; i++) {
+					r.removed.add(readString(dis));
+				}
+				break;
+				
+			case TYPE_REF_VERSION:
+			case TYPE_REF_DELTA:
+				r.timestamp = dis.readLong();
+				r.stable = dis.readBoolean();
+				r.checkpoint = (r.type == TYPE_REF_VERSION);
+				r.username = readString(dis);
+				r.description = readString(dis);
+				//The references are small, so they are always decoded
+				int nRefs = dis.readInt();
+				for (int i = 0; i < nRefs; i++) {
+					String key = readString(dis);
+					r.refs.put(key, readBytes(dis));
+				}
+				if (r.checkpoint) { break; }
+				int nRefsRemoved = dis.readInt();
+				for (int i = 0; i < nRefsRemoved; i++) {
+					r.removed.add(readString(dis));
+				}
+				break;
+				
+			case TYPE_BLOB:
+				//The digest is needed to locate blobs, even without values
+				r.digest = readBytes(dis);
+				if (!withValues) { break; }
+				VersionValueCodec codec = VersionValueCodec.forId(dis.readByte());
+				r.blob = new Encoded(codec, readBytes(dis), r.digest);
+				break;
+				
+			case TYPE_META:
+				r.stable = dis.readBoolean();
+				r.description = readString(dis);
+				break;
+				
+			default:
+				throw new IOException("Unknown record type: " + r.type);
+		}
+		return r;
+	}
+	
+	private static String readString(DataInputStream dis) throws IOException {
+		byte[] b = readBytes(dis);
+		return (b == null) ? null : new String(b, StandardCharsets.UTF_8);
+	}
+	
+	private static byte[] readBytes(DataInputStream dis) throws IOException {
+		int len = dis.readInt();
+		if (len < 0) { return null; }
+		byte[] b = new byte[len];
+		dis.readFully(b);
+		return b;
+	}
+	
+	/**
+	 * Reads the framed record body at the current position.
+	 * 
+	 * @return the body, or null if the record is truncated or corrupt.
+	 */
+	private static byte[] readFramed(DataInputStream dis) throws IOException {
+		int len;
+		try {
+			len = dis.readInt();
+		} catch (EOFException ex) {
+			return null;
+		}
+		if (len <= 0 || len > MAX_RECORD_LENGTH) { return null; }
+		byte[] body = new byte[len];
+		int crcVal;
+		try {
+			dis.readFully(body);
+			crcVal = dis.readInt();
+		} catch (EOFException ex) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if ((int) crc.getValue() != crcVal) { return null; }
+		return body;
+	}
+	
+	/**
+	 * The content of a segment file.
+	 */
+	static final class Content {
+		final List<Record> records = new ArrayList<Record>();
+		/**
+		 * The length of the intact part of the file.
+		 */
+		long validLength;
+	}
+	
+	/**
+	 * Reads all intact records of the given file.
+	 * 
+	 * @param file the segment file
+	 * @return the records in file order
+	 * @throws IOException if the file can't be read or is no segment file
+	 */
+	static Content readAll(File file) throws IOException {
+		return readAll(file, true);
+	}
+	
+	/**
+	 * Reads all intact records of the given file.
+	 * 
+	 * @param file the segment file
+	 * @param withValues if false, only the metadata of version records and
+	 *        the digests they refer to are decoded; inline values, removed
+	 *        keys of inline records and the data of blobs are left empty
+	 * @return the records in file order
+	 * @throws IOException if the file can't be read or is no segment file
+	 */
+	static Content readAll(File file, boolean withValues) throws IOException {
+		Content c = new Content();
+		try (DataInputStream dis = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			byte[] head = new byte[MAGIC.length];
+			dis.readFully(head);
+			if (!Arrays.equals(head, MAGIC)) {
+				throw new IOException("Not a version segment file: " + file);
+			}
+			long offset = MAGIC.length;
+			while (true) {
+				byte[] body = readFramed(dis);
+				if (body == null) { break; }
+				c.records.add(decode(body, offset, withValues));
+				offset += body.length + 8;
+			}
+			c.validLength = offset;
+		}
+		return c;
+	}
+	
+	/**
+	 * Reads the records at the given offsets via random access.
+	 * 
+	 * @param file the segment file
+	 * @param offsets the offsets of the records, as stored in the index
+	 * @return the records in the given order
+	 * @throws IOException if any record can't be read
+	 */
+	static List<Record> readAt(File file, long[] offsets) throws IOException {
+		List<Record> out = new ArrayList<Record>(offsets.length);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			for (long offset : offsets) {
+				raf.seek(offset);
+				int len = raf.readInt();
+				if (len <= 0 || len > MAX_RECORD_LENGTH) {
+					throw new IOException("Corrupt record at " + offset + " in " + file);
+				}
+				byte[] body = new byte[len];
+				raf.readFully(body);
+				int crcVal = raf.readInt();
+				CRC32 crc = new CRC32();
+				crc.update(body);
+				if ((int) crc.getValue() != crcVal) {
+					throw new IOException("Corrupt record at " + offset + " in " + file);
+				}
+				out.add(decode(body, offset, true));
+			}
+		}
+		return out;
+	}
+	
+	
+	// === WRITING ===
+	
+	/**
+	 * Writes a new segment file with the given records.
+	 * 
+	 * @param file the file to write to; replaced atomically
+	 * @param records the encoded records
+	 * @return the offset of each record
+	 * @throws IOException if writing fails
+	 */
+	static long[] writeNew(File file, List<byte[]> records) throws IOException {
+		File tmpFile = File.createTempFile("atomic", null, file.getParentFile());
+		try {
+			long[] offsets;
+			try (FileOutputStream fos = new FileOutputStream(tmpFile)) {
+				BufferedOutputStream bos = new BufferedOutputStream(fos, 1 << 16);
+				bos.write(MAGIC);
+				offsets = writeRecords(bos, records, MAGIC.length);
+				bos.flush();
+				fos.getFD().sync();
+			}
+			if (file.exists() && !file.delete()) {
+				throw new IOException("Unable to delete " + file);
+			}
+			if (!tmpFile.renameTo(file)) {
+				throw new IOException("Unable to rename " + tmpFile + " to " + file);
+			}
+			return offsets;
+		} finally {
+			tmpFile.delete();
+		}
+	}
+	
+	/**
+	 * Appends the given records to an existing segment file.
+	 * 
+	 * @param file the file to append to
+	 * @param length the length of the intact part of the file; anything
+	 *        after it is cut off first
+	 * @param records the encoded records
+	 * @return the offset of each record
+	 * @throws IOException if writing fails
+	 */
+	static long[] append(File file, long length, List<byte[]> records) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() != length) {
+				raf.setLength(length);
+			}
+			raf.seek(length);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			long[] offsets = writeRecords(baos, records, length);
+			raf.write(baos.toByteArray());
+			raf.getFD().sync();
+			return offsets;
+		}
+	}
+	
+	private static long[] writeRecords(OutputStream os, List<byte[]> records, long start)
+			throws IOException {
+		long[] offsets = new long[records.size()];
+		long offset = start;
+		int i = 0;
+		for (byte[] rec : records) {
+			offsets[i++] = offset;
+			os.write(rec);
+			offset += rec.length;
+		}
+		return offsets;
+	}
+	
+	
+	// === INDEX ===
+	
+	/**
+	 * Writes the index for a segment file. The index is small, so it is
+	 * always replaced as a whole.
+	 * 
+	 * @param segment the segment file
+	 * @param length the length of the segment file covered by the index
+	 * @param entries the positions of all version records, in file order
+	 */
+	static void writeIndex(File segment, long length, Collection<IndexEntry> entries) {
+		File idx = getIndexFile(segment);
+		try {
+			File tmpFile = File.createTempFile("atomic", null, idx.getParentFile());
+			try {
+				try (DataOutputStream dos = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+					dos.write(INDEX_MAGIC);
+					dos.writeLong(length);
+					dos.writeInt(entries.size());
+					for (IndexEntry e : entries) {
+						dos.writeLong(e.id);
+						dos.writeLong(e.offset);
+						dos.writeBoolean(e.checkpoint);
+					}
+				}
+				if (idx.exists() && !idx.delete()) { return; }
+				tmpFile.renameTo(idx);
+			} finally {
+				tmpFile.delete();
+			}
+		} catch (IOException ex) {
+			//The index is only an optimisation; it is rebuilt when missing
+			idx.delete();
+		}
+	}
+	
+	/**
+	 * Reads the index of a segment file.
+	 * 
+	 * @param segment the segment file
+	 * @return the index entries in file order, or null if the index is
+	 *         missing or does not match the segment file.
+	 */
+	static List<IndexEntry> readIndex(File segment) {
+		File idx = getIndexFile(segment);
+		if (!idx.isFile()) { return null; }
+		try (DataInputStream dis = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(idx)))) {
+			byte[] head = new byte[INDEX_MAGIC.length];
+			dis.readFully(head);
+			if (!Arrays.equals(head, INDEX_MAGIC)) { return null; }
+			long length = dis.readLong();
+			if (length != segment.length()) { return null; }
+			int n = dis.readInt();
+			List<IndexEntry> out = new ArrayList<IndexEntry>(Math.max(0, n));
+			for (int i = 0; i < n; i++) {
+				out.add(new IndexEntry(dis.readLong(), dis.readLong(), dis.readBoolean()));
+			}
+			return Collections.unmodifiableList(out);
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+}
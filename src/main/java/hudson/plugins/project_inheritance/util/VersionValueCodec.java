@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import com.thoughtworks.xstream.XStreamException;
+import com.thoughtworks.xstream.io.binary.BinaryStreamReader;
+import com.thoughtworks.xstream.io.binary.BinaryStreamWriter;
+
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Turns the values of a {@link VersionedObjectStore} into bytes and back.
+ * <p>
+ * Each encoded value remembers the codec that produced it, so that values
+ * written with different codecs can live in the same segment file. The
+ * codec used for new values is chosen with the system property
+ * {@value #CODEC_PROPERTY}; either "xml" (the default) or "binary".
+ * <p>
+ * Both codecs use the converters of {@link Jenkins#XSTREAM2}, so they
+ * handle exactly the same objects. The binary one merely skips producing
+ * and parsing the XML text. Exporting a store as XML is unaffected by
+ * the codec; see {@link VersionedObjectStore#writeXML(java.io.Writer)}.
+ */
+public abstract class VersionValueCodec {
+	public static final String CODEC_PROPERTY =
+			VersionedObjectStore.class.getName() + ".codec";
+	
+	private static final Logger log = Logger.getLogger(
+			VersionValueCodec.class.toString()
+	);
+	
+	/**
+	 * XStream XML in UTF-8; the format of all values written before codecs
+	 * were introduced.
+	 */
+	public static final VersionValueCodec XML = new VersionValueCodec((byte) 0, "xml") {
+		@Override
+		protected byte[] encodeNonNull(Object value) throws IOException {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			Jenkins.XSTREAM2.toXMLUTF8(value, os);
+			return os.toByteArray();
+		}
+		
+		@Override
+		protected Object decodeNonNull(byte[] data) {
+			return Jenkins.XSTREAM2.fromXML(new ByteArrayInputStream(data));
+		}
+	};
+	
+	/**
+	 * The token stream of XStream, with element and attribute names
+	 * replaced by numeric ids.
+	 */
+	public static final VersionValueCodec BINARY = new VersionValueCodec((byte) 1, "binary") {
+		@Override
+		protected byte[] encodeNonNull(Object value) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			BinaryStreamWriter writer = new BinaryStreamWriter(os);
+			Jenkins.XSTREAM2.marshal(value, writer);
+			writer.close();
+			return os.toByteArray();
+		}
+		
+		@Override
+		protected Object decodeNonNull(byte[] data) {
+			BinaryStreamReader reader = new BinaryStreamReader(new ByteArrayInputStream(data));
+			try {
+				return Jenkins.XSTREAM2.unmarshal(reader);
+			} finally {
+				reader.close();
+			}
+		}
+	};
+	
+	private static final VersionValueCodec[] codecs = { XML, BINARY };
+	
+	private static final VersionValueCodec defaultCodec = forName(
+			SystemProperties.getString(CODEC_PROPERTY, XML.name)
+	);
+	
+	
+	/**
+	 * A value together with the codec that encoded it and the digest of
+	 * the encoded bytes. Null values have null data and an empty digest.
+	 */
+	static final class Encoded {
+		final VersionValueCodec codec;
+		final byte[] data;
+		private byte[] digest;
+		
+		Encoded(VersionValueCodec codec, byte[] data, byte[] digest) {
+			this.codec = codec;
+			this.data = data;
+			this.digest = digest;
+		}
+		
+		/**
+		 * @return the digest of the data; computed on first access, if it
+		 *         was not stored alongside the data.
+		 */
+		byte[] getDigest() {
+			if (this.digest == null) {
+				this.digest = digest(this.data);
+			}
+			return this.digest;
+		}
+		
+		Object decode() throws IOException {
+			return this.codec.decode(this.data);
+		}
+		
+		/**
+		 * @param other the value to compare with
+		 * @return true, if both encode the same content. Values encoded with
+		 *         different codecs are re-encoded for the comparison.
+		 */
+		boolean hasSameContent(Encoded other) throws IOException {
+			if (other == null) { return false; }
+			if (this.codec == other.codec) {
+				return Arrays.equals(this.getDigest(), other.getDigest());
+			}
+			if (this.data == null || other.data == null) {
+				return this.data == other.data;
+			}
+			return Arrays.equals(this.data, this.codec.encode(other.decode()));
+		}
+	}
+	
+	
+	private final byte id;
+	private final String name;
+	
+	private VersionValueCodec(byte id, String name) {
+		this.id = id;
+		this.name = name;
+	}
+	
+	/**
+	 * @return the id of this codec, as stored in segment files.
+	 */
+	public byte getId() {
+		return this.id;
+	}
+	
+	public String getName() {
+		return this.name;
+	}
+	
+	@Override
+	public String toString() {
+		return this.name;
+	}
+	
+	protected abstract byte[] encodeNonNull(Object value) throws IOException;
+	
+	protected abstract Object decodeNonNull(byte[] data);
+	
+	/**
+	 * @param value the value to encode; may be null
+	 * @return the encoded value, or null for null
+	 * @throws IOException if the value can't be serialized
+	 */
+	public byte[] encode(Object value) throws IOException {
+		if (value == null) { return null; }
+		try {
+			return this.encodeNonNull(value);
+		} catch (XStreamException ex) {
+			throw new IOException(ex);
+		}
+	}
+	
+	/**
+	 * @param data the encoded value; may be null
+	 * @return the decoded value, or null for null
+	 * @throws IOException if the data can't be deserialized
+	 */
+	public Object decode(byte[] data) throws IOException {
+		if (data == null) { return null; }
+		try {
+			return this.decodeNonNull(data);
+		} catch (XStreamException ex) {
+			throw new IOException(ex);
+		}
+	}
+	
+	/**
+	 * Encodes the given value and computes its digest.
+	 */
+	Encoded encodeWithDigest(Object value) throws IOException {
+		byte[] data = this.encode(value);
+		return new Encoded(this, data, digest(data));
+	}
+	
+	
+	// === REGISTRY ===
+	
+	/**
+	 * @return the codec used for newly written values.
+	 */
+	public static VersionValueCodec getDefault() {
+		return defaultCodec;
+	}
+	
+	/**
+	 * @param id the id of a codec, as stored in segment files
+	 * @return the codec with that id
+	 * @throws IOException if no such codec exists
+	 */
+	public static VersionValueCodec forId(byte id) throws IOException {
+		for (VersionValueCodec c : codecs) {
+			if (c.id == id) { return c; }
+		}
+		throw new IOException("Unknown value codec: " + id);
+	}
+	
+	private static VersionValueCodec forName(String name) {
+		for (VersionValueCodec c : codecs) {
+			if (c.name.equalsIgnoreCase(name)) { return c; }
+		}
+		log.warning(String.format(
+				"Unknown value codec '%s' in %s; using '%s'",
+				name, CODEC_PROPERTY, XML.name
+		));
+		return XML;
+	}
+	
+	/**
+	 * @param data the encoded value; may be null
+	 * @return the SHA-256 digest of the data; empty for null
+	 */
+	static byte[] digest(byte[] data) {
+		if (data == null) { return new byte[0]; }
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException ex) {
+			//Every JVM must support SHA-256
+			throw new IllegalStateException(ex);
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.util;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hudson.Util;
+import hudson.model.Saveable;
+import hudson.util.DescribableList;
+import jenkins.util.SystemProperties;
+
+/**
+ * Shares equal values that were loaded from version stores, so that the
+ * many versions (and projects) that use the very same builders or SCM
+ * configuration hold only a single copy of it on the heap.
+ * <p>
+ * Values are identified by their key in the store and the digest of their
+ * encoded form. They are only referenced weakly, so a value is dropped as
+ * soon as no loaded version uses it anymore.
+ * <p>
+ * Only values that are not bound to their owner after loading may be shared.
+ * By default, these are the builders, publishers, build wrappers and the SCM.
+ * The keys can be configured as a comma separated list with the system
+ * property {@value #KEYS_PROPERTY}; an empty list disables sharing.
+ * <p>
+ * The shared values themselves never leave the version store. Its getters
+ * hand out a copy made by {@link #copy(String, Object)} instead, so that a
+ * caller editing the value does not edit it for all versions and projects
+ * that use it.
+ */
+public final class VersionValuePool {
+	public static final String KEYS_PROPERTY =
+			VersionValuePool.class.getName() + ".keys";
+	
+	/**
+	 * The keys shared by default. Properties and actions must not be shared,
+	 * as their owner is set to the project that loaded them.
+	 */
+	private static final String DEFAULT_KEYS =
+			"buildersList,publishersList,buildWrappersList,scm";
+	
+	private static final Set<String> keys = new HashSet<String>(Arrays.asList(
+			Util.tokenize(SystemProperties.getString(KEYS_PROPERTY, DEFAULT_KEYS), ", ")
+	));
+	
+	private static final ConcurrentHashMap<String, Ref> pool =
+			new ConcurrentHashMap<String, Ref>();
+	
+	private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+	
+	private static final AtomicLong hits = new AtomicLong(0);
+	private static final AtomicLong misses = new AtomicLong(0);
+	
+	
+	private static final class Ref extends WeakReference<Object> {
+		final String id;
+		
+		Ref(String id, Object value) {
+			super(value, queue);
+			this.id = id;
+		}
+	}
+	
+	
+	private VersionValuePool() {
+		//Only static access
+	}
+	
+	public static boolean isShared(String key) {
+		return keys.contains(key);
+	}
+	
+	/**
+	 * Returns the shared copy of the given value, registering the value
+	 * as that copy, if there is none yet.
+	 * 
+	 * @param key the key of the value in the version store
+	 * @param digest the digest of the encoded value
+	 * @param value the freshly decoded value
+	 * @return the shared copy; which is the given value if no other copy
+	 * is in use, or the value isn't shared at all.
+	 */
+	public static Object intern(String key, byte[] digest, Object value) {
+		if (value == null || digest == null || digest.length == 0 || !isShared(key)) {
+			return value;
+		}
+		expunge();
+		String id = key + ":" + Util.toHexString(digest);
+		Ref fresh = new Ref(id, value);
+		while (true) {
+			Ref ref = pool.putIfAbsent(id, fresh);
+			if (ref == null) {
+				misses.incrementAndGet();
+				return value;
+			}
+			Object shared = ref.get();
+			if (shared != null) {
+				hits.incrementAndGet();
+				return shared;
+			}
+			//The old copy was collected in the meantime; replace it
+			if (pool.replace(id, ref, fresh)) {
+				misses.incrementAndGet();
+				return value;
+			}
+		}
+	}
+	
+	/**
+	 * Returns a copy of a value that may be shared, which the caller is free
+	 * to alter.
+	 * <p>
+	 * Lists of build steps are copied shallowly, as the steps in them are
+	 * replaced instead of altered when a project is configured. Any other
+	 * shared value is copied by encoding and decoding it again.
+	 * 
+	 * @param key the key of the value in the version store
+	 * @param value the value as stored
+	 * @return the given value if it is not shared; a copy otherwise.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static Object copy(String key, Object value) {
+		if (value == null || !isShared(key)) {
+			return value;
+		}
+		if (value instanceof DescribableList) {
+			return new DescribableList(Saveable.NOOP, (DescribableList) value);
+		}
+		try {
+			VersionValueCodec codec = VersionValueCodec.getDefault();
+			return codec.decode(codec.encode(value));
+		} catch (IOException ex) {
+			throw new IllegalStateException(
+					"Could not copy shared value of " + key, ex
+			);
+		}
+	}
+	
+	/**
+	 * Removes the entries whose values were collected.
+	 */
+	private static void expunge() {
+		Ref ref;
+		while ((ref = (Ref) queue.poll()) != null) {
+			pool.remove(ref.id, ref);
+		}
+	}
+	
+	
+	// === STATISTICS ===
+	
+	public static long getHits() {
+		return hits.get();
+	}
+	
+	public static long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * @return the number of distinct values currently shared.
+	 */
+	public static int size() {
+		expunge();
+		return pool.size();
+	}
+}
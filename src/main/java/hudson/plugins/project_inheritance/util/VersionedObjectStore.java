@@ -20,7 +20,6 @@
  */
 package hudson.plugins.project_inheritance.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -28,13 +27,23 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.ref.SoftReference;
 import java.text.DateFormat;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Set;
@@ -45,10 +54,14 @@ import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
-import com.google.common.collect.Sets;
 import com.thoughtworks.xstream.XStreamException;
 
+import hudson.Util;
+import hudson.plugins.project_inheritance.util.VersionSegmentFile.IndexEntry;
+import hudson.plugins.project_inheritance.util.VersionSegmentFile.Record;
+import hudson.plugins.project_inheritance.util.VersionValueCodec.Encoded;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 
 /**
  * This class allows you to version-control almost arbitrary objects.
@@ -73,6 +86,35 @@ public class VersionedObjectStore implements Serializable {
 			VersionedObjectStore.class.toString()
 	);
 	
+	/**
+	 * The number of versions after which a full checkpoint is written to the
+	 * segment file, instead of only the changed values.
+	 */
+	private static final int CHECKPOINT_INTERVAL = 64;
+	
+	/**
+	 * The share of a segment file that may be taken up by records no longer
+	 * needed, before the file is written anew on the next save.
+	 */
+	private static final double COMPACTION_RATIO = 0.5;
+	
+	/**
+	 * The maximum number of lazily loaded value maps kept per store. They are
+	 * only softly referenced, so the garbage collector may drop them earlier.
+	 */
+	private static final int MAX_LOADED_VERSIONS = SystemProperties.getInteger(
+			VersionedObjectStore.class.getName() + ".maxLoadedVersions", 8
+	);
+	
+	/**
+	 * Gets notified whenever the values of a version were loaded from disk.
+	 * This allows the owner of the store to fix up transient state of the
+	 * loaded objects.
+	 */
+	public interface LoadListener {
+		public void onLoaded(Version v, Map<String, Object> values);
+	}
+	
 	
 	public static class Version implements Serializable, Comparable<Object> {
 		private static final long serialVersionUID = -5953602045057843995L;
@@ -110,6 +152,10 @@ public class VersionedObjectStore implements Serializable {
 		
 		
 		public Version(Long id) {
+			this(id, new Date().getTime());
+		}
+		
+		Version(Long id, long timestamp) {
 			if (id == null || id < 0) {
 				throw new IllegalArgumentException(
 						"You may not assign null or negative version ids"
@@ -117,7 +163,7 @@ public class VersionedObjectStore implements Serializable {
 			}
 			this.id = id;
 			this.stable = false;
-			this.timestamp = new Date().getTime();
+			this.timestamp = timestamp;
 		}
 		
 		public String toString() {
@@ -233,10 +279,35 @@ public class VersionedObjectStore implements Serializable {
 	 * <p>
 	 * Thus, read/writes to a single object value are O(log(n)) instead of O(1)
 	 * in the general case, but the last version can always be accessed in O(1).
-	 *  
+	 * <p>
+	 * When the store was loaded from or saved to a segment file, the values
+	 * of the versions in that file are null here. They are loaded on demand
+	 * by {@link #getMap(Version)} and kept in {@link #loaded}. Only versions
+	 * that are new or were altered since then keep their map in here.
 	 */
 	private final TreeMap<Version, HashMap<String, Object>> store;
 	
+	/**
+	 * The value maps loaded lazily from the segment file, in LRU order.
+	 */
+	private transient LinkedHashMap<Long, SoftReference<HashMap<String, Object>>> loaded;
+	
+	private transient LoadListener loadListener;
+	
+	/**
+	 * The state of the segment file this store was last loaded from or saved
+	 * to. Null, if the store was never saved in that format (e.g. because it
+	 * was loaded from the legacy XML format), which causes the next save to
+	 * write the file anew.
+	 */
+	private transient SegmentState segment;
+	
+	/**
+	 * The encoded values of versions that were not saved yet, so that
+	 * comparing and then saving them serializes them only once.
+	 */
+	private transient HashMap<Long, HashMap<String, Encoded>> encoded;
+	
 	
 	public VersionedObjectStore() {
 		this.store = new TreeMap<Version, HashMap<String,Object>>();
@@ -260,7 +331,32 @@ public class VersionedObjectStore implements Serializable {
 	}
 	
 	public String toXML() {
-		return Jenkins.XSTREAM2.toXML(this);
+		StringWriter out = new StringWriter();
+		this.writeXML(out);
+		return out.toString();
+	}
+	
+	/**
+	 * Serializes this store as XML directly into the given writer, without
+	 * building the whole document in memory first.
+	 * 
+	 * @param out the writer to serialize to. Will be flushed, but not closed.
+	 */
+	public void writeXML(Writer out) {
+		if (!this.store.containsValue(null)) {
+			Jenkins.XSTREAM2.toXML(this, out);
+			return;
+		}
+		//Some values are only on disk; serialize a fully loaded copy instead
+		VersionedObjectStore copy = new VersionedObjectStore();
+		for (Version v : this.store.keySet()) {
+			copy.store.put(v, this.getMap(v));
+		}
+		Jenkins.XSTREAM2.toXML(copy, out);
+	}
+	
+	public void setLoadListener(LoadListener listener) {
+		this.loadListener = listener;
 	}
 	
 	public int size() {
@@ -273,56 +369,160 @@ public class VersionedObjectStore implements Serializable {
 	 * 
 	 * Not making the save automatic allows you to make bulk-changes and only
 	 * dump them to disk once finished.
+	 * <p>
+	 * The store is saved in the append-only segment format described in
+	 * {@link VersionSegmentFile}. If this store was loaded from or last saved
+	 * to the same file, only the versions created since then (storing only
+	 * the values not yet present in the file) and changed metadata of older
+	 * versions are appended. Otherwise, or if old versions were altered or
+	 * dropped, the file is written anew; which also drops all values that
+	 * are no longer used by any version.
 	 * 
 	 * Do note that while the function itself is synchronized, at the moment
 	 * nothing prevents others to change the underlying data fields during save.
 	 * 
-	 * TODO: Fix this, so that saves are truly atomic.
-	 * 
 	 * Do note that this function fails silently in case the output file is not
 	 * writable.  It will log an error, but do nothing beyond that
 	 * 
-	 * @param file the file to save the data to. The data is dumped
-	 * as GZIP-compressed XML.
-	 * @throws IOException in case the save file can't be read.
+	 * @param file the file to save the data to.
+	 * @throws IOException in case the save file can't be written.
 	 */
 	public synchronized void save(File file) throws IOException {
 		if (file == null) {
 			//Return silently, as the user explicitly wanted a null-save
 			return;
 		}
-		//Create a temporary file for the output file
-		File tmpFile = File.createTempFile("atomic", null, file.getParentFile());
-		if (tmpFile == null) {
-			throw new IOException("Could not create atomic file for saving versions");
-		}
-		GZIPOutputStream gzos = null;
+		SegmentState seg = this.segment;
+		long start = InheritanceMetrics.startTimer();
+		long oldLength = 0;
 		try {
-			//Preparing the nested streams
-			gzos = new GZIPOutputStream(new FileOutputStream(tmpFile));
-			//Dumping the XML stream
-			Jenkins.XSTREAM2.toXMLUTF8(this, gzos);
-			//Closing the file stream; no need to flush as that happened above
-			gzos.close();
-			if (file.exists() && !file.delete()) {
-				tmpFile.delete();
-				throw new IOException("Unable to delete " + file);
-			}
-			tmpFile.renameTo(file);
+			if (seg == null || !seg.canAppendTo(file, this.store)) {
+				this.segment = this.rewrite(file);
+			} else {
+				oldLength = seg.length;
+				this.append(seg);
+				if (seg.needsCompaction()) {
+					//Dropping the values and records that are no longer used
+					this.segment = this.rewrite(file);
+					InheritanceMetrics.increment("versionStore.save.compacted");
+				}
+			}
 		} catch (Exception ex) {
 			log.warning(
 					"Saving versioned object store failed due to exception: " +
 					ex.toString()
 			);
-		} finally {
-			if (gzos != null) { gzos.close(); }
-			tmpFile.delete();
+			//The state of the file is unknown; write it anew next time. The
+			//records that were there before stay readable, though.
+			if (seg != null) {
+				seg.rewriteNeeded = true;
+				seg.discardPending();
+			}
+			InheritanceMetrics.increment("versionStore.save.failed");
+			return;
+		}
+		this.releaseSaved();
+		this.encoded = null;
+		if (InheritanceMetrics.isEnabled()) {
+			InheritanceMetrics.recordTime("versionStore.save", start);
+			InheritanceMetrics.recordValue(
+					"versionStore.save.bytes",
+					this.segment.length - oldLength
+			);
+		}
+	}
+	
+	/**
+	 * Moves the value maps of all saved versions from the store into the
+	 * cache of loaded maps, since they can be restored from disk.
+	 */
+	private void releaseSaved() {
+		if (this.segment == null || this.segment.lastId < 0) { return; }
+		Map<Version, HashMap<String, Object>> saved =
+				this.store.headMap(new Version(this.segment.lastId), true);
+		for (Map.Entry<Version, HashMap<String, Object>> e : saved.entrySet()) {
+			if (e.getValue() == null) { continue; }
+			this.getLoaded().put(e.getKey().id, new SoftReference<HashMap<String, Object>>(e.getValue()));
+			e.setValue(null);
+		}
+	}
+	
+	/**
+	 * Signals that values of already saved versions were altered directly
+	 * (e.g. via {@link #getAllValueMaps()}). The next call to
+	 * {@link #save(File)} will then write the whole file anew.
+	 * <p>
+	 * Values altered via {@link #setObjectFor(Version, String, Object)} do
+	 * not need this; their versions are appended to the file again.
+	 */
+	public synchronized void markModified() {
+		if (this.segment != null) {
+			this.segment.rewriteNeeded = true;
+		}
+		this.encoded = null;
+	}
+	
+	private SegmentState rewrite(File file) throws IOException {
+		SegmentState seg = new SegmentState(file);
+		List<byte[]> records = new ArrayList<byte[]>(this.store.size());
+		for (Version v : this.store.keySet()) {
+			//Values only on disk are copied from the old file as they are
+			Map<String, Encoded> values = this.getEncoded(v);
+			if (values == null) {
+				throw new IOException("Unable to read version " + v.id);
+			}
+			seg.encodeNext(v, values, records);
+		}
+		long[] offsets = VersionSegmentFile.writeNew(file, records);
+		seg.commit(offsets, file.length());
+		return seg;
+	}
+	
+	private void append(SegmentState seg) throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>();
+		//First, the changed metadata of versions that were saved before
+		if (seg.lastId >= 0) {
+			for (Version v : this.store.headMap(new Version(seg.lastId), true).keySet()) {
+				String meta = SegmentState.getMetaStamp(v);
+				if (!meta.equals(seg.meta.get(v.id)) && !seg.altered.contains(v.id)) {
+					byte[] rec = VersionSegmentFile.encodeMeta(v);
+					records.add(rec);
+					seg.trackMeta(v.id, rec.length);
+					seg.meta.put(v.id, meta);
+					seg.pending.add(null);
+				}
+			}
+		}
+		//Then, the saved versions whose values were altered
+		for (Long id : seg.altered) {
+			Version v = this.getVersion(id);
+			if (v == null) { continue; }
+			Map<String, Encoded> values = this.getEncoded(v);
+			if (values == null) {
+				throw new IOException("Unable to read version " + v.id);
+			}
+			seg.encodeAltered(v, values, records);
+		}
+		//Then, the new versions
+		Map<Version, HashMap<String, Object>> tail = (seg.lastId >= 0)
+				? this.store.tailMap(new Version(seg.lastId), false)
+				: this.store;
+		if (!tail.isEmpty()) {
+			seg.ensureDigests();
 		}
+		for (Version v : tail.keySet()) {
+			seg.encodeNext(v, this.getEncoded(v), records);
+		}
+		if (records.isEmpty()) { return; }
+		
+		long[] offsets = VersionSegmentFile.append(seg.file, seg.length, records);
+		seg.commit(offsets, seg.file.length());
 	}
 	
 	/**
 	 * Loads a {@link VersionedObjectStore} from the given file.
-	 * @param file the file to load data from. Must be XML -- either raw or
+	 * @param file the file to load data from. Must either use the segment
+	 * format written by {@link #save(File)}, or be XML -- either raw or
 	 * GZIP compressed.
 	 * 
 	 * @return a newly created VersionedObjectStore.
@@ -332,10 +532,28 @@ public class VersionedObjectStore implements Serializable {
 	 */
 	public static VersionedObjectStore load(File file)
 			throws IllegalArgumentException, IOException, XStreamException {
+		long start = InheritanceMetrics.startTimer();
+		try {
+			return loadFile(file);
+		} finally {
+			if (InheritanceMetrics.isEnabled()) {
+				InheritanceMetrics.recordTime("versionStore.load", start);
+				InheritanceMetrics.recordValue("versionStore.load.bytes", file.length());
+			}
+		}
+	}
+	
+	private static VersionedObjectStore loadFile(File file)
+			throws IllegalArgumentException, IOException, XStreamException {
 		if (!file.exists()) {
 			throw new IOException("No such file: " + file.toString());
 		}
 		
+		//Checking if the file uses the segment format
+		if (VersionSegmentFile.isSegmentFile(file)) {
+			return loadSegments(file);
+		}
+		
 		//Checking if the file is GZ compressed
 		RandomAccessFile raf = new RandomAccessFile(file, "r");
 		boolean isGZ = false;
@@ -372,47 +590,677 @@ public class VersionedObjectStore implements Serializable {
 	}
 	
 	
-	public boolean areIdentical(Version v1, Version v2) {
-		Map<String,Object> map1 = this.getValueMapFor(v1.id);
-		Map<String,Object> map2 = this.getValueMapFor(v2.id);
+	/**
+	 * Loads only the metadata of all versions from a segment file. Their
+	 * values are loaded on first access.
+	 */
+	private static VersionedObjectStore loadSegments(File file) throws IOException {
+		VersionSegmentFile.Content content = VersionSegmentFile.readAll(file, false);
+		VersionedObjectStore vos = new VersionedObjectStore();
+		SegmentState seg = new SegmentState(file);
 		
-		ByteArrayOutputStream os1, os2;
-		try {
-			//First, we check if the number of keys matches
-			if (map1.size() != map2.size()) {
-				return false;
+		for (Record r : content.records) {
+			if (r.type == VersionSegmentFile.TYPE_BLOB) {
+				String hex = Util.toHexString(r.digest);
+				seg.blobs.put(hex, r.offset);
+				seg.blobLengths.put(hex, r.length);
+				continue;
 			}
-			//Then, we verify if all keys are present in both
-			Set<String> union = Sets.union(map1.keySet(), map2.keySet());
-			if (union.size() != map1.size()) {
+			if (r.type == VersionSegmentFile.TYPE_META) {
+				Version v = vos.getVersion(r.id);
+				if (v != null) {
+					v.setStability(r.stable);
+					v.setDescription(r.description);
+				}
+				seg.trackMeta(r.id, r.length);
+				continue;
+			}
+			Version v = vos.getVersion(r.id);
+			if (v == null) {
+				v = new Version(r.id, r.timestamp);
+				v.setUsername(r.username);
+				vos.store.put(v, null);
+			}
+			//A version written again carries its latest metadata
+			v.setStability(r.stable);
+			v.setDescription(r.description);
+			seg.replay(r);
+		}
+		seg.countReferences(content.records);
+		for (Version v : vos.store.keySet()) {
+			seg.meta.put(v.id, SegmentState.getMetaStamp(v));
+		}
+		seg.length = content.validLength;
+		
+		//Rebuild the index, if it is missing or outdated
+		if (VersionSegmentFile.readIndex(file) == null) {
+			VersionSegmentFile.writeIndex(file, file.length(), seg.index);
+		}
+		vos.segment = seg;
+		return vos;
+	}
+	
+	
+	// === VALUE ENCODING ===
+	
+	/**
+	 * Returns the encoded values of the given version. Values that are only
+	 * on disk are returned as stored, without decoding them. Values held in
+	 * memory are encoded with the default {@link VersionValueCodec}; for
+	 * unsaved versions, the result is kept until the next save.
+	 * 
+	 * @param v the version
+	 * @return the encoded values, or null if the version does not exist or
+	 *         could not be read
+	 * @throws IOException if a value can't be serialized
+	 */
+	private synchronized Map<String, Encoded> getEncoded(Version v) throws IOException {
+		boolean unsaved = this.segment == null || v.id > this.segment.lastId;
+		if (unsaved && this.encoded != null) {
+			HashMap<String, Encoded> cached = this.encoded.get(v.id);
+			if (cached != null) { return cached; }
+		}
+		HashMap<String, Object> map = this.store.get(v);
+		if (map == null) {
+			if (!this.store.containsKey(v) || this.segment == null) { return null; }
+			return this.segment.readValues(v.id);
+		}
+		VersionValueCodec codec = VersionValueCodec.getDefault();
+		HashMap<String, Encoded> out = new HashMap<String, Encoded>();
+		for (Map.Entry<String, Object> e : map.entrySet()) {
+			out.put(e.getKey(), codec.encodeWithDigest(e.getValue()));
+		}
+		if (unsaved) {
+			if (this.encoded == null) {
+				this.encoded = new HashMap<Long, HashMap<String, Encoded>>();
+			}
+			this.encoded.put(v.id, out);
+		}
+		return out;
+	}
+	
+	/**
+	 * Drops the encoded values of the given version, as they were altered.
+	 */
+	private synchronized void dropEncoded(Version v) {
+		if (this.encoded != null) {
+			this.encoded.remove(v.id);
+		}
+	}
+	
+	/**
+	 * Tracks what was written to a segment file, so that later saves can
+	 * append only the differences.
+	 */
+	private static class SegmentState {
+		final File file;
+		/**
+		 * The length of the valid part of the file.
+		 */
+		long length;
+		/**
+		 * The id of the last version written; -1 if none.
+		 */
+		long lastId = -1;
+		/**
+		 * The number of versions written.
+		 */
+		int count = 0;
+		int sinceCheckpoint = 0;
+		/**
+		 * Digests of the values of the last version record written; null if
+		 * not known yet. Null values have a null digest.
+		 */
+		HashMap<String, byte[]> lastDigests = null;
+		/**
+		 * The stability and description of each version, as written.
+		 */
+		final HashMap<Long, String> meta = new HashMap<Long, String>();
+		/**
+		 * The positions of all version records. A version that was written
+		 * again appears more than once; its last entry is the valid one.
+		 */
+		final List<IndexEntry> index = new ArrayList<IndexEntry>();
+		/**
+		 * The positions of all blob records, by the hex string of their digest.
+		 */
+		final HashMap<String, Long> blobs = new HashMap<String, Long>();
+		/**
+		 * The number of versions that use each blob, and the length of its
+		 * record; used to find out how much of the file is no longer needed.
+		 */
+		final HashMap<String, Integer> refCounts = new HashMap<String, Integer>();
+		final HashMap<String, Integer> blobLengths = new HashMap<String, Integer>();
+		/**
+		 * The length of the valid record of each version, and of the last
+		 * metadata record written for it.
+		 */
+		final HashMap<Long, Integer> versionLengths = new HashMap<Long, Integer>();
+		final HashMap<Long, Integer> metaLengths = new HashMap<Long, Integer>();
+		/**
+		 * The number of bytes in the file that no restorable version needs
+		 * anymore: unused blobs and outdated version and metadata records.
+		 */
+		long deadBytes = 0;
+		/**
+		 * The ids of the versions written before, whose values were altered
+		 * since then. They are written again on the next save.
+		 */
+		final TreeSet<Long> altered = new TreeSet<Long>();
+		/**
+		 * The records encoded since the last commit, whose offsets are still
+		 * missing: an index entry for versions, the digest for blobs and null
+		 * for metadata records.
+		 */
+		final List<Object> pending = new ArrayList<Object>();
+		/**
+		 * The digests of the blobs among the pending records.
+		 */
+		final HashSet<String> pendingBlobs = new HashSet<String>();
+		boolean rewriteNeeded = false;
+		
+		SegmentState(File file) {
+			this.file = file;
+		}
+		
+		static String getMetaStamp(Version v) {
+			return v.getStability() + ":" + v.getDescription();
+		}
+		
+		boolean canAppendTo(File target, TreeMap<Version, HashMap<String, Object>> store) {
+			if (rewriteNeeded || !target.equals(file) || file.length() != length) {
 				return false;
 			}
-			//Then, we verify that the values in them is identical
-			for (String key : union) {
-				os1 = new ByteArrayOutputStream();
-				os2 = new ByteArrayOutputStream();
-				
-				Object o1 = map1.get(key);
-				Object o2 = map2.get(key);
+			//All versions written before must still be present
+			if (lastId < 0) { return true; }
+			return store.headMap(new Version(lastId), true).size() == count;
+		}
+		
+		/**
+		 * @return true, if at least {@link #COMPACTION_RATIO} of the file is
+		 * no longer needed, so that it should be written anew.
+		 */
+		boolean needsCompaction() {
+			return deadBytes > 0 && deadBytes >= length * COMPACTION_RATIO;
+		}
+		
+		/**
+		 * Encodes the next version, either as a checkpoint or as the
+		 * difference to the previously encoded one.
+		 * 
+		 * @param v the version
+		 * @param values the encoded values of the version
+		 * @param records the list to add the encoded records to
+		 */
+		void encodeNext(Version v, Map<String, Encoded> values, List<byte[]> records)
+				throws IOException {
+			boolean checkpoint = lastDigests == null || sinceCheckpoint >= CHECKPOINT_INTERVAL;
+			this.encodeVersion(v, values, checkpoint, records);
+			lastId = v.id;
+			count++;
+		}
+		
+		/**
+		 * Encodes a version that was written before, but whose values were
+		 * altered since then, as a checkpoint.
+		 * 
+		 * @param v the version
+		 * @param values the encoded values of the version
+		 * @param records the list to add the encoded records to
+		 */
+		void encodeAltered(Version v, Map<String, Encoded> values, List<byte[]> records)
+				throws IOException {
+			int end = this.positionOf(v.id);
+			if (end >= 0) {
+				//The values of the old record are no longer used by this version
+				HashMap<String, String> refs = new HashMap<String, String>();
+				this.replayChain(end, new HashMap<String, Encoded>(), refs);
+				for (String hex : refs.values()) {
+					this.release(hex);
+				}
+				Integer old = versionLengths.get(v.id);
+				if (old != null) { deadBytes += old; }
+			}
+			this.encodeVersion(v, values, true, records);
+		}
+		
+		/**
+		 * Encodes a version record, preceded by blob records for all values
+		 * that are not in the file yet.
+		 */
+		private void encodeVersion(Version v, Map<String, Encoded> values,
+				boolean checkpoint, List<byte[]> records) throws IOException {
+			LinkedHashMap<String, byte[]> refs = new LinkedHashMap<String, byte[]>();
+			HashMap<String, byte[]> digests = new HashMap<String, byte[]>();
+			for (Map.Entry<String, Encoded> e : values.entrySet()) {
+				String key = e.getKey();
+				Encoded value = e.getValue();
+				byte[] d = (value.data == null) ? null : value.getDigest();
+				digests.put(key, d);
+				if (checkpoint || !lastDigests.containsKey(key)
+						|| !Arrays.equals(d, lastDigests.get(key))) {
+					refs.put(key, d);
+				}
+				if (d == null) { continue; }
 				
-				if (o1 == null && o2 == null) {
+				String hex = Util.toHexString(d);
+				this.reference(hex);
+				if (blobs.containsKey(hex) || pendingBlobs.contains(hex)) {
+					InheritanceMetrics.increment("versionStore.save.sharedValues");
 					continue;
-				} else if (o1 == null && o2 != null) {
-					return false;
-				} else if (o2 == null && o1 != null) {
-					return false;
 				}
-				try {
-					Jenkins.XSTREAM2.toXMLUTF8(o1, os1);
-					Jenkins.XSTREAM2.toXMLUTF8(o2, os2);
-				} catch (IOException ex) {
-					return false;
+				byte[] blob = VersionSegmentFile.encodeBlob(v.id, value);
+				records.add(blob);
+				blobLengths.put(hex, blob.length);
+				pending.add(hex);
+				pendingBlobs.add(hex);
+			}
+			List<String> removed = new LinkedList<String>();
+			if (!checkpoint) {
+				for (String key : lastDigests.keySet()) {
+					if (!digests.containsKey(key)) { removed.add(key); }
 				}
-				if (os1.toString().equals(os2.toString()) == false) {
+			}
+			byte[] rec = VersionSegmentFile.encodeRefVersion(v, checkpoint, refs, removed);
+			records.add(rec);
+			
+			lastDigests = digests;
+			sinceCheckpoint = (checkpoint) ? 1 : sinceCheckpoint + 1;
+			versionLengths.put(v.id, rec.length);
+			meta.put(v.id, getMetaStamp(v));
+			pending.add(new IndexEntry(v.id, -1, checkpoint));
+		}
+		
+		/**
+		 * Tracks a metadata record, which replaces the previous one of the
+		 * same version.
+		 */
+		void trackMeta(long id, int recLength) {
+			Integer old = metaLengths.put(id, recLength);
+			if (old != null) { deadBytes += old; }
+		}
+		
+		private void reference(String hex) {
+			Integer cnt = refCounts.get(hex);
+			if (cnt != null && cnt == 0) {
+				//The blob is in use again
+				deadBytes -= blobLengths.get(hex);
+			}
+			refCounts.put(hex, (cnt == null) ? 1 : cnt + 1);
+		}
+		
+		private void release(String hex) {
+			Integer cnt = refCounts.get(hex);
+			if (cnt == null || cnt <= 0) { return; }
+			refCounts.put(hex, cnt - 1);
+			if (cnt == 1) {
+				Integer len = blobLengths.get(hex);
+				if (len != null) { deadBytes += len; }
+			}
+		}
+		
+		/**
+		 * Tracks a version record that was read from the file. The digests of
+		 * the last version are computed on demand by {@link #ensureDigests()}.
+		 */
+		void replay(Record r) {
+			lastDigests = null;
+			if (r.id > lastId) {
+				lastId = r.id;
+				count++;
+			} else {
+				//The version was written again; its old record is outdated
+				Integer old = versionLengths.get(r.id);
+				if (old != null) { deadBytes += old; }
+			}
+			versionLengths.put(r.id, r.length);
+			sinceCheckpoint = (r.checkpoint) ? 1 : sinceCheckpoint + 1;
+			index.add(new IndexEntry(r.id, r.offset, r.checkpoint));
+		}
+		
+		/**
+		 * Counts the versions that use each blob, after all records of the
+		 * file were replayed.
+		 * 
+		 * @param records all records of the file, in file order
+		 */
+		void countReferences(List<Record> records) {
+			HashMap<Long, Record> valid = new HashMap<Long, Record>();
+			for (Record r : records) {
+				if (r.type == VersionSegmentFile.TYPE_BLOB || r.type == VersionSegmentFile.TYPE_META) {
+					continue;
+				}
+				valid.put(r.id, r);
+			}
+			HashMap<String, String> refs = new HashMap<String, String>();
+			for (Record r : records) {
+				if (r.type == VersionSegmentFile.TYPE_BLOB || r.type == VersionSegmentFile.TYPE_META) {
+					continue;
+				}
+				this.applyRefs(r, null, refs);
+				if (valid.get(r.id) != r) { continue; }
+				for (String hex : refs.values()) {
+					this.reference(hex);
+				}
+			}
+			//Blobs used by no version at all
+			for (Map.Entry<String, Integer> e : blobLengths.entrySet()) {
+				if (refCounts.containsKey(e.getKey())) { continue; }
+				refCounts.put(e.getKey(), 0);
+				deadBytes += e.getValue();
+			}
+		}
+		
+		/**
+		 * Makes sure that the digests of the last written version record are
+		 * known, so that the next one can be encoded as a difference to it.
+		 */
+		void ensureDigests() throws IOException {
+			if (lastDigests != null || index.isEmpty()) { return; }
+			Map<String, Encoded> values = this.readValuesAt(index.size() - 1);
+			HashMap<String, byte[]> digests = new HashMap<String, byte[]>();
+			for (Map.Entry<String, Encoded> e : values.entrySet()) {
+				Encoded value = e.getValue();
+				digests.put(e.getKey(), (value.data == null) ? null : value.getDigest());
+			}
+			lastDigests = digests;
+		}
+		
+		private int positionOf(long id) {
+			for (int i = index.size() - 1; i >= 0; i--) {
+				if (index.get(i).id == id) { return i; }
+			}
+			return -1;
+		}
+		
+		/**
+		 * Restores the encoded values of a version, by reading the records
+		 * from its preceding checkpoint up to the version itself, and the
+		 * blobs they refer to.
+		 * 
+		 * @param id the id of the version
+		 * @return the encoded values, or null if the version is not in the file
+		 * @throws IOException if the records can't be read
+		 */
+		Map<String, Encoded> readValues(long id) throws IOException {
+			int end = this.positionOf(id);
+			if (end < 0) { return null; }
+			return this.readValuesAt(end);
+		}
+		
+		private Map<String, Encoded> readValuesAt(int end) throws IOException {
+			HashMap<String, Encoded> values = new HashMap<String, Encoded>();
+			HashMap<String, String> refs = new HashMap<String, String>();
+			this.replayChain(end, values, refs);
+			if (refs.isEmpty()) { return values; }
+			
+			//Then, fetching the referenced blobs; each only once
+			List<String> hexes = new ArrayList<String>(new HashSet<String>(refs.values()));
+			long[] blobOffsets = new long[hexes.size()];
+			for (int i = 0; i < hexes.size(); i++) {
+				Long offset = blobs.get(hexes.get(i));
+				if (offset == null) {
+					throw new IOException("Missing value " + hexes.get(i) + " in " + file);
+				}
+				blobOffsets[i] = offset;
+			}
+			HashMap<String, Encoded> byHex = new HashMap<String, Encoded>();
+			for (Record r : VersionSegmentFile.readAt(file, blobOffsets)) {
+				byHex.put(Util.toHexString(r.digest), r.blob);
+			}
+			for (Map.Entry<String, String> e : refs.entrySet()) {
+				values.put(e.getKey(), byHex.get(e.getValue()));
+			}
+			return values;
+		}
+		
+		/**
+		 * Replays the version records from the checkpoint preceding the given
+		 * position in the index up to that position.
+		 * 
+		 * @param end the position of the version record in the index
+		 * @param values receives the inline values
+		 * @param refs receives the hex digests of the referenced values
+		 */
+		private void replayChain(int end, Map<String, Encoded> values,
+				Map<String, String> refs) throws IOException {
+			int start = end;
+			while (start > 0 && !index.get(start).checkpoint) {
+				start--;
+			}
+			long[] offsets = new long[end - start + 1];
+			for (int i = start; i <= end; i++) {
+				offsets[i - start] = index.get(i).offset;
+			}
+			for (Record r : VersionSegmentFile.readAt(file, offsets)) {
+				this.applyRefs(r, values, refs);
+			}
+		}
+		
+		/**
+		 * Applies a single version record on top of the values restored from
+		 * the records preceding it.
+		 * 
+		 * @param r the record
+		 * @param values the inline values; may be null if not of interest
+		 * @param refs the hex digests of the referenced values
+		 */
+		private void applyRefs(Record r, Map<String, Encoded> values,
+				Map<String, String> refs) {
+			if (r.checkpoint) {
+				if (values != null) { values.clear(); }
+				refs.clear();
+			}
+			for (String key : r.removed) {
+				if (values != null) { values.remove(key); }
+				refs.remove(key);
+			}
+			for (Map.Entry<String, Encoded> e : r.values.entrySet()) {
+				if (values != null) { values.put(e.getKey(), e.getValue()); }
+				refs.remove(e.getKey());
+			}
+			for (Map.Entry<String, byte[]> e : r.refs.entrySet()) {
+				if (e.getValue() == null) {
+					if (values != null) {
+						values.put(e.getKey(), new Encoded(VersionValueCodec.getDefault(), null, null));
+					}
+					refs.remove(e.getKey());
+				} else {
+					if (values != null) { values.remove(e.getKey()); }
+					refs.put(e.getKey(), Util.toHexString(e.getValue()));
+				}
+			}
+		}
+		
+		void discardPending() {
+			pending.clear();
+			pendingBlobs.clear();
+		}
+		
+		/**
+		 * Assigns the offsets to the encoded records after they were written,
+		 * and updates the index file.
+		 */
+		void commit(long[] offsets, long newLength) {
+			for (int i = 0; i < offsets.length && i < pending.size(); i++) {
+				Object p = pending.get(i);
+				if (p instanceof IndexEntry) {
+					IndexEntry e = (IndexEntry) p;
+					index.add(new IndexEntry(e.id, offsets[i], e.checkpoint));
+				} else if (p instanceof String) {
+					blobs.put((String) p, offsets[i]);
+				}
+			}
+			discardPending();
+			altered.clear();
+			length = newLength;
+			VersionSegmentFile.writeIndex(file, length, index);
+		}
+	}
+	
+	
+	// === LAZY LOADING ===
+	
+	private LinkedHashMap<Long, SoftReference<HashMap<String, Object>>> getLoaded() {
+		if (this.loaded == null) {
+			this.loaded = new LinkedHashMap<Long, SoftReference<HashMap<String, Object>>>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<Long, SoftReference<HashMap<String, Object>>> eldest) {
+					return this.size() > MAX_LOADED_VERSIONS;
+				}
+			};
+		}
+		return this.loaded;
+	}
+	
+	/**
+	 * Returns the value map of the given version, loading it from disk if
+	 * necessary.
+	 * 
+	 * @param v the version
+	 * @return the values, or null if the version does not exist or could not
+	 * be loaded
+	 */
+	private HashMap<String, Object> getMap(Version v) {
+		HashMap<String, Object> map = this.store.get(v);
+		if (map != null || this.segment == null || !this.store.containsKey(v)) {
+			return map;
+		}
+		synchronized (this) {
+			map = this.getLoadedMap(v);
+			if (map != null) { return map; }
+		}
+		HashMap<String, Object> fresh = this.readMap(v);
+		if (fresh == null) { return null; }
+		
+		/* The listener is notified on the loading thread, before any other
+		 * thread can see the values; but outside of the lock, as it may lock
+		 * its owner.
+		 */
+		LoadListener listener = this.loadListener;
+		if (listener != null) {
+			listener.onLoaded(v, Collections.unmodifiableMap(fresh));
+		}
+		synchronized (this) {
+			//Another thread may have loaded the same version in the meantime
+			map = this.getLoadedMap(v);
+			if (map != null) { return map; }
+			this.getLoaded().put(v.id, new SoftReference<HashMap<String, Object>>(fresh));
+		}
+		return fresh;
+	}
+	
+	private HashMap<String, Object> getLoadedMap(Version v) {
+		SoftReference<HashMap<String, Object>> ref = this.getLoaded().get(v.id);
+		return (ref == null) ? null : ref.get();
+	}
+	
+	/**
+	 * Reads and deserializes the values of a version from the segment file.
+	 */
+	private synchronized HashMap<String, Object> readMap(Version v) {
+		if (this.segment == null) { return null; }
+		long start = InheritanceMetrics.startTimer();
+		try {
+			Map<String, Encoded> raw = this.segment.readValues(v.id);
+			if (raw == null) { return null; }
+			HashMap<String, Object> map = new HashMap<String, Object>();
+			for (Map.Entry<String, Encoded> e : raw.entrySet()) {
+				String key = e.getKey();
+				Encoded value = e.getValue();
+				if (VersionValuePool.isShared(key) && value.data != null) {
+					//Versions and projects with the same value share one copy
+					map.put(key, VersionValuePool.intern(
+							key, value.getDigest(), value.decode()
+					));
+				} else {
+					map.put(key, value.decode());
+				}
+			}
+			return map;
+		} catch (IOException | XStreamException ex) {
+			log.warning(String.format(
+					"Could not load version %d from %s: %s",
+					v.id, this.segment.file, ex.toString()
+			));
+			return null;
+		} finally {
+			InheritanceMetrics.recordTime("versionStore.read", start);
+		}
+	}
+	
+	/**
+	 * Makes sure that the value map of the given version is held by the store
+	 * itself, as it is about to be altered.
+	 */
+	private HashMap<String, Object> getMapForUpdate(Version v) {
+		HashMap<String, Object> map = this.getMap(v);
+		if (map != null && this.store.get(v) == null) {
+			synchronized (this) {
+				this.store.put(v, map);
+				if (this.segment != null) {
+					this.segment.altered.add(v.id);
+				}
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * @return the number of bytes in the segment file that are no longer
+	 * needed to restore any version; 0 if the store was not saved yet.
+	 */
+	synchronized long getDeadBytes() {
+		return (this.segment == null) ? 0 : this.segment.deadBytes;
+	}
+
+	/**
+	 * @return the number of versions whose values are currently held in memory.
+	 */
+	public synchronized int getLoadedCount() {
+		int cnt = 0;
+		for (HashMap<String, Object> map : this.store.values()) {
+			if (map != null) { cnt++; }
+		}
+		if (this.loaded != null) {
+			for (SoftReference<HashMap<String, Object>> ref : this.loaded.values()) {
+				if (ref.get() != null) { cnt++; }
+			}
+		}
+		return cnt;
+	}
+	
+	
+	/**
+	 * Checks whether two versions hold the same values, by comparing the
+	 * digests of their encoded values. Versions that were saved already are
+	 * not deserialized for this.
+	 * 
+	 * @param v1 the first version
+	 * @param v2 the second version
+	 * @return true, if both versions have the same keys and values
+	 */
+	public boolean areIdentical(Version v1, Version v2) {
+		try {
+			Map<String, Encoded> map1 = this.getEncoded(v1);
+			Map<String, Encoded> map2 = this.getEncoded(v2);
+			if (map1 == null || map2 == null) {
+				return false;
+			}
+			//First, we check if the keys match
+			if (!map1.keySet().equals(map2.keySet())) {
+				return false;
+			}
+			//Then, we verify that the values in them are identical
+			for (Map.Entry<String, Encoded> e : map1.entrySet()) {
+				if (!e.getValue().hasSameContent(map2.get(e.getKey()))) {
 					return false;
 				}
 			}
-		} catch (XStreamException ex) {
+		} catch (IOException ex) {
 			return false;
 		}
 		return true;
@@ -507,7 +1355,28 @@ public class VersionedObjectStore implements Serializable {
 		}
 	}
 	
+	/**
+	 * Returns the live value maps of all versions.
+	 * <p>
+	 * Do note that this loads the values of all versions and keeps them in
+	 * memory. If you alter the maps, call {@link #markModified()} afterwards.
+	 * Replace values instead of altering them, as values loaded from disk may
+	 * be shared with other versions and projects; see {@link VersionValuePool}.
+	 * 
+	 * @return the value maps, in ascending order of versions
+	 */
 	public Collection<HashMap<String, Object>> getAllValueMaps() {
+		for (Version v : new ArrayList<Version>(this.store.keySet())) {
+			this.getMapForUpdate(v);
+		}
+		//The maps may be altered by the caller; writing all of them anew
+		//is cheaper than appending each again
+		synchronized (this) {
+			this.encoded = null;
+			if (this.segment != null) {
+				this.segment.rewriteNeeded = true;
+			}
+		}
 		return this.store.values();
 	}
 	
@@ -522,7 +1391,10 @@ public class VersionedObjectStore implements Serializable {
 			return this.createNextVersionAsEmpty();
 		}
 		Version oldVer = this.getLatestVersion();
-		HashMap<String, Object> oldMap = store.get(oldVer);
+		HashMap<String, Object> oldMap = this.getMap(oldVer);
+		if (oldMap == null) {
+			oldMap = new HashMap<String, Object>();
+		}
 		
 		Version newVer = new Version(oldVer.id + 1);
 		HashMap<String, Object> newMap = new HashMap<String, Object>(oldMap);
@@ -549,8 +1421,9 @@ public class VersionedObjectStore implements Serializable {
 		if (latest == null || v == null) {
 			return;
 		}
-		if (v.id == latest.id) {
+		if (v.id.equals(latest.id)) {
 			this.store.remove(latest);
+			this.dropEncoded(latest);
 		}
 	}
 	
@@ -591,12 +1464,22 @@ public class VersionedObjectStore implements Serializable {
 		return v;
 	}
 
+	/**
+	 * Returns the value stored for the given key in the given version.
+	 * <p>
+	 * Values that may be shared with other versions or projects are copied
+	 * (see {@link VersionValuePool}); all others are returned as stored.
+	 * 
+	 * @param id the id of the version
+	 * @param key the key of the value
+	 * @return the value, or null if there is none.
+	 */
 	public Object getObject(Long id, String key) {
 		if (id == null || key == null) { return null; }
 		Version v = new Version(id);
-		HashMap<String, Object> map = this.store.get(v);
+		HashMap<String, Object> map = this.getMap(v);
 		if (map == null) { return null; }
-		return map.get(key);
+		return VersionValuePool.copy(key, map.get(key));
 	}
 	
 	public Object getObject(Version version, String key) {
@@ -610,7 +1493,8 @@ public class VersionedObjectStore implements Serializable {
 	 * <p>
 	 * Use this method in favour of {@link #getObject(Long, String)} to avoid
 	 * the O(log(n)) cost of retrieving the given version if you access more
-	 * than one stored object.
+	 * than one stored object. As there, values that may be shared are copied
+	 * on each access.
 	 * 
 	 * @param id the numerical ID of the version to retrieve
 	 * @return an immutable map of key/value object pairs
@@ -619,11 +1503,71 @@ public class VersionedObjectStore implements Serializable {
 		if (id == null) { return null; }
 		Version v = this.getVersion(id);
 		if (v == null) { return null; }
-		Map<String, Object> map = this.store.get(v);
+		Map<String, Object> map = this.getMap(v);
 		if (map == null) {
 			return null;
 		}
-		return Collections.unmodifiableMap(map);
+		return new CopyingMap(map);
+	}
+	
+	/**
+	 * An immutable view of a value map, that copies the values that may be
+	 * shared whenever they are retrieved.
+	 */
+	private static final class CopyingMap extends AbstractMap<String, Object> {
+		private final Map<String, Object> map;
+		
+		CopyingMap(Map<String, Object> map) {
+			this.map = map;
+		}
+		
+		@Override
+		public Object get(Object key) {
+			Object value = this.map.get(key);
+			if (!(key instanceof String)) { return value; }
+			return VersionValuePool.copy((String) key, value);
+		}
+		
+		@Override
+		public boolean containsKey(Object key) {
+			return this.map.containsKey(key);
+		}
+		
+		@Override
+		public int size() {
+			return this.map.size();
+		}
+		
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			return new AbstractSet<Map.Entry<String, Object>>() {
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					final Iterator<Map.Entry<String, Object>> iter =
+							map.entrySet().iterator();
+					return new Iterator<Map.Entry<String, Object>>() {
+						@Override
+						public boolean hasNext() {
+							return iter.hasNext();
+						}
+						
+						@Override
+						public Map.Entry<String, Object> next() {
+							Map.Entry<String, Object> e = iter.next();
+							return new AbstractMap.SimpleImmutableEntry<String, Object>(
+									e.getKey(),
+									VersionValuePool.copy(e.getKey(), e.getValue())
+							);
+						}
+					};
+				}
+				
+				@Override
+				public int size() {
+					return map.size();
+				}
+			};
+		}
 	}
 
 
@@ -631,7 +1575,11 @@ public class VersionedObjectStore implements Serializable {
 		if (key == null || v == null) {
 			return false;
 		}
-		HashMap<String, Object> map = this.store.get(v);
+		//An already saved version needs to be written again
+		if (this.segment != null && v.id <= this.segment.lastId) {
+			this.segment.altered.add(v.id);
+		}
+		HashMap<String, Object> map = this.getMapForUpdate(v);
 		if (map == null) {
 			//Something horribly went wrong
 			throw new IllegalStateException(
@@ -639,6 +1587,7 @@ public class VersionedObjectStore implements Serializable {
 			);
 		}
 		map.put(key, value);
+		this.dropEncoded(v);
 		return true;
 	}
 
@@ -35,6 +35,7 @@ import hudson.plugins.project_inheritance.projects.InheritanceProject.Relationsh
 import hudson.plugins.project_inheritance.projects.InheritanceProject.Relationship.Type;
 import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine;
 import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine.CreationClass;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceGraphIndex;
 import hudson.plugins.project_inheritance.projects.references.AbstractProjectReference;
 import hudson.util.DescribableList;
 import hudson.util.ListBoxModel;
@@ -221,14 +222,15 @@ public class RelatedProjectView extends View {
 				Relationships.CHILDREN
 		);
 		boolean filterForMates =  this.selectedRelations.contains(
-				Relationships.PARENTS
+				Relationships.COMPATIBLES
 		);
 		boolean filterForParents =  this.selectedRelations.contains(
-				Relationships.COMPATIBLES
+				Relationships.PARENTS
 		);
 		
 		//Otherwise, we return the selected projects and their relatives
 		TreeSet<InheritanceProject> projs = new TreeSet<InheritanceProject>();
+		InheritanceGraphIndex graph = InheritanceProject.getGraphIndex();
 		
 		Iterator<AbstractProjectReference> iter = this.getProjectReferences().iterator(); 
 		while (iter != null && iter.hasNext()) {
@@ -236,19 +238,20 @@ public class RelatedProjectView extends View {
 			InheritanceProject ip = apr.getProject();
 			if (ip == null) { continue; }
 			
-			Map<InheritanceProject, Relationship> map = ip.getRelationships();
-			
 			//Adding the project under scrutiny
 			if (filterApplies(ip)) { projs.add(ip); }
 			
-			//Adding its related projects
-			for (Map.Entry<InheritanceProject, Relationship> entry : map.entrySet()) {
+			//Adding its related projects; only resolving those that match
+			Map<String, Relationship> map = graph.getRelationships(ip.getFullName());
+			for (Map.Entry<String, Relationship> entry : map.entrySet()) {
 				boolean suitable =
 					(filterForParents && entry.getValue().type == Type.PARENT) ||
 					(filterForMates && entry.getValue().type == Type.MATE) ||
 					(filterForChildren && entry.getValue().type == Type.CHILD);
-				if (suitable) {
-					projs.add(entry.getKey());
+				if (!suitable) { continue; }
+				InheritanceProject rel = InheritanceProject.getProjectByName(entry.getKey());
+				if (rel != null) {
+					projs.add(rel);
 				}
 			}
 		}
@@ -396,8 +399,8 @@ public class RelatedProjectView extends View {
 		
 		public ListBoxModel doFillProjectNameItems() {
 			ListBoxModel pNames = new ListBoxModel();
-			for (InheritanceProject ip : InheritanceProject.getProjectsMap().values()) {
-				pNames.add(ip.getFullName());
+			for (String name : InheritanceProject.getGraphIndex().getProjectNames()) {
+				pNames.add(name);
 			}
 			return pNames;
 		}
@@ -18,6 +18,8 @@
  * License along with this library.	If not, see <http://www.gnu.org/licenses/>.
  */
 
+import hudson.plugins.project_inheritance.projects.creation.CreationStatistics.Phase
+
 // Namespaces
 f = namespace(lib.FormTagLib);
 l = namespace(lib.LayoutTagLib);
@@ -32,6 +34,27 @@ l.layout(title: my.displayName, norefresh: "true") {
 		h1("Creation results") {
 			img(height: "48", alt: "", width: "48", src: imagesURL + "/48x48/accept.png")
 		}
+		stats = my.getLastCreationStatistics()
+		if (stats != null) {
+			p(String.format(
+					"Handled %d matings in %d ms (%.1f per second): " +
+					"%d created, %d rejected, %d failed.",
+					stats.matings, stats.wallMillis, stats.throughput,
+					stats.created, stats.rejected, stats.failed
+			))
+			table(class: "pane") {
+				tr() {
+					for (phase in Phase.values()) {
+						th(class: "pane-header", phase.name().toLowerCase())
+					}
+				}
+				tr() {
+					for (phase in Phase.values()) {
+						td(class: "pane", stats.getPhaseMillis(phase) + " ms")
+					}
+				}
+			}
+		}
 		table(class: "pane sortable bigtable") {
 			tr() {
 				th(initialSortDir: "down", class: "pane-header", _("Name"))
@@ -52,6 +52,12 @@ l.side_panel() {
 				permission: app.ADMINISTER,
 				href: rootURL + "/project_creation/showCreationResults"
 		)
+		l.task(
+				icon: "images/24x24/search.png",
+				title: _("Show creation plan (dry-run)"),
+				permission: app.ADMINISTER,
+				href: rootURL + "/project_creation/creationPlan"
+		)
 	}
 	t.queue(items: app.queue.items)
 	//t.executors
@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ *
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.	If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import hudson.plugins.project_inheritance.util.InheritanceMetrics
+
+// Namespaces
+f = namespace(lib.FormTagLib);
+l = namespace(lib.LayoutTagLib);
+t = namespace(lib.JenkinsTagLib);
+
+
+l.layout(title: my.displayName, norefresh: "true", permission: app.ADMINISTER) {
+	l.header()
+	
+	l.side_panel() {
+		l.tasks() {
+			l.task(
+					icon: "images/24x24/up.png",
+					title: _("Back to Dashboard"),
+					href: rootURL
+			)
+			l.task(
+					icon: "images/24x24/setting.png",
+					title: _("Manage Jenkins"),
+					href: rootURL + "/manage"
+			)
+			l.task(
+					icon: "images/24x24/clipboard.png",
+					title: _("JSON"),
+					href: "json"
+			)
+		}
+	}
+	
+	l.main_panel() {
+		h1(my.displayName)
+		
+		if (!my.isEnabled()) {
+			p(_("Detailed metrics are disabled. Start Jenkins with -D" +
+					InheritanceMetrics.ENABLED_PROPERTY + "=true to collect them."
+			))
+		}
+		
+		h2(_("Caches"))
+		table(class: "pane sortable bigtable") {
+			tr() {
+				th(initialSortDir: "down", class: "pane-header", _("Name"))
+				th(class: "pane-header", _("Size"))
+				th(class: "pane-header", _("Hits"))
+				th(class: "pane-header", _("Misses"))
+				th(class: "pane-header", _("Evictions"))
+			}
+			stats = my.getCacheStatistics()
+			for (e in stats.getJSONObject("buffers").entrySet()) {
+				tr() {
+					td(class: "pane", "buffer." + e.key)
+					td(class: "pane", e.value.get("size"))
+					td(class: "pane", e.value.get("hits"))
+					td(class: "pane", e.value.get("misses"))
+					td(class: "pane", e.value.get("evictions"))
+				}
+			}
+			for (name in ["derivedFieldCache", "buildabilityCache"]) {
+				c = stats.getJSONObject(name)
+				tr() {
+					td(class: "pane", name)
+					td(class: "pane", c.get("size"))
+					td(class: "pane", c.get("hits"))
+					td(class: "pane", c.get("misses"))
+					td(class: "pane", "")
+				}
+			}
+			fb = stats.getJSONObject("stackWalkFallback")
+			tr() {
+				td(class: "pane", "stackWalkFallback")
+				td(class: "pane", "")
+				td(class: "pane", fb.get("hits"))
+				td(class: "pane", fb.get("count") - fb.get("hits"))
+				td(class: "pane", "")
+			}
+		}
+		
+		if (my.isEnabled()) {
+			h2(_("Timings and sizes"))
+			table(class: "pane sortable bigtable") {
+				tr() {
+					th(initialSortDir: "down", class: "pane-header", _("Name"))
+					th(class: "pane-header", _("Count"))
+					th(class: "pane-header", _("Mean"))
+					th(class: "pane-header", _("p50"))
+					th(class: "pane-header", _("p90"))
+					th(class: "pane-header", _("p99"))
+					th(class: "pane-header", _("Max"))
+				}
+				for (e in my.getHistograms().entrySet()) {
+					h = e.value
+					tr() {
+						td(class: "pane", e.key)
+						td(class: "pane", h.count)
+						td(class: "pane", h.format(h.mean))
+						td(class: "pane", h.format(h.p50))
+						td(class: "pane", h.format(h.p90))
+						td(class: "pane", h.format(h.p99))
+						td(class: "pane", h.format(h.max))
+					}
+				}
+			}
+			
+			h2(_("Counters"))
+			table(class: "pane sortable bigtable") {
+				tr() {
+					th(initialSortDir: "down", class: "pane-header", _("Name"))
+					th(class: "pane-header", _("Value"))
+				}
+				for (e in my.getCounters().entrySet()) {
+					tr() {
+						td(class: "pane", e.key)
+						td(class: "pane", e.value)
+					}
+				}
+			}
+			
+			form(action: "reset", method: "post") {
+				div(style: "margin-top:2em")
+				f.submit(value: _("Reset"))
+			}
+		}
+	}
+}
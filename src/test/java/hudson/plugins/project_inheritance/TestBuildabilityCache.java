@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.plugins.project_inheritance.projects.inheritance.BuildabilityCache;
+import hudson.plugins.project_inheritance.utils.XmlProject;
+
+/**
+ * Checks that the verdicts of the {@link BuildabilityCache} are reused and
+ * dropped whenever a project they depend on changes.
+ */
+public class TestBuildabilityCache {
+	private static final Logger log = Logger.getLogger(
+			TestBuildabilityCache.class.toString()
+	);
+	
+	@Rule public JenkinsRule jRule = new JenkinsRule();
+	
+	
+	private void printInfo(String info) {
+		log.info("[TestBuildabilityCache] " + info);
+	}
+	
+	
+	// === TEST EXECUTION ===
+	
+	@Test
+	public void testVerdictIsReused() throws IOException {
+		printInfo("testVerdictIsReused()");
+		new XmlProject("A");
+		XmlProject b = new XmlProject("B");
+		b.addParent("A", null);
+		
+		Assert.assertTrue(b.project.isBuildable());
+		long hits = BuildabilityCache.getHits();
+		long misses = BuildabilityCache.getMisses();
+		Assert.assertTrue(b.project.isBuildable());
+		Assert.assertEquals("Verdict was not reused", hits + 1, BuildabilityCache.getHits());
+		Assert.assertEquals(misses, BuildabilityCache.getMisses());
+	}
+	
+	@Test
+	public void testParentChange() throws IOException {
+		printInfo("testParentChange()");
+		XmlProject a = new XmlProject("A");
+		XmlProject b = new XmlProject("B");
+		b.addParent("A", null);
+		Assert.assertTrue(b.project.isBuildable());
+		
+		//A change of the parent must reach the cached verdict of the child
+		a.addParent("Missing", null);
+		Assert.assertFalse("Missing grandparent not noticed", b.project.isBuildable());
+		Assert.assertTrue(
+				b.project.getInheritanceBuildabilityIssue().contains("Missing")
+		);
+		
+		a.dropParent("Missing");
+		Assert.assertTrue(b.project.isBuildable());
+		
+		//Closing a cycle via the parent
+		a.addParent("B", null);
+		Assert.assertEquals(
+				"Cyclic or diamond inheritance",
+				b.project.getInheritanceBuildabilityIssue()
+		);
+	}
+	
+	@Test
+	public void testCreateAndRename() throws IOException {
+		printInfo("testCreateAndRename()");
+		XmlProject b = new XmlProject("B");
+		b.addParent("C", null);
+		Assert.assertEquals(
+				"Missing dependencies: C",
+				b.project.getInheritanceBuildabilityIssue()
+		);
+		
+		//Creating the missing parent resolves the reference by name
+		XmlProject c = new XmlProject("C");
+		Assert.assertTrue("Created parent not noticed", b.project.isBuildable());
+		
+		//Renaming it away breaks the reference again
+		c.project.renameTo("D");
+		Assert.assertFalse("Renamed parent not noticed", b.project.isBuildable());
+		
+		//As does deleting a renamed-back parent
+		c.project.renameTo("C");
+		Assert.assertTrue(b.project.isBuildable());
+		try {
+			c.project.delete();
+		} catch (InterruptedException ex) {
+			Assert.fail("Deleting C was interrupted");
+		}
+		Assert.assertFalse("Deleted parent not noticed", b.project.isBuildable());
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.plugins.project_inheritance.projects.creation.CreationClassIndex;
+import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine;
+import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine.CreationClass;
+import hudson.plugins.project_inheritance.utils.XmlProject;
+
+/**
+ * Tests that the {@link CreationClassIndex} follows the changes of the
+ * creation classes of the projects, without being rebuilt.
+ */
+public class TestCreationClassIndex {
+	private static final Logger log = Logger.getLogger(
+			TestCreationClassIndex.class.toString()
+	);
+	
+	@Rule public JenkinsRule jRule = new JenkinsRule();
+	
+	
+	private void printInfo(String info) {
+		log.info("[TestCreationClassIndex] " + info);
+	}
+	
+	
+	// === TEST EXECUTION ===
+	
+	@Test
+	public void testIncrementalMaintenance() throws IOException, InterruptedException {
+		printInfo("testIncrementalMaintenance()");
+		CreationClassIndex idx = CreationClassIndex.get();
+		//Changes are only tracked once the index exists
+		idx.rebuild();
+		ProjectCreationEngine pce = ProjectCreationEngine.instance;
+		pce.getCreationClasses().add(new CreationClass("Left", ""));
+		pce.getCreationClasses().add(new CreationClass("Right", ""));
+		
+		XmlProject a = new XmlProject("A");
+		XmlProject b = new XmlProject("B");
+		XmlProject c = new XmlProject("C");
+		a.project.setCreationClass("Left");
+		b.project.setCreationClass("Left");
+		c.project.setCreationClass("Right");
+		Assert.assertEquals(2, idx.getNumberOfProjects("Left"));
+		Assert.assertEquals(1, idx.getNumberOfProjects("Right"));
+		Assert.assertEquals(2, idx.getNumberOfMates("Left", "Right"));
+		Assert.assertEquals(0, idx.getNumberOfMates("Left", "Missing"));
+		
+		//A renamed project stays in its class
+		a.project.renameTo("A2");
+		Assert.assertEquals(
+				Arrays.asList("A2", "B"),
+				sorted(idx.getProjectNames("Left"))
+		);
+		
+		//A project changing its class moves between the classes
+		b.project.setCreationClass("Right");
+		Assert.assertEquals(Arrays.asList("A2"), idx.getProjectNames("Left"));
+		Assert.assertEquals(
+				Arrays.asList("B", "C"),
+				sorted(idx.getProjectNames("Right"))
+		);
+		
+		//Deleted projects are dropped
+		c.project.delete();
+		b.project.delete();
+		Assert.assertEquals(0, idx.getNumberOfProjects("Right"));
+		Assert.assertTrue(idx.getProjectNames("Right").isEmpty());
+		Assert.assertEquals(0, idx.getNumberOfMates("Left", "Right"));
+		
+		//The maintained index must match a freshly built one
+		List<String> left = idx.getProjectNames("Left");
+		idx.rebuild();
+		Assert.assertEquals(left, idx.getProjectNames("Left"));
+		Assert.assertEquals(0, idx.getNumberOfProjects("Right"));
+	}
+	
+	
+	// === HELPER METHODS ===
+	
+	private static List<String> sorted(List<String> in) {
+		List<String> out = new ArrayList<String>(in);
+		Collections.sort(out);
+		return out;
+	}
+}
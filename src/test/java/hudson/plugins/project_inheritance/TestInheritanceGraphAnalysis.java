@@ -0,0 +1,212 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.google.common.base.Joiner;
+
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.InheritanceProject.Dependency;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceGraphIndex;
+import hudson.plugins.project_inheritance.utils.XmlProject;
+
+/**
+ * Checks that the cycle, diamond and missing ancestor results of the
+ * {@link InheritanceGraphIndex} match those of the walks over the parent
+ * references, that {@link InheritanceProject} performs on its own.
+ */
+public class TestInheritanceGraphAnalysis {
+	private static final Logger log = Logger.getLogger(
+			TestInheritanceGraphAnalysis.class.toString()
+	);
+	
+	@Rule public JenkinsRule jRule = new JenkinsRule();
+	
+	
+	private void printInfo(String info) {
+		log.info("[TestInheritanceGraphAnalysis] " + info);
+	}
+	
+	
+	// === TEST EXECUTION ===
+	
+	@Test
+	public void testCycle() throws IOException {
+		printInfo("testCycle()");
+		
+		XmlProject a = new XmlProject("A");
+		XmlProject b = new XmlProject("B");
+		XmlProject x = new XmlProject("X");
+		XmlProject s = new XmlProject("S");
+		XmlProject free = new XmlProject("Free");
+		a.addParent("B", null);
+		b.addParent("A", null);
+		x.addParent("A", null);
+		s.addParent("S", null);
+		
+		assertCyclic(true, a, b, x, s);
+		assertCyclic(false, free);
+		
+		//Breaking the cycle must clear the flag on all of them
+		b.dropParent("A");
+		s.dropParent("S");
+		assertCyclic(false, a, b, x, s, free);
+		
+		//And closing it again through a longer path must set it again
+		b.addParent("X", null);
+		assertCyclic(true, a, b, x);
+		assertCyclic(false, s, free);
+	}
+	
+	@Test
+	public void testDiamond() throws IOException {
+		printInfo("testDiamond()");
+		
+		XmlProject a = new XmlProject("A");
+		XmlProject b = new XmlProject("B");
+		XmlProject c = new XmlProject("C");
+		XmlProject d = new XmlProject("D");
+		XmlProject e = new XmlProject("E");
+		b.addParent("A", null);
+		c.addParent("A", null);
+		d.addParent("B", null);
+		d.addParent("C", null);
+		e.addParent("D", null);
+		
+		assertCyclic(false, a, b, c);
+		assertCyclic(true, d, e);
+		
+		//A repeated reference to the same parent is flagged, too
+		d.dropParent("C");
+		c.dropParent("A");
+		assertCyclic(false, a, b, c, d, e);
+		c.addParent("B", null);
+		c.addParent("B", null);
+		assertCyclic(false, a, b, d, e);
+		assertCyclic(true, c);
+		
+		//Dropping one of them leaves C on a plain line
+		c.dropParent("B");
+		assertCyclic(false, a, b, c, d, e);
+	}
+	
+	@Test
+	public void testMissingAncestors() throws IOException {
+		printInfo("testMissingAncestors()");
+		
+		XmlProject a = new XmlProject("A");
+		XmlProject b = new XmlProject("B");
+		XmlProject c = new XmlProject("C");
+		XmlProject cyc = new XmlProject("Cyc");
+		a.addParent("Gone", null);
+		b.addParent("A", null);
+		b.addParent("Missing", null);
+		c.addParent("B", null);
+		cyc.addParent("Cyc", null);
+		cyc.addParent("Lost", null);
+		
+		assertMissing(a, "Gone");
+		assertMissing(b, "A:Gone", "Missing");
+		assertMissing(c, "B:A:Gone", "B:Missing");
+		assertMissing(cyc, "Lost");
+		
+		//Creating a missing ancestor must remove it from all descendants
+		new XmlProject("Missing");
+		assertMissing(b, "A:Gone");
+		assertMissing(c, "B:A:Gone");
+		
+		//Deleting an existing one must add it to them
+		try {
+			a.project.delete();
+		} catch (InterruptedException ex) {
+			Assert.fail("Interrupted while deleting A");
+		}
+		assertMissing(b, "A");
+		assertMissing(c, "B:A");
+	}
+	
+	
+	
+	// === HELPER METHODS ===
+	
+	/**
+	 * Asserts that both the index and the walk over the parent references
+	 * give the expected answer for all given projects.
+	 */
+	private static void assertCyclic(boolean expected, XmlProject... projects) {
+		InheritanceGraphIndex index = InheritanceGraphIndex.get();
+		for (XmlProject xp : projects) {
+			String name = xp.project.getFullName();
+			Assert.assertEquals(
+					"Walk over the parent references differs for " + name,
+					expected, xp.project.hasCyclicDependency(true)
+			);
+			Assert.assertEquals(
+					"Index differs for " + name,
+					expected, index.hasCyclicDependency(name)
+			);
+			Assert.assertEquals(
+					"Project lookup differs for " + name,
+					expected, xp.project.hasCyclicDependency()
+			);
+		}
+	}
+	
+	/**
+	 * Asserts that both the index and the walk over the parent references
+	 * report exactly the given missing ancestors. Each is given as its trace
+	 * followed by its name, joined by ':'.
+	 */
+	private static void assertMissing(XmlProject xp, String... expected) {
+		String name = xp.project.getFullName();
+		List<String> exp = new ArrayList<String>();
+		for (String e : expected) { exp.add(e); }
+		
+		Assert.assertEquals(
+				"Walk over the parent references differs for " + name,
+				exp, flatten(xp.project.getMissingDependencies())
+		);
+		Assert.assertEquals(
+				"Index differs for " + name,
+				exp, flatten(InheritanceGraphIndex.get().getMissingAncestors(name))
+		);
+	}
+	
+	private static List<String> flatten(Collection<Dependency> deps) {
+		List<String> out = new ArrayList<String>();
+		for (Dependency d : deps) {
+			List<String> parts = new ArrayList<String>(d.trace);
+			parts.add(d.ref);
+			out.add(Joiner.on(":").join(parts));
+		}
+		return out;
+	}
+}
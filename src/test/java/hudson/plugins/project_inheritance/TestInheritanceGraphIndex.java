@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceGraphIndex;
+import hudson.plugins.project_inheritance.projects.references.SimpleProjectReference;
+import hudson.plugins.project_inheritance.utils.XmlProject;
+
+/**
+ * Checks that the incrementally maintained {@link InheritanceGraphIndex}
+ * always matches the index that a full rebuild produces.
+ */
+public class TestInheritanceGraphIndex {
+	private static final Logger log = Logger.getLogger(
+			TestInheritanceGraphIndex.class.toString()
+	);
+	
+	@Rule public JenkinsRule jRule = new JenkinsRule();
+	
+	
+	private void printInfo(String info) {
+		log.info("[TestInheritanceGraphIndex] " + info);
+	}
+	
+	
+	// === TEST EXECUTION ===
+	
+	@Test
+	public void testIndexAfterCreate() throws IOException {
+		printInfo("testIndexAfterCreate()");
+		InheritanceGraphIndex index = InheritanceGraphIndex.get();
+		
+		XmlProject a = new XmlProject("A");
+		XmlProject b = new XmlProject("B");
+		XmlProject c = new XmlProject("C");
+		b.addParent("A", null);
+		c.addParent("B", null);
+		addMate(a.project, "C");
+		
+		Assert.assertEquals(Arrays.asList("A", "B", "C"), index.getProjectNames());
+		Assert.assertEquals(Arrays.asList("A"), index.getParentNames("B"));
+		Assert.assertEquals(Arrays.asList("B"), index.getChildNames("A"));
+		Assert.assertEquals(Arrays.asList("C"), index.getChildNames("B"));
+		Assert.assertEquals(Arrays.asList("C"), index.getMateNames("A"));
+		Assert.assertEquals(Arrays.asList("A"), index.getMateOfNames("C"));
+		
+		//A parent that is created after its child was linked to it
+		XmlProject d = new XmlProject("D");
+		d.addParent("E", null);
+		Assert.assertEquals(Arrays.asList("E"), index.getParentNames("D"));
+		new XmlProject("E");
+		Assert.assertEquals(Arrays.asList("D"), index.getChildNames("E"));
+		
+		assertMatchesRebuild(index);
+	}
+	
+	@Test
+	public void testIndexAfterRename() throws IOException {
+		printInfo("testIndexAfterRename()");
+		InheritanceGraphIndex index = InheritanceGraphIndex.get();
+		
+		XmlProject a = new XmlProject("A");
+		XmlProject b = new XmlProject("B");
+		b.addParent("A", null);
+		addMate(b.project, "A");
+		
+		a.project.renameTo("A-renamed");
+		Assert.assertEquals(Arrays.asList("A-renamed", "B"), index.getProjectNames());
+		Assert.assertEquals(Arrays.asList("A-renamed"), index.getParentNames("B"));
+		Assert.assertEquals(Arrays.asList("B"), index.getChildNames("A-renamed"));
+		Assert.assertEquals(Arrays.asList("A-renamed"), index.getMateNames("B"));
+		Assert.assertTrue(index.getChildNames("A").isEmpty());
+		
+		assertMatchesRebuild(index);
+	}
+	
+	@Test
+	public void testIndexAfterDelete() throws IOException, InterruptedException {
+		printInfo("testIndexAfterDelete()");
+		InheritanceGraphIndex index = InheritanceGraphIndex.get();
+		
+		XmlProject a = new XmlProject("A");
+		XmlProject b = new XmlProject("B");
+		XmlProject c = new XmlProject("C");
+		b.addParent("A", null);
+		c.addParent("B", null);
+		
+		b.project.delete();
+		Assert.assertEquals(Arrays.asList("A", "C"), index.getProjectNames());
+		Assert.assertTrue(index.getChildNames("A").isEmpty());
+		//C still references the deleted project by name
+		Assert.assertEquals(Arrays.asList("B"), index.getParentNames("C"));
+		Assert.assertEquals(
+				"Deleted parent not reported as missing",
+				1, c.project.getMissingDependencies().size()
+		);
+		
+		assertMatchesRebuild(index);
+		a.project.delete();
+		c.project.delete();
+		Assert.assertEquals(0, index.size());
+	}
+	
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testLegacyConnectionGraph() throws IOException {
+		printInfo("testLegacyConnectionGraph()");
+		
+		XmlProject a = new XmlProject("A");
+		XmlProject b = new XmlProject("B");
+		b.addParent("A", null);
+		b.addParent("Missing", null);
+		
+		//Missing parents are nodes of the graph, too
+		Map<String, ?> graph = InheritanceProject.getConnectionGraph();
+		Assert.assertEquals(
+				Arrays.asList("A", "B", "Missing"),
+				sorted(new ArrayList<String>(graph.keySet()))
+		);
+		Assert.assertSame(InheritanceGraphIndex.get(), InheritanceProject.getGraphIndex());
+		Assert.assertEquals(Arrays.asList(b.project), a.project.getChildrenProjects());
+	}
+	
+	
+	
+	// === HELPER METHODS ===
+	
+	private static void addMate(InheritanceProject ip, String mate) {
+		ip.getRawCompatibleProjects().add(new SimpleProjectReference(mate));
+		InheritanceProject.clearBuffers(ip);
+	}
+	
+	/**
+	 * Compares the edges of all projects against those of a full rebuild.
+	 */
+	private static void assertMatchesRebuild(InheritanceGraphIndex index) {
+		Map<String, List<List<String>>> incremental = snapshot(index);
+		index.rebuild();
+		Map<String, List<List<String>>> rebuilt = snapshot(index);
+		Assert.assertEquals(
+				"Incremental index differs from a full rebuild",
+				rebuilt, incremental
+		);
+	}
+	
+	private static Map<String, List<List<String>>> snapshot(InheritanceGraphIndex index) {
+		Map<String, List<List<String>>> out = new LinkedHashMap<String, List<List<String>>>();
+		for (String name : index.getProjectNames()) {
+			out.put(name, Arrays.asList(
+					sorted(index.getParentNames(name)),
+					sorted(index.getChildNames(name)),
+					sorted(index.getMateNames(name)),
+					sorted(index.getMateOfNames(name))
+			));
+		}
+		return out;
+	}
+	
+	private static List<String> sorted(List<String> in) {
+		List<String> out = new ArrayList<String>(in);
+		Collections.sort(out);
+		return out;
+	}
+}
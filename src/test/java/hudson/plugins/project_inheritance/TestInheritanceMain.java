@@ -23,6 +23,8 @@ package hudson.plugins.project_inheritance;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -60,11 +62,13 @@ import hudson.plugins.project_inheritance.projects.InheritanceProject.IMode;
 import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine;
 import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine.CreationClass;
 import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine.CreationMating;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceGraphIndex;
 import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterDefinition;
 import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterReferenceDefinition;
 import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterDefinition.IModes;
 import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterDefinition.WhitespaceMode;
 import hudson.plugins.project_inheritance.projects.references.AbstractProjectReference;
+import hudson.plugins.project_inheritance.projects.references.ProjectReference.PrioComparator.SELECTOR;
 import hudson.plugins.project_inheritance.projects.references.SimpleProjectReference;
 import hudson.plugins.project_inheritance.projects.references.AbstractProjectReference.ProjectReferenceDescriptor;
 import hudson.plugins.project_inheritance.projects.references.filters.MatingReferenceFilter;
@@ -686,6 +690,78 @@ public class TestInheritanceMain {
 	}
 	
 	
+	@Test
+	public void testMultiLevelCreation() throws IOException {
+		printInfo("testMultiLevelCreation()");
+		Jenkins j = jRule.jenkins;
+		InheritanceGraphIndex index = InheritanceGraphIndex.get();
+		
+		//A common base, two levels of left jobs and one right job
+		new XmlProject("Base");
+		XmlProject left1 = new XmlProject("Left1");
+		XmlProject left2 = new XmlProject("Left2");
+		XmlProject deep = new XmlProject("Deep");
+		XmlProject right = new XmlProject("Right");
+		left1.addParent("Base", null);
+		left2.addParent("Base", null);
+		deep.addParent("Left1", null);
+		right.addParent("Base", null);
+		
+		ProjectCreationEngine pce = ProjectCreationEngine.instance;
+		pce.getCreationClasses().add(new CreationClass("Left", ""));
+		pce.getCreationClasses().add(new CreationClass("Right", ""));
+		pce.getMatings().add(new CreationMating("Left", "Right", ""));
+		for (XmlProject xp : Arrays.asList(left1, left2, deep)) {
+			xp.project.setCreationClass("Left");
+			xp.project.getRawCompatibleProjects().add(
+					new SimpleProjectReference("Right")
+			);
+		}
+		right.project.setCreationClass("Right");
+		InheritanceProject.clearBuffers(null);
+		
+		//Create all three jobs in one batch
+		pce.setEnableCreation(true);
+		Map<String, String> report = pce.triggerCreateProjects();
+		List<String> created = Arrays.asList("Left1_Right", "Left2_Right", "Deep_Right");
+		Assert.assertEquals("PCE report has an unexpected size", 3, report.size());
+		for (String name : created) {
+			Assert.assertEquals("PCE did not create " + name, "Success", report.get(name));
+			
+			TopLevelItem it = j.getItem(name);
+			Assert.assertTrue("Job " + name + " missing", it instanceof InheritanceProject);
+			InheritanceProject ip = (InheritanceProject) it;
+			Assert.assertTrue("Job " + name + " is not transient", ip.getIsTransient());
+			Assert.assertEquals(
+					"Job " + name + " has wrong parents",
+					Arrays.asList(name.substring(0, name.indexOf('_')), "Right"),
+					index.getParentNames(name)
+			);
+			Assert.assertFalse(index.hasCyclicDependency(name));
+			Assert.assertTrue(
+					"Job " + name + " misses its grandparent",
+					ip.getAllParentReferences(SELECTOR.BUILDER).size() >= 3
+			);
+		}
+		List<String> children = new ArrayList<String>(index.getChildNames("Right"));
+		Collections.sort(children);
+		Assert.assertEquals(
+				Arrays.asList("Deep_Right", "Left1_Right", "Left2_Right"),
+				children
+		);
+		children = new ArrayList<String>(index.getChildNames("Left1"));
+		Collections.sort(children);
+		Assert.assertEquals(Arrays.asList("Deep", "Left1_Right"), children);
+		
+		//A second batch keeps the jobs created by the first one
+		report = pce.triggerCreateProjects();
+		Assert.assertEquals(3, report.size());
+		for (String name : created) {
+			Assert.assertEquals("Job already exists", report.get(name));
+		}
+	}
+	
+	
 	@SuppressWarnings("deprecation")
 	@Test
 	public void testWorkspacePathAllocation() throws IOException, InterruptedException {
@@ -21,6 +21,8 @@
 package hudson.plugins.project_inheritance;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -28,8 +30,10 @@ import static org.junit.Assert.fail;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.logging.Logger;
 
@@ -41,6 +45,7 @@ import org.jvnet.hudson.reactor.ReactorException;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.SleepBuilder;
 
+import hudson.model.Label;
 import hudson.model.ParametersAction;
 import hudson.model.Result;
 import hudson.model.StringParameterValue;
@@ -49,7 +54,13 @@ import hudson.model.queue.QueueTaskFuture;
 import hudson.plugins.project_inheritance.projects.InheritanceBuild;
 import hudson.plugins.project_inheritance.projects.InheritanceProject;
 import hudson.plugins.project_inheritance.projects.InheritanceProject.Dependency;
+import hudson.plugins.project_inheritance.projects.InheritanceProject.IMode;
+import hudson.plugins.project_inheritance.projects.inheritance.DerivedFieldCache;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceContext;
+import hudson.plugins.project_inheritance.projects.versioning.VersionHandler;
 import hudson.plugins.project_inheritance.utils.XmlProject;
+import hudson.tasks.Builder;
+import hudson.tasks.Shell;
 import jenkins.model.Jenkins;
 
 public class TestInheritanceSanity {
@@ -203,11 +214,133 @@ public class TestInheritanceSanity {
 		buildTwoandCheckOrder(sleep, 1.0, true, cp.project);
 	}
 	
+	/**
+	 * Deleting a parent must drop everything its children inherited from it,
+	 * including the values already memoized for the children.
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testDeletedParentIsNotInherited() throws IOException, InterruptedException {
+		XmlProject pp = new XmlProject("DeletedParent");
+		XmlProject cp = new XmlProject("OrphanedChild");
+		cp.addParent(pp.project.getFullName(), "");
+		
+		pp.project.getRawBuildersList().add(new Shell("echo parent"));
+		pp.project.dumpConfigToNewVersion();
+		
+		//Derive the builders once, so that they are memoized for the child
+		assertTrue(
+				"Child does not inherit the builder of its parent",
+				hasShell(cp.project, "echo parent")
+		);
+		
+		pp.project.delete();
+		assertFalse(
+				"Child still inherits the builder of its deleted parent",
+				hasShell(cp.project, "echo parent")
+		);
+	}
+	
+	@Test
+	public void testQueueGettersSkipStackWalk() throws IOException {
+		XmlProject pp = new XmlProject("LabelParent");
+		XmlProject cp = new XmlProject("LabelChild");
+		cp.addParent(pp.project.getFullName(), "");
+		pp.project.setAssignedLabel(Label.get("inherited"));
+		
+		long before = InheritanceContext.getFallbackCount();
+		Label lbl = cp.project.getAssignedLabel();
+		assertNotNull("Child does not inherit the label of its parent", lbl);
+		assertTrue(lbl.getName().contains("inherited"));
+		assertTrue("Child is not buildable", cp.project.isBuildable());
+		assertEquals(
+				"Queue getters fell back to the stack walk",
+				before, InheritanceContext.getFallbackCount()
+		);
+	}
+	
+	@Test
+	public void testRenamedParentIsInherited() throws IOException {
+		XmlProject pp = new XmlProject("SomeParent");
+		XmlProject cp = new XmlProject("WaitingChild");
+		//The child references a parent that does not exist yet
+		cp.addParent("RenamedParent", "");
+		
+		pp.project.getRawBuildersList().add(new Shell("echo renamed"));
+		pp.project.dumpConfigToNewVersion();
+		
+		//Derive the builders once, so that they are memoized for the child
+		assertFalse(
+				"Child inherits from a parent that does not exist",
+				hasShell(cp.project, "echo renamed")
+		);
+		
+		pp.project.renameTo("RenamedParent");
+		assertTrue(
+				"Child does not inherit from the parent renamed to its reference",
+				hasShell(cp.project, "echo renamed")
+		);
+	}
+	
+	@Test
+	public void testVersionAwareCycleCheck() throws IOException {
+		XmlProject a = new XmlProject("CycleA");
+		XmlProject b = new XmlProject("CycleB");
+		b.addParent("CycleA", null);
+		b.project.dumpConfigToNewVersion();
+		a.project.dumpConfigToNewVersion();
+		Long acyclic = a.project.getLatestVersion();
+		
+		//Closing the cycle in a new version of the parent
+		a.addParent("CycleB", null);
+		a.project.dumpConfigToNewVersion();
+		Long cyclic = a.project.getLatestVersion();
+		assertTrue("Cycle not detected for the current versions", b.project.hasCyclicDependency());
+		
+		Map<String, Long> versions = new HashMap<String, Long>();
+		try {
+			versions.put("CycleA", acyclic);
+			VersionHandler.initVersions(versions);
+			assertFalse(
+					"Cycle detected although the old version has no cycle",
+					b.project.hasCyclicDependency()
+			);
+			//A repeated check for the same versions is answered from the cache
+			long hits = DerivedFieldCache.getHits();
+			assertFalse(b.project.hasCyclicDependency());
+			assertEquals(hits + 1, DerivedFieldCache.getHits());
+			
+			versions.put("CycleA", cyclic);
+			VersionHandler.initVersions(versions);
+			assertTrue(
+					"Cycle not detected for the selected version",
+					b.project.hasCyclicDependency()
+			);
+		} finally {
+			VersionHandler.clearVersions();
+		}
+		
+		//Dropping the parent of the live project removes the cycle
+		a.dropParent("CycleB");
+		assertFalse(b.project.hasCyclicDependency());
+	}
+	
 	
 	
 	
 	// === HELPER METHODS ===
 	
+	private boolean hasShell(InheritanceProject p, String command) {
+		for (Builder b : p.getBuildersList(IMode.INHERIT_FORCED)) {
+			if (b instanceof Shell && command.equals(((Shell) b).getCommand())) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	/**
 	 * @param sleep
 	 * @param eps
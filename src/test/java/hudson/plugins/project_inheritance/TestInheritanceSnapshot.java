@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance;
+
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.InheritanceProject.IMode;
+import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine;
+import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine.CreationClass;
+import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine.CreationMating;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceSnapshot;
+import hudson.plugins.project_inheritance.projects.references.SimpleProjectReference;
+import hudson.plugins.project_inheritance.utils.XmlProject;
+
+/**
+ * Tests that the derivations done while an {@link InheritanceSnapshot} is
+ * open, either explicitly or for a request, share their work.
+ */
+public class TestInheritanceSnapshot {
+	private static final Logger log = Logger.getLogger(
+			TestInheritanceSnapshot.class.toString()
+	);
+	
+	@Rule public JenkinsRule jRule = new JenkinsRule();
+	
+	
+	private void printInfo(String info) {
+		log.info("[TestInheritanceSnapshot] " + info);
+	}
+	
+	
+	// === TEST EXECUTION ===
+	
+	@Test
+	public void testThreadSnapshot() throws Exception {
+		printInfo("testThreadSnapshot()");
+		new XmlProject("Parent");
+		XmlProject child = new XmlProject("Child");
+		child.addParent("Parent", null);
+		
+		//Outside of a request, there is no snapshot unless one is opened
+		Assert.assertNull(InheritanceSnapshot.getCurrent());
+		
+		try (InheritanceSnapshot snap = InheritanceSnapshot.open()) {
+			Assert.assertSame(snap, InheritanceSnapshot.getCurrent());
+			child.project.getBuildersList(IMode.INHERIT_FORCED);
+			long hits = snap.getHits();
+			child.project.getBuildersList(IMode.INHERIT_FORCED);
+			Assert.assertTrue(
+					"Second derivation did not reuse the first one",
+					snap.getHits() > hits
+			);
+			
+			//Nested snapshots end on their own
+			try (InheritanceSnapshot inner = InheritanceSnapshot.open()) {
+				Assert.assertSame(inner, InheritanceSnapshot.getCurrent());
+			}
+			Assert.assertSame(snap, InheritanceSnapshot.getCurrent());
+		}
+		Assert.assertNull(InheritanceSnapshot.getCurrent());
+	}
+	
+	@Test
+	public void testRequestSnapshot() throws Exception {
+		printInfo("testRequestSnapshot()");
+		//Transient jobs are always derived; even when rendering their page
+		XmlProject left = new XmlProject("Left");
+		XmlProject right = new XmlProject("Right");
+		ProjectCreationEngine pce = ProjectCreationEngine.instance;
+		pce.getCreationClasses().add(new CreationClass("Left", ""));
+		pce.getCreationClasses().add(new CreationClass("Right", ""));
+		pce.getMatings().add(new CreationMating("Left", "Right", ""));
+		left.project.setCreationClass("Left");
+		right.project.setCreationClass("Right");
+		left.project.getRawCompatibleProjects().add(
+				new SimpleProjectReference("Right")
+		);
+		InheritanceProject.clearBuffers(left.project);
+		pce.setEnableCreation(true);
+		Map<String, String> report = pce.triggerCreateProjects();
+		Assert.assertEquals("Success", report.get("Left_Right"));
+		
+		long snapshots = InheritanceSnapshot.getRequestSnapshots();
+		long hits = InheritanceSnapshot.getRequestHits();
+		jRule.createWebClient().goTo("job/Left_Right/");
+		
+		//The many reads done while rendering share the snapshot
+		Assert.assertTrue(
+				"No snapshot was created for the request",
+				InheritanceSnapshot.getRequestSnapshots() > snapshots
+		);
+		Assert.assertTrue(
+				"The request snapshot was never reused",
+				InheritanceSnapshot.getRequestHits() > hits
+		);
+		
+		//But they are never seen outside of the request
+		Assert.assertNull(InheritanceSnapshot.getCurrent());
+	}
+}
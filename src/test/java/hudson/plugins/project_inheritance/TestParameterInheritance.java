@@ -26,6 +26,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -40,20 +42,30 @@ import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 
 import hudson.cli.BuildCommand.CLICause;
+import hudson.model.JobProperty;
 import hudson.model.ParameterDefinition;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersAction;
 import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Queue;
 import hudson.model.Result;
 import hudson.model.StringParameterDefinition;
 import hudson.model.StringParameterValue;
 import hudson.model.queue.QueueTaskFuture;
 import hudson.plugins.project_inheritance.projects.InheritanceBuild;
 import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.inheritance.ParameterSelector;
+import hudson.plugins.project_inheritance.projects.inheritance.ParameterSelector.ParameterTable;
+import hudson.plugins.project_inheritance.projects.inheritance.ParameterSelector.ScopeEntry;
 import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterDefinition;
+import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterReferenceDefinition;
 import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterDefinition.IModes;
 import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterDefinition.WhitespaceMode;
 import hudson.plugins.project_inheritance.projects.references.SimpleProjectReference;
+import hudson.plugins.project_inheritance.projects.versioning.VersionHandler;
+import hudson.plugins.project_inheritance.utils.XmlProject;
+import jenkins.model.Jenkins;
+import jenkins.model.ParameterizedJobMixIn;
 
 public class TestParameterInheritance {
 	private static final Logger log = Logger.getLogger(
@@ -194,10 +206,223 @@ public class TestParameterInheritance {
 		
 	}
 	
+	/**
+	 * Web hooks of SCM plugins schedule builds through the static methods of
+	 * {@link ParameterizedJobMixIn} on the request thread, without opening an
+	 * inheritance context. The queued build must still get the inherited
+	 * default parameters.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testScheduleThroughMixInInRequest() throws Exception {
+		InheritanceProject parent = jRule.jenkins.createProject(
+				InheritanceProject.class, "MixInParent"
+		);
+		this.addParameters(parent, Arrays.asList(
+				new StringParameterValue("FOO", "parent")
+		));
+		final InheritanceProject child = jRule.jenkins.createProject(
+				InheritanceProject.class, "MixInChild"
+		);
+		child.addParentReference(new SimpleProjectReference("MixInParent"));
+		
+		//Schedule from within a request, like a web hook would
+		Queue.Item item = jRule.executeOnServer(new Callable<Queue.Item>() {
+			public Queue.Item call() throws Exception {
+				return ParameterizedJobMixIn.scheduleBuild2(child, 0);
+			}
+		});
+		Assert.assertNotNull("Build was not scheduled", item);
+		
+		ParametersAction pa = item.getAction(ParametersAction.class);
+		Assert.assertNotNull("Queued build has no parameters", pa);
+		ParameterValue pv = pa.getParameter("FOO");
+		Assert.assertNotNull("Inherited parameter was not passed to the queue", pv);
+		Assert.assertEquals("parent", pv.getValue());
+		
+		//Let the build finish, before Jenkins is torn down
+		item.getFuture().get(60, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * {@link ParameterSelector#mergeAll(List, InheritanceProject)} merges a
+	 * whole scope in a single pass. For all inheritance and whitespace modes,
+	 * references and unknown subclasses, the result must serialize exactly
+	 * like that of folding the scope pairwise via
+	 * {@link ParameterSelector#merge(JobProperty, JobProperty, InheritanceProject)}.
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testSinglePassMergeMatchesFold() throws IOException {
+		InheritanceProject caller = jRule.jenkins.createProject(
+				InheritanceProject.class, "MergeCaller"
+		);
+		ParameterSelector sel = ParameterSelector.instance;
+		String[] childValues = {"c", "  ", null};
+		
+		int cnt = 0;
+		for (IModes m1 : IModes.values()) {
+			for (IModes m2 : IModes.values()) {
+				for (IModes m3 : IModes.values()) {
+					for (WhitespaceMode w1 : WhitespaceMode.values()) {
+						for (WhitespaceMode w2 : WhitespaceMode.values()) {
+							for (int k2 = 0; k2 < KINDS; k2++) {
+								for (int k3 = 0; k3 < KINDS; k3++) {
+									String value = childValues[cnt % childValues.length];
+									List<JobProperty<?>> scope = Arrays.<JobProperty<?>>asList(
+											new ParametersDefinitionProperty(
+													createDefinition(0, "P", "a", m1, w1, cnt),
+													createDefinition(0, "Q", "q", m2, w2, cnt + 1)
+											),
+											new ParametersDefinitionProperty(
+													createDefinition(k2, "P", " b ", m2, w2, cnt + 2)
+											),
+											new ParametersDefinitionProperty(
+													createDefinition(k3, "P", value, m3, w1, cnt + 3),
+													createDefinition(k3, "Q", value, m3, w2, cnt + 4),
+													createDefinition(0, "R", "r", m1, w2, cnt)
+											)
+									);
+									
+									JobProperty<?> fold = scope.get(0);
+									for (int i = 1; i < scope.size(); i++) {
+										fold = sel.merge(fold, scope.get(i), caller);
+									}
+									JobProperty<?> single = sel.mergeAll(scope, caller);
+									
+									Assert.assertEquals(
+											String.format(
+													"Single-pass merge differs for %s/%s/%s, %s/%s, kinds %d/%d, value '%s'",
+													m1, m2, m3, w1, w2, k2, k3, value
+											),
+											toXml(fold), toXml(single)
+									);
+									cnt++;
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		log.info("Compared " + cnt + " single-pass merges against their fold");
+	}
+	
+	/**
+	 * The parameter scope of a project is built once per version vector and
+	 * rebuilt once the project or any of its parents change.
+	 */
+	@Test
+	public void testParameterTableCache() throws IOException {
+		ParameterSelector sel = ParameterSelector.instance;
+		XmlProject a = new XmlProject("TableA");
+		XmlProject b = new XmlProject("TableB");
+		b.addParent("TableA", null);
+		b.setParameter("Q", "q");
+		a.setParameter("P", "1");
+		a.project.dumpConfigToNewVersion();
+		Long v1 = a.project.getLatestVersion();
+		
+		ParameterTable t1 = sel.getParameterTable(b.project);
+		Assert.assertSame("Table was not reused", t1, sel.getParameterTable(b.project));
+		List<ScopeEntry> p = t1.getEntriesFor("P");
+		Assert.assertEquals(1, p.size());
+		Assert.assertEquals("TableA", p.get(0).owner);
+		Assert.assertEquals("TableB", t1.getEntriesFor("Q").get(0).owner);
+		Assert.assertTrue(t1.getEntriesFor("Missing").isEmpty());
+		try {
+			t1.getEntries().clear();
+			Assert.fail("Table entries must not be modifiable");
+		} catch (UnsupportedOperationException ex) {
+			//Expected
+		}
+		
+		//Changing the parent must produce a new table for the child
+		a.setParameter("P", "2");
+		a.project.dumpConfigToNewVersion();
+		Long v2 = a.project.getLatestVersion();
+		Assert.assertNotEquals(v1, v2);
+		Assert.assertNotSame("Parent change not noticed", t1, sel.getParameterTable(b.project));
+		
+		//Each version vector has its own table
+		try {
+			Map<String, Long> versions = new HashMap<String, Long>();
+			versions.put("TableA", v1);
+			VersionHandler.initVersions(versions);
+			ParameterTable old = sel.getParameterTable(b.project);
+			Assert.assertSame(old, sel.getParameterTable(b.project));
+			Assert.assertEquals("1", getDefault(old, "P"));
+			
+			versions.put("TableA", v2);
+			VersionHandler.initVersions(versions);
+			ParameterTable cur = sel.getParameterTable(b.project);
+			Assert.assertNotSame(old, cur);
+			Assert.assertEquals("2", getDefault(cur, "P"));
+		} finally {
+			VersionHandler.clearVersions();
+		}
+	}
+	
 	
 	
 	// === HELPER METHODS ===
 	
+	private static String getDefault(ParameterTable table, String name) {
+		List<ScopeEntry> entries = table.getEntriesFor(name);
+		ScopeEntry last = entries.get(entries.size() - 1);
+		return ((StringParameterDefinition) last.param).getDefaultValue();
+	}
+	
+	/**
+	 * The number of kinds of definitions created by
+	 * {@link #createDefinition(int, String, String, IModes, WhitespaceMode, int)}.
+	 */
+	private static final int KINDS = 4;
+	
+	/**
+	 * An inheritable parameter of a type the single-pass merge does not know.
+	 */
+	public static class CustomParameterDefinition extends InheritableStringParameterDefinition {
+		private static final long serialVersionUID = 1L;
+		
+		public CustomParameterDefinition(String name, String defaultValue,
+				IModes mode, WhitespaceMode whitespace, boolean flag) {
+			super(name, defaultValue, "custom", mode, flag, !flag, whitespace, flag);
+		}
+	}
+	
+	/**
+	 * @param kind 0 for a plain inheritable parameter, 1 for a reference,
+	 *        2 for an unknown subclass and 3 for a non-inheritable parameter
+	 * @param flags varies the boolean flags of the definition
+	 */
+	private static ParameterDefinition createDefinition(int kind, String name,
+			String value, IModes mode, WhitespaceMode whitespace, int flags) {
+		InheritableStringParameterDefinition ispd = new InheritableStringParameterDefinition(
+				name, value, (flags % 3 == 0) ? null : "described " + name, mode,
+				(flags & 1) != 0, (flags & 2) != 0, whitespace, (flags & 4) != 0
+		);
+		switch (kind) {
+			case 1:
+				return new InheritableStringParameterReferenceDefinition(ispd);
+			case 2:
+				return new CustomParameterDefinition(name, value, mode, whitespace, (flags & 1) != 0);
+			case 3:
+				return new StringParameterDefinition(name, value);
+			default:
+				return ispd;
+		}
+	}
+	
+	private static String toXml(JobProperty<?> jp) {
+		Assert.assertTrue(jp instanceof ParametersDefinitionProperty);
+		return jp.getClass().getName() + "\n" + Jenkins.XSTREAM2.toXML(
+				((ParametersDefinitionProperty) jp).getParameterDefinitions()
+		);
+	}
+	
 	private void checkBuildWithParameters(
 			String projectName,
 			List<StringParameterValue> projectValues,
@@ -0,0 +1,215 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.creation.CreationPlan;
+import hudson.plugins.project_inheritance.projects.creation.CreationPlan.Action;
+import hudson.plugins.project_inheritance.projects.creation.CreationPlan.Entry;
+import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine;
+import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine.CreationClass;
+import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine.CreationMating;
+import hudson.plugins.project_inheritance.projects.references.SimpleProjectReference;
+import hudson.plugins.project_inheritance.utils.XmlProject;
+
+/**
+ * Tests the creation of transient projects for only some of the projects.
+ * <p>
+ * All tests use the same hierarchy: the jobs 'Left1', 'Left2' and 'Deep'
+ * are in the class 'Left' and 'Right' in the class 'Right'. 'Deep' is a
+ * child of 'Left1'. Each left job lists 'Right' as compatible.
+ */
+public class TestTransientCreation {
+	private static final Logger log = Logger.getLogger(
+			TestTransientCreation.class.toString()
+	);
+	
+	@Rule public JenkinsRule jRule = new JenkinsRule();
+	
+	private XmlProject left1;
+	private XmlProject left2;
+	private XmlProject deep;
+	private XmlProject right;
+	
+	
+	private void printInfo(String info) {
+		log.info("[TestTransientCreation] " + info);
+	}
+	
+	
+	// === TEST EXECUTION ===
+	
+	@Test
+	public void testDeltaCreation() throws IOException {
+		printInfo("testDeltaCreation()");
+		ProjectCreationEngine pce = this.createHierarchy();
+		
+		//A change of 'Left1' affects its own mating and that of its child
+		Map<String, String> report = pce.triggerCreateProjectsFor(left1.project);
+		Assert.assertEquals(
+				Arrays.asList("Deep_Right", "Left1_Right"),
+				sorted(report.keySet())
+		);
+		Assert.assertEquals("Success", report.get("Left1_Right"));
+		Assert.assertEquals("Success", report.get("Deep_Right"));
+		Assert.assertNull(
+				"Unaffected mating was created",
+				jRule.jenkins.getItem("Left2_Right")
+		);
+		
+		//A change of 'Right' affects all matings listing it as compatible
+		report = pce.triggerCreateProjectsFor(right.project);
+		Assert.assertEquals(
+				Arrays.asList("Deep_Right", "Left1_Right", "Left2_Right"),
+				sorted(report.keySet())
+		);
+		Assert.assertEquals("Success", report.get("Left2_Right"));
+		Assert.assertEquals("Job already exists", report.get("Left1_Right"));
+		Assert.assertNotNull(jRule.jenkins.getItem("Left2_Right"));
+		
+		//Nothing happens while creation is disabled
+		pce.setEnableCreation(false);
+		Assert.assertTrue(pce.triggerCreateProjectsFor(right.project).isEmpty());
+	}
+	
+	
+	@Test
+	public void testCreationPlan() throws Exception {
+		printInfo("testCreationPlan()");
+		ProjectCreationEngine pce = this.createHierarchy();
+		
+		//Nothing exists yet; so every mating needs to be created
+		Map<String, Entry> plan = byName(pce.getCreationPlan());
+		Assert.assertEquals(
+				Arrays.asList("Deep_Right", "Left1_Right", "Left2_Right"),
+				sorted(plan.keySet())
+		);
+		for (Entry e : plan.values()) {
+			Assert.assertEquals(e.name, Action.CREATE, e.getAction());
+			Assert.assertEquals(Boolean.TRUE, e.isSane());
+			Assert.assertFalse(e.isCyclic());
+		}
+		Assert.assertEquals(
+				Arrays.asList("Left1", "Right"),
+				plan.get("Left1_Right").getParentNames()
+		);
+		Assert.assertNull(
+				"Plan created a job",
+				jRule.jenkins.getItem("Left1_Right")
+		);
+		
+		//Existing transient jobs are kept; other jobs block the name
+		pce.triggerCreateProjectsFor(left1.project);
+		jRule.createFreeStyleProject("Left2_Right");
+		plan = byName(pce.getCreationPlan());
+		Assert.assertEquals(Action.KEEP, plan.get("Left1_Right").getAction());
+		Assert.assertEquals(Action.KEEP, plan.get("Deep_Right").getAction());
+		Assert.assertEquals(Action.REJECT, plan.get("Left2_Right").getAction());
+		Assert.assertEquals("Job already exists", plan.get("Left2_Right").getReason());
+		
+		//Matings of classes that may not mate are rejected
+		XmlProject odd = new XmlProject("Odd");
+		odd.project.setCreationClass("Left");
+		odd.project.getRawCompatibleProjects().add(
+				new SimpleProjectReference("Left2")
+		);
+		InheritanceProject.clearBuffers(odd.project);
+		plan = byName(pce.getCreationPlan());
+		Assert.assertEquals(Action.REJECT, plan.get("Odd_Left2").getAction());
+		Assert.assertEquals(
+				"Parents have incompatible classes: Left<->Left",
+				plan.get("Odd_Left2").getReason()
+		);
+		
+		//Transient jobs no mating produces anymore are obsolete
+		deep.project.getRawCompatibleProjects().clear();
+		InheritanceProject.clearBuffers(deep.project);
+		CreationPlan full = pce.getCreationPlan();
+		Assert.assertTrue(full.isComplete());
+		plan = byName(full);
+		Assert.assertEquals(Action.OBSOLETE, plan.get("Deep_Right").getAction());
+		Assert.assertEquals(1, full.getEntries(Action.OBSOLETE).size());
+		Assert.assertNotNull(
+				"Plan deleted a job",
+				jRule.jenkins.getItem("Deep_Right")
+		);
+	}
+	
+	
+	// === HELPER METHODS ===
+	
+	/**
+	 * Creates the hierarchy described in the class comment and enables the
+	 * creation of transient jobs afterwards.
+	 */
+	private ProjectCreationEngine createHierarchy() throws IOException {
+		left1 = new XmlProject("Left1");
+		left2 = new XmlProject("Left2");
+		deep = new XmlProject("Deep");
+		right = new XmlProject("Right");
+		deep.addParent("Left1", null);
+		
+		ProjectCreationEngine pce = ProjectCreationEngine.instance;
+		pce.getCreationClasses().add(new CreationClass("Left", ""));
+		pce.getCreationClasses().add(new CreationClass("Right", ""));
+		pce.getMatings().add(new CreationMating("Left", "Right", ""));
+		for (XmlProject xp : Arrays.asList(left1, left2, deep)) {
+			xp.project.setCreationClass("Left");
+			xp.project.getRawCompatibleProjects().add(
+					new SimpleProjectReference("Right")
+			);
+			InheritanceProject.clearBuffers(xp.project);
+		}
+		right.project.setCreationClass("Right");
+		
+		pce.setEnableCreation(true);
+		return pce;
+	}
+	
+	private static Map<String, Entry> byName(CreationPlan plan) {
+		Map<String, Entry> out = new HashMap<String, Entry>();
+		for (Entry e : plan.getEntries()) {
+			out.put(e.name, e);
+		}
+		return out;
+	}
+	
+	private static List<String> sorted(Iterable<String> in) {
+		List<String> out = new ArrayList<String>();
+		for (String s : in) { out.add(s); }
+		Collections.sort(out);
+		return out;
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.InheritanceProject.IMode;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceGraphIndex;
+import hudson.plugins.project_inheritance.projects.references.ProjectReference.PrioComparator.SELECTOR;
+import hudson.plugins.project_inheritance.utils.XmlHierarchy;
+import hudson.plugins.project_inheritance.utils.XmlHierarchy.Shape;
+
+/**
+ * Checks that the hierarchies the benchmarks run against have the shape
+ * they claim to have, so that the benchmarks measure what they are named
+ * after.
+ */
+public class TestXmlHierarchy {
+	private static final Logger log = Logger.getLogger(
+			TestXmlHierarchy.class.toString()
+	);
+	
+	private static final int SIZE = 4;
+	
+	@Rule public JenkinsRule jRule = new JenkinsRule();
+	
+	
+	private void printInfo(String info) {
+		log.info("[TestXmlHierarchy] " + info);
+	}
+	
+	
+	// === TEST EXECUTION ===
+	
+	@Test
+	public void testChain() throws IOException {
+		printInfo("testChain()");
+		XmlHierarchy h = XmlHierarchy.create(Shape.CHAIN, SIZE);
+		Assert.assertEquals(SIZE, h.projects.size());
+		Assert.assertEquals("chain_" + (SIZE - 1), h.target.getFullName());
+		
+		//The target derives from the whole chain
+		Assert.assertEquals(SIZE - 1, h.target.getAllParentReferences(SELECTOR.BUILDER).size());
+		Assert.assertEquals(SIZE, h.target.getBuildersList(IMode.INHERIT_FORCED).size());
+		String param = getParameter(h.target);
+		Assert.assertTrue(param, param.contains("chain_0"));
+		Assert.assertTrue(param, param.contains("chain_" + (SIZE - 1)));
+		Assert.assertTrue(h.target.isBuildable());
+	}
+	
+	@Test
+	public void testFanOut() throws IOException {
+		printInfo("testFanOut()");
+		XmlHierarchy h = XmlHierarchy.create(Shape.FAN_OUT, SIZE);
+		Assert.assertEquals(SIZE + 1, h.projects.size());
+		Assert.assertEquals(
+				SIZE, InheritanceGraphIndex.get().getParentNames("wide").size()
+		);
+		Assert.assertEquals(SIZE + 1, h.target.getBuildersList(IMode.INHERIT_FORCED).size());
+		Assert.assertTrue(h.target.isBuildable());
+	}
+	
+	@Test
+	public void testDiamond() throws IOException {
+		printInfo("testDiamond()");
+		XmlHierarchy h = XmlHierarchy.create(Shape.DIAMOND, SIZE);
+		Assert.assertEquals(1 + 3 * (SIZE - 1), h.projects.size());
+		Assert.assertEquals("diamond_" + (SIZE - 1), h.target.getFullName());
+		
+		//Diamonds are rejected; the benchmarks measure how fast that happens
+		Assert.assertTrue(h.target.hasCyclicDependency());
+		Assert.assertTrue(InheritanceGraphIndex.get().hasCyclicDependency(h.target.getFullName()));
+		Assert.assertFalse(h.target.isBuildable());
+	}
+	
+	@Test
+	public void testLeaves() throws IOException {
+		printInfo("testLeaves()");
+		XmlHierarchy h = XmlHierarchy.create(Shape.LEAVES, SIZE);
+		Assert.assertEquals(SIZE + 1, h.projects.size());
+		Assert.assertEquals("base", h.target.getFullName());
+		Assert.assertEquals(
+				SIZE, InheritanceGraphIndex.get().getChildNames("base").size()
+		);
+		Assert.assertNotNull(h.target.getAssignedLabel());
+		for (InheritanceProject ip : h.projects) {
+			Assert.assertNotNull(
+					"No stable version for " + ip.getFullName(),
+					ip.getStableVersion()
+			);
+		}
+	}
+	
+	
+	// === HELPER METHODS ===
+	
+	private static String getParameter(InheritanceProject ip) {
+		ParametersDefinitionProperty pdp = ip.getProperty(
+				ParametersDefinitionProperty.class, IMode.INHERIT_FORCED
+		);
+		Assert.assertNotNull("No parameters derived for " + ip.getFullName(), pdp);
+		StringParameterDefinition pd =
+				(StringParameterDefinition) pdp.getParameterDefinition("PARAM");
+		Assert.assertNotNull("PARAM not derived for " + ip.getFullName(), pd);
+		return pd.getDefaultValue();
+	}
+}
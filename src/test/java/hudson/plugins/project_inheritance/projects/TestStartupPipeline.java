@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.FreeStyleProject;
+import hudson.plugins.project_inheritance.util.VersionedObjectStore;
+import hudson.plugins.project_inheritance.utils.XmlProject;
+
+/**
+ * Checks which version files the {@link StartupPipeline} preloads and that
+ * they are only handed out until {@link StartupPipeline#finish()} ran.
+ */
+public class TestStartupPipeline {
+	private static final Logger log = Logger.getLogger(
+			TestStartupPipeline.class.toString()
+	);
+	
+	@Rule public JenkinsRule jRule = new JenkinsRule();
+	
+	
+	private void printInfo(String info) {
+		log.info("[TestStartupPipeline] " + info);
+	}
+	
+	@After
+	public void tearDown() {
+		StartupPipeline.reset();
+	}
+	
+	
+	// === TEST EXECUTION ===
+	
+	@Test
+	public void testRootElement() throws IOException {
+		printInfo("testRootElement()");
+		File config = new File(jRule.jenkins.getRootDir(), "root-test.xml");
+		
+		FileUtils.writeStringToFile(config,
+				"<?xml version='1.1' encoding='UTF-8'?>\n" +
+				"<!-- a <comment> -->\n" +
+				"<some.Job plugin=\"x@1\">\n<name/>\n</some.Job>",
+				StandardCharsets.UTF_8
+		);
+		Assert.assertEquals("some.Job", StartupPipeline.readRootElement(config));
+		
+		FileUtils.writeStringToFile(config, "<?xml version='1.1'?>", StandardCharsets.UTF_8);
+		Assert.assertNull(StartupPipeline.readRootElement(config));
+		Assert.assertNull(StartupPipeline.readRootElement(new File(config, "missing")));
+	}
+	
+	@Test
+	public void testPreloadOnlyInheritanceProjects() throws IOException {
+		printInfo("testPreloadOnlyInheritanceProjects()");
+		File jobsDir = new File(jRule.jenkins.getRootDir(), "jobs");
+		
+		XmlProject a = new XmlProject("A");
+		a.project.dumpConfigToNewVersion();
+		File aVersions = a.project.getVersionFile();
+		Assert.assertTrue("No versions written for A", aVersions.isFile());
+		
+		//A regular job, that happens to contain a version file
+		FreeStyleProject f = jRule.createFreeStyleProject("F");
+		File fVersions = new File(f.getRootDir(), aVersions.getName());
+		FileUtils.copyFile(aVersions, fVersions);
+		
+		//A folder of an unknown type, holding an inheritance project
+		File folder = new File(jobsDir, "Folder");
+		FileUtils.writeStringToFile(new File(folder, "config.xml"),
+				"<?xml version='1.1' encoding='UTF-8'?>\n<some.unknown.Folder/>",
+				StandardCharsets.UTF_8
+		);
+		File folderVersions = new File(folder, aVersions.getName());
+		FileUtils.copyFile(aVersions, folderVersions);
+		File nested = new File(folder, "jobs" + File.separator + "B");
+		FileUtils.copyFileToDirectory(new File(a.project.getRootDir(), "config.xml"), nested);
+		File bVersions = new File(nested, aVersions.getName());
+		FileUtils.copyFile(aVersions, bVersions);
+		
+		StartupPipeline.reset();
+		StartupPipeline.start(jobsDir);
+		Assert.assertEquals(
+				"Only the inheritance projects should have been preloaded",
+				2, StartupPipeline.getPreloadsSubmitted()
+		);
+		Assert.assertNull(StartupPipeline.takePreloaded(fVersions));
+		Assert.assertNull(StartupPipeline.takePreloaded(folderVersions));
+		Assert.assertNotNull(StartupPipeline.takePreloaded(bVersions));
+	}
+	
+	@Test
+	public void testPreloadBeforeFinish() throws IOException {
+		printInfo("testPreloadBeforeFinish()");
+		File jobsDir = new File(jRule.jenkins.getRootDir(), "jobs");
+		
+		XmlProject a = new XmlProject("A");
+		XmlProject b = new XmlProject("B");
+		a.project.dumpConfigToNewVersion();
+		b.project.dumpConfigToNewVersion();
+		File aVersions = a.project.getVersionFile();
+		File bVersions = b.project.getVersionFile();
+		
+		StartupPipeline.reset();
+		StartupPipeline.start(jobsDir);
+		Assert.assertTrue(
+				"Clearing buffers must be deferred while jobs load",
+				StartupPipeline.deferClearBuffers()
+		);
+		
+		//A preloaded store is handed out exactly once
+		VersionedObjectStore vos = StartupPipeline.takePreloaded(aVersions);
+		Assert.assertNotNull("Store of A was not preloaded", vos);
+		Assert.assertEquals(
+				a.project.getVersionedObjectStore().getAllVersions().size(),
+				vos.getAllVersions().size()
+		);
+		Assert.assertNull(StartupPipeline.takePreloaded(aVersions));
+		
+		//Once the jobs are loaded, stores are no longer handed out
+		StartupPipeline.finish();
+		Assert.assertNull(
+				"Store was handed out after the pipeline finished",
+				StartupPipeline.takePreloaded(bVersions)
+		);
+		Assert.assertFalse(StartupPipeline.deferClearBuffers());
+		
+		//Finishing again does nothing
+		StartupPipeline.finish();
+		Assert.assertNull(StartupPipeline.takePreloaded(bVersions));
+	}
+}
@@ -21,15 +21,23 @@
 package hudson.plugins.project_inheritance.projects;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.GZIPInputStream;
 import java.util.Arrays;
 import java.util.List;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -38,6 +46,8 @@ import org.jvnet.hudson.test.SleepBuilder;
 import org.xml.sax.SAXException;
 
 import com.gargoylesoftware.htmlunit.Page;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
 import com.gargoylesoftware.htmlunit.html.DomText;
 import com.gargoylesoftware.htmlunit.xml.XmlPage;
 
@@ -222,6 +232,147 @@ public class TestXmlSerialisation {
 	}
 	
 	
+	/**
+	 * This test checks that the XML exports are only answered with 304, if
+	 * the ETag of the client still matches. Selecting or stabilizing another
+	 * version and touching the project must all change the ETag, while the
+	 * date of the newest version stays the same.
+	 * 
+	 * @throws IOException in case the jobs can't be created or the XML be fetched.
+	 */
+	@Test
+	public void testConditionalRequests() throws IOException {
+		InheritanceProject p = jRule.jenkins.createProject(
+				InheritanceProject.class, "ConditionalTestProject"
+		);
+		p.addProperty(new ParametersDefinitionProperty(
+				Arrays.<ParameterDefinition>asList(
+						new InheritableStringParameterDefinition("Param1", "V1")
+				)
+		));
+		p.save();
+		p.dumpConfigToNewVersion("V1");
+		p.getRawBuildersList().add(new SleepBuilder(5));
+		p.save();
+		p.dumpConfigToNewVersion("V2");
+		
+		WebClient wc = jRule.createWebClient();
+		//The client must not answer a 304 from its own cache
+		wc.getCache().setMaxSize(0);
+		String url = p.getUrl() + "getParamDefaultsAsXML";
+		
+		
+		// === UNCONDITIONAL REQUEST ===
+		WebResponse rsp = fetch(wc, url, null, null);
+		assertEquals(200, rsp.getStatusCode());
+		String etag = rsp.getResponseHeaderValue("ETag");
+		String lastModified = rsp.getResponseHeaderValue("Last-Modified");
+		assertNotNull("No ETag sent", etag);
+		assertNotNull("No Last-Modified sent", lastModified);
+		
+		
+		// === MATCHING AND STALE ETAGS ===
+		rsp = fetch(wc, url, etag, null);
+		assertEquals("Matching ETag not answered with 304", 304, rsp.getStatusCode());
+		
+		rsp = fetch(wc, url, "W/\"stale\"", lastModified);
+		assertEquals("Stale ETag answered with 304", 200, rsp.getStatusCode());
+		
+		//The date alone must never lead to a 304
+		rsp = fetch(wc, url, null, lastModified);
+		assertEquals("Last-Modified alone answered with 304", 200, rsp.getStatusCode());
+		
+		
+		// === CHANGES NOT VISIBLE IN THE DATE ===
+		//Selecting another version
+		rsp = fetch(wc, url + "?version=1", etag, null);
+		assertEquals("Other selected version answered with 304", 200, rsp.getStatusCode());
+		assertNotEquals(etag, rsp.getResponseHeaderValue("ETag"));
+		
+		//Changing the stable version
+		p.setVersionStability(2, false);
+		p.setVersionStability(1, true);
+		rsp = fetch(wc, url, etag, null);
+		assertEquals("Other stable version answered with 304", 200, rsp.getStatusCode());
+		assertEquals(lastModified, rsp.getResponseHeaderValue("Last-Modified"));
+		etag = rsp.getResponseHeaderValue("ETag");
+		
+		rsp = fetch(wc, url, etag, null);
+		assertEquals(304, rsp.getStatusCode());
+		
+		//Touching the derivation stamp
+		InheritanceProject.clearBuffers(p);
+		rsp = fetch(wc, url, etag, null);
+		assertEquals("Touched project answered with 304", 200, rsp.getStatusCode());
+		assertNotEquals(etag, rsp.getResponseHeaderValue("ETag"));
+	}
+	
+	
+	/**
+	 * This test checks that the deprecated, String-returning variants of the
+	 * XML exports produce the same content as the streaming handlers.
+	 * 
+	 * @throws IOException in case the jobs can't be created or the XML be fetched.
+	 */
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testDeprecatedStringExports() throws IOException {
+		InheritanceProject p = jRule.jenkins.createProject(
+				InheritanceProject.class, "StringExportProject"
+		);
+		p.addProperty(new ParametersDefinitionProperty(
+				Arrays.<ParameterDefinition>asList(
+						new InheritableStringParameterDefinition("Param1", "V1")
+				)
+		));
+		p.save();
+		p.dumpConfigToNewVersion("V1");
+		
+		WebClient wc = jRule.createWebClient();
+		for (String name : Arrays.asList("ParamDefaults", "ParamExpansions", "Versions")) {
+			String expected;
+			switch (name) {
+				case "ParamDefaults": expected = p.doGetParamDefaultsAsXML(); break;
+				case "ParamExpansions": expected = p.doGetParamExpansionsAsXML(); break;
+				default: expected = p.doGetVersionsAsXML(); break;
+			}
+			WebResponse rsp = fetch(wc, p.getUrl() + "get" + name + "AsXML", null, null);
+			assertEquals(200, rsp.getStatusCode());
+			assertEquals(
+					"String variant differs for " + name,
+					expected, rsp.getContentAsString(StandardCharsets.UTF_8)
+			);
+		}
+		
+		//The compressed variant decodes to the plain version XML
+		String encoded = p.doGetVersionsAsCompressedXML();
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(
+				Base64.getMimeDecoder().decode(encoded)
+		));
+		try {
+			assertEquals(
+					p.doGetVersionsAsXML(),
+					IOUtils.toString(in, StandardCharsets.UTF_8)
+			);
+		} finally {
+			in.close();
+		}
+	}
+	
+	
+	private WebResponse fetch(
+			WebClient wc, String url, String ifNoneMatch, String ifModifiedSince
+	) throws IOException {
+		WebRequest req = new WebRequest(new URL(jRule.getURL(), url));
+		if (ifNoneMatch != null) {
+			req.setAdditionalHeader("If-None-Match", ifNoneMatch);
+		}
+		if (ifModifiedSince != null) {
+			req.setAdditionalHeader("If-Modified-Since", ifModifiedSince);
+		}
+		return wc.loadWebResponse(req);
+	}
+	
 	private XmlPage getConfig(
 			WebClient wc, InheritanceProject p, Long version
 	) throws IOException, SAXException {
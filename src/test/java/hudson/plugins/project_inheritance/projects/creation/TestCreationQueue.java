@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.creation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that the {@link CreationQueue} coalesces changes into few runs and
+ * falls back to covering all projects when needed.
+ * <p>
+ * These tests rely on the default delay of one second between the last
+ * change and the run.
+ */
+public class TestCreationQueue {
+	private static final Logger log = Logger.getLogger(
+			TestCreationQueue.class.toString()
+	);
+	
+	private static final long TIMEOUT = 30;
+	
+	
+	private void printInfo(String info) {
+		log.info("[TestCreationQueue] " + info);
+	}
+	
+	
+	/**
+	 * A handler that records the batches it was given.
+	 */
+	private static class Recorder implements CreationQueue.Handler {
+		public final BlockingQueue<Batch> batches = new LinkedBlockingQueue<Batch>();
+		public boolean fail = false;
+		
+		public void run(List<String> names, boolean all) {
+			batches.add(new Batch(names, all));
+			if (fail) {
+				throw new IllegalStateException("Intentional failure");
+			}
+		}
+		
+		public Batch next() throws InterruptedException {
+			Batch b = batches.poll(TIMEOUT, TimeUnit.SECONDS);
+			Assert.assertNotNull("No run happened", b);
+			return b;
+		}
+	}
+	
+	private static class Batch {
+		public final List<String> names;
+		public final boolean all;
+		
+		public Batch(List<String> names, boolean all) {
+			this.names = new ArrayList<String>(names);
+			this.all = all;
+		}
+	}
+	
+	
+	// === TEST EXECUTION ===
+	
+	@Test
+	public void testCoalescing() throws InterruptedException {
+		printInfo("testCoalescing()");
+		Recorder rec = new Recorder();
+		CreationQueue queue = new CreationQueue(rec);
+		Assert.assertEquals(-1, queue.getLastLatency());
+		
+		queue.submit("A");
+		queue.submit("B");
+		queue.submit("A");
+		queue.submit("C");
+		queue.submit(null);
+		Assert.assertEquals(3, queue.getQueueDepth());
+		
+		Batch b = rec.next();
+		Assert.assertFalse(b.all);
+		Assert.assertEquals(Arrays.asList("A", "B", "C"), b.names);
+		
+		//All changes went into that one run
+		Assert.assertNull(rec.batches.poll(2, TimeUnit.SECONDS));
+		Assert.assertEquals(0, queue.getQueueDepth());
+		Assert.assertEquals(3, queue.getLastSize());
+		Assert.assertTrue(queue.getLastDuration() >= 0);
+		Assert.assertTrue(queue.getLastLatency() >= queue.getLastDuration());
+		Assert.assertFalse(queue.isRunning());
+		
+		//Later changes go into a new run
+		queue.submit("D");
+		Assert.assertEquals(Collections.singletonList("D"), rec.next().names);
+	}
+	
+	@Test
+	public void testSubmitAll() throws InterruptedException {
+		printInfo("testSubmitAll()");
+		Recorder rec = new Recorder();
+		CreationQueue queue = new CreationQueue(rec);
+		
+		queue.submit("A");
+		queue.submitAll();
+		queue.submit("B");
+		Assert.assertEquals(-1, queue.getQueueDepth());
+		
+		Batch b = rec.next();
+		Assert.assertTrue(b.all);
+		Assert.assertTrue(b.names.isEmpty());
+	}
+	
+	@Test
+	public void testOverflow() throws InterruptedException {
+		printInfo("testOverflow()");
+		Recorder rec = new Recorder();
+		CreationQueue queue = new CreationQueue(rec);
+		
+		int max = Integer.getInteger(CreationQueue.MAX_PENDING_PROPERTY, 1000);
+		for (int i = 0; i < max; i++) {
+			queue.submit("Job" + i);
+		}
+		Assert.assertEquals(max, queue.getQueueDepth());
+		
+		//One more name than can be tracked covers all projects instead
+		queue.submit("Job" + max);
+		Assert.assertEquals(-1, queue.getQueueDepth());
+		
+		Batch b = rec.next();
+		Assert.assertTrue(b.all);
+		Assert.assertTrue(b.names.isEmpty());
+	}
+	
+	@Test
+	public void testFailingHandler() throws InterruptedException {
+		printInfo("testFailingHandler()");
+		Recorder rec = new Recorder();
+		rec.fail = true;
+		CreationQueue queue = new CreationQueue(rec);
+		
+		queue.submit("A");
+		rec.next();
+		
+		//A failed run must not stop later ones
+		queue.submit("B");
+		Assert.assertEquals(Collections.singletonList("B"), rec.next().names);
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.view;
+
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.JenkinsRule.WebClient;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import com.gargoylesoftware.htmlunit.FailingHttpStatusCodeException;
+
+import hudson.model.Item;
+import hudson.plugins.project_inheritance.utils.XmlProject;
+import jenkins.model.Jenkins;
+
+/**
+ * Tests the selection of projects by {@link ResolvedConfigExport}, in
+ * particular that it only exports projects the user may read.
+ */
+public class TestResolvedConfigExport {
+	private static final Logger log = Logger.getLogger(
+			TestResolvedConfigExport.class.toString()
+	);
+	
+	private static final String URL = "project_creation/getResolvedConfigsAsXML";
+	
+	@Rule public JenkinsRule jRule = new JenkinsRule();
+	
+	
+	private void printInfo(String info) {
+		log.info("[TestResolvedConfigExport] " + info);
+	}
+	
+	
+	// === TEST EXECUTION ===
+	
+	@Test
+	public void testGlobs() {
+		printInfo("testGlobs()");
+		Pattern p = ResolvedConfigExport.compileGlob("folder/*");
+		Assert.assertTrue(p.matcher("folder/a").matches());
+		Assert.assertFalse(p.matcher("folder/a/b").matches());
+		Assert.assertFalse(p.matcher("other/a").matches());
+		
+		p = ResolvedConfigExport.compileGlob("folder/**");
+		Assert.assertTrue(p.matcher("folder/a/b").matches());
+		
+		p = ResolvedConfigExport.compileGlob("job.?");
+		Assert.assertTrue(p.matcher("job.1").matches());
+		Assert.assertFalse(p.matcher("jobX1").matches());
+		Assert.assertFalse(p.matcher("job.12").matches());
+	}
+	
+	@Test
+	public void testPermissionFiltering() throws Exception {
+		printInfo("testPermissionFiltering()");
+		XmlProject base = new XmlProject("Base");
+		base.setParameter("INHERITED", "value");
+		XmlProject pub1 = new XmlProject("Pub1");
+		XmlProject pub2 = new XmlProject("Pub2");
+		XmlProject secret = new XmlProject("Secret");
+		pub1.addParent("Base", null);
+		pub2.addParent("Base", null);
+		secret.addParent("Base", null);
+		
+		jRule.jenkins.setSecurityRealm(jRule.createDummySecurityRealm());
+		jRule.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+				.grant(Jenkins.ADMINISTER).everywhere().to("admin")
+				.grant(Jenkins.READ).everywhere().to("user")
+				.grant(Item.READ, Item.EXTENDED_READ)
+						.onItems(base.project, pub1.project, pub2.project).to("user")
+				.grant(Item.READ).onItems(secret.project).to("user")
+		);
+		
+		//Globs silently skip unreadable projects
+		Map<String, Element> out = export("user", "*");
+		Assert.assertEquals("[Base, Pub1, Pub2]", out.keySet().toString());
+		
+		//Unreadable and missing projects look the same
+		out = export("user", "Pub1,Secret,Missing");
+		Assert.assertEquals("[Pub1, Secret, Missing]", out.keySet().toString());
+		Assert.assertEquals("", out.get("Pub1").getAttribute("error"));
+		Assert.assertEquals("not found", out.get("Secret").getAttribute("error"));
+		Assert.assertEquals("not found", out.get("Missing").getAttribute("error"));
+		Assert.assertTrue(
+				"Inherited parameter missing",
+				out.get("Pub1").getTextContent().contains("INHERITED")
+		);
+		
+		//An administrator sees everything
+		out = export("admin", "Secret");
+		Assert.assertEquals("", out.get("Secret").getAttribute("error"));
+		Assert.assertTrue(out.get("Secret").getTextContent().contains("INHERITED"));
+		
+		//A request without any jobs is rejected
+		try {
+			jRule.createWebClient().login("admin").goTo(URL, "application/xml");
+			Assert.fail("Request without jobs was accepted");
+		} catch (FailingHttpStatusCodeException ex) {
+			Assert.assertEquals(400, ex.getStatusCode());
+		}
+	}
+	
+	
+	// === HELPER METHODS ===
+	
+	/**
+	 * @return the exported project elements, by their name attribute
+	 */
+	private Map<String, Element> export(String user, String jobs) throws Exception {
+		WebClient wc = jRule.createWebClient().login(user);
+		String xml = wc.goTo(URL + "?jobs=" + jobs, "application/xml")
+				.getWebResponse().getContentAsString();
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+				new InputSource(new StringReader(xml))
+		);
+		Map<String, Element> out = new LinkedHashMap<String, Element>();
+		NodeList nodes = doc.getDocumentElement().getElementsByTagName("project");
+		for (int i = 0; i < nodes.getLength(); i++) {
+			Element e = (Element) nodes.item(i);
+			out.put(e.getAttribute("name"), e);
+		}
+		return out;
+	}
+}
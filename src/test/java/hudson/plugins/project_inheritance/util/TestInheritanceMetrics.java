@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.JenkinsRule.WebClient;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+
+import com.gargoylesoftware.htmlunit.FailingHttpStatusCodeException;
+import com.gargoylesoftware.htmlunit.Page;
+
+import hudson.plugins.project_inheritance.util.InheritanceMetrics.Histogram;
+import hudson.plugins.project_inheritance.util.InheritanceMetrics.HistogramSnapshot;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+/**
+ * Tests the histograms and counters of {@link InheritanceMetrics} and the
+ * JSON export of the {@link InheritanceMetricsLink}.
+ */
+public class TestInheritanceMetrics {
+	private static final Logger log = Logger.getLogger(
+			TestInheritanceMetrics.class.toString()
+	);
+	
+	@Rule public JenkinsRule jRule = new JenkinsRule();
+	
+	
+	private void printInfo(String info) {
+		log.info("[TestInheritanceMetrics] " + info);
+	}
+	
+	
+	// === TEST EXECUTION ===
+	
+	@Test
+	public void testHistogram() {
+		printInfo("testHistogram()");
+		Histogram h = new Histogram(false);
+		Assert.assertEquals(0, h.snapshot().getP50());
+		
+		for (int i = 1; i <= 100; i++) {
+			h.record(i);
+		}
+		HistogramSnapshot s = h.snapshot();
+		Assert.assertEquals(100, s.getCount());
+		Assert.assertEquals(50, s.getMean());
+		Assert.assertEquals(100, s.getMax());
+		//Percentiles are reported as the upper bound of their power-of-two bucket
+		Assert.assertEquals(63, s.getP50());
+		Assert.assertEquals(127, s.getP90());
+		Assert.assertEquals(127, s.getP99());
+		
+		//Negative values are counted as zero
+		Histogram neg = new Histogram(false);
+		neg.record(-5);
+		Assert.assertEquals(0, neg.snapshot().getMax());
+		Assert.assertEquals(1, neg.snapshot().getP50());
+		
+		//The top buckets have no upper bound
+		Histogram big = new Histogram(true);
+		big.record(Long.MAX_VALUE);
+		Assert.assertEquals("overflow", big.snapshot().format(big.snapshot().getP50()));
+		Assert.assertEquals("ns", big.snapshot().toJSON().getString("unit"));
+	}
+	
+	@Test
+	public void testConcurrentRecording() throws InterruptedException {
+		printInfo("testConcurrentRecording()");
+		final Histogram h = new Histogram(false);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final long value = t + 1;
+			threads.add(new Thread() {
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						h.record(value);
+					}
+				}
+			});
+		}
+		for (Thread t : threads) { t.start(); }
+		for (Thread t : threads) { t.join(); }
+		
+		HistogramSnapshot s = h.snapshot();
+		Assert.assertEquals(40000, s.getCount());
+		Assert.assertEquals(10000 * (1 + 2 + 3 + 4), s.sum);
+		Assert.assertEquals(4, s.getMax());
+	}
+	
+	@Test
+	public void testCounters() {
+		printInfo("testCounters()");
+		InheritanceMetrics.reset();
+		InheritanceMetrics.increment("test.counter");
+		InheritanceMetrics.add("test.counter", 2);
+		InheritanceMetrics.recordValue("test.value", 5);
+		
+		if (InheritanceMetrics.isEnabled()) {
+			Assert.assertEquals(Long.valueOf(3), InheritanceMetrics.getCounters().get("test.counter"));
+			Assert.assertEquals(1, InheritanceMetrics.getHistograms().get("test.value").getCount());
+		} else {
+			//Nothing is recorded while disabled
+			Assert.assertEquals(0, InheritanceMetrics.startTimer());
+			Assert.assertTrue(InheritanceMetrics.getCounters().isEmpty());
+			Assert.assertTrue(InheritanceMetrics.getHistograms().isEmpty());
+		}
+		
+		InheritanceMetrics.reset();
+		Assert.assertTrue(InheritanceMetrics.getCounters().isEmpty());
+	}
+	
+	@Test
+	public void testJsonRequiresAdminister() throws Exception {
+		printInfo("testJsonRequiresAdminister()");
+		jRule.jenkins.setSecurityRealm(jRule.createDummySecurityRealm());
+		jRule.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+				.grant(Jenkins.ADMINISTER).everywhere().to("admin")
+				.grant(Jenkins.READ).everywhere().to("user")
+		);
+		
+		WebClient wc = jRule.createWebClient().login("admin");
+		Page page = wc.goTo("inheritance_metrics/json", "application/json");
+		JSONObject json = JSONObject.fromObject(
+				page.getWebResponse().getContentAsString()
+		);
+		Assert.assertEquals(InheritanceMetrics.isEnabled(), json.getBoolean("enabled"));
+		JSONObject caches = json.getJSONObject("caches");
+		Assert.assertTrue(caches.has("buffers"));
+		Assert.assertTrue(caches.has("derivedFieldCache"));
+		Assert.assertTrue(caches.has("creationQueue"));
+		
+		wc = jRule.createWebClient().login("user");
+		try {
+			wc.goTo("inheritance_metrics/json", "application/json");
+			Assert.fail("Metrics must only be visible to administrators");
+		} catch (FailingHttpStatusCodeException ex) {
+			Assert.assertEquals(403, ex.getStatusCode());
+		}
+	}
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the eviction of values from a {@link TimedBuffer}, by provenance,
+ * age and size, also with concurrent writers.
+ */
+public class TestTimedBuffer {
+	private static final Logger log = Logger.getLogger(
+			TestTimedBuffer.class.toString()
+	);
+	
+	private static final String KEY = "value";
+	
+	
+	private void printInfo(String info) {
+		log.info("[TestTimedBuffer] " + info);
+	}
+	
+	
+	// === TEST EXECUTION ===
+	
+	@Test
+	public void testSetAndClear() {
+		printInfo("testSetAndClear()");
+		TimedBuffer<String, String> buf = new TimedBuffer<String, String>();
+		
+		buf.set("a", KEY, 1);
+		buf.set("b", KEY, 2);
+		buf.set(null, KEY, 3);
+		Assert.assertEquals(1, buf.get("a", KEY));
+		Assert.assertEquals(3, buf.get(null, KEY));
+		Assert.assertEquals(3, buf.size());
+		
+		buf.clear("a");
+		Assert.assertNull(buf.get("a", KEY));
+		Assert.assertEquals(2, buf.get("b", KEY));
+		
+		buf.clearAll(KEY);
+		Assert.assertNull(buf.get("b", KEY));
+		Assert.assertNull(buf.get(null, KEY));
+		Assert.assertEquals(0, buf.size());
+		
+		Assert.assertEquals(3, buf.getHits());
+		Assert.assertEquals(3, buf.getMisses());
+	}
+	
+	@Test
+	public void testInvalidateByProvenance() {
+		printInfo("testInvalidateByProvenance()");
+		TimedBuffer<String, String> buf = new TimedBuffer<String, String>();
+		
+		buf.set("child", KEY, 1, Arrays.asList("parent", "grandparent"));
+		buf.set("other", KEY, 2, Arrays.asList("unrelated"));
+		buf.set("parent", KEY, 3);
+		
+		//Invalidating the parent drops its own and all derived values
+		buf.invalidate("parent");
+		Assert.assertNull(buf.get("child", KEY));
+		Assert.assertNull(buf.get("parent", KEY));
+		Assert.assertEquals(2, buf.get("other", KEY));
+		
+		//A replaced value no longer depends on the sources of its predecessor
+		buf.set("child", KEY, 4, Arrays.asList("grandparent"));
+		buf.set("child", KEY, 5, Arrays.asList("unrelated"));
+		buf.invalidate("grandparent");
+		Assert.assertEquals(5, buf.get("child", KEY));
+		
+		buf.invalidate("unrelated");
+		Assert.assertNull(buf.get("child", KEY));
+		Assert.assertNull(buf.get("other", KEY));
+	}
+	
+	@Test
+	public void testNullValuesAndHitRate() {
+		printInfo("testNullValuesAndHitRate()");
+		TimedBuffer<String, String> buf = new TimedBuffer<String, String>();
+		Assert.assertEquals(0.0, buf.getHitRate(), 0.0);
+		
+		//A stored null is a hit, which is only visible with the timestamp
+		buf.set("a", KEY, null);
+		Entry<Object, Long> e = buf.getWithTimestamp("a", KEY);
+		Assert.assertNotNull("Stored null value was not found", e);
+		Assert.assertNull(e.getKey());
+		Assert.assertNull(buf.getWithTimestamp("b", KEY));
+		
+		//The null object is distinct from all others
+		buf.set(null, KEY, "n");
+		Assert.assertEquals("n", buf.get(null, KEY));
+		Assert.assertNull(buf.get("null", KEY));
+		buf.invalidate(null);
+		Assert.assertNull(buf.get(null, KEY));
+		
+		Assert.assertEquals(2, buf.getHits());
+		Assert.assertEquals(3, buf.getMisses());
+		Assert.assertEquals(0.4, buf.getHitRate(), 0.0001);
+		Assert.assertEquals(0, buf.getEvictions());
+	}
+	
+	@Test
+	public void testCullAged() throws InterruptedException {
+		printInfo("testCullAged()");
+		TimedBuffer<String, String> buf = new TimedBuffer<String, String>(50);
+		
+		buf.set("a", KEY, 1);
+		Assert.assertEquals(1, buf.get("a", KEY));
+		Thread.sleep(100);
+		
+		//Aged values are hidden at once, but only removed by cull()
+		Assert.assertNull(buf.get("a", KEY));
+		Assert.assertEquals(1, buf.size());
+		buf.cull();
+		Assert.assertEquals(0, buf.size());
+		Assert.assertEquals(1, buf.getEvictions());
+	}
+	
+	@Test
+	public void testCullOldestAboveMaxSize() throws InterruptedException {
+		printInfo("testCullOldestAboveMaxSize()");
+		TimedBuffer<String, String> buf = new TimedBuffer<String, String>(-1, 2);
+		
+		for (String obj : Arrays.asList("a", "b", "c")) {
+			buf.set(obj, KEY, obj);
+			//Making sure that each value has a distinct creation time
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(3, buf.size());
+		
+		buf.cull();
+		Assert.assertEquals(2, buf.size());
+		Assert.assertEquals(1, buf.getEvictions());
+		Assert.assertNull(buf.get("a", KEY));
+		Assert.assertEquals("b", buf.get("b", KEY));
+		Assert.assertEquals("c", buf.get("c", KEY));
+	}
+	
+	/**
+	 * Readers and writers work on the same objects, while another thread
+	 * clears them. A reader must only ever see a value stored for the object
+	 * it asked for.
+	 */
+	@Test
+	public void testConcurrentClearAndGet() throws Throwable {
+		printInfo("testConcurrentClearAndGet()");
+		final TimedBuffer<String, String> buf = new TimedBuffer<String, String>();
+		final int objects = 16;
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final int id = t;
+			workers.add(new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 20000; i++) {
+							String obj = "o" + ((i + id) % objects);
+							if (i % 2 == 0) {
+								buf.set(obj, KEY, obj);
+							} else {
+								Object v = buf.get(obj, KEY);
+								if (v != null) {
+									Assert.assertEquals(obj, v);
+								}
+							}
+						}
+					} catch (Throwable ex) {
+						failure.compareAndSet(null, ex);
+					}
+				}
+			});
+		}
+		
+		Thread clearer = new Thread() {
+			public void run() {
+				int i = 0;
+				while (!done.get()) {
+					buf.clear("o" + (i++ % objects));
+					if (i % 100 == 0) {
+						buf.clearAll(KEY);
+					}
+				}
+			}
+		};
+		
+		clearer.start();
+		for (Thread w : workers) { w.start(); }
+		for (Thread w : workers) { w.join(); }
+		done.set(true);
+		clearer.join();
+		
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		
+		buf.clearAll();
+		Assert.assertEquals(0, buf.size());
+		for (int i = 0; i < objects; i++) {
+			Assert.assertNull(buf.get("o" + i, KEY));
+		}
+	}
+	
+	/**
+	 * Several threads store values derived from the same source, while
+	 * another invalidates that source and a third one culls the buffer. Every
+	 * value that was completely stored before an invalidation started must be
+	 * gone once that invalidation returns.
+	 */
+	@Test
+	public void testConcurrentInvalidateAndSet() throws Throwable {
+		printInfo("testConcurrentInvalidateAndSet()");
+		final TimedBuffer<String, String> buf = new TimedBuffer<String, String>(-1, 100000);
+		final List<String> source = Collections.singletonList("source");
+		final ConcurrentLinkedQueue<String> stored = new ConcurrentLinkedQueue<String>();
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final int id = t;
+			writers.add(new Thread() {
+				public void run() {
+					for (int i = 0; i < 5000; i++) {
+						//Each value is stored under a fresh object exactly once
+						String obj = id + "-" + i;
+						buf.set(obj, KEY, i, source);
+						stored.add(obj);
+					}
+				}
+			});
+		}
+		
+		Thread invalidator = new Thread() {
+			public void run() {
+				try {
+					while (!done.get()) {
+						List<String> before = new ArrayList<String>(stored);
+						buf.invalidate("source");
+						for (String obj : before) {
+							Assert.assertNull(
+									"Value survived invalidation: " + obj,
+									buf.get(obj, KEY)
+							);
+						}
+					}
+				} catch (Throwable ex) {
+					failure.compareAndSet(null, ex);
+				}
+			}
+		};
+		
+		Thread culler = new Thread() {
+			public void run() {
+				while (!done.get()) {
+					buf.cull();
+				}
+			}
+		};
+		
+		invalidator.start();
+		culler.start();
+		for (Thread w : writers) { w.start(); }
+		for (Thread w : writers) { w.join(); }
+		done.set(true);
+		invalidator.join();
+		culler.join();
+		
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		
+		//A final invalidation must catch everything that is left
+		buf.invalidate("source");
+		for (String obj : stored) {
+			Assert.assertNull(buf.get(obj, KEY));
+		}
+	}
+}
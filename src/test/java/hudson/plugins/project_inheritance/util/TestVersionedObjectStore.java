@@ -0,0 +1,602 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.Descriptor;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterDefinition;
+import hudson.plugins.project_inheritance.projects.references.ParameterizedProjectReference;
+import hudson.plugins.project_inheritance.projects.references.SimpleProjectReference;
+import hudson.plugins.project_inheritance.util.VersionedObjectStore.Version;
+import hudson.tasks.ArtifactArchiver;
+import hudson.tasks.Builder;
+import hudson.tasks.Shell;
+import hudson.util.CopyOnWriteList;
+import hudson.util.DescribableList;
+import jenkins.model.Jenkins;
+
+/**
+ * Tests the segment file format used to persist a
+ * {@link VersionedObjectStore}, its recovery from a damaged end of file and
+ * the migration of stores saved as XML by older releases.
+ */
+public class TestVersionedObjectStore {
+	private static final Logger log = Logger.getLogger(
+			TestVersionedObjectStore.class.toString()
+	);
+	
+	@Rule public JenkinsRule jRule = new JenkinsRule();
+	
+	@Rule public TemporaryFolder tmp = new TemporaryFolder();
+	
+	
+	private void printInfo(String info) {
+		log.info("[TestVersionedObjectStore] " + info);
+	}
+	
+	
+	// === TEST EXECUTION ===
+	
+	@Test
+	public void testSaveLoadRoundTrip() throws IOException {
+		printInfo("testSaveLoadRoundTrip()");
+		File file = tmp.newFile("versions.seg");
+		
+		VersionedObjectStore vos = createStore(3);
+		vos.save(file);
+		Assert.assertTrue("Not saved as segment file", VersionSegmentFile.isSegmentFile(file));
+		Assert.assertNotNull("Index not written", VersionSegmentFile.readIndex(file));
+		assertSameStore(vos, VersionedObjectStore.load(file));
+		
+		//Saving the loaded store again only appends the new version
+		VersionedObjectStore loaded = VersionedObjectStore.load(file);
+		long before = file.length();
+		Version v = loaded.createNextVersion();
+		loaded.setObjectFor(v, "description", "version " + v.id);
+		loaded.getVersion(2L).setStability(true);
+		loaded.save(file);
+		Assert.assertTrue("Nothing appended", file.length() > before);
+		assertSameStore(loaded, VersionedObjectStore.load(file));
+		
+		//A missing index is rebuilt when loading
+		Assert.assertTrue(VersionSegmentFile.getIndexFile(file).delete());
+		assertSameStore(loaded, VersionedObjectStore.load(file));
+		List<VersionSegmentFile.IndexEntry> idx = VersionSegmentFile.readIndex(file);
+		Assert.assertNotNull("Index not rebuilt", idx);
+		Assert.assertEquals(loaded.size(), idx.size());
+	}
+	
+	@Test
+	public void testTruncatedTail() throws IOException {
+		printInfo("testTruncatedTail()");
+		File file = tmp.newFile("versions.seg");
+		
+		VersionedObjectStore vos = createStore(2);
+		vos.save(file);
+		VersionedObjectStore intact = VersionedObjectStore.load(file);
+		
+		Version v = vos.createNextVersion();
+		vos.setObjectFor(v, "description", "lost in a crash");
+		vos.save(file);
+		
+		//Cut off the end of the last record, as a crash during append would
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() - 3);
+		}
+		VersionedObjectStore loaded = VersionedObjectStore.load(file);
+		assertSameStore(intact, loaded);
+		
+		//The next save must not append behind the broken record
+		Version next = loaded.createNextVersion();
+		loaded.setObjectFor(next, "description", "after the crash");
+		loaded.save(file);
+		VersionedObjectStore reloaded = VersionedObjectStore.load(file);
+		assertSameStore(loaded, reloaded);
+		Assert.assertEquals(
+				"after the crash",
+				reloaded.getObject(next.id, "description")
+		);
+	}
+	
+	@Test
+	public void testCorruptTail() throws IOException {
+		printInfo("testCorruptTail()");
+		File file = tmp.newFile("versions.seg");
+		
+		VersionedObjectStore vos = createStore(3);
+		vos.save(file);
+		
+		//Garbage after the last record, e.g. from a partially written block
+		try (OutputStream os = new FileOutputStream(file, true)) {
+			os.write(new byte[] {0, 0, 0, 12, 5, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+		}
+		VersionedObjectStore loaded = VersionedObjectStore.load(file);
+		assertSameStore(vos, loaded);
+		
+		//A record with a broken checksum ends the file as well
+		Version v = loaded.createNextVersion();
+		loaded.setObjectFor(v, "description", "corrupted");
+		loaded.save(file);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(raf.length() - 1);
+			int b = raf.read();
+			raf.seek(raf.length() - 1);
+			raf.write(b ^ 0xFF);
+		}
+		assertSameStore(vos, VersionedObjectStore.load(file));
+	}
+	
+	@Test
+	public void testLegacyXmlMigration() throws IOException {
+		printInfo("testLegacyXmlMigration()");
+		File legacy = tmp.newFile("versions.xml.gz");
+		File file = tmp.newFile("versions.seg");
+		
+		//Stores written by older releases are plain XStream XML, GZIP compressed
+		VersionedObjectStore vos = createStore(3);
+		try (Writer w = new OutputStreamWriter(
+				new GZIPOutputStream(new FileOutputStream(legacy)),
+				StandardCharsets.UTF_8)) {
+			Jenkins.XSTREAM2.toXML(vos, w);
+		}
+		VersionedObjectStore loaded = VersionedObjectStore.load(legacy);
+		assertSameStore(vos, loaded);
+		
+		loaded.save(file);
+		Assert.assertTrue("Not migrated to segment file", VersionSegmentFile.isSegmentFile(file));
+		assertSameStore(vos, VersionedObjectStore.load(file));
+	}
+	
+	@Test
+	public void testLegacyProjectMigration() throws Exception {
+		printInfo("testLegacyProjectMigration()");
+		InheritanceProject p = jRule.jenkins.createProject(
+				InheritanceProject.class, "LegacyVersions"
+		);
+		p.setDescription("first");
+		p.dumpConfigToNewVersion();
+		p.setDescription("second");
+		p.dumpConfigToNewVersion();
+		VersionedObjectStore vos = p.getVersionedObjectStore();
+		int size = vos.size();
+		
+		//Replace the segment file with what an older release had written
+		File seg = new File(p.getRootDir(), "versions.seg");
+		File legacy = new File(p.getRootDir(), "versions.xml.gz");
+		try (Writer w = new OutputStreamWriter(
+				new GZIPOutputStream(new FileOutputStream(legacy)),
+				StandardCharsets.UTF_8)) {
+			vos.writeXML(w);
+		}
+		Assert.assertTrue(seg.delete());
+		VersionSegmentFile.getIndexFile(seg).delete();
+		
+		jRule.jenkins.reload();
+		InheritanceProject reloaded = (InheritanceProject) jRule.jenkins.getItem("LegacyVersions");
+		Assert.assertEquals(size, reloaded.getVersionedObjectStore().size());
+		Assert.assertTrue("Segment file not written", VersionSegmentFile.isSegmentFile(seg));
+		Assert.assertFalse("Legacy file still in place", legacy.exists());
+		Assert.assertTrue(
+				"Legacy file not kept",
+				new File(legacy.getPath() + ".migrated").isFile()
+		);
+		assertSameStore(vos, VersionedObjectStore.load(seg));
+	}
+	
+	@Test
+	public void testIdenticalVersionIsDropped() throws Exception {
+		printInfo("testIdenticalVersionIsDropped()");
+		
+		VersionedObjectStore vos = createStore(1);
+		Version v1 = vos.getLatestVersion();
+		Version v2 = vos.createNextVersion();
+		Assert.assertTrue("Copied version not identical", vos.areIdentical(v1, v2));
+		vos.setObjectFor(v2, "description", "changed");
+		Assert.assertFalse("Changed version identical", vos.areIdentical(v1, v2));
+		
+		//Saved versions are compared without decoding them
+		File file = tmp.newFile("versions.seg");
+		vos.undoVersion(v2);
+		vos.save(file);
+		VersionedObjectStore loaded = VersionedObjectStore.load(file);
+		Version v3 = loaded.createNextVersion();
+		Assert.assertTrue(
+				"Saved version not identical to its copy",
+				loaded.areIdentical(loaded.getVersion(v1.id), v3)
+		);
+		
+		//And a project does not create a version, if nothing changed
+		InheritanceProject p = jRule.jenkins.createProject(
+				InheritanceProject.class, "Unchanged"
+		);
+		p.dumpConfigToNewVersion();
+		int size = p.getVersionedObjectStore().size();
+		p.dumpConfigToNewVersion();
+		Assert.assertEquals("Duplicate version kept", size, p.getVersionedObjectStore().size());
+		
+		jRule.jenkins.reload();
+		p = (InheritanceProject) jRule.jenkins.getItem("Unchanged");
+		p.dumpConfigToNewVersion();
+		Assert.assertEquals(
+				"Duplicate of a version loaded from disk kept",
+				size, p.getVersionedObjectStore().size()
+		);
+	}
+	
+	@Test
+	public void testLazyVersionPropertiesHaveOwner() throws Exception {
+		printInfo("testLazyVersionPropertiesHaveOwner()");
+		InheritanceProject p = jRule.jenkins.createProject(
+				InheritanceProject.class, "LazyOwner"
+		);
+		p.addProperty(new ParametersDefinitionProperty(
+				Arrays.<ParameterDefinition>asList(
+						new InheritableStringParameterDefinition("FOO", "foo")
+				)
+		));
+		p.dumpConfigToNewVersion();
+		
+		//After a reload, the values of the version are only read on demand
+		jRule.jenkins.reload();
+		p = (InheritanceProject) jRule.jenkins.getItem("LazyOwner");
+		Object props = p.getVersionedObjectStore().getObject(
+				p.getLatestVersion(), "properties"
+		);
+		Assert.assertTrue("No properties stored", props instanceof List);
+		int found = 0;
+		for (Object prop : (List<?>) props) {
+			if (!(prop instanceof ParametersDefinitionProperty)) { continue; }
+			found++;
+			Assert.assertSame(
+					"Lazily loaded property not owned by its project",
+					p, ((ParametersDefinitionProperty) prop).getOwner()
+			);
+		}
+		Assert.assertEquals("Parameters not stored", 1, found);
+	}
+	
+	@Test
+	public void testRenameUpdatesLazyVersions() throws Exception {
+		printInfo("testRenameUpdatesLazyVersions()");
+		InheritanceProject parent = jRule.jenkins.createProject(
+				InheritanceProject.class, "LazyParent"
+		);
+		InheritanceProject child = jRule.jenkins.createProject(
+				InheritanceProject.class, "LazyChild"
+		);
+		child.addParentReference(new SimpleProjectReference("LazyParent"), false);
+		child.dumpConfigToNewVersion();
+		
+		//Only the metadata of the child's versions is in memory now
+		jRule.jenkins.reload();
+		parent = (InheritanceProject) jRule.jenkins.getItem("LazyParent");
+		parent.renameTo("RenamedLazyParent");
+		
+		//The renamed reference must have been written to disk
+		jRule.jenkins.reload();
+		child = (InheritanceProject) jRule.jenkins.getItem("LazyChild");
+		Object refs = child.getVersionedObjectStore().getObject(
+				child.getLatestVersion(), "parentReferences"
+		);
+		Assert.assertTrue("No references stored", refs instanceof List);
+		Assert.assertEquals(1, ((List<?>) refs).size());
+		Assert.assertEquals(
+				"RenamedLazyParent",
+				((SimpleProjectReference) ((List<?>) refs).get(0)).getName()
+		);
+	}
+	
+	@Test
+	public void testCodecRoundTrip() throws Exception {
+		printInfo("testCodecRoundTrip()");
+		jRule.jenkins.createProject(InheritanceProject.class, "CodecParent");
+		InheritanceProject p = jRule.jenkins.createProject(
+				InheritanceProject.class, "Codecs"
+		);
+		p.addParentReference(new ParameterizedProjectReference(
+				"CodecParent", "variance",
+				Arrays.<ParameterDefinition>asList(
+						new InheritableStringParameterDefinition("REF", "ref")
+				)
+		), false);
+		p.getRawCompatibleProjects().add(new SimpleProjectReference("CodecParent"));
+		p.addProperty(new ParametersDefinitionProperty(
+				Arrays.<ParameterDefinition>asList(
+						new InheritableStringParameterDefinition("FOO", "foo")
+				)
+		));
+		p.getRawBuildersList().add(new Shell("echo first"));
+		p.dumpConfigToNewVersion("first");
+		p.getRawBuildersList().add(new Shell("echo second"));
+		p.getRawPublishersList().add(new ArtifactArchiver("*.txt"));
+		p.setQuietPeriod(7);
+		p.dumpConfigToNewVersion("second");
+		
+		//All values of a real project must survive both codecs unchanged
+		VersionedObjectStore vos = p.getVersionedObjectStore();
+		Assert.assertEquals(2, vos.size());
+		for (Version v : vos.getAllVersions()) {
+			for (Map.Entry<String, Object> e : vos.getValueMapFor(v.id).entrySet()) {
+				assertCodecsRoundTrip(v.id + ":" + e.getKey(), e.getValue());
+			}
+		}
+		
+		//CopyOnWriteList, as used by Jenkins for job properties, has its own converter
+		CopyOnWriteList<Builder> cow = new CopyOnWriteList<Builder>();
+		cow.add(new Shell("echo copy"));
+		assertCodecsRoundTrip("CopyOnWriteList", cow);
+	}
+	
+	@Test
+	public void testDeltaRecords() throws IOException {
+		printInfo("testDeltaRecords()");
+		File file = tmp.newFile("versions.seg");
+		
+		//Each version only changes the counter; every tenth drops a key
+		VersionedObjectStore vos = createStore(1);
+		for (int i = 2; i <= 100; i++) {
+			Version v;
+			if (i % 10 == 0) {
+				Map<String, Object> values = new HashMap<String, Object>(
+						vos.getValueMapFor(i - 1L)
+				);
+				values.remove("nothing");
+				v = vos.createNextVersionWithMapping(values);
+			} else {
+				v = vos.createNextVersion();
+				vos.setObjectFor(v, "nothing", null);
+			}
+			vos.setObjectFor(v, "counter", Integer.valueOf(i));
+			vos.save(file);
+		}
+		
+		//A checkpoint every 64 versions; only differences in between
+		Assert.assertEquals(2, countRecords(file, VersionSegmentFile.TYPE_REF_VERSION));
+		Assert.assertEquals(98, countRecords(file, VersionSegmentFile.TYPE_REF_DELTA));
+		for (VersionSegmentFile.Record r : VersionSegmentFile.readAll(file).records) {
+			if (r.type != VersionSegmentFile.TYPE_REF_DELTA) { continue; }
+			Assert.assertTrue(
+					"Unchanged values referenced again in version " + r.id,
+					r.refs.size() <= 2
+			);
+		}
+		VersionedObjectStore loaded = VersionedObjectStore.load(file);
+		assertSameStore(vos, loaded);
+		Assert.assertFalse(loaded.getValueMapFor(10L).containsKey("nothing"));
+		Assert.assertTrue(loaded.getValueMapFor(11L).containsKey("nothing"));
+		
+		//Appending after a load continues with differences
+		Version v = loaded.createNextVersion();
+		loaded.setObjectFor(v, "counter", Integer.valueOf(101));
+		loaded.save(file);
+		Assert.assertEquals(99, countRecords(file, VersionSegmentFile.TYPE_REF_DELTA));
+		assertSameStore(loaded, VersionedObjectStore.load(file));
+	}
+	
+	@Test
+	public void testCompaction() throws IOException {
+		printInfo("testCompaction()");
+		File file = tmp.newFile("versions.seg");
+		
+		VersionedObjectStore vos = createStore(2);
+		vos.setObjectFor(vos.getVersion(1L), "large", largeValue('a'));
+		vos.setObjectFor(vos.getVersion(2L), "large", largeValue('a'));
+		vos.save(file);
+		Assert.assertEquals(0, vos.getDeadBytes());
+		
+		//Altering a saved version appends it again; the value stays in use
+		long before = file.length();
+		vos.setObjectFor(vos.getVersion(1L), "large", largeValue('b'));
+		vos.save(file);
+		Assert.assertTrue("Altered version not appended", file.length() > before);
+		long dead = vos.getDeadBytes();
+		Assert.assertTrue("Outdated record not counted", dead > 0);
+		Assert.assertTrue("Value still in use counted as unused", dead < 1000);
+		VersionedObjectStore loaded = VersionedObjectStore.load(file);
+		assertSameStore(vos, loaded);
+		Assert.assertEquals(dead, loaded.getDeadBytes());
+		
+		//Replacing the only use of a value leaves it unused
+		before = file.length();
+		loaded.setObjectFor(loaded.getVersion(1L), "large", largeValue('c'));
+		loaded.save(file);
+		Assert.assertTrue("Unused value not counted", loaded.getDeadBytes() > 10000);
+		Assert.assertTrue(file.length() > before);
+		
+		//Once half of the file is unused, it is written anew
+		boolean compacted = false;
+		for (char c = 'd'; c < 'h' && !compacted; c++) {
+			Assert.assertTrue(loaded.getDeadBytes() < file.length() / 2);
+			before = file.length();
+			loaded.setObjectFor(loaded.getVersion(1L), "large", largeValue(c));
+			loaded.save(file);
+			compacted = file.length() < before;
+		}
+		Assert.assertTrue("File not compacted", compacted);
+		Assert.assertEquals(0, loaded.getDeadBytes());
+		Assert.assertEquals(1, countRecords(file, VersionSegmentFile.TYPE_REF_VERSION));
+		Assert.assertEquals(1, countRecords(file, VersionSegmentFile.TYPE_REF_DELTA));
+		VersionedObjectStore reloaded = VersionedObjectStore.load(file);
+		assertSameStore(loaded, reloaded);
+		Assert.assertEquals(largeValue('a'), reloaded.getObject(2L, "large"));
+	}
+	
+	@Test
+	public void testEqualValuesStayIsolated() throws Exception {
+		printInfo("testEqualValuesStayIsolated()");
+		InheritanceProject a = jRule.jenkins.createProject(InheritanceProject.class, "IsoA");
+		InheritanceProject b = jRule.jenkins.createProject(InheritanceProject.class, "IsoB");
+		for (InheritanceProject p : Arrays.asList(a, b)) {
+			p.getRawBuildersList().add(new Shell("echo same"));
+			p.dumpConfigToNewVersion();
+		}
+		
+		//Values loaded from disk are where equal ones are shared
+		long hits = VersionValuePool.getHits();
+		jRule.jenkins.reload();
+		a = (InheritanceProject) jRule.jenkins.getItem("IsoA");
+		b = (InheritanceProject) jRule.jenkins.getItem("IsoB");
+		Long va = a.getLatestVersion();
+		Long vb = b.getLatestVersion();
+		DescribableList<Builder, Descriptor<Builder>> la = a.getBuildersListForVersion(va);
+		DescribableList<Builder, Descriptor<Builder>> lb = b.getBuildersListForVersion(vb);
+		Assert.assertTrue(
+				"Equal builders were not shared between projects",
+				VersionValuePool.getHits() > hits
+		);
+		Assert.assertNotSame(
+				"Shared builders handed out without copying",
+				la, lb
+		);
+		Assert.assertNotSame(la, a.getBuildersListForVersion(va));
+		
+		//Altering a returned list must neither affect the store nor the other project
+		la.add(new Shell("echo leaked"));
+		Assert.assertEquals(1, a.getBuildersListForVersion(va).size());
+		Assert.assertEquals(1, b.getBuildersListForVersion(vb).size());
+		
+		//Editing one project and saving a new version must not affect the other
+		a.getRawBuildersList().add(new Shell("echo changed"));
+		a.dumpConfigToNewVersion();
+		Assert.assertEquals(2, a.getBuildersListForVersion(a.getLatestVersion()).size());
+		Assert.assertEquals(1, b.getBuildersListForVersion(vb).size());
+		Assert.assertEquals(
+				"echo same",
+				((Shell) b.getBuildersListForVersion(vb).get(0)).getCommand()
+		);
+		Assert.assertEquals(1, b.getBuildersList().size());
+	}
+	
+	
+	
+	// === HELPER METHODS ===
+	
+	/**
+	 * Encodes and decodes the given value with each codec and checks that
+	 * the result serializes to the same XML as the original.
+	 */
+	private static void assertCodecsRoundTrip(String name, Object value) throws IOException {
+		String expected = Jenkins.XSTREAM2.toXML(value);
+		for (VersionValueCodec codec : new VersionValueCodec[] {
+				VersionValueCodec.XML, VersionValueCodec.BINARY }) {
+			Object decoded = codec.decode(codec.encode(value));
+			if (value == null) {
+				Assert.assertNull(name + " not null with " + codec, decoded);
+				continue;
+			}
+			Assert.assertNotNull(name + " lost with " + codec, decoded);
+			Assert.assertEquals(
+					"Different type of " + name + " with " + codec,
+					value.getClass(), decoded.getClass()
+			);
+			Assert.assertEquals(
+					"Different content of " + name + " with " + codec,
+					expected, Jenkins.XSTREAM2.toXML(decoded)
+			);
+		}
+	}
+	
+	/**
+	 * @param n the number of versions
+	 * @return a store whose versions share some and differ in other values
+	 */
+	private static VersionedObjectStore createStore(int n) {
+		VersionedObjectStore vos = new VersionedObjectStore();
+		for (int i = 1; i <= n; i++) {
+			Version v = (i == 1)
+					? vos.createNextVersionAsEmpty()
+					: vos.createNextVersion();
+			vos.setObjectFor(v, "description", "version " + i);
+			vos.setObjectFor(v, "shared", new ArrayList<String>(Arrays.asList("a", "b")));
+			vos.setObjectFor(v, "counter", Integer.valueOf(i));
+			vos.setObjectFor(v, "nothing", null);
+			v.setDescription("Version #" + i);
+			v.setStability(i % 2 == 1);
+		}
+		return vos;
+	}
+	
+	private static void assertSameStore(VersionedObjectStore expected, VersionedObjectStore actual) {
+		Assert.assertEquals("Different number of versions", expected.size(), actual.size());
+		List<Version> exp = new ArrayList<Version>(expected.getAllVersions());
+		List<Version> act = new ArrayList<Version>(actual.getAllVersions());
+		for (int i = 0; i < exp.size(); i++) {
+			Version e = exp.get(i);
+			Version a = act.get(i);
+			Assert.assertEquals("Different version id", e.id, a.id);
+			Assert.assertEquals("Different timestamp of " + e.id, e.timestamp, a.timestamp);
+			Assert.assertEquals("Different stability of " + e.id, e.getStability(), a.getStability());
+			Assert.assertEquals("Different description of " + e.id, e.getDescription(), a.getDescription());
+			Assert.assertEquals("Different user of " + e.id, e.getUsername(), a.getUsername());
+			
+			//Compared as XML, since most job settings lack equals()
+			Assert.assertEquals(
+					"Different values of " + e.id,
+					toXml(expected.getValueMapFor(e.id)),
+					toXml(actual.getValueMapFor(a.id))
+			);
+		}
+	}
+	
+	private static int countRecords(File file, byte type) throws IOException {
+		int cnt = 0;
+		for (VersionSegmentFile.Record r : VersionSegmentFile.readAll(file).records) {
+			if (r.type == type) { cnt++; }
+		}
+		return cnt;
+	}
+	
+	private static String largeValue(char c) {
+		char[] chars = new char[10000];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+	
+	private static String toXml(Map<String, Object> values) {
+		Assert.assertNotNull("Values could not be read", values);
+		return Jenkins.XSTREAM2.toXML(new TreeMap<String, Object>(values));
+	}
+}
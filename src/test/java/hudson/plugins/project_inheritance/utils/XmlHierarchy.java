@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2017 Intel Deutschland GmbH
+ */
+package hudson.plugins.project_inheritance.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.model.labels.LabelAtom;
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterDefinition;
+import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterDefinition.IModes;
+import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterDefinition.WhitespaceMode;
+import hudson.tasks.Shell;
+
+/**
+ * A synthetic hierarchy of {@link XmlProject}s of a given shape and size.
+ * <p>
+ * Every project defines an extensible parameter named "PARAM" and a builder,
+ * so that deriving them has to walk and merge the whole scope. The roots of
+ * the hierarchy also carry a label. The current state of every project is
+ * saved as its stable version.
+ */
+public class XmlHierarchy {
+	public enum Shape {
+		/** A single chain of projects; the target is the deepest one */
+		CHAIN,
+		/** A single target that inherits from many independent parents */
+		FAN_OUT,
+		/** A chain of diamonds; every level inherits twice from the one above */
+		DIAMOND,
+		/** A single base with many leaves; the target is the base */
+		LEAVES;
+	}
+	
+	/**
+	 * The project the hierarchy was built around.
+	 */
+	public final InheritanceProject target;
+	
+	/**
+	 * All projects of the hierarchy, in order of creation.
+	 */
+	public final List<InheritanceProject> projects;
+	
+	
+	private XmlHierarchy(InheritanceProject target, List<InheritanceProject> projects) {
+		this.target = target;
+		this.projects = Collections.unmodifiableList(projects);
+	}
+	
+	public static XmlHierarchy create(Shape shape, int size) throws IOException {
+		List<InheritanceProject> projects = new ArrayList<InheritanceProject>();
+		InheritanceProject target = null;
+		switch (shape) {
+			case CHAIN:
+				XmlProject prev = create(projects, "chain_0", true);
+				for (int i = 1; i < size; i++) {
+					XmlProject next = create(projects, "chain_" + i, false);
+					next.addParent(prev.project.getFullName(), null);
+					prev = next;
+				}
+				target = prev.project;
+				break;
+			
+			case FAN_OUT:
+				XmlProject wide = create(projects, "wide", false);
+				for (int i = 0; i < size; i++) {
+					XmlProject parent = create(projects, "parent_" + i, true);
+					wide.addParent(parent.project.getFullName(), null);
+				}
+				target = wide.project;
+				break;
+			
+			case DIAMOND:
+				XmlProject top = create(projects, "diamond_0", true);
+				for (int i = 1; i < size; i++) {
+					XmlProject left = create(projects, "diamond_" + i + "_left", false);
+					XmlProject right = create(projects, "diamond_" + i + "_right", false);
+					left.addParent(top.project.getFullName(), null);
+					right.addParent(top.project.getFullName(), null);
+					XmlProject bottom = create(projects, "diamond_" + i, false);
+					bottom.addParent(left.project.getFullName(), null);
+					bottom.addParent(right.project.getFullName(), null);
+					top = bottom;
+				}
+				target = top.project;
+				break;
+			
+			case LEAVES:
+				XmlProject base = create(projects, "base", true);
+				for (int i = 0; i < size; i++) {
+					XmlProject leaf = create(projects, "leaf_" + i, false);
+					leaf.addParent(base.project.getFullName(), null);
+				}
+				target = base.project;
+				break;
+		}
+		
+		//Make the current state of every project its stable version
+		for (InheritanceProject ip : projects) {
+			ip.dumpConfigToNewVersion("Hierarchy setup");
+		}
+		return new XmlHierarchy(target, projects);
+	}
+	
+	private static XmlProject create(List<InheritanceProject> projects,
+			String name, boolean isRoot) throws IOException {
+		XmlProject xp = new XmlProject(name);
+		xp.setParameter(new InheritableStringParameterDefinition(
+				"PARAM", name, "Defined by " + name,
+				IModes.EXTENSIBLE, false, false,
+				WhitespaceMode.ADD_IF_EXTENSION, false
+		));
+		xp.project.getRawBuildersList().add(new Shell("echo " + name));
+		if (isRoot) {
+			xp.project.setAssignedLabel(new LabelAtom("label_" + name));
+		}
+		projects.add(xp.project);
+		return xp;
+	}
+}